@@ -11,6 +11,7 @@ import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -83,6 +84,7 @@ import de.blau.android.osm.OsmGpxApi;
 import de.blau.android.osm.OsmGpxApi.Visibility;
 import de.blau.android.osm.OsmParser;
 import de.blau.android.osm.OsmPbfParser;
+import de.blau.android.osm.OsmPullParser;
 import de.blau.android.osm.OsmXml;
 import de.blau.android.osm.PostMergeHandler;
 import de.blau.android.osm.Relation;
@@ -187,6 +189,9 @@ public class Logic {
     /** Sorter instance for sorting ways by distance */
     private static final DistanceSorter<Way, Way>         waySorter  = new DistanceSorter<>();
 
+    /** Index of the segments of long ways for click hit-testing */
+    private final WaySegmentIndex segmentIndex = new WaySegmentIndex();
+
     /**
      * maximum number of nodes in a way for it still to be moveable, arbitrary number for now
      */
@@ -836,70 +841,133 @@ public class Logic {
         java.util.Map<Way, Double> result = new HashMap<>();
         boolean showWayIcons = prefs.getShowWayIcons();
 
-        List<Way> ways = getClickableWays();
+        final BoundingBox clickBox = getClickBox(x, y);
+        segmentIndex.validate(getDelegator().getCurrentStorage(), map.getZoomLevel(), clickBox);
 
-        for (Way way : ways) {
+        for (Way way : getClickableWays(clickBox)) {
             List<Node> wayNodes = way.getNodes();
             int wayNodesSize = wayNodes.size();
             if ((way.isClosed() && !includeClosed) || wayNodesSize == 0) {
                 continue;
             }
-            boolean added = false;
+            double distance = clickDistance(wayNodes, segmentIndex.getSegments(way, clickBox), x, y);
+            if (distance >= 0) {
+                result.put(way, distance);
+                continue;
+            }
+            if (showWayIcons && areaHasIcon(way)) {
+                double A = 0;
+                double Y = 0;
+                double X = 0;
+                Node node1 = wayNodes.get(0);
+                float node1X = lonE7ToX(node1.getLon());
+                float node1Y = pointToY(node1);
+                // Iterate over all WayNodes, but not the last one.
+                for (int k = 0; k < wayNodesSize - 1; ++k) {
+                    Node node2 = wayNodes.get(k + 1);
+                    float node2X = lonE7ToX(node2.getLon());
+                    float node2Y = pointToY(node2);
+                    // calculations for centroid
+                    double d = node1X * node2Y - node2X * node1Y;
+                    A = A + d;
+                    X = X + (node1X + node2X) * d;
+                    Y = Y + (node1Y + node2Y) * d;
+                    node1X = node2X;
+                    node1Y = node2Y;
+                }
+                if (Util.notZero(A)) {
+                    Y = Y / (3 * A); // NOSONAR nonZero tests for zero
+                    X = X / (3 * A); // NOSONAR nonZero tests for zero
+                    distance = Math.hypot(x - X, y - Y);
+                    if (distance < DataStyle.getCurrent().getNodeToleranceValue()) {
+                        result.put(way, distance);
+                    }
+                }
+            }
+        }
+        return result;
+    }
 
-            double A = 0;
-            double Y = 0;
-            double X = 0;
-            float node1X = -Float.MAX_VALUE;
-            float node1Y = -Float.MAX_VALUE;
-            boolean firstNode = true;
+    /**
+     * Get the distance of the first segment of a way that is within way tolerance of the given coordinates
+     * 
+     * @param wayNodes the Nodes of the Way
+     * @param segments the candidate segments from the segment index or null if all segments should be checked
+     * @param x x display coordinate
+     * @param y y display coordinate
+     * @return the distance or a negative value if no segment is within tolerance
+     */
+    private double clickDistance(@NonNull List<Node> wayNodes, @Nullable BitSet segments, final float x, final float y) {
+        final int wayNodesSize = wayNodes.size();
+        if (segments == null) {
             // Iterate over all WayNodes, but not the last one.
             Node node1 = wayNodes.get(0);
+            float node1X = lonE7ToX(node1.getLon());
+            float node1Y = pointToY(node1);
             for (int k = 0; k < wayNodesSize - 1; ++k) {
                 Node node2 = wayNodes.get(k + 1);
-                if (firstNode) {
-                    node1X = lonE7ToX(node1.getLon());
-                    node1Y = latE7ToY(node1.getLat());
-                    firstNode = false;
-                }
                 float node2X = lonE7ToX(node2.getLon());
-                float node2Y = latE7ToY(node2.getLat());
-
+                float node2Y = pointToY(node2);
                 double distance = Geometry.isPositionOnLine(x, y, node1X, node1Y, node2X, node2Y);
                 if (distance >= 0) {
-                    result.put(way, distance);
-                    added = true;
-                    break;
+                    return distance;
                 }
-                // calculations for centroid
-                double d = node1X * node2Y - node2X * node1Y;
-                A = A + d;
-                X = X + (node1X + node2X) * d;
-                Y = Y + (node1Y + node2Y) * d;
-                node1 = node2;
                 node1X = node2X;
                 node1Y = node2Y;
             }
-            if (Util.notZero(A) && showWayIcons && !added && areaHasIcon(way)) {
-                Y = Y / (3 * A); // NOSONAR nonZero tests for zero
-                X = X / (3 * A); // NOSONAR nonZero tests for zero
-                double distance = Math.hypot(x - X, y - Y);
-                if (distance < DataStyle.getCurrent().getNodeToleranceValue()) {
-                    result.put(way, distance);
-                }
+            return -1D;
+        }
+        for (int k = segments.nextSetBit(0); k >= 0 && k < wayNodesSize - 1; k = segments.nextSetBit(k + 1)) {
+            Node node1 = wayNodes.get(k);
+            Node node2 = wayNodes.get(k + 1);
+            double distance = Geometry.isPositionOnLine(x, y, lonE7ToX(node1.getLon()), pointToY(node1), lonE7ToX(node2.getLon()),
+                    pointToY(node2));
+            if (distance >= 0) {
+                return distance;
             }
-
         }
-        return result;
+        return -1D;
+    }
+
+    /**
+     * Get the area around a click that elements need to intersect with to be clickable
+     * 
+     * The box is clipped to the current view
+     * 
+     * @param x x display coordinate
+     * @param y y display coordinate
+     * @return a BoundingBox
+     */
+    @NonNull
+    private BoundingBox getClickBox(final float x, final float y) {
+        DataStyle style = DataStyle.getCurrent();
+        float tolerance = Math.max(style.getNodeToleranceValue(), style.getWayToleranceValue() / 2);
+        // allow for rounding
+        BoundingBox clickBox = new BoundingBox(xToLonE7(x - tolerance) - 1, yToLatE7(y + tolerance) - 1, xToLonE7(x + tolerance) + 1,
+                yToLatE7(y - tolerance) + 1);
+        clickBox.intersection(map.getViewBox());
+        return clickBox;
     }
 
     /**
      * Get a List of Ways that could be clicked
      * 
+     * @param clickBox the area around the click
      * @return a List of Ways
      */
     @NonNull
-    List<Way> getClickableWays() {
-        return filter != null ? filter.getVisibleWays() : getWays(map.getViewBox());
+    List<Way> getClickableWays(@NonNull BoundingBox clickBox) {
+        List<Way> ways = getDelegator().getCurrentStorage().getWays(clickBox);
+        if (filter != null) {
+            List<Way> visible = new ArrayList<>(ways.size());
+            for (Way way : ways) {
+                if (filter.isVisible(way)) {
+                    visible.add(way);
+                }
+            }
+            return visible;
+        }
+        return ways;
     }
 
     /**
@@ -965,11 +1033,11 @@ public class Logic {
                 Node node2 = wayNodes.get(k + 1);
                 if (firstNode) {
                     node1X = lonE7ToX(node1.getLon());
-                    node1Y = latE7ToY(node1.getLat());
+                    node1Y = pointToY(node1);
                     firstNode = false;
                 }
                 float node2X = lonE7ToX(node2.getLon());
-                float node2Y = latE7ToY(node2.getLat());
+                float node2Y = pointToY(node2);
                 float xDelta = node2X - node1X;
                 float yDelta = node2Y - node1Y;
 
@@ -1046,7 +1114,7 @@ public class Logic {
     @NonNull
     private java.util.Map<Node, Double> getClickedNodesWithDistances(final float x, final float y, boolean inDownloadOnly) {
         java.util.Map<Node, Double> result = new HashMap<>();
-        for (Node node : getClickableNodes()) {
+        for (Node node : getClickableNodes(getClickBox(x, y))) {
             int lat = node.getLat();
             int lon = node.getLon();
             if (!inDownloadOnly || node.getState() != OsmElement.STATE_UNCHANGED || getDelegator().isInDownload(lon, lat)) {
@@ -1062,19 +1130,21 @@ public class Logic {
     /**
      * Get all nodes that could be clicked
      * 
+     * @param clickBox the area around the click
      * @return a List of Nodes
      */
     @NonNull
-    List<Node> getClickableNodes() {
-        List<Node> nodes;
+    List<Node> getClickableNodes(@NonNull BoundingBox clickBox) {
+        List<Node> nodes = getDelegator().getCurrentStorage().getNodes(clickBox);
         if (filter != null) {
-            nodes = filter.getVisibleNodes();
-            if (getSelectedNodes() != null) { // selected Nodes are always visible if a filter is
-                // applied
-                nodes.addAll(getSelectedNodes());
+            List<Node> visible = new ArrayList<>(nodes.size());
+            for (Node node : nodes) {
+                // selected Nodes are always visible if a filter is applied
+                if (filter.isVisible(node) || isSelected(node)) {
+                    visible.add(node);
+                }
             }
-        } else {
-            nodes = getDelegator().getCurrentStorage().getNodes(map.getViewBox());
+            return visible;
         }
         return nodes;
     }
@@ -2355,7 +2425,7 @@ public class Logic {
             for (int i = 1, wayNodesSize = wayNodes.size(); i < wayNodesSize; ++i) {
                 Node node2 = wayNodes.get(i);
                 float node2X = lonE7ToX(node2.getLon());
-                float node2Y = latE7ToY(node2.getLat());
+                float node2Y = pointToY(node2);
                 double distance = Geometry.isPositionOnLine(jx, jy, node1X, node1Y, node2X, node2Y);
                 if (distance >= 0 && (filter == null || filter.include(way, false))) {
                     closestElements.add(way);
@@ -2444,11 +2514,11 @@ public class Logic {
             float y = latE7ToY(nodeToJoin.getLat());
             Node node1 = wayNodes.get(0);
             float node1X = lonE7ToX(node1.getLon());
-            float node1Y = latE7ToY(node1.getLat());
+            float node1Y = pointToY(node1);
             for (int i = 1, wayNodesSize = wayNodes.size(); i < wayNodesSize; ++i) {
                 Node node2 = wayNodes.get(i);
                 float node2X = lonE7ToX(node2.getLon());
-                float node2Y = latE7ToY(node2.getLat());
+                float node2Y = pointToY(node2);
                 double distance = Geometry.isPositionOnLine(x, y, node1X, node1Y, node2X, node2Y);
                 if (distance >= 0) {
                     float[] p = GeoMath.closestPoint(x, y, node1X, node1Y, node2X, node2Y);
@@ -2691,11 +2761,11 @@ public class Logic {
                 Node node2 = wayNodes.get(k);
                 if (firstNode) {
                     node1X = lonE7ToX(node1.getLon());
-                    node1Y = latE7ToY(node1.getLat());
+                    node1Y = pointToY(node1);
                     firstNode = false;
                 }
                 float node2X = lonE7ToX(node2.getLon());
-                float node2Y = latE7ToY(node2.getLat());
+                float node2Y = pointToY(node2);
 
                 double distance = Geometry.isPositionOnLine(x, y, node1X, node1Y, node2X, node2Y);
                 if (distance >= 0) {
@@ -2744,9 +2814,9 @@ public class Logic {
     private synchronized Node createNodeOnWay(final Node node1, final Node node2, final float x, final float y) {
         // Nodes have to be converted to screen-coordinates, due to a better tolerance-check.
         float node1X = lonE7ToX(node1.getLon());
-        float node1Y = latE7ToY(node1.getLat());
+        float node1Y = pointToY(node1);
         float node2X = lonE7ToX(node2.getLon());
-        float node2Y = latE7ToY(node2.getLat());
+        float node2Y = pointToY(node2);
 
         // At first, we check if the x,y is in the bounding box clamping by node1 and node2.
         if (Geometry.isPositionOnLine(x, y, node1X, node1Y, node2X, node2Y) >= 0) {
@@ -2962,7 +3032,7 @@ public class Logic {
                 input = MapSplitSource.readBox(ctx, server.getMapSplitSource(), mapBox);
             } else {
                 try (InputStream in = server.getStreamForBox(ctx, mapBox)) {
-                    final OsmParser osmParser = new OsmParser();
+                    final OsmPullParser osmParser = new OsmPullParser();
                     osmParser.start(in);
                     input = osmParser.getStorage();
                 }
@@ -3007,7 +3077,7 @@ public class Logic {
             } else {
                 result = new AsyncResult(ErrorCodes.INVALID_DATA_RECEIVED, e.getMessage());
             }
-        } catch (ParserConfigurationException | UnsupportedFormatException e) {
+        } catch (UnsupportedFormatException e) {
             // crash and burn
             // TODO this seems to happen when the API call returns text from a proxy or similar intermediate
             // network device... need to display what we actually got
@@ -4103,7 +4173,8 @@ public class Logic {
                         result.setError(ErrorCodes.API_OFFLINE);
                         return result;
                     }
-                    getDelegator().uploadToServer(server, comment, source, closeOpenChangeset, closeChangeset, extraTags, elements);
+                    getDelegator().uploadToServer(activity.getApplicationContext(), server, comment, source, closeOpenChangeset, closeChangeset, extraTags,
+                            elements);
                 } catch (final OsmServerException e) {
                     result.setHttpError(e.getErrorCode());
                     result.setMessage(e.getMessageWithDescription());
@@ -5536,6 +5607,16 @@ public class Logic {
         return GeoMath.latE7ToY(map.getHeight(), map.getWidth(), viewBox, latE7);
     }
 
+    /**
+     * Convenience function calls GeoMath.pointToY
+     * 
+     * @param point the GeoPoint
+     * @return the screen Y coordinate
+     */
+    public float pointToY(@NonNull GeoPoint point) {
+        return GeoMath.pointToY(map.getHeight(), map.getWidth(), viewBox, point);
+    }
+
     /**
      * @return the delegator
      */
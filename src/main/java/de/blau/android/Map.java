@@ -995,10 +995,10 @@ public class Map extends View implements IMapView {
                     if (thisIntersects || nextIntersects || (!(nextNode != null && lastDrawnNode != null)
                             || clipBox.isIntersectionPossible(nextNodeLon, nextNodeLat, lastDrawnNodeLon, lastDrawnNodeLat))) {
                         x = GeoMath.lonE7ToX(w, box, nodeLon);
-                        y = GeoMath.latE7ToY(h, w, box, nodeLat);
+                        y = GeoMath.pointToY(h, w, box, node);
                         if (prevX == -Float.MAX_VALUE) { // last segment didn't intersect
                             prevX = GeoMath.lonE7ToX(w, box, prevNode.getLon());
-                            prevY = GeoMath.latE7ToY(h, w, box, prevNode.getLat());
+                            prevY = GeoMath.pointToY(h, w, box, prevNode);
                         }
                         // Line segment needs to be drawn
                         points.add(prevX);
@@ -0,0 +1,195 @@
+package de.blau.android;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import de.blau.android.osm.BoundingBox;
+import de.blau.android.osm.Node;
+import de.blau.android.osm.Storage;
+import de.blau.android.osm.Way;
+import de.blau.android.util.collections.LongHashMap;
+
+/**
+ * Grid index of the segments of long Ways for click hit-testing
+ *
+ * The cell size is chosen from the size of the click tolerance box at the current zoom level, so that a click only
+ * needs to look at a couple of cells. The grids are built on demand for Ways that are candidates for a click and are
+ * discarded when the zoom level changes or the contents of the Storage are modified.
+ *
+ * @author simon
+ *
+ */
+class WaySegmentIndex {
+
+    /**
+     * Ways with less segments are not indexed
+     */
+    static final int MIN_SEGMENTS = 64;
+
+    /**
+     * Segments that would be stored in more cells are always checked
+     */
+    private static final int MAX_SEGMENT_CELLS = 16;
+
+    /**
+     * Maximum number of Ways we cache grids for
+     */
+    private static final int MAX_CACHED_WAYS = 256;
+
+    /**
+     * Cell size as a multiple of the click box size
+     */
+    private static final int CELL_FACTOR = 4;
+
+    private static final class WayGrid {
+        final LongHashMap<int[]> cells = new LongHashMap<>();
+        int[]                    longSegments;
+    }
+
+    private final Map<Way, WayGrid> grids = new HashMap<>();
+
+    private Storage storage   = null;
+    private int     modCount  = 0;
+    private int     zoomLevel = -1;
+    private int     shift     = 0;
+
+    /**
+     * Check that the cached grids are still valid and throw them away if not
+     *
+     * @param storage the Storage the Ways are from
+     * @param zoomLevel the current zoom level
+     * @param clickBox the click tolerance box, used to determine the cell size when the zoom level has changed
+     */
+    synchronized void validate(@NonNull Storage storage, int zoomLevel, @NonNull BoundingBox clickBox) {
+        if (storage != this.storage || storage.getModCount() != modCount || zoomLevel != this.zoomLevel || grids.size() > MAX_CACHED_WAYS) {
+            grids.clear();
+            this.storage = storage;
+            modCount = storage.getModCount();
+            if (zoomLevel != this.zoomLevel) {
+                this.zoomLevel = zoomLevel;
+                long size = Math.max(1L, Math.max((long) clickBox.getRight() - clickBox.getLeft(), (long) clickBox.getTop() - clickBox.getBottom()));
+                shift = Math.min(30, 64 - Long.numberOfLeadingZeros(size * CELL_FACTOR));
+            }
+        }
+    }
+
+    /**
+     * Get the indices of the segments of a Way that could be within the click box
+     *
+     * @param way the Way
+     * @param clickBox the click tolerance box
+     * @return a BitSet with the index of the first Node of each candidate segment set, or null if the Way is too short
+     *         to be indexed and all segments should be checked
+     */
+    @Nullable
+    synchronized BitSet getSegments(@NonNull Way way, @NonNull BoundingBox clickBox) {
+        List<Node> nodes = way.getNodes();
+        final int segments = nodes.size() - 1;
+        if (segments < MIN_SEGMENTS) {
+            return null;
+        }
+        WayGrid grid = grids.get(way);
+        if (grid == null) {
+            grid = build(nodes);
+            grids.put(way, grid);
+        }
+        BitSet result = new BitSet(segments);
+        final int left = clickBox.getLeft() >> shift;
+        final int bottom = clickBox.getBottom() >> shift;
+        final int right = clickBox.getRight() >> shift;
+        final int top = clickBox.getTop() >> shift;
+        for (int x = left; x <= right; x++) {
+            for (int y = bottom; y <= top; y++) {
+                set(result, grid.cells.get(key(x, y)));
+            }
+        }
+        set(result, grid.longSegments);
+        return result;
+    }
+
+    /**
+     * Set the segment indices from a cell in a BitSet
+     *
+     * @param result the BitSet
+     * @param entries the cell entries, entries[0] holds the count, can be null
+     */
+    private static void set(@NonNull BitSet result, @Nullable int[] entries) {
+        if (entries != null) {
+            final int count = entries[0];
+            for (int i = 1; i <= count; i++) {
+                result.set(entries[i]);
+            }
+        }
+    }
+
+    /**
+     * Build the grid for the segments of a Way
+     *
+     * @param nodes the Nodes of the Way
+     * @return a WayGrid
+     */
+    @NonNull
+    private WayGrid build(@NonNull List<Node> nodes) {
+        WayGrid grid = new WayGrid();
+        final int segments = nodes.size() - 1;
+        Node node1 = nodes.get(0);
+        for (int k = 0; k < segments; k++) {
+            Node node2 = nodes.get(k + 1);
+            final int left = Math.min(node1.getLon(), node2.getLon()) >> shift;
+            final int bottom = Math.min(node1.getLat(), node2.getLat()) >> shift;
+            final int right = Math.max(node1.getLon(), node2.getLon()) >> shift;
+            final int top = Math.max(node1.getLat(), node2.getLat()) >> shift;
+            if (((long) right - left + 1) * ((long) top - bottom + 1) > MAX_SEGMENT_CELLS) {
+                grid.longSegments = add(grid.longSegments, k);
+            } else {
+                for (int x = left; x <= right; x++) {
+                    for (int y = bottom; y <= top; y++) {
+                        long key = key(x, y);
+                        int[] entries = grid.cells.get(key);
+                        int[] newEntries = add(entries, k);
+                        if (newEntries != entries) {
+                            grid.cells.put(key, newEntries);
+                        }
+                    }
+                }
+            }
+            node1 = node2;
+        }
+        return grid;
+    }
+
+    /**
+     * Add a segment index to a cell, growing the array if necessary
+     *
+     * @param entries the current entries, entries[0] holds the count, can be null
+     * @param segment the segment index
+     * @return the array holding the entries
+     */
+    @NonNull
+    private static int[] add(@Nullable int[] entries, int segment) {
+        if (entries == null) {
+            entries = new int[4];
+        } else if (entries[0] + 1 >= entries.length) {
+            int[] temp = new int[entries.length * 2];
+            System.arraycopy(entries, 0, temp, 0, entries.length);
+            entries = temp;
+        }
+        entries[++entries[0]] = segment;
+        return entries;
+    }
+
+    /**
+     * Create a key for a cell
+     *
+     * @param x cell x coordinate
+     * @param y cell y coordinate
+     * @return a long key
+     */
+    private static long key(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+}
@@ -197,6 +197,28 @@ public abstract class Filter implements Serializable {
         return result;
     }
 
+    /**
+     * Check if a node is currently visible according to the cache
+     * 
+     * @param node the Node
+     * @return true if the Node is in the cache and not excluded
+     */
+    public boolean isVisible(@NonNull Node node) {
+        Include include = cachedNodes.get(node);
+        return include != null && include != Include.DONT;
+    }
+
+    /**
+     * Check if a way is currently visible according to the cache
+     * 
+     * @param way the Way
+     * @return true if the Way is in the cache and not excluded
+     */
+    public boolean isVisible(@NonNull Way way) {
+        Include include = cachedWays.get(way);
+        return include != null && include != Include.DONT;
+    }
+
     /**
      * Save the state of this filter
      */
@@ -1,6 +1,5 @@
 package de.blau.android.layer.data;
 
-import static de.blau.android.util.Winding.CLOCKWISE;
 import static de.blau.android.util.Winding.COUNTERCLOCKWISE;
 import static de.blau.android.util.Winding.winding;
 
@@ -37,7 +36,6 @@ import android.os.Build;
 import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
-import androidx.core.util.Pools.SimplePool;
 import androidx.fragment.app.FragmentActivity;
 import de.blau.android.App;
 import de.blau.android.AsyncResult;
@@ -63,7 +61,6 @@ import de.blau.android.osm.OsmElement;
 import de.blau.android.osm.PostMergeHandler;
 import de.blau.android.osm.Relation;
 import de.blau.android.osm.RelationMember;
-import de.blau.android.osm.RelationUtils;
 import de.blau.android.osm.Server;
 import de.blau.android.osm.Storage;
 import de.blau.android.osm.StorageDelegator;
@@ -84,7 +81,6 @@ import de.blau.android.util.Geometry;
 import de.blau.android.util.Snack;
 import de.blau.android.util.Util;
 import de.blau.android.util.collections.FloatPrimitiveList;
-import de.blau.android.util.collections.LinkedList;
 import de.blau.android.util.collections.LongHashSet;
 import de.blau.android.util.collections.LowAllocArrayList;
 import de.blau.android.validation.Validator;
@@ -113,7 +109,6 @@ public class MapOverlay<O extends OsmElement> extends MapViewLayer
     private static final long AUTOPRUNE_MIN_INTERVAL       = 10000; // milli-seconds between autoprunes
     public static final int   DEFAULT_AUTOPRUNE_NODE_LIMIT = 5000;
     public static final int   PAN_AND_ZOOM_LIMIT           = 17;
-    private static final int  MP_SIZE_LIMIT                = 1000;  // max size of MP to render as MP
 
     /** half the width/height of a node icon in px */
     private final int iconRadius;
@@ -295,17 +290,16 @@ public class MapOverlay<O extends OsmElement> extends MapViewLayer
     private final ViewBox            viewBox         = new ViewBox();
 
     /**
-     * Stuff for multipolygon support Instantiate these objects just once
+     * Simplified geometry of long ways for the current zoom level
      */
-    private final List<RelationMember>       waysOnly             = new LowAllocArrayList<>(100);
-    private final LinkedList<RelationMember> tenpMultiPolygonSort = new LinkedList<>();
-    private final List<List<Node>>           outerRings           = new LowAllocArrayList<>();
-    private final List<List<Node>>           innerRings           = new LowAllocArrayList<>();
-    private final List<List<Node>>           unknownRings         = new LowAllocArrayList<>();
-    private final SimplePool<List<Node>>     ringPool             = new SimplePool<>(100);
-    private final List<Node>                 areaNodes            = new LowAllocArrayList<>();   // reversing winding
-                                                                                                 // and
-    // assembling
+    private final SimplifiedWayCache simplifiedWays = new SimplifiedWayCache();
+
+    /**
+     * Assembled rings of multipolygons
+     */
+    private final MultipolygonRingCache multipolygonRings = new MultipolygonRingCache();
+
+    private final List<Node>    areaNodes      = new LowAllocArrayList<>(); // reversing winding
     private final Set<Relation> paintRelations = new HashSet<>();
 
     private OnUpdateListener<O> onUpdateListener;
@@ -486,6 +480,8 @@ public class MapOverlay<O extends OsmElement> extends MapViewLayer
             final Storage currentStorage = delegator.getCurrentStorage();
             paintNodes = currentStorage.getNodes(viewBox, nodesResult);
             ways = currentStorage.getWays(viewBox, waysResult);
+            simplifiedWays.validate(currentStorage, zoomLevel);
+            multipolygonRings.validate(currentStorage);
         }
 
         // the following should guarantee that if the selected node is off screen but the handle not, the handle gets
@@ -572,7 +568,7 @@ public class MapOverlay<O extends OsmElement> extends MapViewLayer
         for (Node n : paintNodes) {
             boolean noTolerance = false;
             int lat = n.getLat();
-            float y = GeoMath.latE7ToY(screenHeight, screenWidth, viewBox, lat);
+            float y = GeoMath.pointToY(screenHeight, screenWidth, viewBox, n);
             int lon = n.getLon();
             float x = GeoMath.lonE7ToX(screenWidth, viewBox, lon);
             if (drawTolerance) {
@@ -714,84 +710,22 @@ public class MapOverlay<O extends OsmElement> extends MapViewLayer
             return;
         }
 
-        waysOnly.clear();
-        tenpMultiPolygonSort.clear();
-
-        // remove any non-Way non-downloaded members
-        for (RelationMember m : rel.getMembers()) {
-            if (m.downloaded() && Way.NAME.equals(m.getType())) {
-                waysOnly.add(m);
-            }
-        }
-        if (waysOnly.size() > MP_SIZE_LIMIT) { // protect against very large MPs
+        MultipolygonRingCache.Rings rings = multipolygonRings.get(rel);
+        if (rings == null || rings.rings.isEmpty()) {
             return;
         }
-        List<RelationMember> members = RelationUtils.sortRelationMembers(waysOnly, tenpMultiPolygonSort, RelationUtils::haveEndConnection);
-        outerRings.clear();
-        innerRings.clear();
-        unknownRings.clear();
-        List<Node> ring = getNewRing();
-
-        int ms = members.size();
-        String ringRole = "";
-        for (int i = 0; i < ms; i++) {
-            ringRole = "";
-            RelationMember current = members.get(i);
-            Way currentWay = (Way) current.getElement();
-            String currentRole = current.getRole();
-            if (currentRole != null && !"".equals(currentRole) && "".equals(ringRole)) {
-                ringRole = currentRole;
-            }
-            if (currentWay != null) {
-                // a bit of a hack to stop this way from being rendered as a way if it doesn't have any tags
-                if (currentWay.getStyle() == null && !currentWay.hasTags() && !"".equals(ringRole)) {
-                    currentWay.setStyle(dontRenderWay);
-                }
-                areaNodes.clear();
-                areaNodes.addAll(currentWay.getNodes());
-                int rs = ring.size();
-                int ns = areaNodes.size();
-                if (ring.isEmpty()) {
-                    ring.addAll(areaNodes);
-                } else if (ring.get(rs - 1).equals(areaNodes.get(0))) {
-                    ring.addAll(areaNodes.subList(1, ns));
-                } else if (ring.get(rs - 1).equals(areaNodes.get(ns - 1))) {
-                    Collections.reverse(areaNodes);
-                    ring.addAll(areaNodes.subList(1, ns));
-                }
-            }
-
-            RelationMember next = members.get((i + 1) % ms);
-            Way nextWay = (Way) next.getElement();
-            Node lastRingNode = ring.get(ring.size() - 1);
-            if (nextWay != null) {
-                List<Node> nextNodes = nextWay.getNodes();
-                int ns1 = nextNodes.size() - 1;
-                if (!nextNodes.get(0).equals(lastRingNode) && !nextNodes.get(ns1).equals(lastRingNode)) {
-                    Node firstRingNode = ring.get(0);
-                    if (nextNodes.get(0).equals(firstRingNode) || nextNodes.get(ns1).equals(firstRingNode)) {
-                        Collections.reverse(ring);
-                        continue;
-                    }
-                    addRing(ringRole, ring);
-                    ring = getNewRing();
-                }
+        for (Way w : rings.roleWays) {
+            // a bit of a hack to stop this way from being rendered as a way if it doesn't have any tags
+            if (w.getStyle() == null && !w.hasTags()) {
+                w.setStyle(dontRenderWay);
             }
         }
-        if (!ring.isEmpty()) {
-            addRing(ringRole, ring);
-        } else {
-            ringPool.release(ring);
-        }
 
         Paint paint = style.getPaint();
         boolean closeRings = paint.getStyle() != Paint.Style.STROKE;
 
-        outerRings.addAll(innerRings);
-        outerRings.addAll(unknownRings);
-
         path.rewind();
-        for (List<Node> r : outerRings) {
+        for (List<Node> r : rings.rings) {
             map.pointListToLinePointsArray(points, r);
             float[] linePoints = points.getArray();
             int pointsSize = points.size();
@@ -805,7 +739,6 @@ public class MapOverlay<O extends OsmElement> extends MapViewLayer
             if (closeRings) {
                 path.close();
             }
-            ringPool.release(r);
         }
         path.setFillType(Path.FillType.EVEN_ODD);
         if (tmpClickableElements != null && tmpClickableElements.contains(rel)) {
@@ -814,48 +747,6 @@ public class MapOverlay<O extends OsmElement> extends MapViewLayer
         canvas.drawPath(path, paint);
     }
 
-    /**
-     * Get a new ring from the pool or instantiate one if the pool is empty
-     * 
-     * @return a List&lt;Node&gt;
-     */
-    @NonNull
-    private List<Node> getNewRing() {
-        List<Node> ring = ringPool.acquire();
-        if (ring == null) {
-            ring = new LowAllocArrayList<>();
-        } else {
-            ring.clear();
-        }
-        return ring;
-    }
-
-    /**
-     * Add rings to the list depending on their role If the winding is wrong reverse the List
-     * 
-     * @param role the role of the the ring
-     * @param ring the ring
-     */
-    private void addRing(@NonNull String role, @NonNull List<Node> ring) {
-        final int winding = winding(ring);
-        switch (role) {
-        case Tags.ROLE_OUTER:
-            if (winding == COUNTERCLOCKWISE) {
-                Collections.reverse(ring);
-            }
-            outerRings.add(ring);
-            break;
-        case Tags.ROLE_INNER:
-            if (winding == CLOCKWISE) {
-                Collections.reverse(ring);
-            }
-            innerRings.add(ring);
-            break;
-        default:
-            unknownRings.add(ring);
-        }
-    }
-
     /**
      * Draw an icon for a turn restriction
      * 
@@ -872,7 +763,7 @@ public class MapOverlay<O extends OsmElement> extends MapViewLayer
             if (v instanceof Node) {
                 int lat = ((Node) v).getLat();
                 int lon = ((Node) v).getLon();
-                float y = GeoMath.latE7ToY(screenHeight, screenWidth, viewBox, lat);
+                float y = GeoMath.pointToY(screenHeight, screenWidth, viewBox, (Node) v);
                 float x = GeoMath.lonE7ToX(screenWidth, viewBox, lon);
                 List<RelationMember> froms = restriction.getMembersWithRole(Tags.ROLE_TO);
                 RelationMember from = froms.isEmpty() ? null : froms.get(0);
@@ -1330,7 +1221,8 @@ public class MapOverlay<O extends OsmElement> extends MapViewLayer
         }
 
         final boolean closed = way.isClosed();
-        List<Node> nodes = way.getNodes();
+        // selected ways need the full geometry for the editing feedback
+        List<Node> nodes = isSelected || isMemberOfSelectedRelation ? way.getNodes() : simplifiedWays.get(way);
         boolean reversed = false; // way arrows need to be drawn reversed if we reverse the direction of the way
         if (style.isArea() && winding(nodes) == COUNTERCLOCKWISE) {
             areaNodes.clear();
@@ -1533,7 +1425,7 @@ public class MapOverlay<O extends OsmElement> extends MapViewLayer
             return;
         }
 
-        map.pointListToLinePointsArray(points, way.getNodes());
+        map.pointListToLinePointsArray(points, simplifiedWays.get(way));
         float[] linePoints = points.getArray();
         int pointsSize = points.size();
 
@@ -0,0 +1,291 @@
+package de.blau.android.layer.data;
+
+import static de.blau.android.util.Winding.CLOCKWISE;
+import static de.blau.android.util.Winding.COUNTERCLOCKWISE;
+import static de.blau.android.util.Winding.winding;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import de.blau.android.osm.Node;
+import de.blau.android.osm.OsmElement;
+import de.blau.android.osm.Relation;
+import de.blau.android.osm.RelationMember;
+import de.blau.android.osm.RelationUtils;
+import de.blau.android.osm.Storage;
+import de.blau.android.osm.Tags;
+import de.blau.android.osm.Way;
+import de.blau.android.util.collections.LinkedList;
+import de.blau.android.util.collections.LowAllocArrayList;
+
+/**
+ * Cache of the rings assembled from the member Ways of multipolygon Relations for display
+ *
+ * Assembling the rings requires sorting the members and is far more expensive than drawing them. StorageDelegator
+ * increments the modification count of the Storage when a Relation or the Node list of a Way is changed or a Node is
+ * moved, when that happens the fingerprints of the cached Relations are checked again, so only Relations whose members
+ * have actually changed are assembled again.
+ *
+ * This is not thread safe and should only be used from the drawing code.
+ *
+ * @author simon
+ *
+ */
+class MultipolygonRingCache {
+
+    /**
+     * Maximum number of Way members of a multipolygon we assemble rings for
+     */
+    static final int MP_SIZE_LIMIT = 1000;
+
+    /**
+     * Maximum number of Relations we cache rings for
+     */
+    static final int MAX_CACHED_RELATIONS = 1024;
+
+    /**
+     * The assembled rings of a multipolygon
+     */
+    static final class Rings {
+        /**
+         * Outer rings in clockwise order, followed by inner rings in counter clockwise order and rings with other roles
+         */
+        final List<List<Node>> rings;
+
+        /**
+         * Member Ways with a role, the tags are not part of the fingerprint so need to be checked by the caller
+         */
+        final List<Way> roleWays;
+
+        private long fingerprint;
+        private int  modCount;
+
+        /**
+         * Construct a new instance
+         *
+         * @param rings the rings
+         * @param roleWays the member Ways with a role
+         * @param fingerprint the fingerprint of the members
+         * @param modCount the modification count of the Storage
+         */
+        private Rings(@NonNull List<List<Node>> rings, @NonNull List<Way> roleWays, long fingerprint, int modCount) {
+            this.rings = rings;
+            this.roleWays = roleWays;
+            this.fingerprint = fingerprint;
+            this.modCount = modCount;
+        }
+    }
+
+    private final Map<Relation, Rings> entries = new HashMap<>();
+
+    private Storage storage  = null;
+    private int     modCount = 0;
+
+    private long assembled = 0;
+    private long hits      = 0;
+
+    // reused while assembling
+    private final List<RelationMember>       waysOnly     = new LowAllocArrayList<>(100);
+    private final LinkedList<RelationMember> tempSort     = new LinkedList<>();
+    private final List<Node>                 areaNodes    = new LowAllocArrayList<>();
+    private final List<List<Node>>           innerRings   = new LowAllocArrayList<>();
+    private final List<List<Node>>           unknownRings = new LowAllocArrayList<>();
+
+    /**
+     * Set the Storage for the following calls of {@link #get(Relation)}
+     *
+     * @param storage the Storage the Relations are from
+     */
+    void validate(@NonNull Storage storage) {
+        if (storage != this.storage || entries.size() > MAX_CACHED_RELATIONS) {
+            entries.clear();
+            this.storage = storage;
+        }
+        modCount = storage.getModCount();
+    }
+
+    /**
+     * Get the assembled rings of a multipolygon
+     *
+     * @param rel the multipolygon Relation
+     * @return the Rings or null if the multipolygon is too large to be rendered
+     */
+    @Nullable
+    Rings get(@NonNull Relation rel) {
+        Rings entry = entries.get(rel);
+        if (entry != null) {
+            if (entry.modCount == modCount) {
+                hits++;
+                return entry;
+            }
+            long fingerprint = fingerprint(rel);
+            if (entry.fingerprint == fingerprint) {
+                entry.modCount = modCount;
+                hits++;
+                return entry;
+            }
+        }
+        entry = assemble(rel);
+        if (entry != null) {
+            entries.put(rel, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Calculate a fingerprint of the members of a Relation and the geometry of the member Ways
+     *
+     * The Node coordinates are included as they determine the winding of the rings.
+     *
+     * @param rel the Relation
+     * @return a fingerprint
+     */
+    private static long fingerprint(@NonNull Relation rel) {
+        List<RelationMember> members = rel.getMembers();
+        long result = members.size();
+        for (RelationMember m : members) {
+            String role = m.getRole();
+            OsmElement e = m.getElement();
+            result = 31 * result + (role != null ? role.hashCode() : 0);
+            result = 31 * result + System.identityHashCode(e);
+            if (e instanceof Way) {
+                for (Node n : ((Way) e).getNodes()) {
+                    result = 31 * result + System.identityHashCode(n);
+                    result = 31 * result + n.getLon();
+                    result = 31 * result + n.getLat();
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Assemble the rings of a multipolygon from its downloaded member Ways
+     *
+     * @param rel the multipolygon Relation
+     * @return the Rings or null if the multipolygon is too large to be rendered
+     */
+    @Nullable
+    private Rings assemble(@NonNull Relation rel) {
+        waysOnly.clear();
+        tempSort.clear();
+
+        // remove any non-Way non-downloaded members
+        for (RelationMember m : rel.getMembers()) {
+            if (m.downloaded() && Way.NAME.equals(m.getType())) {
+                waysOnly.add(m);
+            }
+        }
+        if (waysOnly.size() > MP_SIZE_LIMIT) { // protect against very large MPs
+            return null;
+        }
+        long fingerprint = fingerprint(rel);
+        List<RelationMember> members = RelationUtils.sortRelationMembers(waysOnly, tempSort, RelationUtils::haveEndConnection);
+        List<List<Node>> outerRings = new ArrayList<>();
+        List<Way> roleWays = new ArrayList<>();
+        innerRings.clear();
+        unknownRings.clear();
+        List<Node> ring = new ArrayList<>();
+
+        int ms = members.size();
+        String ringRole = "";
+        for (int i = 0; i < ms; i++) {
+            ringRole = "";
+            RelationMember current = members.get(i);
+            Way currentWay = (Way) current.getElement();
+            String currentRole = current.getRole();
+            if (currentRole != null && !"".equals(currentRole) && "".equals(ringRole)) {
+                ringRole = currentRole;
+            }
+            if (currentWay != null) {
+                if (!"".equals(ringRole)) {
+                    roleWays.add(currentWay);
+                }
+                areaNodes.clear();
+                areaNodes.addAll(currentWay.getNodes());
+                int rs = ring.size();
+                int ns = areaNodes.size();
+                if (ring.isEmpty()) {
+                    ring.addAll(areaNodes);
+                } else if (ring.get(rs - 1).equals(areaNodes.get(0))) {
+                    ring.addAll(areaNodes.subList(1, ns));
+                } else if (ring.get(rs - 1).equals(areaNodes.get(ns - 1))) {
+                    Collections.reverse(areaNodes);
+                    ring.addAll(areaNodes.subList(1, ns));
+                }
+            }
+
+            RelationMember next = members.get((i + 1) % ms);
+            Way nextWay = (Way) next.getElement();
+            Node lastRingNode = ring.get(ring.size() - 1);
+            if (nextWay != null) {
+                List<Node> nextNodes = nextWay.getNodes();
+                int ns1 = nextNodes.size() - 1;
+                if (!nextNodes.get(0).equals(lastRingNode) && !nextNodes.get(ns1).equals(lastRingNode)) {
+                    Node firstRingNode = ring.get(0);
+                    if (nextNodes.get(0).equals(firstRingNode) || nextNodes.get(ns1).equals(firstRingNode)) {
+                        Collections.reverse(ring);
+                        continue;
+                    }
+                    addRing(ringRole, ring, outerRings);
+                    ring = new ArrayList<>();
+                }
+            }
+        }
+        if (!ring.isEmpty()) {
+            addRing(ringRole, ring, outerRings);
+        }
+        outerRings.addAll(innerRings);
+        outerRings.addAll(unknownRings);
+        innerRings.clear();
+        unknownRings.clear();
+        assembled++;
+        return new Rings(outerRings, roleWays, fingerprint, modCount);
+    }
+
+    /**
+     * Add rings to the list depending on their role If the winding is wrong reverse the List
+     *
+     * @param role the role of the the ring
+     * @param ring the ring
+     * @param outerRings the List of outer rings
+     */
+    private void addRing(@NonNull String role, @NonNull List<Node> ring, @NonNull List<List<Node>> outerRings) {
+        final int winding = winding(ring);
+        switch (role) {
+        case Tags.ROLE_OUTER:
+            if (winding == COUNTERCLOCKWISE) {
+                Collections.reverse(ring);
+            }
+            outerRings.add(ring);
+            break;
+        case Tags.ROLE_INNER:
+            if (winding == CLOCKWISE) {
+                Collections.reverse(ring);
+            }
+            innerRings.add(ring);
+            break;
+        default:
+            unknownRings.add(ring);
+        }
+    }
+
+    /**
+     * @return the number of times the rings of a Relation have been assembled
+     */
+    long getAssembledCount() {
+        return assembled;
+    }
+
+    /**
+     * @return the number of times cached rings have been returned
+     */
+    long getHitCount() {
+        return hits;
+    }
+}
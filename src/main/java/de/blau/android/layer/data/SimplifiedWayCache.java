@@ -0,0 +1,227 @@
+package de.blau.android.layer.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import de.blau.android.osm.Node;
+import de.blau.android.osm.Storage;
+import de.blau.android.osm.Way;
+
+/**
+ * Cache of simplified Node lists of long Ways for display
+ *
+ * The Nodes are simplified with the Douglas-Peucker algorithm in mercator projected coordinates with a tolerance of
+ * less than a pixel at the current zoom level. Each entry records the zoom level and a fingerprint of the geometry it
+ * was built from, when the contents of the Storage are modified the fingerprints of the cached Ways are checked again,
+ * so only Ways that have actually changed are simplified again. The simplified lists must only be used for display,
+ * editing needs the full geometry.
+ *
+ * This is not thread safe and should only be used from the drawing code.
+ *
+ * @author simon
+ *
+ */
+class SimplifiedWayCache {
+
+    /**
+     * Ways with less Nodes are not simplified
+     */
+    static final int MIN_NODES = 32;
+
+    /**
+     * Ways are not simplified at this and higher zoom levels
+     */
+    static final int MAX_ZOOM = 19;
+
+    /**
+     * Maximum deviation from the original geometry in pixels at the next higher zoom level
+     */
+    private static final double TOLERANCE = 1D;
+
+    /**
+     * Maximum number of Ways we cache simplified Node lists for
+     */
+    static final int MAX_CACHED_WAYS = 8192;
+
+    /**
+     * Size of a tile in pixels, used to determine the tolerance
+     */
+    private static final int TILE_SIZE = 256;
+
+    private static final class Entry {
+        final List<Node> nodes;
+        final int        zoomLevel;
+        long             fingerprint;
+        int              modCount;
+
+        /**
+         * Construct a new entry
+         *
+         * @param nodes the simplified Nodes
+         * @param zoomLevel the zoom level
+         * @param fingerprint the fingerprint of the original geometry
+         * @param modCount the modification count of the Storage
+         */
+        Entry(@NonNull List<Node> nodes, int zoomLevel, long fingerprint, int modCount) {
+            this.nodes = nodes;
+            this.zoomLevel = zoomLevel;
+            this.fingerprint = fingerprint;
+            this.modCount = modCount;
+        }
+    }
+
+    private final Map<Way, Entry> entries = new HashMap<>();
+
+    private Storage storage   = null;
+    private int     modCount  = 0;
+    private int     zoomLevel = -1;
+    private double  toleranceSquared;
+
+    private long simplified = 0;
+    private long hits       = 0;
+
+    /**
+     * Set the Storage and zoom level for the following calls of {@link #get(Way)}
+     *
+     * @param storage the Storage the Ways are from
+     * @param zoomLevel the current zoom level
+     */
+    void validate(@NonNull Storage storage, int zoomLevel) {
+        if (storage != this.storage || entries.size() > MAX_CACHED_WAYS) {
+            entries.clear();
+            this.storage = storage;
+        }
+        modCount = storage.getModCount();
+        if (zoomLevel != this.zoomLevel) {
+            this.zoomLevel = zoomLevel;
+            // size of a pixel at the next zoom level in 1E7 degrees
+            double pixel = 360 * 1E7D / (TILE_SIZE * Math.scalb(1D, zoomLevel + 1));
+            toleranceSquared = TOLERANCE * pixel * TOLERANCE * pixel;
+        }
+    }
+
+    /**
+     * Get the Nodes of a Way for display at the current zoom level
+     *
+     * @param way the Way
+     * @return a simplified List of Nodes or the Nodes of the Way if it doesn't need to be simplified
+     */
+    @NonNull
+    List<Node> get(@NonNull Way way) {
+        List<Node> nodes = way.getNodes();
+        if (nodes.size() < MIN_NODES || zoomLevel >= MAX_ZOOM || storage == null) {
+            return nodes;
+        }
+        Entry entry = entries.get(way);
+        if (entry != null && entry.zoomLevel == zoomLevel) {
+            if (entry.modCount == modCount) {
+                hits++;
+                return entry.nodes;
+            }
+            long fingerprint = fingerprint(nodes);
+            if (entry.fingerprint == fingerprint) {
+                entry.modCount = modCount;
+                hits++;
+                return entry.nodes;
+            }
+        }
+        List<Node> result = simplify(nodes);
+        entries.put(way, new Entry(result, zoomLevel, fingerprint(nodes), modCount));
+        simplified++;
+        return result;
+    }
+
+    /**
+     * Calculate a fingerprint of the geometry of a List of Nodes
+     *
+     * @param nodes the Nodes
+     * @return a fingerprint
+     */
+    private static long fingerprint(@NonNull List<Node> nodes) {
+        long result = nodes.size();
+        for (Node n : nodes) {
+            result = 31 * result + n.getLon();
+            result = 31 * result + n.getLat();
+        }
+        return result;
+    }
+
+    /**
+     * Simplify a List of Nodes with the Douglas-Peucker algorithm
+     *
+     * @param nodes the original Nodes
+     * @return a new List containing the retained Nodes
+     */
+    @NonNull
+    private List<Node> simplify(@NonNull List<Node> nodes) {
+        final int size = nodes.size();
+        boolean[] keep = new boolean[size];
+        keep[0] = true;
+        keep[size - 1] = true;
+        int count = 2;
+        // pairs of first and last index of the sections still to process, there can't be more than one per Node
+        int[] stack = new int[2 * size];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = size - 1;
+        while (top > 0) {
+            final int last = stack[--top];
+            final int first = stack[--top];
+            Node n1 = nodes.get(first);
+            Node n2 = nodes.get(last);
+            final double x1 = n1.getLon();
+            final double y1 = n1.getMercatorLatE7();
+            final double dx = n2.getLon() - x1;
+            final double dy = n2.getMercatorLatE7() - y1;
+            final double lengthSquared = dx * dx + dy * dy;
+            double max = -1;
+            int index = -1;
+            for (int i = first + 1; i < last; i++) {
+                Node n = nodes.get(i);
+                final double px = n.getLon() - x1;
+                final double py = n.getMercatorLatE7() - y1;
+                // distance to the segment, for closed ways this is the distance to the first Node
+                final double t = lengthSquared == 0 ? 0 : Math.max(0, Math.min(1, (px * dx + py * dy) / lengthSquared));
+                final double ex = px - t * dx;
+                final double ey = py - t * dy;
+                final double distanceSquared = ex * ex + ey * ey;
+                if (distanceSquared > max) {
+                    max = distanceSquared;
+                    index = i;
+                }
+            }
+            if (index > 0 && max > toleranceSquared) {
+                keep[index] = true;
+                count++;
+                stack[top++] = first;
+                stack[top++] = index;
+                stack[top++] = index;
+                stack[top++] = last;
+            }
+        }
+        List<Node> result = new ArrayList<>(count);
+        for (int i = 0; i < size; i++) {
+            if (keep[i]) {
+                result.add(nodes.get(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of times a Way has been simplified
+     */
+    long getSimplifiedCount() {
+        return simplified;
+    }
+
+    /**
+     * @return the number of times a cached simplified Way has been returned
+     */
+    long getHitCount() {
+        return hits;
+    }
+}
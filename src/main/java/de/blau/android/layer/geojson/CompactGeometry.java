@@ -0,0 +1,298 @@
+package de.blau.android.layer.geojson;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.mapbox.geojson.Geometry;
+import com.mapbox.geojson.GeometryCollection;
+import com.mapbox.geojson.LineString;
+import com.mapbox.geojson.MultiLineString;
+import com.mapbox.geojson.MultiPoint;
+import com.mapbox.geojson.MultiPolygon;
+import com.mapbox.geojson.Point;
+import com.mapbox.geojson.Polygon;
+
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import de.blau.android.osm.BoundingBox;
+import de.blau.android.util.GeoJSONConstants;
+
+/**
+ * Memory efficient representation of a GeoJSON geometry
+ *
+ * All coordinates are stored as WGS84*1E7 integer pairs in one array, the structure is described by two offset arrays:
+ * lines contains the index of the first point of each line or ring plus the total point count at the end, polygons the
+ * index of the first ring of each polygon plus the total ring count. Points and line strings are a single line,
+ * polygons a single polygon. Altitudes are not retained.
+ *
+ * @author simon
+ *
+ */
+final class CompactGeometry implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final String DEBUG_TAG = CompactGeometry.class.getSimpleName();
+
+    private final String            type;
+    private final int[]             coordinates;
+    private final int[]             lines;
+    private final int[]             polygons;
+    private final CompactGeometry[] geometries;
+
+    /**
+     * Construct a new geometry
+     *
+     * @param type the GeoJSON geometry type
+     * @param coordinates lon/lat pairs in WGS84*1E7
+     * @param lines start of each line or ring followed by the point count
+     * @param polygons start of each polygon followed by the ring count, null if not a (multi-)polygon
+     */
+    CompactGeometry(@NonNull String type, @NonNull int[] coordinates, @NonNull int[] lines, @Nullable int[] polygons) {
+        this.type = type;
+        this.coordinates = coordinates;
+        this.lines = lines;
+        this.polygons = polygons;
+        this.geometries = null;
+    }
+
+    /**
+     * Construct a new GeometryCollection
+     *
+     * @param geometries the member geometries
+     */
+    CompactGeometry(@NonNull CompactGeometry[] geometries) {
+        this.type = GeoJSONConstants.GEOMETRYCOLLECTION;
+        this.coordinates = new int[0];
+        this.lines = new int[] { 0 };
+        this.polygons = null;
+        this.geometries = geometries;
+    }
+
+    /**
+     * @return the GeoJSON geometry type
+     */
+    @NonNull
+    String getType() {
+        return type;
+    }
+
+    /**
+     * @return the coordinates as lon/lat pairs in WGS84*1E7
+     */
+    @NonNull
+    int[] getCoordinates() {
+        return coordinates;
+    }
+
+    /**
+     * @return the number of lines or rings
+     */
+    int lineCount() {
+        return lines.length - 1;
+    }
+
+    /**
+     * Get the index of the first point of a line
+     *
+     * @param line the line
+     * @return the index of the first point
+     */
+    int lineStart(int line) {
+        return lines[line];
+    }
+
+    /**
+     * Get the index after the last point of a line
+     *
+     * @param line the line
+     * @return the index after the last point
+     */
+    int lineEnd(int line) {
+        return lines[line + 1];
+    }
+
+    /**
+     * @return the number of polygons, 0 if this isn't a (multi-)polygon
+     */
+    int polygonCount() {
+        return polygons != null ? polygons.length - 1 : 0;
+    }
+
+    /**
+     * Get the index of the first ring of a polygon
+     *
+     * @param polygon the polygon
+     * @return the index of the first ring
+     */
+    int polygonStart(int polygon) {
+        return polygons[polygon];
+    }
+
+    /**
+     * Get the index after the last ring of a polygon
+     *
+     * @param polygon the polygon
+     * @return the index after the last ring
+     */
+    int polygonEnd(int polygon) {
+        return polygons[polygon + 1];
+    }
+
+    /**
+     * @return the members of a GeometryCollection or null
+     */
+    @Nullable
+    CompactGeometry[] getGeometries() {
+        return geometries;
+    }
+
+    /**
+     * Calculate the bounding box
+     *
+     * @return a BoundingBox or null if there are no coordinates
+     */
+    @Nullable
+    BoundingBox getBounds() {
+        BoundingBox result = null;
+        if (geometries != null) {
+            for (CompactGeometry g : geometries) {
+                BoundingBox box = g.getBounds();
+                if (result == null) {
+                    result = box;
+                } else if (box != null) {
+                    result.union(box);
+                }
+            }
+            return result;
+        }
+        if (coordinates.length == 0) {
+            return null;
+        }
+        int left = Integer.MAX_VALUE;
+        int bottom = Integer.MAX_VALUE;
+        int right = Integer.MIN_VALUE;
+        int top = Integer.MIN_VALUE;
+        for (int i = 0; i < coordinates.length; i += 2) {
+            left = Math.min(left, coordinates[i]);
+            right = Math.max(right, coordinates[i]);
+            bottom = Math.min(bottom, coordinates[i + 1]);
+            top = Math.max(top, coordinates[i + 1]);
+        }
+        return new BoundingBox(left, bottom, right, top);
+    }
+
+    /**
+     * Check if a location is inside one of the polygons of this geometry
+     *
+     * Uses the even-odd rule over all rings of a polygon, so locations in holes are not inside
+     *
+     * @param lonE7 WGS84*1E7 longitude
+     * @param latE7 WGS84*1E7 latitude
+     * @return true if the location is inside
+     */
+    boolean contains(int lonE7, int latE7) {
+        for (int p = 0; p < polygonCount(); p++) {
+            boolean inside = false;
+            for (int ring = polygonStart(p); ring < polygonEnd(p); ring++) {
+                int start = lineStart(ring);
+                int end = lineEnd(ring);
+                for (int i = start, j = end - 1; i < end; j = i++) {
+                    int xi = coordinates[i * 2];
+                    int yi = coordinates[i * 2 + 1];
+                    int xj = coordinates[j * 2];
+                    int yj = coordinates[j * 2 + 1];
+                    if ((yi > latE7) != (yj > latE7) && lonE7 < (double) (xj - xi) * (latE7 - yi) / (yj - yi) + xi) {
+                        inside = !inside;
+                    }
+                }
+            }
+            if (inside) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Create the equivalent Mapbox Geometry
+     *
+     * @return a Geometry or null if the type is not supported
+     */
+    @Nullable
+    Geometry toGeometry() {
+        switch (type) {
+        case GeoJSONConstants.POINT:
+            return coordinates.length >= 2 ? point(0) : null;
+        case GeoJSONConstants.MULTIPOINT:
+            return MultiPoint.fromLngLats(lineCount() > 0 ? points(0) : new ArrayList<>());
+        case GeoJSONConstants.LINESTRING:
+            return LineString.fromLngLats(lineCount() > 0 ? points(0) : new ArrayList<>());
+        case GeoJSONConstants.MULTILINESTRING:
+            return MultiLineString.fromLngLats(lines(0, lineCount()));
+        case GeoJSONConstants.POLYGON:
+            return Polygon.fromLngLats(polygonCount() > 0 ? lines(polygonStart(0), polygonEnd(0)) : new ArrayList<>());
+        case GeoJSONConstants.MULTIPOLYGON:
+            List<List<List<Point>>> polygonList = new ArrayList<>();
+            for (int p = 0; p < polygonCount(); p++) {
+                polygonList.add(lines(polygonStart(p), polygonEnd(p)));
+            }
+            return MultiPolygon.fromLngLats(polygonList);
+        case GeoJSONConstants.GEOMETRYCOLLECTION:
+            List<Geometry> geometryList = new ArrayList<>();
+            for (CompactGeometry g : geometries) {
+                Geometry geometry = g.toGeometry();
+                if (geometry != null) {
+                    geometryList.add(geometry);
+                }
+            }
+            return GeometryCollection.fromGeometries(geometryList);
+        default:
+            Log.e(DEBUG_TAG, "toGeometry unknown GeoJSON geometry " + type);
+            return null;
+        }
+    }
+
+    /**
+     * Create a Point
+     *
+     * @param index the index of the point
+     * @return a Point
+     */
+    @NonNull
+    private Point point(int index) {
+        return Point.fromLngLat(coordinates[index * 2] / 1E7D, coordinates[index * 2 + 1] / 1E7D);
+    }
+
+    /**
+     * Create a List of Points for a line
+     *
+     * @param line the line
+     * @return a List of Point
+     */
+    @NonNull
+    private List<Point> points(int line) {
+        List<Point> result = new ArrayList<>();
+        for (int i = lineStart(line); i < lineEnd(line); i++) {
+            result.add(point(i));
+        }
+        return result;
+    }
+
+    /**
+     * Create Lists of Points for a range of lines
+     *
+     * @param start the first line
+     * @param end the line after the last one
+     * @return a List of List of Point
+     */
+    @NonNull
+    private List<List<Point>> lines(int start, int end) {
+        List<List<Point>> result = new ArrayList<>();
+        for (int l = start; l < end; l++) {
+            result.add(points(l));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,450 @@
+package de.blau.android.layer.geojson;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import de.blau.android.layer.geojson.MapOverlay.BoundedFeature;
+import de.blau.android.osm.OsmXml;
+import de.blau.android.util.GeoJSONConstants;
+
+/**
+ * Streaming GeoJSON reader
+ *
+ * Features are parsed one at a time directly from the input in to {@link CompactGeometry} objects and handed over to a
+ * FeatureHandler, neither the input nor a complete FeatureCollection is ever held in memory. Supported inputs are
+ * FeatureCollections, single Features and bare geometries, as with the Mapbox parser the order of members in an object
+ * is not significant.
+ *
+ * @author simon
+ *
+ */
+final class GeoJsonReader {
+
+    private static final String DEBUG_TAG = GeoJsonReader.class.getSimpleName();
+
+    private static final String TYPE        = "type";
+    private static final String ID          = "id";
+    private static final String PROPERTIES  = "properties";
+    private static final String GEOMETRY    = "geometry";
+    private static final String GEOMETRIES  = "geometries";
+    private static final String COORDINATES = "coordinates";
+
+    private static final int PROGRESS_INTERVAL = 1000;
+
+    interface FeatureHandler {
+        /**
+         * Called for every Feature read
+         *
+         * @param feature the Feature
+         */
+        void onFeature(@NonNull BoundedFeature feature);
+    }
+
+    private final FeatureHandler              handler;
+    private final MapOverlay.ProgressListener listener;
+    private CountingInputStream               counter;
+    private int                               featureCount;
+
+    // scratch storage for coordinate parsing
+    private int[] coordinates = new int[1024];
+    private int   coordinateCount;
+    private int[] lineEnds    = new int[16];
+    private int   lineEndCount;
+    private int[] polygonEnds = new int[16];
+    private int   polygonEndCount;
+
+    /**
+     * Parsed coordinates of a single geometry
+     */
+    private static final class Coordinates {
+        final int   depth;
+        final int[] values;
+        final int[] lineEnds;
+        final int[] polygonEnds;
+
+        /**
+         * Construct a new instance
+         *
+         * @param depth nesting depth, 1 for a single position, 0 if empty
+         * @param values lon/lat pairs in WGS84*1E7
+         * @param lineEnds end of each list of positions
+         * @param polygonEnds end of each list of lists of positions
+         */
+        Coordinates(int depth, @NonNull int[] values, @NonNull int[] lineEnds, @NonNull int[] polygonEnds) {
+            this.depth = depth;
+            this.values = values;
+            this.lineEnds = lineEnds;
+            this.polygonEnds = polygonEnds;
+        }
+    }
+
+    /**
+     * The members of a GeoJSON object we are interested in
+     */
+    private static final class GeoJsonObject {
+        String                type;
+        String                id;
+        JsonObject            properties;
+        CompactGeometry       geometry;
+        Coordinates           coordinates;
+        List<CompactGeometry> geometries;
+        boolean               hasFeatures;
+    }
+
+    /**
+     * Construct a new reader
+     *
+     * @param handler the FeatureHandler that will receive the Features
+     * @param listener optional ProgressListener
+     */
+    GeoJsonReader(@NonNull FeatureHandler handler, @Nullable MapOverlay.ProgressListener listener) {
+        this.handler = handler;
+        this.listener = listener;
+    }
+
+    /**
+     * Read GeoJSON from an InputStream
+     *
+     * @param is the InputStream
+     * @return the number of Features read
+     * @throws IOException if reading fails
+     * @throws JsonSyntaxException if the input isn't valid GeoJSON
+     */
+    int read(@NonNull InputStream is) throws IOException {
+        counter = new CountingInputStream(is);
+        featureCount = 0;
+        JsonReader reader = new JsonReader(new InputStreamReader(counter, Charset.forName(OsmXml.UTF_8))); // NOSONAR
+        try {
+            GeoJsonObject o = readObject(reader, true);
+            if (GeoJSONConstants.FEATURE.equals(o.type)) {
+                addFeature(o);
+            } else if (!GeoJSONConstants.FEATURE_COLLECTION.equals(o.type) && !o.hasFeatures) {
+                // a bare geometry
+                CompactGeometry geometry = toGeometry(o);
+                if (geometry != null) {
+                    addFeature(new BoundedFeature(null, null, geometry));
+                }
+            }
+        } catch (MalformedJsonException | EOFException | IllegalStateException | NumberFormatException e) {
+            throw new JsonSyntaxException(e.getMessage(), e);
+        }
+        if (listener != null) {
+            listener.onProgress(featureCount, counter.getCount());
+        }
+        return featureCount;
+    }
+
+    /**
+     * Read an object, Features in a features member are processed immediately
+     *
+     * @param reader the JsonReader
+     * @param topLevel if true process Features
+     * @return the relevant members
+     * @throws IOException if reading fails
+     */
+    @NonNull
+    private GeoJsonObject readObject(@NonNull JsonReader reader, boolean topLevel) throws IOException {
+        GeoJsonObject o = new GeoJsonObject();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            JsonToken token = reader.peek();
+            if (token == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (name) {
+            case TYPE:
+                o.type = reader.nextString();
+                break;
+            case ID:
+                if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+                    o.id = reader.nextString();
+                } else {
+                    reader.skipValue();
+                }
+                break;
+            case PROPERTIES:
+                JsonElement properties = JsonParser.parseReader(reader);
+                if (properties.isJsonObject()) {
+                    o.properties = properties.getAsJsonObject();
+                }
+                break;
+            case GEOMETRY:
+                o.geometry = toGeometry(readObject(reader, false));
+                break;
+            case GEOMETRIES:
+                o.geometries = new ArrayList<>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    CompactGeometry geometry = toGeometry(readObject(reader, false));
+                    if (geometry != null) {
+                        o.geometries.add(geometry);
+                    }
+                }
+                reader.endArray();
+                break;
+            case COORDINATES:
+                o.coordinates = readCoordinates(reader);
+                break;
+            case GeoJSONConstants.FEATURES:
+                if (topLevel) {
+                    o.hasFeatures = true;
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        addFeature(readObject(reader, false));
+                    }
+                    reader.endArray();
+                    break;
+                }
+                reader.skipValue();
+                break;
+            default:
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return o;
+    }
+
+    /**
+     * Hand a Feature over to the handler if it is valid
+     *
+     * @param o the members of the Feature
+     */
+    private void addFeature(@NonNull GeoJsonObject o) {
+        if (GeoJSONConstants.FEATURE.equals(o.type) && o.geometry != null) {
+            addFeature(new BoundedFeature(o.id, o.properties, o.geometry));
+        } else {
+            Log.e(DEBUG_TAG, "Type of object " + o.type + " geometry " + o.geometry);
+        }
+    }
+
+    /**
+     * Hand a Feature over to the handler and report progress
+     *
+     * @param feature the Feature
+     */
+    private void addFeature(@NonNull BoundedFeature feature) {
+        handler.onFeature(feature);
+        featureCount++;
+        if (listener != null && featureCount % PROGRESS_INTERVAL == 0) {
+            listener.onProgress(featureCount, counter.getCount());
+        }
+    }
+
+    /**
+     * Create a CompactGeometry from the members of a geometry object
+     *
+     * @param o the members
+     * @return a CompactGeometry or null if the type is not supported
+     */
+    @Nullable
+    private CompactGeometry toGeometry(@NonNull GeoJsonObject o) {
+        if (o.type == null) {
+            throw new JsonSyntaxException("Geometry without type");
+        }
+        if (GeoJSONConstants.GEOMETRYCOLLECTION.equals(o.type)) {
+            List<CompactGeometry> geometries = o.geometries != null ? o.geometries : new ArrayList<>();
+            return new CompactGeometry(geometries.toArray(new CompactGeometry[0]));
+        }
+        int depth = depth(o.type);
+        if (depth == 0) {
+            Log.e(DEBUG_TAG, "Unsupported geometry " + o.type);
+            return null;
+        }
+        Coordinates c = o.coordinates;
+        if (c == null) {
+            throw new JsonSyntaxException(o.type + " without coordinates");
+        }
+        if (c.depth != 0 && c.depth != depth) {
+            throw new JsonSyntaxException("Invalid coordinates for " + o.type);
+        }
+        int[] lines;
+        if (depth == 1) {
+            lines = new int[] { 0, c.values.length / 2 };
+        } else {
+            lines = startsAndEnds(c.lineEnds);
+        }
+        int[] polygons = null;
+        if (GeoJSONConstants.POLYGON.equals(o.type)) {
+            polygons = new int[] { 0, lines.length - 1 };
+        } else if (GeoJSONConstants.MULTIPOLYGON.equals(o.type)) {
+            polygons = startsAndEnds(c.polygonEnds);
+        }
+        return new CompactGeometry(o.type, c.values, lines, polygons);
+    }
+
+    /**
+     * Prepend 0 to an array of end offsets
+     *
+     * @param ends the end offsets
+     * @return the start offsets followed by the last end offset
+     */
+    @NonNull
+    private static int[] startsAndEnds(@NonNull int[] ends) {
+        int[] result = new int[ends.length + 1];
+        System.arraycopy(ends, 0, result, 1, ends.length);
+        return result;
+    }
+
+    /**
+     * Get the nesting depth of the coordinates for a geometry type
+     *
+     * @param type the geometry type
+     * @return the depth or 0 if the type is not supported
+     */
+    private static int depth(@NonNull String type) {
+        switch (type) {
+        case GeoJSONConstants.POINT:
+            return 1;
+        case GeoJSONConstants.MULTIPOINT:
+        case GeoJSONConstants.LINESTRING:
+            return 2;
+        case GeoJSONConstants.MULTILINESTRING:
+        case GeoJSONConstants.POLYGON:
+            return 3;
+        case GeoJSONConstants.MULTIPOLYGON:
+            return 4;
+        default:
+            return 0;
+        }
+    }
+
+    /**
+     * Read the value of a coordinates member
+     *
+     * @param reader the JsonReader
+     * @return the Coordinates
+     * @throws IOException if reading fails
+     */
+    @NonNull
+    private Coordinates readCoordinates(@NonNull JsonReader reader) throws IOException {
+        coordinateCount = 0;
+        lineEndCount = 0;
+        polygonEndCount = 0;
+        int depth = readNested(reader);
+        return new Coordinates(depth, Arrays.copyOf(coordinates, coordinateCount), Arrays.copyOf(lineEnds, lineEndCount),
+                Arrays.copyOf(polygonEnds, polygonEndCount));
+    }
+
+    /**
+     * Read a position or nested arrays of positions
+     *
+     * Empty arrays are ignored, the depth of the coordinates is determined by the non-empty arrays
+     *
+     * @param reader the JsonReader
+     * @return the depth, 1 for a position, 0 if empty
+     * @throws IOException if reading fails
+     */
+    private int readNested(@NonNull JsonReader reader) throws IOException {
+        reader.beginArray();
+        if (reader.peek() == JsonToken.NUMBER) {
+            double lon = reader.nextDouble();
+            double lat = reader.nextDouble();
+            while (reader.hasNext()) {
+                reader.skipValue(); // altitude
+            }
+            reader.endArray();
+            if (coordinateCount + 2 > coordinates.length) {
+                coordinates = Arrays.copyOf(coordinates, coordinates.length * 2);
+            }
+            coordinates[coordinateCount++] = (int) Math.round(lon * 1E7D);
+            coordinates[coordinateCount++] = (int) Math.round(lat * 1E7D);
+            return 1;
+        }
+        int depth = 0;
+        while (reader.hasNext()) {
+            int d = readNested(reader);
+            if (d != 0) {
+                if (depth != 0 && depth != d) {
+                    throw new JsonSyntaxException("Inconsistent coordinate nesting");
+                }
+                depth = d;
+            }
+        }
+        reader.endArray();
+        if (depth == 0) {
+            return 0;
+        }
+        depth++;
+        if (depth == 2) {
+            if (lineEndCount == lineEnds.length) {
+                lineEnds = Arrays.copyOf(lineEnds, lineEnds.length * 2);
+            }
+            lineEnds[lineEndCount++] = coordinateCount / 2;
+        } else if (depth == 3) {
+            if (polygonEndCount == polygonEnds.length) {
+                polygonEnds = Arrays.copyOf(polygonEnds, polygonEnds.length * 2);
+            }
+            polygonEnds[polygonEndCount++] = lineEndCount;
+        }
+        return depth;
+    }
+
+    /**
+     * InputStream that counts the bytes read
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        private long count = 0;
+
+        /**
+         * Construct a new instance
+         *
+         * @param in the InputStream to wrap
+         */
+        CountingInputStream(@NonNull InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        /**
+         * @return the number of bytes read so far
+         */
+        long getCount() {
+            return count;
+        }
+    }
+}
@@ -1,12 +1,9 @@
 package de.blau.android.layer.geojson;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.Serializable;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
@@ -19,16 +16,9 @@ import java.util.concurrent.TimeoutException;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.mapbox.geojson.CoordinateContainer;
+import com.google.gson.JsonParser;
 import com.mapbox.geojson.Feature;
-import com.mapbox.geojson.FeatureCollection;
 import com.mapbox.geojson.Geometry;
-import com.mapbox.geojson.GeometryCollection;
-import com.mapbox.geojson.MultiPolygon;
-import com.mapbox.geojson.Point;
-import com.mapbox.geojson.Polygon;
-import com.mapbox.turf.TurfException;
-import com.mapbox.turf.TurfJoins;
 
 import android.content.Context;
 import android.graphics.Canvas;
@@ -58,7 +48,6 @@ import de.blau.android.layer.LayerType;
 import de.blau.android.layer.StyleableFileLayer;
 import de.blau.android.layer.StyleableLayer;
 import de.blau.android.osm.BoundingBox;
-import de.blau.android.osm.OsmXml;
 import de.blau.android.osm.Server;
 import de.blau.android.osm.ViewBox;
 import de.blau.android.prefs.Preferences;
@@ -68,7 +57,6 @@ import de.blau.android.resources.symbols.TriangleDown;
 import de.blau.android.util.ColorUtil;
 import de.blau.android.util.ContentResolverUtil;
 import de.blau.android.util.ExecutorTask;
-import de.blau.android.util.FileUtil;
 import de.blau.android.util.GeoJSONConstants;
 import de.blau.android.util.GeoJson;
 import de.blau.android.util.GeoMath;
@@ -83,7 +71,7 @@ import de.blau.android.views.IMapView;
 public class MapOverlay extends StyleableFileLayer
         implements Serializable, ExtentInterface, DiscardInterface, ClickableInterface<Feature>, LayerInfoInterface, LabelMinZoomInterface {
 
-    private static final long serialVersionUID = 4L;
+    private static final long serialVersionUID = 5L;
 
     private static final String DEBUG_TAG = MapOverlay.class.getName();
 
@@ -92,47 +80,77 @@ public class MapOverlay extends StyleableFileLayer
     private transient SavingHelper<MapOverlay> savingHelper = new SavingHelper<>();
 
     /**
-     * Wrapper around mapboxes Feature class makes the object serializable and usable in an RTree
+     * Compact representation of a GeoJSON Feature that is serializable and usable in an RTree
+     * 
+     * Only the properties are retained as is, the geometry is stored as a {@link CompactGeometry}, a Mapbox Feature is
+     * created on demand.
      * 
      * @author Simon Poole
      *
      */
-    class BoundedFeature implements BoundedObject, Serializable {
-        private static final long serialVersionUID = 1;
+    static class BoundedFeature implements BoundedObject, Serializable {
+        private static final long serialVersionUID = 2;
 
-        Feature     feature = null;
-        BoundingBox box     = null;
+        private String               id;
+        private transient JsonObject properties;
+        private CompactGeometry      geometry;
+        private BoundingBox          box = null;
 
         /**
          * Constructor
          * 
-         * @param f the Feature to wrap
+         * @param id the Feature id or null
+         * @param properties the Feature properties or null
+         * @param geometry the geometry
          */
-        public BoundedFeature(@Nullable Feature f) {
-            this.feature = f;
+        BoundedFeature(@Nullable String id, @Nullable JsonObject properties, @NonNull CompactGeometry geometry) {
+            this.id = id;
+            this.properties = properties != null ? properties : new JsonObject();
+            this.geometry = geometry;
         }
 
         @Override
         public BoundingBox getBounds() {
             if (box == null) {
-                JsonArray bbox = (JsonArray) feature.properties().get(GeoJSONConstants.BBOX);
-                if (bbox == null || bbox.size() != 4) {
-                    box = GeoJson.getBounds(feature.geometry());
+                JsonElement bbox = properties.get(GeoJSONConstants.BBOX);
+                if (bbox == null || !bbox.isJsonArray() || bbox.getAsJsonArray().size() != 4) {
+                    box = geometry.getBounds();
                 } else { // the geojson contains a bbox, use that
-                    box = new BoundingBox(bbox.get(0).getAsDouble(), bbox.get(1).getAsDouble(), bbox.get(2).getAsDouble(), bbox.get(3).getAsDouble());
+                    JsonArray a = bbox.getAsJsonArray();
+                    box = new BoundingBox(a.get(0).getAsDouble(), a.get(1).getAsDouble(), a.get(2).getAsDouble(), a.get(3).getAsDouble());
                 }
             }
             return box;
         }
 
         /**
-         * Get the wrapped Feature object
+         * Create a Mapbox Feature for this object
          * 
-         * @return the Feature
+         * @return a new Feature
          */
-        @Nullable
+        @NonNull
         public Feature getFeature() {
-            return feature;
+            return Feature.fromGeometry(geometry.toGeometry(), properties, id);
+        }
+
+        /**
+         * Get the properties
+         * 
+         * @return a JsonObject
+         */
+        @NonNull
+        JsonObject getProperties() {
+            return properties;
+        }
+
+        /**
+         * Get the geometry
+         * 
+         * @return the CompactGeometry
+         */
+        @NonNull
+        CompactGeometry getGeometry() {
+            return geometry;
         }
 
         /**
@@ -142,8 +160,8 @@ public class MapOverlay extends StyleableFileLayer
          * @throws IOException if writing failes
          */
         private void writeObject(java.io.ObjectOutputStream out) throws IOException {
-            out.writeUTF(feature.toJson());
-            out.writeObject(box);
+            out.defaultWriteObject();
+            out.writeObject(properties.toString());
         }
 
         /**
@@ -154,12 +172,24 @@ public class MapOverlay extends StyleableFileLayer
          * @throws ClassNotFoundException the target Class isn't defined
          */
         private void readObject(java.io.ObjectInputStream in) throws IOException, ClassNotFoundException {
-            String jsonString = in.readUTF();
-            feature = Feature.fromJson(jsonString);
-            box = (BoundingBox) in.readObject();
+            in.defaultReadObject();
+            properties = JsonParser.parseString((String) in.readObject()).getAsJsonObject();
         }
     }
 
+    /**
+     * Progress reporting while loading
+     */
+    public interface ProgressListener {
+        /**
+         * Called periodically while loading
+         * 
+         * @param featureCount the number of Features read so far
+         * @param bytesRead the number of bytes read so far
+         */
+        void onProgress(int featureCount, long bytesRead);
+    }
+
     private RTree<BoundedFeature>                data;
     private final transient Path                 path                  = new Path();
     private transient FloatPrimitiveList         points                = new FloatPrimitiveList();
@@ -223,7 +253,8 @@ public class MapOverlay extends StyleableFileLayer
         data.query(queryForDisplayResult, bb);
         Log.d(DEBUG_TAG, "features result count " + queryForDisplayResult.size());
         for (BoundedFeature bf : queryForDisplayResult) {
-            drawGeometry(canvas, bb, width, height, zoomLevel, bf.getFeature());
+            String label = zoomLevel >= labelMinZoom ? getLabel(bf.getProperties()) : null;
+            drawGeometry(canvas, bb, width, height, bf.getGeometry(), label);
         }
     }
 
@@ -234,71 +265,42 @@ public class MapOverlay extends StyleableFileLayer
      * @param bb the current ViewBox
      * @param width screen width in screen coordinates
      * @param height screen height in screen coordinates
-     * @param zoomLevel current zoom level
-     * @param f the Feature object to draw
+     * @param g the geometry to draw
+     * @param label label to display, null if none
      */
-    public void drawGeometry(@NonNull Canvas canvas, @NonNull ViewBox bb, int width, int height, int zoomLevel, @NonNull Feature f) {
-        Geometry g = f.geometry();
-        if (g == null) {
-            return;
-        }
-        String label = null;
-        if (zoomLevel >= labelMinZoom) {
-            label = getLabel(f);
-        }
-        switch (g.type()) {
+    private void drawGeometry(@NonNull Canvas canvas, @NonNull ViewBox bb, int width, int height, @NonNull CompactGeometry g, @Nullable String label) {
+        switch (g.getType()) {
         case GeoJSONConstants.POINT:
-            paint.setStyle(Paint.Style.STROKE);
-            drawPoint(canvas, bb, width, height, (Point) g, paint, label);
-            break;
         case GeoJSONConstants.MULTIPOINT:
-            @SuppressWarnings("unchecked")
-            List<Point> pointList = ((CoordinateContainer<List<Point>>) g).coordinates();
             paint.setStyle(Paint.Style.STROKE);
-            for (Point q : pointList) {
-                drawPoint(canvas, bb, width, height, q, paint, label);
+            int[] coordinates = g.getCoordinates();
+            for (int i = 0; i < coordinates.length; i += 2) {
+                drawPoint(canvas, bb, width, height, coordinates[i], coordinates[i + 1], paint, label);
             }
             break;
         case GeoJSONConstants.LINESTRING:
-            @SuppressWarnings("unchecked")
-            List<Point> line = ((CoordinateContainer<List<Point>>) g).coordinates();
-            paint.setAntiAlias(true);
-            paint.setStyle(Paint.Style.STROKE);
-            drawLine(canvas, bb, width, height, line, paint);
-            break;
         case GeoJSONConstants.MULTILINESTRING:
-            @SuppressWarnings("unchecked")
-            List<List<Point>> lines = ((CoordinateContainer<List<List<Point>>>) g).coordinates();
             paint.setAntiAlias(true);
             paint.setStyle(Paint.Style.STROKE);
-            for (List<Point> l : lines) {
-                drawLine(canvas, bb, width, height, l, paint);
+            for (int l = 0; l < g.lineCount(); l++) {
+                drawLine(canvas, bb, width, height, g, l, paint);
             }
             break;
         case GeoJSONConstants.POLYGON:
-            @SuppressWarnings("unchecked")
-            List<List<Point>> rings = ((CoordinateContainer<List<List<Point>>>) g).coordinates();
-            paint.setAntiAlias(true);
-            paint.setStyle(Paint.Style.FILL_AND_STROKE);
-            drawPolygon(canvas, bb, width, height, rings, paint);
-            break;
         case GeoJSONConstants.MULTIPOLYGON:
-            @SuppressWarnings("unchecked")
-            List<List<List<Point>>> polygons = ((CoordinateContainer<List<List<List<Point>>>>) g).coordinates();
             paint.setAntiAlias(true);
             paint.setStyle(Paint.Style.FILL_AND_STROKE);
-            for (List<List<Point>> polygon : polygons) {
-                drawPolygon(canvas, bb, width, height, polygon, paint);
+            for (int p = 0; p < g.polygonCount(); p++) {
+                drawPolygon(canvas, bb, width, height, g, p, paint);
             }
             break;
         case GeoJSONConstants.GEOMETRYCOLLECTION:
-            List<Geometry> geometries = ((GeometryCollection) g).geometries();
-            for (Geometry geometry : geometries) {
-                drawGeometry(canvas, bb, width, height, zoomLevel, Feature.fromGeometry(geometry));
+            for (CompactGeometry geometry : g.getGeometries()) {
+                drawGeometry(canvas, bb, width, height, geometry, null);
             }
             break;
         default:
-            Log.e(DEBUG_TAG, "drawGeometry unknown GeoJSON geometry " + g.type());
+            Log.e(DEBUG_TAG, "drawGeometry unknown GeoJSON geometry " + g.getType());
         }
     }
 
@@ -309,16 +311,16 @@ public class MapOverlay extends StyleableFileLayer
      * @param bb the current ViewBox
      * @param width screen width in screen coordinates
      * @param height screen height in screen coordinates
-     * @param p the Position of the marker
+     * @param lonE7 WGS84*1E7 longitude of the marker
+     * @param latE7 WGS84*1E7 latitude of the marker
      * @param paint Paint object for drawing
      * @param label label to display, null if none
      */
-    public void drawPoint(@NonNull Canvas canvas, @NonNull ViewBox bb, int width, int height, @NonNull Point p, @NonNull Paint paint, @Nullable String label) {
-        double lon = p.longitude();
-        double lat = p.latitude();
-        if (bb.contains(lon, lat)) {
-            float x = GeoMath.lonToX(width, bb, p.longitude());
-            float y = GeoMath.latToY(height, width, bb, p.latitude());
+    private void drawPoint(@NonNull Canvas canvas, @NonNull ViewBox bb, int width, int height, int lonE7, int latE7, @NonNull Paint paint,
+            @Nullable String label) {
+        if (bb.contains(lonE7, latE7)) {
+            float x = GeoMath.lonE7ToX(width, bb, lonE7);
+            float y = GeoMath.latE7ToY(height, width, bb, latE7);
             canvas.save();
             canvas.translate(x, y);
             canvas.drawPath(marker, paint);
@@ -341,11 +343,12 @@ public class MapOverlay extends StyleableFileLayer
      * @param bb the current ViewBox
      * @param width screen width in screen coordinates
      * @param height screen height in screen coordinates
-     * @param line List of Position objects defining the line to draw
+     * @param g the geometry containing the line
+     * @param line the index of the line in g
      * @param paint Paint object for drawing
      */
-    public void drawLine(@NonNull Canvas canvas, @NonNull ViewBox bb, int width, int height, @NonNull List<Point> line, @NonNull Paint paint) {
-        GeoJson.pointListToLinePointsArray(bb, width, height, points, line);
+    private void drawLine(@NonNull Canvas canvas, @NonNull ViewBox bb, int width, int height, @NonNull CompactGeometry g, int line, @NonNull Paint paint) {
+        GeoJson.coordinatesToLinePointsArray(bb, width, height, points, g.getCoordinates(), g.lineStart(line), g.lineEnd(line));
         float[] linePoints = points.getArray();
         int pointsSize = points.size();
         if (pointsSize > 1) {
@@ -365,13 +368,15 @@ public class MapOverlay extends StyleableFileLayer
      * @param bb the current ViewBox
      * @param width screen width in screen coordinates
      * @param height screen height in screen coordinates
-     * @param polygon List of List of Position objects defining the polygon rings
+     * @param g the geometry containing the polygon
+     * @param polygon the index of the polygon in g
      * @param paint Paint object for drawing
      */
-    public void drawPolygon(@NonNull Canvas canvas, @NonNull ViewBox bb, int width, int height, @NonNull List<List<Point>> polygon, @NonNull Paint paint) {
+    private void drawPolygon(@NonNull Canvas canvas, @NonNull ViewBox bb, int width, int height, @NonNull CompactGeometry g, int polygon,
+            @NonNull Paint paint) {
         path.reset();
-        for (List<Point> ring : polygon) {
-            GeoJson.pointListToLinePointsArray(bb, width, height, points, ring);
+        for (int ring = g.polygonStart(polygon); ring < g.polygonEnd(polygon); ring++) {
+            GeoJson.coordinatesToLinePointsArray(bb, width, height, points, g.getCoordinates(), g.lineStart(ring), g.lineEnd(ring));
             float[] linePoints = points.getArray();
             int pointsSize = points.size();
             if (pointsSize > 2) {
@@ -455,31 +460,36 @@ public class MapOverlay extends StyleableFileLayer
      * @throws IOException if reading the InputStream fails
      */
     public boolean loadGeoJsonFile(@NonNull Context ctx, @NonNull InputStream is, boolean fromState) throws IOException {
+        return loadGeoJsonFile(ctx, is, fromState, (featureCount, bytesRead) -> Log.d(DEBUG_TAG, "Read " + featureCount + " features " + bytesRead + " bytes"));
+    }
+
+    /**
+     * Read an InputStream containing GeoJSON data in to the layer, replacing any existing data
+     * 
+     * The input is parsed incrementally and Features are added to the layer one by one
+     * 
+     * @param ctx Android Context
+     * @param is the InputStream to read from
+     * @param fromState reading from saved state
+     * @param listener optional listener that is called periodically with the current progress
+     * @return true if successful
+     * @throws IOException if reading the InputStream fails
+     */
+    public boolean loadGeoJsonFile(@NonNull Context ctx, @NonNull InputStream is, boolean fromState, @Nullable ProgressListener listener)
+            throws IOException {
         boolean successful = false;
         // don't draw while we are loading
         setVisible(false);
-        BufferedReader rd = new BufferedReader(new InputStreamReader(is, Charset.forName(OsmXml.UTF_8))); // NOSONAR
         try {
-            String json = FileUtil.readToString(rd);
-            data = new RTree<>(2, 12);
-            FeatureCollection fc = FeatureCollection.fromJson(json);
-            List<Feature> features = fc.features();
-            if (features != null) {
-                loadFeatures(features);
-            } else {
-                Log.d(DEBUG_TAG, "Retrying as Feature");
-                Feature f = Feature.fromJson(json);
-                Geometry g = f.geometry();
-                if (g != null) {
-                    data.insert(new BoundedFeature(f));
+            final RTree<BoundedFeature> tree = new RTree<>(2, 12);
+            data = tree;
+            new GeoJsonReader(f -> {
+                if (f.getBounds() != null) {
+                    tree.insert(f);
                 } else {
-                    g = GeoJson.geometryFromJson(json);
-                    Log.d(DEBUG_TAG, "Geometry " + g.type());
-                    if (g.type() != null) {
-                        data.insert(new BoundedFeature(Feature.fromGeometry(g)));
-                    }
+                    Log.e(DEBUG_TAG, "Feature without coordinates " + f.getGeometry().getType());
                 }
-            }
+            }, listener).read(is);
             setVisible(true); // enable too
             successful = true;
             if (!fromState) {
@@ -503,19 +513,6 @@ public class MapOverlay extends StyleableFileLayer
         return successful;
     }
 
-    /**
-     * @param features a List of Feature
-     */
-    private void loadFeatures(List<Feature> features) {
-        for (Feature f : features) {
-            if (GeoJSONConstants.FEATURE.equals(f.type()) && f.geometry() != null) {
-                data.insert(new BoundedFeature(f));
-            } else {
-                Log.e(DEBUG_TAG, "Type of object " + f.type() + " geometry " + f.geometry());
-            }
-        }
-    }
-
     @Override
     protected synchronized boolean save(@NonNull Context context) throws IOException {
         Log.d(DEBUG_TAG, "Saving state to " + stateFileName);
@@ -552,13 +549,8 @@ public class MapOverlay extends StyleableFileLayer
             data.query(queryResult, viewBox);
             Log.d(DEBUG_TAG, "features result count " + queryResult.size());
             for (BoundedFeature bf : queryResult) {
-                Feature f = bf.getFeature();
-                Geometry g = f.geometry();
-                if (g == null) {
-                    continue;
-                }
-                if (geometryClicked(x, y, viewBox, tolerance, g)) {
-                    result.add(f);
+                if (geometryClicked(x, y, viewBox, tolerance, bf.getGeometry())) {
+                    result.add(bf.getFeature());
                 }
             }
         }
@@ -573,48 +565,40 @@ public class MapOverlay extends StyleableFileLayer
      * @param y Screen Y-coordinate.
      * @param viewBox Map view box.
      * @param tolerance the tolerance value to use
-     * @param g the Geometry
+     * @param g the geometry
      * @return true if clicked
      */
-    @SuppressWarnings("unchecked")
-    boolean geometryClicked(final float x, final float y, @NonNull final ViewBox viewBox, final float tolerance, @NonNull Geometry g) {
-        switch (g.type()) {
+    boolean geometryClicked(final float x, final float y, @NonNull final ViewBox viewBox, final float tolerance, @NonNull CompactGeometry g) {
+        switch (g.getType()) {
         case GeoJSONConstants.POINT:
-            return inToleranceArea(viewBox, tolerance, (Point) g, x, y);
         case GeoJSONConstants.MULTIPOINT:
-            for (Point q : ((CoordinateContainer<List<Point>>) g).coordinates()) {
-                if (inToleranceArea(viewBox, tolerance, q, x, y)) {
+            int[] coordinates = g.getCoordinates();
+            for (int i = 0; i < coordinates.length; i += 2) {
+                if (inToleranceArea(viewBox, tolerance, coordinates[i], coordinates[i + 1], x, y)) {
                     return true;
                 }
             }
             break;
         case GeoJSONConstants.LINESTRING:
-            return distanceToLineString(x, y, map, viewBox, ((CoordinateContainer<List<Point>>) g).coordinates()) >= 0;
         case GeoJSONConstants.MULTILINESTRING:
-            for (List<Point> l : ((CoordinateContainer<List<List<Point>>>) g).coordinates()) {
-                if (distanceToLineString(x, y, map, viewBox, l) >= 0) {
+            for (int l = 0; l < g.lineCount(); l++) {
+                if (distanceToLineString(x, y, map, viewBox, g, l) >= 0) {
                     return true;
                 }
             }
             break;
         case GeoJSONConstants.POLYGON:
         case GeoJSONConstants.MULTIPOLYGON:
-            try {
-                final Point point = pointFromScreenCoords(x, y, viewBox);
-                return GeoJSONConstants.POLYGON.equals(g.type()) ? TurfJoins.inside(point, (Polygon) g) : TurfJoins.inside(point, (MultiPolygon) g);
-            } catch (TurfException e) {
-                Log.e(DEBUG_TAG, "Exception in getClicked " + e);
-            }
-            break;
+            return g.contains(GeoMath.xToLonE7(map.getWidth(), viewBox, x), GeoMath.yToLatE7(map.getHeight(), map.getWidth(), viewBox, y));
         case GeoJSONConstants.GEOMETRYCOLLECTION:
-            for (Geometry geometry : ((GeometryCollection) g).geometries()) {
+            for (CompactGeometry geometry : g.getGeometries()) {
                 if (geometryClicked(x, y, viewBox, tolerance, geometry)) {
                     return true;
                 }
             }
             break;
         default:
-            Log.e(DEBUG_TAG, "Unsupported geometry " + g.type());
+            Log.e(DEBUG_TAG, "Unsupported geometry " + g.getType());
         }
         return false;
     }
@@ -626,24 +610,25 @@ public class MapOverlay extends StyleableFileLayer
      * @param y y screen coord
      * @param map map object
      * @param viewBox the current ViewBox
-     * @param vertices the list of lineString vertices
+     * @param g the geometry containing the linestring
+     * @param line the index of the linestring in g
      * @return if the returned value is > 0 then the coords are in the tolerance
      */
-    private double distanceToLineString(final float x, final float y, final Map map, final ViewBox viewBox, List<Point> vertices) {
-        float p1X = Float.MAX_VALUE;
-        float p1Y = Float.MAX_VALUE;
+    private double distanceToLineString(final float x, final float y, final Map map, final ViewBox viewBox, @NonNull CompactGeometry g, int line) {
+        int[] coordinates = g.getCoordinates();
+        int start = g.lineStart(line);
+        int end = g.lineEnd(line);
         int width = map.getWidth();
         int height = map.getHeight();
-        // Iterate over all WayNodes, but not the last one.
-        for (int k = 0, verticesSize = vertices.size(); k < verticesSize - 1; ++k) {
-            Point p1 = vertices.get(k);
-            Point p2 = vertices.get(k + 1);
-            if (k == 0) {
-                p1X = GeoMath.lonToX(width, viewBox, p1.longitude());
-                p1Y = GeoMath.latToY(height, width, viewBox, p1.latitude());
-            }
-            float p2X = GeoMath.lonToX(width, viewBox, p2.longitude());
-            float p2Y = GeoMath.latToY(height, width, viewBox, p2.latitude());
+        if (end - start < 2) {
+            return -1;
+        }
+        float p1X = GeoMath.lonE7ToX(width, viewBox, coordinates[start * 2]);
+        float p1Y = GeoMath.latE7ToY(height, width, viewBox, coordinates[start * 2 + 1]);
+        // Iterate over all vertices, but not the last one.
+        for (int k = start; k < end - 1; ++k) {
+            float p2X = GeoMath.lonE7ToX(width, viewBox, coordinates[(k + 1) * 2]);
+            float p2Y = GeoMath.latE7ToY(height, width, viewBox, coordinates[(k + 1) * 2 + 1]);
             double distance = de.blau.android.util.Geometry.isPositionOnLine(x, y, p1X, p1Y, p2X, p2Y);
             if (distance >= 0) {
                 return distance;
@@ -659,29 +644,18 @@ public class MapOverlay extends StyleableFileLayer
      * 
      * @param viewBox the current screen ViewBox
      * @param tolerance the tolerance value
-     * @param p the Position
+     * @param lonE7 WGS84*1E7 longitude of the Position
+     * @param latE7 WGS84*1E7 latitude of the Position
      * @param x screen x coordinate of touch location
      * @param y screen y coordinate of touch location
      * @return true if touch position is in tolerance
      */
-    private boolean inToleranceArea(@NonNull ViewBox viewBox, float tolerance, @NonNull Point p, float x, float y) {
-        float differenceX = Math.abs(GeoMath.lonToX(map.getWidth(), viewBox, p.longitude()) - x);
-        float differenceY = Math.abs(GeoMath.latToY(map.getHeight(), map.getWidth(), viewBox, p.latitude()) - y);
+    private boolean inToleranceArea(@NonNull ViewBox viewBox, float tolerance, int lonE7, int latE7, float x, float y) {
+        float differenceX = Math.abs(GeoMath.lonE7ToX(map.getWidth(), viewBox, lonE7) - x);
+        float differenceY = Math.abs(GeoMath.latE7ToY(map.getHeight(), map.getWidth(), viewBox, latE7) - y);
         return differenceX <= tolerance && differenceY <= tolerance && Math.hypot(differenceX, differenceY) <= tolerance;
     }
 
-    /**
-     * Create a Point object from a screen coordinate tupel
-     * 
-     * @param x x screen coordinate
-     * @param y y screen coordinate
-     * @param viewBox the current ViewBox
-     * @return a Point object
-     */
-    private Point pointFromScreenCoords(final float x, final float y, @NonNull final ViewBox viewBox) {
-        return Point.fromLngLat(GeoMath.xToLonE7(map.getWidth(), viewBox, x) / 1E7D, GeoMath.yToLatE7(map.getHeight(), map.getWidth(), viewBox, y) / 1E7D);
-    }
-
     /**
      * Return a List of all loaded Features
      * 
@@ -732,11 +706,7 @@ public class MapOverlay extends StyleableFileLayer
         data.query(queryResult);
         Set<String> result = new TreeSet<>();
         for (BoundedFeature bf : queryResult) {
-            Feature feature = bf.getFeature();
-            JsonObject properties = feature != null ? feature.properties() : null;
-            if (properties == null) {
-                continue;
-            }
+            JsonObject properties = bf.getProperties();
             for (String key : properties.keySet()) {
                 JsonElement e = properties.get(key);
                 if (e != null && e.isJsonPrimitive()) {
@@ -791,13 +761,21 @@ public class MapOverlay extends StyleableFileLayer
      * @return the label or null if not found
      */
     public String getLabel(Feature f) {
-        if (labelKey != null) {
-            JsonObject properties = f.properties();
-            if (properties != null) {
-                JsonElement e = properties.get(labelKey);
-                if (e != null && e.isJsonPrimitive()) {
-                    return e.getAsString();
-                }
+        return getLabel(f.properties());
+    }
+
+    /**
+     * Get the label value from the properties of a Feature
+     * 
+     * @param properties the Feature properties
+     * @return the label or null if not found
+     */
+    @Nullable
+    private String getLabel(@Nullable JsonObject properties) {
+        if (labelKey != null && properties != null) {
+            JsonElement e = properties.get(labelKey);
+            if (e != null && e.isJsonPrimitive()) {
+                return e.getAsString();
             }
         }
         return null;
@@ -906,7 +884,7 @@ public class MapOverlay extends StyleableFileLayer
         Collection<BoundedFeature> queryResult = new ArrayList<>();
         data.query(queryResult);
         for (BoundedFeature bf : queryResult) {
-            switch (bf.getFeature().geometry().type()) {
+            switch (bf.getGeometry().getType()) {
             case GeoJSONConstants.POINT:
                 info.pointCount++;
                 break;
@@ -231,7 +231,7 @@ public class MapOverlay extends de.blau.android.layer.mvt.MapOverlay {
      * @return true if the geometry is a Point
      */
     private boolean isPoint(@NonNull de.blau.android.util.mvt.VectorTileDecoder.Feature f) {
-        return GeoJSONConstants.POINT.equals(f.getGeometry().type());
+        return GeoJSONConstants.POINT.equals(f.getGeometryType());
     }
 
     /**
@@ -11,13 +11,6 @@ import java.util.Set;
 
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
-import com.mapbox.geojson.CoordinateContainer;
-import com.mapbox.geojson.Geometry;
-import com.mapbox.geojson.MultiPolygon;
-import com.mapbox.geojson.Point;
-import com.mapbox.geojson.Polygon;
-import com.mapbox.turf.TurfException;
-import com.mapbox.turf.TurfJoins;
 
 import android.content.Context;
 import android.graphics.Rect;
@@ -125,10 +118,9 @@ public class MapOverlay extends MapTilesOverlayLayer<java.util.Map<String, List<
                     }
                     for (List<VectorTileDecoder.Feature> list : tile.values()) {
                         for (VectorTileDecoder.Feature f : list) {
-                            if (f.getLayerName().equals(layer.getSourceLayer()) && (layer.getFilter() == null || layer.evaluateFilter(layer.getFilter(), f))
+                            if (f.getLayerName().equals(layer.getSourceLayer()) && layer.evaluateFilter(f)
                                     && layer.isInteractive()) {
-                                Geometry g = f.getGeometry();
-                                if (geometryClicked(scaledX, scaledY, tolerance, g)) {
+                                if (geometryClicked(scaledX, scaledY, tolerance, f)) {
                                     result.add(f);
                                 }
                             }
@@ -145,97 +137,118 @@ public class MapOverlay extends MapTilesOverlayLayer<java.util.Map<String, List<
     }
 
     /**
-     * Check if a geometry has been clicked
+     * Check if the geometry of a Feature has been clicked
      * 
      * @param x Screen X-coordinate.
      * @param y Screen Y-coordinate.
      * @param tolerance the tolerance value to use
-     * @param g the Geometry
+     * @param f the Feature
      * @return true if clicked
      */
-    @SuppressWarnings("unchecked")
-    private boolean geometryClicked(final float x, final float y, final float tolerance, @NonNull Geometry g) {
-        switch (g.type()) {
+    private boolean geometryClicked(final float x, final float y, final float tolerance, @NonNull VectorTileDecoder.Feature f) {
+        float[] coordinates = f.getCoordinates();
+        int partCount = f.getPartCount();
+        switch (f.getGeometryType()) {
         case GeoJSONConstants.POINT:
-            return inToleranceArea(tolerance, (Point) g, x, y);
         case GeoJSONConstants.MULTIPOINT:
-            for (Point q : ((CoordinateContainer<List<Point>>) g).coordinates()) {
-                if (inToleranceArea(tolerance, q, x, y)) {
+            for (int i = f.getPartStart(0); i < f.getPartEnd(0); i++) {
+                if (inToleranceArea(tolerance, coordinates[2 * i], coordinates[2 * i + 1], x, y)) {
                     return true;
                 }
             }
             break;
         case GeoJSONConstants.LINESTRING:
-            return distanceToLineString(x, y, ((CoordinateContainer<List<Point>>) g).coordinates(), tolerance) >= 0;
         case GeoJSONConstants.MULTILINESTRING:
-            for (List<Point> l : ((CoordinateContainer<List<List<Point>>>) g).coordinates()) {
-                if (distanceToLineString(x, y, l, tolerance) >= 0) {
+            for (int i = 0; i < partCount; i++) {
+                if (distanceToLineString(x, y, coordinates, f.getPartStart(i), f.getPartEnd(i), tolerance) >= 0) {
                     return true;
                 }
             }
             break;
         case GeoJSONConstants.POLYGON:
         case GeoJSONConstants.MULTIPOLYGON:
-            try {
-                final Point point = Point.fromLngLat(x, y);
-                return GeoJSONConstants.POLYGON.equals(g.type()) ? TurfJoins.inside(point, (Polygon) g) : TurfJoins.inside(point, (MultiPolygon) g);
-            } catch (TurfException e) {
-                Log.e(DEBUG_TAG, "Exception in getClicked " + e);
+            // inside a polygon if inside the exterior ring and not inside any of the holes
+            boolean inside = false;
+            for (int i = 0; i < partCount; i++) {
+                if (f.isPolygonStart(i)) {
+                    if (inside) {
+                        return true;
+                    }
+                    inside = insideRing(x, y, coordinates, f.getPartStart(i), f.getPartEnd(i));
+                } else if (inside && insideRing(x, y, coordinates, f.getPartStart(i), f.getPartEnd(i))) {
+                    inside = false;
+                }
             }
-            break;
+            return inside;
         default:
-            Log.e(DEBUG_TAG, "Unsupported geometry " + g.type());
+            Log.e(DEBUG_TAG, "Unsupported geometry " + f.getGeometryType());
         }
         return false;
     }
 
     /**
-     * Check if the current touch position is in the tolerance area around a Point
+     * Check if the current touch position is in the tolerance area around a point
      *
      * @param tolerance the tolerance value
-     * @param p the Position
+     * @param pX x coordinate of the point
+     * @param pY y coordinate of the point
      * @param x screen x coordinate of touch location
      * @param y screen y coordinate of touch location
      * @return true if touch position is in tolerance
      */
-    private boolean inToleranceArea(float tolerance, @NonNull Point p, float x, float y) {
-        float differenceX = (float) Math.abs(p.longitude() - x);
-        float differenceY = (float) Math.abs(p.latitude() - y);
+    private boolean inToleranceArea(float tolerance, float pX, float pY, float x, float y) {
+        float differenceX = Math.abs(pX - x);
+        float differenceY = Math.abs(pY - y);
         return differenceX <= tolerance && differenceY <= tolerance && Math.hypot(differenceX, differenceY) <= tolerance;
     }
 
     /**
-     * Determine if screen coords are within the tolerance for a geojson linestring
+     * Determine if screen coords are within the tolerance for a line
      * 
      * @param x x screen coord
      * @param y y screen coord
-     * @param vertices the list of lineString vertices
+     * @param coordinates array of alternating x and y coordinates
+     * @param start index of the first point of the line
+     * @param end index of the point after the last point of the line
      * @param tolerance the tolerance
      * @return if the returned value is > 0 then the coords are in the tolerance
      */
-    private double distanceToLineString(final float x, final float y, List<Point> vertices, float tolerance) {
-        float p1X = Float.MAX_VALUE;
-        float p1Y = Float.MAX_VALUE;
+    private double distanceToLineString(final float x, final float y, @NonNull float[] coordinates, int start, int end, float tolerance) {
         // Iterate over all points, but not the last one.
-        for (int k = 0, verticesSize = vertices.size(); k < verticesSize - 1; ++k) {
-            Point p1 = vertices.get(k);
-            Point p2 = vertices.get(k + 1);
-            if (k == 0) {
-                p1X = (float) p1.longitude();
-                p1Y = (float) p1.latitude();
-            }
-            float p2X = (float) p2.longitude();
-            float p2Y = (float) p2.latitude();
-            double distance = de.blau.android.util.Geometry.isPositionOnLine(tolerance / 2, x, y, p1X, p1Y, p2X, p2Y);
+        for (int k = start; k < end - 1; ++k) {
+            double distance = de.blau.android.util.Geometry.isPositionOnLine(tolerance / 2, x, y, coordinates[2 * k], coordinates[2 * k + 1],
+                    coordinates[2 * k + 2], coordinates[2 * k + 3]);
             if (distance >= 0) {
                 return distance;
             }
-            p1X = p2X;
-            p1Y = p2Y;
         }
         return -1;
     }
 
+    /**
+     * Check if a point is inside a ring using the even-odd rule
+     * 
+     * @param x x coord
+     * @param y y coord
+     * @param coordinates array of alternating x and y coordinates
+     * @param start index of the first point of the ring
+     * @param end index of the point after the last point of the ring
+     * @return true if inside
+     */
+    private static boolean insideRing(final float x, final float y, @NonNull float[] coordinates, int start, int end) {
+        boolean inside = false;
+        for (int i = start, j = end - 1; i < end; j = i++) {
+            float xi = coordinates[2 * i];
+            float yi = coordinates[2 * i + 1];
+            float xj = coordinates[2 * j];
+            float yj = coordinates[2 * j + 1];
+            if ((yi > y) != (yj > y) && x < (xj - xi) * (y - yi) / (yj - yi) + xi) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
     /**
      * Get the tile
      * 
@@ -291,7 +304,7 @@ public class MapOverlay extends MapTilesOverlayLayer<java.util.Map<String, List<
     public SpannableString getDescription(Context context, de.blau.android.util.mvt.VectorTileDecoder.Feature f) {
         Object nameObject = f.getAttributes().get(Tags.KEY_NAME);
         return new SpannableString(
-                (nameObject != null ? nameObject.toString() : Long.toString(f.getId())) + " " + f.getGeometry().type() + " " + f.getLayerName());
+                (nameObject != null ? nameObject.toString() : Long.toString(f.getId())) + " " + f.getGeometryType() + " " + f.getLayerName());
     }
 
     @Override
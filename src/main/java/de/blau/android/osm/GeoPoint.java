@@ -1,6 +1,7 @@
 package de.blau.android.osm;
 
 import de.blau.android.gpx.TrackPoint;
+import de.blau.android.util.GeoMath;
 
 /**
  * Something that has a latitude and longitude and can return it in 1E7 format (e.g. {@link Node} and
@@ -17,6 +18,11 @@ public interface GeoPoint {
     /** @return the longitude of this point in 1E7 format */
     int getLon();
 
+    /** @return the mercator projected latitude of this point in 1E7 format */
+    default int getMercatorLatE7() {
+        return GeoMath.latE7ToMercatorE7(getLat());
+    }
+
     interface InterruptibleGeoPoint extends GeoPoint {
         /** @return true if no line should be drawn from the last point to this one */
         boolean isInterrupted();
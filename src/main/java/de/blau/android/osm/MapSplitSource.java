@@ -2,19 +2,37 @@ package de.blau.android.osm;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 import org.openstreetmap.osmosis.osmbinary.file.BlockInputStream;
 
 import android.content.Context;
+import android.util.Log;
 import androidx.annotation.NonNull;
 import de.blau.android.R;
 import de.blau.android.exception.UnsupportedFormatException;
 import de.blau.android.services.util.MBTileProviderDataBase;
 import de.blau.android.services.util.MapTile;
+import de.blau.android.util.Util;
 import de.blau.android.util.collections.UnsignedSparseBitSet;
 
 public final class MapSplitSource {
 
+    private static final String DEBUG_TAG = "MapSplitSource";
+
+    /**
+     * Number of tiles per decoding thread that are retrieved in advance
+     */
+    private static final int PREFETCH_FACTOR = 2;
+
     public static final String LATEST_DATE = "latest_date";
     public static final String ATTRIBUTION = "attribution";
 
@@ -28,6 +46,9 @@ public final class MapSplitSource {
     /**
      * Read data for the specified BoundingBox from a tiled OSM datasource
      * 
+     * The tiles are retrieved from the database in the calling thread and decoded concurrently in to separate Storage
+     * instances which are then merged in tile order, see {@link #merge(List)}.
+     * 
      * @param context an Android Context
      * @param mbTiles a MBTileProviderDataBase instance
      * @param box the BoundingBox
@@ -59,54 +80,230 @@ public final class MapSplitSource {
         final int tileNeededTop = Math.min(yTileTop, yTileBottom);
         final int tileNeededBottom = Math.max(yTileTop, yTileBottom);
         UnsignedSparseBitSet seen = new UnsignedSparseBitSet(); // track tiles that we have seen
-        Storage storage = new Storage();
-        MapTile mapTile = new MapTile(null, maxZoom, 0, 0);
-        for (int x = tileNeededLeft; x <= tileNeededRight; x++) {
-            for (int y = tileNeededBottom; y >= tileNeededTop; y--) {
-                if (seen.get(x << maxZoom | y)) {
-                    continue;
-                }
-                mapTile.zoomLevel = maxZoom;
-                mapTile.x = x;
-                mapTile.y = y;
-                InputStream is = mbTiles.getTileStream(mapTile);
-                if (is != null) {
-                    OsmPbfParser parser = new OsmPbfParser(context, storage, box);
-                    new BlockInputStream(is, parser).process();
-                } else {
-                    // tile doesn't exist try ones further out
-                    // assumption there will only always be one tile that
-                    // covers an area
-                    int skipped = 2;
-                    while (mapTile.zoomLevel > minZoom) {
-                        mapTile.x >>= 1;
-                        mapTile.y >>= 1;
-                        --mapTile.zoomLevel;
-                        is = mbTiles.getTileStream(mapTile);
-                        if (is != null) {
-                            OsmPbfParser parser = new OsmPbfParser(context, storage, box);
-                            new BlockInputStream(is, parser).process();
-                            // mark smaller tiles as seen
-                            int zoomDiff = maxZoom - mapTile.zoomLevel;
-                            int originX = mapTile.x << zoomDiff;
-                            int originY = mapTile.y << zoomDiff;
-                            for (int xSeen = 0; xSeen < skipped; xSeen++) {
-                                for (int ySeen = 0; ySeen < skipped; ySeen++) {
-                                    seen.set((originX + xSeen) << maxZoom | (originY + ySeen));
+
+        final int tileCount = (tileNeededRight - tileNeededLeft + 1) * (tileNeededBottom - tileNeededTop + 1);
+        final int threads = Math.max(1, Math.min(Util.usableProcessors(), tileCount));
+        final Semaphore inFlight = new Semaphore(threads * PREFETCH_FACTOR);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final List<TileReader> readers = new ArrayList<>();
+        final List<Future<Storage>> results = new ArrayList<>();
+        try {
+            MapTile mapTile = new MapTile(null, maxZoom, 0, 0);
+            for (int x = tileNeededLeft; x <= tileNeededRight; x++) {
+                for (int y = tileNeededBottom; y >= tileNeededTop; y--) {
+                    if (seen.get(x << maxZoom | y)) {
+                        continue;
+                    }
+                    mapTile.zoomLevel = maxZoom;
+                    mapTile.x = x;
+                    mapTile.y = y;
+                    inFlight.acquire();
+                    InputStream is = mbTiles.getTileStream(mapTile);
+                    if (is != null) {
+                        submit(executor, new TileReader(context, is, box, inFlight), readers, results);
+                    } else {
+                        // tile doesn't exist try ones further out
+                        // assumption there will only always be one tile that
+                        // covers an area
+                        int skipped = 2;
+                        while (mapTile.zoomLevel > minZoom) {
+                            mapTile.x >>= 1;
+                            mapTile.y >>= 1;
+                            --mapTile.zoomLevel;
+                            is = mbTiles.getTileStream(mapTile);
+                            if (is != null) {
+                                submit(executor, new TileReader(context, is, box, inFlight), readers, results);
+                                // mark smaller tiles as seen
+                                int zoomDiff = maxZoom - mapTile.zoomLevel;
+                                int originX = mapTile.x << zoomDiff;
+                                int originY = mapTile.y << zoomDiff;
+                                for (int xSeen = 0; xSeen < skipped; xSeen++) {
+                                    for (int ySeen = 0; ySeen < skipped; ySeen++) {
+                                        seen.set((originX + xSeen) << maxZoom | (originY + ySeen));
+                                    }
                                 }
+                                break;
                             }
-                            break;
+                            skipped = skipped << 1;
+                        }
+                        if (is == null) {
+                            inFlight.release();
                         }
-                        skipped = skipped << 1;
                     }
                 }
             }
-        }
-        if (box != null) {
+            List<Storage> partials = new ArrayList<>(results.size());
+            for (Future<Storage> result : results) {
+                partials.add(result.get());
+            }
+            Storage storage = merge(partials);
             // remove all unreferenced nodes that are not in the bounding box
             storage.removeUnreferencedNodes(box);
+            return storage;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            executor.shutdownNow();
+            for (TileReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Submit a TileReader for execution
+     * 
+     * @param executor the ExecutorService
+     * @param reader the TileReader
+     * @param readers list of all submitted TileReaders
+     * @param results list of the Futures for the results in submission order
+     */
+    private static void submit(@NonNull ExecutorService executor, @NonNull TileReader reader, @NonNull List<TileReader> readers,
+            @NonNull List<Future<Storage>> results) {
+        readers.add(reader);
+        results.add(executor.submit(reader));
+    }
+
+    /**
+     * Decode a single tile in to its own Storage instance
+     */
+    private static final class TileReader implements Callable<Storage> {
+        private final Context     context;
+        private final InputStream is;
+        private final BoundingBox box;
+        private final Semaphore   inFlight;
+        private boolean           released = false;
+
+        /**
+         * Construct a new reader
+         * 
+         * @param context an Android Context
+         * @param is the InputStream for the tile, the reader takes ownership and closes it
+         * @param box the BoundingBox to trim the data to
+         * @param inFlight Semaphore limiting the number of tiles that have been retrieved but not decoded yet
+         */
+        TileReader(@NonNull Context context, @NonNull InputStream is, @NonNull BoundingBox box, @NonNull Semaphore inFlight) {
+            this.context = context;
+            this.is = is;
+            this.box = box;
+            this.inFlight = inFlight;
+        }
+
+        @Override
+        public Storage call() throws IOException {
+            try {
+                Storage storage = new Storage();
+                new BlockInputStream(is, new OsmPbfParser(context, storage, box)).process();
+                return storage;
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Close the InputStream and give the prefetch slot back, can be called more than once
+         */
+        synchronized void close() {
+            if (!released) {
+                released = true;
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    Log.e(DEBUG_TAG, "Closing tile stream " + e.getMessage());
+                }
+                inFlight.release();
+            }
+        }
+    }
+
+    /**
+     * Merge Storage instances that have been read from individual tiles
+     * 
+     * Elements are taken from the first Storage that contains them, which is what reading the tiles one after the other
+     * in to the same Storage would result in. Way nodes are replaced by the retained instances and relation members
+     * and the corresponding back links are resolved against the merged data. As the first instance is used as the
+     * target, the partial Storage instances should not be used afterwards.
+     * 
+     * @param partials the Storage instances in tile order
+     * @return a Storage instance with the merged data
+     */
+    @NonNull
+    static Storage merge(@NonNull List<Storage> partials) {
+        if (partials.isEmpty()) {
+            return new Storage();
+        }
+        Storage result = partials.get(0);
+        if (partials.size() == 1) {
+            return result;
+        }
+        for (int i = 1; i < partials.size(); i++) {
+            Storage partial = partials.get(i);
+            for (BoundingBox b : partial.getBoundingBoxes()) {
+                if (result.isEmpty()) {
+                    result.setBoundingBox(b);
+                } else {
+                    result.addBoundingBox(b);
+                }
+            }
+            for (Node n : partial.getNodeIndex()) {
+                result.insertElementSafe(n);
+            }
+            for (Way w : partial.getWayIndex()) {
+                if (!result.contains(w)) {
+                    List<Node> wayNodes = w.getNodes();
+                    for (int j = 0; j < wayNodes.size(); j++) {
+                        Node nd = wayNodes.get(j);
+                        Node retained = result.getNode(nd.getOsmId());
+                        if (retained != nd && retained != null) {
+                            wayNodes.set(j, retained);
+                        }
+                    }
+                    result.insertElementUnsafe(w);
+                }
+            }
+            for (Relation r : partial.getRelationIndex()) {
+                result.insertElementSafe(r);
+            }
+            result.addNodeRefs(partial);
+        }
+        resolveRelations(result);
+        return result;
+    }
+
+    /**
+     * Set the member elements of all relations and the back links from the members
+     * 
+     * @param storage the Storage
+     */
+    private static void resolveRelations(@NonNull Storage storage) {
+        for (Node n : storage.getNodeIndex()) {
+            n.clearParentRelations();
+        }
+        for (Way w : storage.getWayIndex()) {
+            w.clearParentRelations();
+        }
+        for (Relation r : storage.getRelationIndex()) {
+            r.clearParentRelations();
+        }
+        for (Relation r : storage.getRelationIndex()) {
+            for (RelationMember rm : r.getMembers()) {
+                OsmElement element = storage.getOsmElement(rm.getType(), rm.getRef());
+                rm.setElement(element);
+                if (element != null) {
+                    element.addParentRelation(r);
+                }
+            }
         }
-        return storage;
     }
 
     /**
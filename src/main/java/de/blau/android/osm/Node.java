@@ -8,6 +8,7 @@ import org.xmlpull.v1.XmlSerializer;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import de.blau.android.util.GeoMath;
 import de.blau.android.util.rtree.BoundedObject;
 import de.blau.android.validation.Validator;
 
@@ -36,6 +37,13 @@ public class Node extends OsmElement implements GeoPoint, BoundedObject {
      */
     int lon;
 
+    /**
+     * Cached mercator projection of lat, the upper 32 bits contain the latitude the value was calculated for so that
+     * any change of lat, including via undo, invalidates it. The initial value is correct for a latitude of 0. This is
+     * read and written from several threads, volatile guarantees that the two halves are never seen torn.
+     */
+    private transient volatile long mercatorLat;
+
     /**
      * It's name in the OSM-XML-scheme.
      */
@@ -72,6 +80,18 @@ public class Node extends OsmElement implements GeoPoint, BoundedObject {
         return lon;
     }
 
+    @Override
+    public int getMercatorLatE7() {
+        final long cached = mercatorLat;
+        final int latE7 = lat;
+        if ((int) (cached >>> 32) == latE7) {
+            return (int) cached;
+        }
+        final int mercatorLatE7 = GeoMath.latE7ToMercatorE7(latE7);
+        mercatorLat = ((long) latE7 << 32) | (mercatorLatE7 & 0xFFFFFFFFL);
+        return mercatorLatE7;
+    }
+
     /**
      * Set the latitude
      * 
@@ -0,0 +1,280 @@
+package de.blau.android.osm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import androidx.annotation.NonNull;
+import de.blau.android.util.collections.LongHashMap;
+
+/**
+ * Index from Node ids to the Ways the Node is a member of
+ *
+ * The index may contain stale entries, that is Ways that no longer contain the Node or that have been removed from
+ * storage, these are filtered out and removed on lookup. Ways that are going to have their Node list changed need to be
+ * marked volatile with {@link #invalidate(Way)}, they are checked individually on lookups until {@link #commit(Storage)}
+ * adds entries for their then current Nodes.
+ *
+ * To save space the value for a Node id is either a single Way or, for Nodes that are members of multiple Ways, an array
+ * of Ways.
+ *
+ * @author simon
+ *
+ */
+class NodeWayIndex {
+
+    private final LongHashMap<Object> refs;
+    private final Set<Way>            volatiles = new HashSet<>();
+
+    /**
+     * Construct a new index
+     *
+     * @param size the expected number of way nodes
+     */
+    NodeWayIndex(int size) {
+        refs = new LongHashMap<>(Math.max(size, 1));
+    }
+
+    /**
+     * Add entries for all Nodes of a Way
+     *
+     * @param way the Way
+     */
+    synchronized void add(@NonNull Way way) {
+        if (!volatiles.contains(way)) {
+            addRefs(way);
+        }
+    }
+
+    /**
+     * Remove the entries for all current Nodes of a Way
+     *
+     * @param way the Way
+     */
+    synchronized void remove(@NonNull Way way) {
+        volatiles.remove(way);
+        for (Node n : way.getNodes()) {
+            removeRef(n.getOsmId(), way);
+        }
+    }
+
+    /**
+     * Mark a Way as volatile, call this before the Node list of the Way is changed
+     *
+     * @param way the Way
+     */
+    synchronized void invalidate(@NonNull Way way) {
+        volatiles.add(way);
+    }
+
+    /**
+     * Add entries for the current Nodes of all volatile Ways that are still present in storage
+     *
+     * @param storage the Storage this index belongs to
+     */
+    synchronized void commit(@NonNull Storage storage) {
+        for (Way way : volatiles) {
+            if (storage.containsInstance(way)) {
+                addRefs(way);
+            }
+        }
+        volatiles.clear();
+    }
+
+    /**
+     * Add entries for all Nodes of a Way
+     *
+     * @param way the Way
+     */
+    private void addRefs(@NonNull Way way) {
+        List<Node> nodes = way.getNodes();
+        final int size = nodes.size();
+        for (int i = 0; i < size; i++) {
+            addRef(nodes.get(i).getOsmId(), way);
+        }
+    }
+
+    /**
+     * Add an entry for a Node id, if it doesn't already exist
+     *
+     * @param id the Node id
+     * @param way the Way
+     */
+    private void addRef(long id, @NonNull Way way) {
+        Object o = refs.get(id);
+        if (o == null) {
+            refs.put(id, way);
+        } else if (o instanceof Way) {
+            if (o != way) {
+                refs.put(id, new Way[] { (Way) o, way });
+            }
+        } else {
+            Way[] ways = (Way[]) o;
+            for (Way w : ways) {
+                if (w == way) {
+                    return;
+                }
+            }
+            Way[] newWays = Arrays.copyOf(ways, ways.length + 1);
+            newWays[ways.length] = way;
+            refs.put(id, newWays);
+        }
+    }
+
+    /**
+     * Remove an entry for a Node id
+     *
+     * @param id the Node id
+     * @param way the Way
+     */
+    private void removeRef(long id, @NonNull Way way) {
+        Object o = refs.get(id);
+        if (o == way) {
+            refs.remove(id);
+        } else if (o instanceof Way[]) {
+            Way[] ways = (Way[]) o;
+            List<Way> remaining = new ArrayList<>(ways.length);
+            for (Way w : ways) {
+                if (w != way) {
+                    remaining.add(w);
+                }
+            }
+            setRefs(id, remaining);
+        }
+    }
+
+    /**
+     * Replace the entries for a Node id
+     *
+     * @param id the Node id
+     * @param ways the new List of Ways
+     */
+    private void setRefs(long id, @NonNull List<Way> ways) {
+        switch (ways.size()) {
+        case 0:
+            refs.remove(id);
+            break;
+        case 1:
+            refs.put(id, ways.get(0));
+            break;
+        default:
+            refs.put(id, ways.toArray(new Way[ways.size()]));
+        }
+    }
+
+    /**
+     * Check if an indexed Way is valid for a Node
+     *
+     * @param way the Way
+     * @param node the Node
+     * @param storage the Storage this index belongs to
+     * @return true if the Way is in storage and contains the Node
+     */
+    private static boolean isValid(@NonNull Way way, @NonNull Node node, @NonNull Storage storage) {
+        // don't use Way.hasNode here as it relies on the cached bounding box
+        return storage.containsInstance(way) && way.getNodes().contains(node);
+    }
+
+    /**
+     * Get all Ways that contain a Node
+     *
+     * @param node the Node
+     * @param storage the Storage this index belongs to
+     * @param result a List for the result
+     * @return result
+     */
+    @NonNull
+    synchronized List<Way> get(@NonNull Node node, @NonNull Storage storage, @NonNull List<Way> result) {
+        final long id = node.getOsmId();
+        Object o = refs.get(id);
+        if (o instanceof Way) {
+            if (isValid((Way) o, node, storage)) {
+                result.add((Way) o);
+            } else if (!volatiles.contains(o)) {
+                refs.remove(id);
+            }
+        } else if (o != null) {
+            Way[] ways = (Way[]) o;
+            boolean stale = false;
+            for (Way w : ways) {
+                if (isValid(w, node, storage)) {
+                    result.add(w);
+                } else {
+                    stale = stale || !volatiles.contains(w);
+                }
+            }
+            if (stale) {
+                prune(id, ways, node, storage);
+            }
+        }
+        return addVolatile(node, storage, result);
+    }
+
+    /**
+     * Remove stale entries for a Node id
+     *
+     * Entries for volatile Ways are retained
+     *
+     * @param id the Node id
+     * @param ways the current entries
+     * @param node the Node
+     * @param storage the Storage this index belongs to
+     */
+    private void prune(long id, @NonNull Way[] ways, @NonNull Node node, @NonNull Storage storage) {
+        List<Way> remaining = new ArrayList<>(ways.length);
+        for (Way w : ways) {
+            if (isValid(w, node, storage) || volatiles.contains(w)) {
+                remaining.add(w);
+            }
+        }
+        setRefs(id, remaining);
+    }
+
+    /**
+     * Add volatile Ways that contain the Node to the result if not already present
+     *
+     * @param node the Node
+     * @param storage the Storage this index belongs to
+     * @param result a List for the result
+     * @return result
+     */
+    @NonNull
+    private List<Way> addVolatile(@NonNull Node node, @NonNull Storage storage, @NonNull List<Way> result) {
+        for (Way w : volatiles) {
+            if (isValid(w, node, storage) && !result.contains(w)) {
+                result.add(w);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Check if a Node is a member of at least one Way
+     *
+     * @param node the Node
+     * @param storage the Storage this index belongs to
+     * @return true if at least one Way in storage contains the Node
+     */
+    synchronized boolean isWayNode(@NonNull Node node, @NonNull Storage storage) {
+        Object o = refs.get(node.getOsmId());
+        if (o instanceof Way) {
+            if (isValid((Way) o, node, storage)) {
+                return true;
+            }
+        } else if (o != null) {
+            for (Way w : (Way[]) o) {
+                if (isValid(w, node, storage)) {
+                    return true;
+                }
+            }
+        }
+        for (Way w : volatiles) {
+            if (isValid(w, node, storage)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
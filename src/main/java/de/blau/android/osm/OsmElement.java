@@ -63,7 +63,10 @@ public abstract class OsmElement implements Serializable, XmlSerializable, JosmX
 
     long osmVersion;
 
-    TreeMap<String, String> tags;
+    /**
+     * Immutable, normally a {@link TagSet} shared with other elements, null if there are no tags
+     */
+    SortedMap<String, String> tags;
 
     byte state;
 
@@ -142,9 +145,12 @@ public abstract class OsmElement implements Serializable, XmlSerializable, JosmX
     @NonNull
     public SortedMap<String, String> getTags() {
         if (tags == null) {
-            return Collections.unmodifiableSortedMap(new TreeMap<String, String>()); // for backwards compatibility
+            return TagSet.EMPTY; // for backwards compatibility
+        }
+        if (tags instanceof TagSet) {
+            return tags;
         }
-        return Collections.unmodifiableSortedMap(tags);
+        return Collections.unmodifiableSortedMap(tags); // state from before TagSet was introduced
     }
 
     /**
@@ -231,11 +237,14 @@ public abstract class OsmElement implements Serializable, XmlSerializable, JosmX
      * @param tags New tags to add or to replace existing tags.
      */
     void addTags(final Map<String, String> tags) {
-        if (tags != null) {
-            if (this.tags == null) {
-                this.tags = new TreeMap<>();
+        if (tags != null && !tags.isEmpty()) {
+            if (this.tags == null || this.tags.isEmpty()) {
+                this.tags = TagSet.of(tags);
+            } else {
+                Map<String, String> merged = new TreeMap<>(this.tags);
+                merged.putAll(tags);
+                this.tags = TagSet.of(merged);
             }
-            this.tags.putAll(tags);
         }
     }
 
@@ -246,12 +255,9 @@ public abstract class OsmElement implements Serializable, XmlSerializable, JosmX
      * @return Flag indicating if the tags have actually changed.
      */
     boolean setTags(@Nullable final Map<String, String> tags) {
-        if (this.tags == null) {
-            addTags(tags);
-            return true;
-        } else if (!this.tags.equals(tags)) {
-            this.tags.clear();
-            addTags(tags);
+        TagSet newTags = TagSet.of(tags);
+        if (this.tags == null || !this.tags.equals(newTags)) {
+            this.tags = newTags.isEmpty() ? null : newTags;
             return true;
         }
         return false;
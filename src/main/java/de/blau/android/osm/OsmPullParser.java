@@ -0,0 +1,627 @@
+package de.blau.android.osm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import de.blau.android.exception.OsmParseException;
+import de.blau.android.util.DateFormatter;
+import de.blau.android.util.collections.LongOsmElementMap;
+
+/**
+ * Parses OSM XML with a XmlPullParser and adds the elements to a Storage instance
+ *
+ * This produces the same results as {@link OsmParser} for API 0.6 output, Overpass output and JOSM OSM files, but
+ * avoids the overhead of SAX attribute handling. Coordinates are converted directly to the internal integer
+ * representation, timestamps in the standard format are decoded without a date formatter and tags are collected in a
+ * reusable buffer and turned in to a shared, interned TagSet without intermediate Maps.
+ *
+ * Like {@link OsmParser} this assumes Node, Ways, Relations ordering of the input.
+ *
+ * @author simon
+ */
+public class OsmPullParser {
+    private static final String DEBUG_TAG = OsmPullParser.class.getSimpleName();
+
+    private static final int    TIMESTAMP_LENGTH = 20;
+    private static final long   SECONDS_PER_DAY  = 86400L;
+    private static final long[] POWERS_OF_TEN    = { 1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L };
+
+    private final Storage storage;
+
+    private Node     currentNode     = null;
+    private Way      currentWay      = null;
+    private Relation currentRelation = null;
+
+    private String[] tagBuffer = new String[32];
+    private int      tagCount  = 0;
+
+    private final List<Exception> exceptions = new ArrayList<>();
+
+    /**
+     * Helper class to store missing relation information for post processing
+     */
+    private static class MissingRelation {
+        final Relation       parent;
+        final RelationMember member;
+
+        /**
+         * Construct a new temporary container for missing Relations
+         *
+         * @param member the RelationMember
+         * @param parent the parent Relation
+         */
+        MissingRelation(@NonNull RelationMember member, @NonNull Relation parent) {
+            this.member = member;
+            this.parent = parent;
+        }
+    }
+
+    private final List<MissingRelation> missingRelations = new ArrayList<>();
+
+    private LongOsmElementMap<Node> nodeIndex = null;
+    private LongOsmElementMap<Way>  wayIndex  = null;
+
+    private String characters = null;
+
+    private String lastTimestampStr = null;
+    private long   lastTimestamp    = -1L;
+
+    /**
+     * Construct a new instance of the parser
+     */
+    public OsmPullParser() {
+        storage = new Storage();
+    }
+
+    /**
+     * Reset the parser to its initial state but with the existing Storage
+     */
+    public void reinit() {
+        currentNode = null;
+        currentWay = null;
+        currentRelation = null;
+        tagCount = 0;
+        exceptions.clear();
+        missingRelations.clear();
+    }
+
+    /**
+     * Get the Storage instance associated with the parser
+     *
+     * @return an instance of Storage
+     */
+    @NonNull
+    public Storage getStorage() {
+        return storage;
+    }
+
+    /**
+     * Get the List of exceptions that have occurred, if any
+     *
+     * @return a List of Exceptions
+     */
+    @NonNull
+    public List<Exception> getExceptions() {
+        return exceptions;
+    }
+
+    /**
+     * Clear the list of bounding boxes
+     */
+    public void clearBoundingBoxes() {
+        getStorage().clearBoundingBoxList();
+    }
+
+    /**
+     * Parse the input
+     *
+     * Errors are reported in the same way as by {@link OsmParser#start(InputStream)}
+     *
+     * @param in the InputStream
+     * @throws SAXException if the input couldn't be parsed, the cause will be an OsmParseException for errors in the
+     *             OSM data or a XmlPullParserException for malformed XML
+     * @throws IOException when reading the input failed
+     */
+    public void start(@NonNull final InputStream in) throws SAXException, IOException {
+        try {
+            XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
+            parser.setInput(in, null);
+            int eventType;
+            while ((eventType = parser.next()) != XmlPullParser.END_DOCUMENT) {
+                switch (eventType) {
+                case XmlPullParser.START_TAG:
+                    startElement(parser);
+                    break;
+                case XmlPullParser.END_TAG:
+                    endElement(parser.getName());
+                    break;
+                case XmlPullParser.TEXT:
+                    characters = parser.getText();
+                    break;
+                default:
+                    // ignore
+                }
+            }
+        } catch (XmlPullParserException e) {
+            throw new SAXException(e);
+        }
+        endDocument();
+    }
+
+    /**
+     * Post process relations and report any errors
+     *
+     * @throws SAXException if errors occurred during parsing
+     */
+    private void endDocument() throws SAXException {
+        for (MissingRelation mr : missingRelations) {
+            RelationMember rm = mr.member;
+            Relation r = storage.getRelation(rm.ref);
+            if (r != null) {
+                rm.setElement(r);
+                r.addParentRelation(mr.parent);
+            }
+        }
+        if (!exceptions.isEmpty()) {
+            throw new SAXException(new OsmParseException(exceptions));
+        }
+    }
+
+    /**
+     * Process a start tag
+     *
+     * @param parser the XmlPullParser positioned on the tag
+     */
+    private void startElement(@NonNull XmlPullParser parser) {
+        String name = parser.getName();
+        try {
+            switch (name) {
+            case Way.NAME:
+            case Node.NAME:
+            case Relation.NAME:
+                parseOsmElement(name, parser);
+                break;
+            case Way.NODE:
+                parseWayNode(parser);
+                break;
+            case Relation.MEMBER_ATTR:
+                parseRelationMember(parser);
+                break;
+            case OsmElement.TAG:
+                parseTag(parser);
+                break;
+            case BoundingBox.NAME:
+                parseBounds(parser);
+                break;
+            case OsmXml.OSM:
+            case OsmParser.OVERPASS_NOTE:
+            case OsmParser.OVERPASS_META:
+            case OsmParser.API_ERROR:
+                break;
+            default:
+                throw new OsmParseException("Unknown element " + name);
+            }
+        } catch (OsmParseException e) {
+            Log.e(DEBUG_TAG, "OsmParseException", e);
+            exceptions.add(e);
+        }
+    }
+
+    /**
+     * Process an end tag
+     *
+     * @param name the name of the element
+     * @throws SAXException if the parser is in an inconsistent state
+     */
+    private void endElement(@NonNull String name) throws SAXException {
+        switch (name) {
+        case Node.NAME:
+            if (currentNode == null) {
+                throw new SAXException("State error, null Node");
+            }
+            addTags(currentNode);
+            storage.insertNodeUnsafe(currentNode);
+            currentNode = null;
+            break;
+        case Way.NAME:
+            if (currentWay == null) {
+                throw new SAXException("State error, null Way");
+            }
+            addTags(currentWay);
+            if (!currentWay.getNodes().isEmpty()) {
+                storage.insertWayUnsafe(currentWay);
+            } else {
+                Log.e(DEBUG_TAG, "Way " + currentWay.getOsmId() + " has no nodes! Ignored.");
+            }
+            currentWay = null;
+            break;
+        case Relation.NAME:
+            if (currentRelation == null) {
+                throw new SAXException("State error, null Relation");
+            }
+            addTags(currentRelation);
+            storage.insertRelationUnsafe(currentRelation);
+            currentRelation = null;
+            break;
+        case OsmParser.API_ERROR:
+            OsmParseException e = new OsmParseException("Internal API error: " + characters);
+            Log.e(DEBUG_TAG, "OsmParseException", e);
+            exceptions.add(e);
+            break;
+        default:
+            // ignore everything else
+        }
+    }
+
+    /**
+     * Set the accumulated tags on an element
+     *
+     * @param e element to add the tags to
+     */
+    private void addTags(@NonNull OsmElement e) {
+        if (tagCount > 0) {
+            e.setTags(TagSet.ofSorted(sortedTags()));
+            tagCount = 0;
+        }
+    }
+
+    /**
+     * Copy the accumulated tags to a new array sorted by key
+     *
+     * If a key occurs more than once the last value is retained
+     *
+     * @return an array of alternating keys and values
+     */
+    @NonNull
+    private String[] sortedTags() {
+        String[] result = new String[2 * tagCount];
+        int count = 0;
+        for (int i = 0; i < tagCount; i++) {
+            String key = tagBuffer[2 * i];
+            String value = tagBuffer[2 * i + 1];
+            int pos = count;
+            int cmp = 1;
+            // insertion sort, input is typically short and frequently already sorted
+            while (pos > 0 && (cmp = result[2 * (pos - 1)].compareTo(key)) > 0) {
+                pos--;
+            }
+            if (pos > 0 && cmp == 0) {
+                result[2 * (pos - 1) + 1] = value;
+                continue;
+            }
+            System.arraycopy(result, 2 * pos, result, 2 * pos + 2, 2 * (count - pos));
+            result[2 * pos] = key;
+            result[2 * pos + 1] = value;
+            count++;
+        }
+        return count == tagCount ? result : Arrays.copyOf(result, 2 * count);
+    }
+
+    /**
+     * Parse a Node, Way or Relation start tag
+     *
+     * @param name the OsmElement type ("node", "way", "relation")
+     * @param parser the XmlPullParser
+     * @throws OsmParseException if parsing fails
+     */
+    private void parseOsmElement(@NonNull final String name, @NonNull XmlPullParser parser) throws OsmParseException {
+        try {
+            long osmId = Long.parseLong(parser.getAttributeValue(null, OsmElement.ID_ATTR));
+            String version = parser.getAttributeValue(null, OsmElement.VERSION_ATTR);
+            long osmVersion = version == null ? 0 : Long.parseLong(version); // hack for JOSM file format support
+            long timestamp = parseTimestamp(parser.getAttributeValue(null, OsmElement.TIMESTAMP_ATTR));
+
+            byte status = OsmElement.STATE_UNCHANGED;
+            String action = parser.getAttributeValue(null, OsmElement.JOSM_ACTION);
+            if (action != null) {
+                if (action.equalsIgnoreCase(OsmElement.JOSM_MODIFY)) {
+                    status = osmId < 0 ? OsmElement.STATE_CREATED : OsmElement.STATE_MODIFIED;
+                } else if (action.equalsIgnoreCase(OsmElement.JOSM_DELETE)) {
+                    status = OsmElement.STATE_DELETED;
+                } else {
+                    throw new OsmParseException("Unknown action " + action);
+                }
+            }
+            tagCount = 0;
+            switch (name) {
+            case Node.NAME:
+                int lat = parseCoordinate(parser.getAttributeValue(null, Node.LAT_ATTR));
+                int lon = parseCoordinate(parser.getAttributeValue(null, Node.LON_ATTR));
+                currentNode = OsmElementFactory.createNode(osmId, osmVersion, timestamp, status, lat, lon);
+                break;
+            case Way.NAME:
+                currentWay = OsmElementFactory.createWay(osmId, osmVersion, timestamp, status);
+                if (nodeIndex == null) {
+                    nodeIndex = storage.getNodeIndex();
+                }
+                break;
+            case Relation.NAME:
+                currentRelation = OsmElementFactory.createRelation(osmId, osmVersion, timestamp, status);
+                if (nodeIndex == null) {
+                    nodeIndex = storage.getNodeIndex();
+                }
+                if (wayIndex == null) {
+                    wayIndex = storage.getWayIndex();
+                }
+                break;
+            default:
+                throw new OsmParseException("Unknown element " + name);
+            }
+        } catch (NumberFormatException e) {
+            throw new OsmParseException("Element unparsable");
+        }
+    }
+
+    /**
+     * Convert a coordinate in decimal degrees to WGS84*1E7
+     *
+     * Additional fractional digits are truncated, input that is not a plain decimal number is handled by BigDecimal
+     *
+     * @param value the coordinate as a String
+     * @return the coordinate in WGS84*1E7
+     * @throws NumberFormatException if value can't be parsed
+     */
+    static int parseCoordinate(@Nullable String value) {
+        if (value == null) {
+            throw new NumberFormatException("Missing coordinate");
+        }
+        final int length = value.length();
+        int i = 0;
+        boolean negative = false;
+        if (length > 0 && (value.charAt(0) == '-' || value.charAt(0) == '+')) {
+            negative = value.charAt(0) == '-';
+            i++;
+        }
+        long result = 0;
+        int digits = 0;
+        int fractionDigits = -1;
+        for (; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits++;
+                if (fractionDigits < 0) {
+                    result = result * 10 + (c - '0');
+                    if (result > Integer.MAX_VALUE) {
+                        return parseCoordinateSlow(value);
+                    }
+                } else if (fractionDigits < Node.COORDINATE_SCALE) {
+                    result = result * 10 + (c - '0');
+                    fractionDigits++;
+                }
+            } else if (c == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else {
+                return parseCoordinateSlow(value);
+            }
+        }
+        if (digits == 0) {
+            return parseCoordinateSlow(value);
+        }
+        result *= POWERS_OF_TEN[Node.COORDINATE_SCALE - Math.max(0, fractionDigits)];
+        if (result > Integer.MAX_VALUE) {
+            return parseCoordinateSlow(value);
+        }
+        return (int) (negative ? -result : result);
+    }
+
+    /**
+     * Convert a coordinate in decimal degrees to WGS84*1E7 the same way as OsmParser does
+     *
+     * @param value the coordinate as a String
+     * @return the coordinate in WGS84*1E7
+     * @throws NumberFormatException if value can't be parsed
+     */
+    private static int parseCoordinateSlow(@NonNull String value) {
+        return new BigDecimal(value).scaleByPowerOfTen(Node.COORDINATE_SCALE).intValue();
+    }
+
+    /**
+     * Convert a timestamp to seconds since the epoch
+     *
+     * Consecutive elements frequently have the same timestamp, so the last result is cached
+     *
+     * @param timestampStr the timestamp in the format used by the API or null
+     * @return the timestamp in seconds since the epoch or -1 if not available
+     */
+    private long parseTimestamp(@Nullable String timestampStr) {
+        if (timestampStr == null) {
+            return -1L;
+        }
+        if (!timestampStr.equals(lastTimestampStr)) {
+            long timestamp = parseIsoTimestamp(timestampStr);
+            if (timestamp == Long.MIN_VALUE) {
+                try {
+                    timestamp = DateFormatter.getUtcFormat(OsmParser.TIMESTAMP_FORMAT).parse(timestampStr).getTime() / 1000;
+                } catch (ParseException e) {
+                    Log.d(DEBUG_TAG, "Invalid timestamp " + timestampStr);
+                    timestamp = -1L;
+                }
+            }
+            lastTimestampStr = timestampStr;
+            lastTimestamp = timestamp;
+        }
+        return lastTimestamp;
+    }
+
+    /**
+     * Decode a timestamp in the yyyy-MM-ddTHH:mm:ssZ format
+     *
+     * @param s the timestamp
+     * @return the timestamp in seconds since the epoch or Long.MIN_VALUE if s isn't in the expected format
+     */
+    static long parseIsoTimestamp(@NonNull String s) {
+        if (s.length() != TIMESTAMP_LENGTH || s.charAt(4) != '-' || s.charAt(7) != '-' || s.charAt(10) != 'T' || s.charAt(13) != ':'
+                || s.charAt(16) != ':' || s.charAt(19) != 'Z') {
+            return Long.MIN_VALUE;
+        }
+        int year = digits(s, 0, 4);
+        int month = digits(s, 5, 2);
+        int day = digits(s, 8, 2);
+        int hour = digits(s, 11, 2);
+        int minute = digits(s, 14, 2);
+        int second = digits(s, 17, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0
+                || second > 59) {
+            return Long.MIN_VALUE;
+        }
+        // days since the epoch in the proleptic Gregorian calendar
+        long y = month <= 2 ? year - 1L : year;
+        long era = y / 400;
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153L * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        long days = era * 146097 + dayOfEra - 719468;
+        return days * SECONDS_PER_DAY + hour * 3600L + minute * 60L + second;
+    }
+
+    /**
+     * Parse a fixed number of decimal digits
+     *
+     * @param s the input String
+     * @param start the offset of the first digit
+     * @param count the number of digits
+     * @return the value or -1 if a character isn't a digit
+     */
+    private static int digits(@NonNull String s, int start, int count) {
+        int result = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+    /**
+     * Add a tag to the tag buffer
+     *
+     * @param parser the XmlPullParser
+     */
+    private void parseTag(@NonNull XmlPullParser parser) {
+        String k = parser.getAttributeValue(null, OsmElement.TAG_KEY_ATTR);
+        if (k == null) {
+            Log.e(DEBUG_TAG, "Tag without key");
+            return;
+        }
+        if (2 * tagCount + 2 > tagBuffer.length) {
+            tagBuffer = Arrays.copyOf(tagBuffer, tagBuffer.length * 2);
+        }
+        tagBuffer[2 * tagCount] = k;
+        tagBuffer[2 * tagCount + 1] = parser.getAttributeValue(null, OsmElement.TAG_VALUE_ATTR);
+        tagCount++;
+    }
+
+    /**
+     * Parse a bounding box
+     *
+     * @param parser the XmlPullParser
+     * @throws OsmParseException if parsing fails
+     */
+    private void parseBounds(@NonNull XmlPullParser parser) throws OsmParseException {
+        try {
+            double minlat = Double.parseDouble(parser.getAttributeValue(null, BoundingBox.MINLAT_ATTR));
+            double maxlat = Double.parseDouble(parser.getAttributeValue(null, BoundingBox.MAXLAT_ATTR));
+            double minlon = Double.parseDouble(parser.getAttributeValue(null, BoundingBox.MINLON_ATTR));
+            double maxlon = Double.parseDouble(parser.getAttributeValue(null, BoundingBox.MAXLON_ATTR));
+            storage.addBoundingBox(new BoundingBox(minlon, minlat, maxlon, maxlat));
+        } catch (NumberFormatException e) {
+            throw new OsmParseException("Bounds unparsable");
+        }
+    }
+
+    /**
+     * Parse a nd entry in a Way
+     *
+     * @param parser the XmlPullParser
+     * @throws OsmParseException if parsing fails
+     */
+    private void parseWayNode(@NonNull XmlPullParser parser) throws OsmParseException {
+        if (currentWay == null) {
+            Log.e(DEBUG_TAG, "No currentWay set!");
+            return;
+        }
+        try {
+            long nodeOsmId = Long.parseLong(parser.getAttributeValue(null, Way.REF));
+            Node node = nodeIndex.get(nodeOsmId);
+            if (node == null) {
+                throw new OsmParseException("parseWayNode node " + nodeOsmId + " not in storage");
+            }
+            currentWay.addNode(node);
+        } catch (NumberFormatException e) {
+            throw new OsmParseException("WayNode unparsable");
+        }
+    }
+
+    /**
+     * Parse relation members, storing information on relations that we haven't seen yet for post processing
+     *
+     * @param parser the XmlPullParser
+     * @throws OsmParseException if parsing fails
+     */
+    private void parseRelationMember(@NonNull XmlPullParser parser) throws OsmParseException {
+        if (currentRelation == null) {
+            Log.e(DEBUG_TAG, "No currentRelation set!");
+            return;
+        }
+        try {
+            long ref = Long.parseLong(parser.getAttributeValue(null, Relation.MEMBER_REF_ATTR));
+            String type = parser.getAttributeValue(null, Relation.MEMBER_TYPE_ATTR);
+            String role = parser.getAttributeValue(null, Relation.MEMBER_ROLE_ATTR);
+            if (type == null) {
+                throw new OsmParseException("Missing OSM object type");
+            }
+            RelationMember member = null;
+            switch (type) {
+            case Node.NAME:
+                Node n = nodeIndex.get(ref);
+                if (n != null) {
+                    n.addParentRelation(currentRelation);
+                    member = new RelationMember(role, n);
+                } else {
+                    member = new RelationMember(Node.NAME, ref, role);
+                }
+                break;
+            case Way.NAME:
+                Way w = wayIndex.get(ref);
+                if (w != null) {
+                    w.addParentRelation(currentRelation);
+                    member = new RelationMember(role, w);
+                } else {
+                    member = new RelationMember(Way.NAME, ref, role);
+                }
+                break;
+            case Relation.NAME:
+                Relation r = storage.getRelation(ref);
+                if (r != null) {
+                    r.addParentRelation(currentRelation);
+                    member = new RelationMember(role, r);
+                } else {
+                    // these need to be saved and reprocessed
+                    member = new RelationMember(Relation.NAME, ref, role);
+                    missingRelations.add(new MissingRelation(member, currentRelation));
+                }
+                break;
+            default:
+                throw new OsmParseException("Unknown OSM object type " + type);
+            }
+            currentRelation.addMember(member);
+        } catch (NumberFormatException e) {
+            throw new OsmParseException("RelationMember unparsable");
+        }
+    }
+}
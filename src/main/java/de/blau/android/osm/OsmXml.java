@@ -39,16 +39,6 @@ public final class OsmXml {
     public static final String VERSION     = "version";
     public static final String GENERATOR   = "generator";
 
-    private static final Comparator<Relation> relationOrder = (r1, r2) -> {
-        if (r1.hasParentRelation(r2)) {
-            return -1;
-        }
-        if (r2.hasParentRelation(r1)) {
-            return 1;
-        }
-        return 0;
-    };
-
     /**
      * Empty private constructor to prevent instantiation
      */
@@ -72,8 +62,29 @@ public final class OsmXml {
      */
     public static void writeOsmChange(@NonNull Storage storage, @NonNull OutputStream outputStream, @Nullable Long changeSetId, int maxChanges,
             @NonNull String generator) throws IllegalArgumentException, IllegalStateException, IOException, XmlPullParserException {
-        int count = 0;
-        Log.d(DEBUG_TAG, "writing osm change with changesetid " + changeSetId);
+        List<OsmElement> changes = UploadPlanner.order(storage.getElements());
+        writeOsmChange(changes.size() > maxChanges ? changes.subList(0, maxChanges) : changes, outputStream, changeSetId, generator);
+    }
+
+    /**
+     * Writes changes to outputStream in OsmChange format in the order they are provided
+     * 
+     * A new create, modify or delete block is started whenever the state changes from one element to the next, so the
+     * changes should be in the order provided by {@link UploadPlanner#order(java.util.Collection)}, unchanged elements
+     * are ignored.
+     * 
+     * @param changes the changed elements
+     * @param outputStream stream to write to
+     * @param changeSetId the allocated changeset id or null if non
+     * @param generator a String for the generator attribute
+     * @throws IllegalArgumentException
+     * @throws IllegalStateException
+     * @throws IOException
+     * @throws XmlPullParserException
+     */
+    public static void writeOsmChange(@NonNull List<OsmElement> changes, @NonNull OutputStream outputStream, @Nullable Long changeSetId,
+            @NonNull String generator) throws IllegalArgumentException, IllegalStateException, IOException, XmlPullParserException {
+        Log.d(DEBUG_TAG, "writing " + changes.size() + " changes with changesetid " + changeSetId);
         XmlSerializer serializer = XmlPullParserFactory.newInstance().newSerializer();
         serializer.setOutput(outputStream, UTF_8);
         serializer.startDocument(UTF_8, null);
@@ -81,160 +92,39 @@ public final class OsmXml {
         serializer.attribute(null, GENERATOR, generator);
         serializer.attribute(null, VERSION, VERSION_0_6);
 
-        List<OsmElement> createdNodes = new ArrayList<>();
-        List<OsmElement> modifiedNodes = new ArrayList<>();
-        List<OsmElement> deletedNodes = new ArrayList<>();
-        List<OsmElement> createdWays = new ArrayList<>();
-        List<OsmElement> modifiedWays = new ArrayList<>();
-        List<OsmElement> deletedWays = new ArrayList<>();
-        List<Relation> createdRelations = new ArrayList<>();
-        List<Relation> modifiedRelations = new ArrayList<>();
-        List<Relation> deletedRelations = new ArrayList<>();
-
-        for (Node elem : storage.getNodes()) {
-            Log.d(DEBUG_TAG, "node added to list for upload, id " + elem.osmId);
+        String currentAction = null;
+        for (OsmElement elem : changes) {
+            String action;
             switch (elem.state) {
             case OsmElement.STATE_CREATED:
-                createdNodes.add(elem);
+                action = CREATE;
                 break;
             case OsmElement.STATE_MODIFIED:
-                modifiedNodes.add(elem);
+                action = MODIFY;
                 break;
             case OsmElement.STATE_DELETED:
-                deletedNodes.add(elem);
+                action = DELETE;
                 break;
             default:
-                logNotModified(elem);
                 continue;
             }
-            count++;
-            if (count >= maxChanges) {
-                break;
-            }
-        }
-        if (count < maxChanges) {
-            for (Way elem : storage.getWays()) {
-                Log.d(DEBUG_TAG, "way added to list for upload, id " + elem.osmId);
-                switch (elem.state) {
-                case OsmElement.STATE_CREATED:
-                    createdWays.add(elem);
-                    break;
-                case OsmElement.STATE_MODIFIED:
-                    modifiedWays.add(elem);
-                    break;
-                case OsmElement.STATE_DELETED:
-                    deletedWays.add(elem);
-                    break;
-                default:
-                    logNotModified(elem);
-                    continue;
-                }
-                count++;
-                if (count >= maxChanges) {
-                    break;
-                }
-            }
-        }
-        if (count < maxChanges) {
-            for (Relation elem : storage.getRelations()) {
-                Log.d(DEBUG_TAG, "relation added to list for upload, id " + elem.osmId);
-                switch (elem.state) {
-                case OsmElement.STATE_CREATED:
-                    createdRelations.add(elem);
-                    break;
-                case OsmElement.STATE_MODIFIED:
-                    modifiedRelations.add(elem);
-                    break;
-                case OsmElement.STATE_DELETED:
-                    deletedRelations.add(elem);
-                    break;
-                default:
-                    logNotModified(elem);
-                    continue;
-                }
-                count++;
-                if (count >= maxChanges) {
-                    break;
-                }
-            }
-        }
-        if (!createdRelations.isEmpty()) {
-            // sort the relations so that childs come first, will not handle loops and similar brokenness
-            Collections.sort(createdRelations, relationOrder);
-        }
-        if (!modifiedRelations.isEmpty()) {
-            // sort the relations so that childs come first, will not handle loops and similar brokenness
-            Collections.sort(modifiedRelations, relationOrder);
-        }
-        if (!deletedRelations.isEmpty()) {
-            // sort the relations so that parents come first, will not handle loops and similar brokenness
-            Collections.sort(deletedRelations, (r1, r2) -> {
-                if (r1.hasParentRelation(r2)) {
-                    return 1;
-                }
-                if (r2.hasParentRelation(r1)) {
-                    return -1;
+            if (!action.equals(currentAction)) {
+                if (currentAction != null) {
+                    serializer.endTag(null, currentAction);
                 }
-                return 0;
-            });
-        }
-
-        if (!createdNodes.isEmpty() || !createdWays.isEmpty() || !createdRelations.isEmpty()) {
-            serializer.startTag(null, CREATE);
-            for (OsmElement elem : createdNodes) {
-                elem.toXml(serializer, changeSetId);
-            }
-            for (OsmElement elem : createdWays) {
-                elem.toXml(serializer, changeSetId);
+                serializer.startTag(null, action);
+                currentAction = action;
             }
-            for (OsmElement elem : createdRelations) {
-                elem.toXml(serializer, changeSetId);
-            }
-            serializer.endTag(null, CREATE);
+            elem.toXml(serializer, changeSetId);
         }
-
-        if (!modifiedNodes.isEmpty() || !modifiedWays.isEmpty() || !modifiedRelations.isEmpty()) {
-            serializer.startTag(null, MODIFY);
-            for (OsmElement elem : modifiedNodes) {
-                elem.toXml(serializer, changeSetId);
-            }
-            for (OsmElement elem : modifiedWays) {
-                elem.toXml(serializer, changeSetId);
-            }
-            for (OsmElement elem : modifiedRelations) {
-                elem.toXml(serializer, changeSetId);
-            }
-            serializer.endTag(null, MODIFY);
-        }
-
-        // delete in opposite order
-        if (!deletedNodes.isEmpty() || !deletedWays.isEmpty() || !deletedRelations.isEmpty()) {
-            serializer.startTag(null, DELETE);
-            for (OsmElement elem : deletedRelations) {
-                elem.toXml(serializer, changeSetId);
-            }
-            for (OsmElement elem : deletedWays) {
-                elem.toXml(serializer, changeSetId);
-            }
-            for (OsmElement elem : deletedNodes) {
-                elem.toXml(serializer, changeSetId);
-            }
-            serializer.endTag(null, DELETE);
+        if (currentAction != null) {
+            serializer.endTag(null, currentAction);
         }
 
         serializer.endTag(null, OSM_CHANGE);
         serializer.endDocument();
     }
 
-    /**
-     * Log that the element hasn't been modified
-     * 
-     * @param elem the OsmElement
-     */
-    private static void logNotModified(@NonNull OsmElement elem) {
-        Log.d(DEBUG_TAG, elem.getName() + " id " + elem.osmId + " not modified");
-    }
-
     /**
      * Writes currentStorage + deleted objects to an OutputStream in JOSM format.
      * 
@@ -160,6 +160,11 @@ public class Server {
 
     private long changesetId = -1;
 
+    /**
+     * Number of changes in the open changeset when it was opened
+     */
+    private int openChangesetChanges = 0;
+
     private final String generator;
 
     private final XmlPullParserFactory xmlParserFactory;
@@ -884,13 +889,15 @@ public class Server {
                         // Never fail
                     }
                 } else {
-                    Log.d(DEBUG_TAG, "Changeset #" + changesetId + " still open, reusing");
+                    Log.d(DEBUG_TAG, "Changeset #" + changesetId + " still open with " + cs.getChanges() + " changes, reusing");
                     updateChangeset(changesetId, comment, source, imagery, extraTags);
+                    openChangesetChanges = cs.getChanges();
                     return;
                 }
             }
             changesetId = -1;
         }
+        openChangesetChanges = 0;
 
         final XmlSerializable xmlData = new Changeset(generator, comment, source, imagery, extraTags).tagsToXml();
         RequestBody body = new XmlRequestBody() {
@@ -915,6 +922,17 @@ public class Server {
         }
     }
 
+    /**
+     * Get the number of changes the current changeset already contained when it was opened
+     * 
+     * This is only non-zero if an existing open changeset was reused
+     * 
+     * @return the number of changes
+     */
+    public int getOpenChangesetChanges() {
+        return openChangesetChanges;
+    }
+
     /**
      * Close the current open changeset, will zap the stored id even if the closing fails, this will force using a new
      * changeset on the next upload
@@ -1018,13 +1036,15 @@ public class Server {
     /**
      * Upload edits in OCS format and process the server response
      * 
+     * The OsmChange document is written directly to the request body while it is being sent.
+     * 
      * @param delegator reference to the StorageDelegator
-     * @param storage a Storage element hold the elements to upload
+     * @param changes the changed elements to upload in dependency order
      * @throws IOException if writing the output doesn't work
      */
-    public void diffUpload(@NonNull final StorageDelegator delegator, @NonNull final Storage storage) throws IOException {
+    public void diffUpload(@NonNull final StorageDelegator delegator, @NonNull final List<OsmElement> changes) throws IOException {
         try {
-            for (OsmElement elem : storage.getElements()) {
+            for (OsmElement elem : changes) {
                 if (elem.state != OsmElement.STATE_DELETED) {
                     discardedTags.remove(elem);
                 }
@@ -1033,8 +1053,7 @@ public class Server {
                 @Override
                 public void writeTo(BufferedSink sink) throws IOException {
                     try {
-                        OsmXml.writeOsmChange(storage, sink.outputStream(), changesetId, getCachedCapabilities().getMaxElementsInChangeset(),
-                                App.getUserAgent());
+                        OsmXml.writeOsmChange(changes, sink.outputStream(), changesetId, App.getUserAgent());
                     } catch (IllegalArgumentException | IllegalStateException | XmlPullParserException e) {
                         throw new IOException(e);
                     }
@@ -1078,6 +1097,7 @@ public class Server {
      */
     private void processDiffUploadResult(StorageDelegator delegator, Response response, XmlPullParser parser) throws IOException {
         Storage apiStorage = delegator.getApiStorage();
+        UndoStorage undo = delegator.getUndo();
         int code = response.code();
         if (code == HttpURLConnection.HTTP_OK) {
             boolean rehash = false; // if ids are changed we need to rehash
@@ -1101,6 +1121,7 @@ public class Server {
                             if (Node.NAME.equals(tagName) || Way.NAME.equals(tagName) || Relation.NAME.equals(tagName)) {
                                 OsmElement e = apiStorage.getOsmElement(tagName, oldId);
                                 if (e != null) {
+                                    undo.touch(e); // record the change for the journal
                                     if (e.getState() == OsmElement.STATE_DELETED && newIdStr == null && newVersionStr == null) {
                                         if (!apiStorage.removeElement(e)) {
                                             Log.e(DEBUG_TAG, "Deleted " + e + " was already removed from local storage!");
@@ -0,0 +1,303 @@
+package de.blau.android.osm;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.util.Log;
+import androidx.annotation.NonNull;
+import de.blau.android.util.GeoMath;
+import de.blau.android.util.collections.LongHashMap;
+import de.blau.android.util.rtree.BoundedObject;
+
+/**
+ * Uniform grid spatial index for OsmElements held in a Storage
+ *
+ * Elements are stored in every grid cell their bounding box overlaps, elements that would cover more than a configured
+ * number of cells are kept in a separate list that is always checked.
+ *
+ * As OsmElements change their geometry in place, elements that are about to be modified need to be marked volatile
+ * -before- the change with {@link #invalidate(OsmElement, boolean)}. This removes them from the grid while their
+ * bounds are still the indexed ones, volatile elements are checked individually on every query until they are put back
+ * in to the grid with {@link #commit(Storage)}.
+ *
+ * All methods are synchronized as the index is queried from the rendering thread while edits happen on the main thread.
+ *
+ * @author simon
+ *
+ * @param <T> the OsmElement type, in practice Node or Way
+ */
+class SpatialIndex<T extends OsmElement & BoundedObject> {
+
+    private static final String DEBUG_TAG = "SpatialIndex";
+
+    private static final class Cell<E> {
+        final int          x;
+        final int          y;
+        final ArrayList<E> elements = new ArrayList<>();
+
+        /**
+         * Create a new grid cell
+         *
+         * @param x cell x coordinate
+         * @param y cell y coordinate
+         */
+        Cell(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    private final int shift;
+    private final int maxCells;
+
+    private final LongHashMap<Cell<T>> cells     = new LongHashMap<>();
+    private final List<T>              oversized = new ArrayList<>();
+    private final Set<T>               volatiles = new HashSet<>();
+
+    private final BoundingBox   tempBox   = new BoundingBox();
+    private final List<Cell<T>> tempCells = new ArrayList<>();
+
+    /**
+     * Construct a new index
+     *
+     * @param shift the cell size as a power of two in WGS84*1E7 units
+     * @param maxCells the maximum number of cells an element may be stored in before it is considered oversized
+     */
+    SpatialIndex(int shift, int maxCells) {
+        this.shift = shift;
+        this.maxCells = maxCells;
+    }
+
+    /**
+     * Create a key for a cell
+     *
+     * @param x cell x coordinate
+     * @param y cell y coordinate
+     * @return a long key
+     */
+    private static long key(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Get the bounds of an element
+     *
+     * Note Way.getBounds doesn't touch the provided box for Ways without nodes, we preset the maximum extent so that
+     * such ways end up in the oversized list.
+     *
+     * @param element the element
+     * @return the bounds in a shared BoundingBox
+     */
+    @NonNull
+    private BoundingBox boundsOf(@NonNull T element) {
+        tempBox.set(-GeoMath.MAX_LON_E7, -GeoMath.MAX_LAT_E7, GeoMath.MAX_LON_E7, GeoMath.MAX_LAT_E7);
+        return element.getBounds(tempBox);
+    }
+
+    /**
+     * Add an element to the index
+     *
+     * @param element the element
+     */
+    synchronized void add(@NonNull T element) {
+        if (!volatiles.contains(element)) {
+            addToGrid(element);
+        }
+    }
+
+    /**
+     * Remove an element from the index
+     *
+     * @param element the element
+     */
+    synchronized void remove(@NonNull T element) {
+        if (!volatiles.remove(element)) {
+            removeFromGrid(element);
+        }
+    }
+
+    /**
+     * Mark an element as volatile, this needs to be called before the geometry of the element is changed
+     *
+     * @param element the element
+     * @param inGrid true if the element is currently stored in the grid
+     */
+    synchronized void invalidate(@NonNull T element, boolean inGrid) {
+        if (volatiles.add(element) && inGrid) {
+            removeFromGrid(element);
+        }
+    }
+
+    /**
+     * Move all volatile elements that are still present in storage back in to the grid
+     *
+     * @param storage the Storage this index belongs to
+     */
+    synchronized void commit(@NonNull Storage storage) {
+        for (T element : volatiles) {
+            if (storage.containsInstance(element)) {
+                addToGrid(element);
+            }
+        }
+        volatiles.clear();
+    }
+
+    /**
+     * Add an element to the grid cells it covers
+     *
+     * @param element the element
+     */
+    private void addToGrid(@NonNull T element) {
+        BoundingBox box = boundsOf(element);
+        final int left = box.getLeft() >> shift;
+        final int bottom = box.getBottom() >> shift;
+        final int right = box.getRight() >> shift;
+        final int top = box.getTop() >> shift;
+        if (((long) right - left + 1) * ((long) top - bottom + 1) > maxCells) {
+            oversized.add(element);
+            return;
+        }
+        for (int x = left; x <= right; x++) {
+            for (int y = bottom; y <= top; y++) {
+                long key = key(x, y);
+                Cell<T> cell = cells.get(key);
+                if (cell == null) {
+                    cell = new Cell<>(x, y);
+                    cells.put(key, cell);
+                }
+                cell.elements.add(element);
+            }
+        }
+    }
+
+    /**
+     * Remove an element from the grid cells it covers
+     *
+     * If the element is not found where its current bounds say it should be, the geometry has been changed without
+     * invalidating it first and we fall back to searching all cells.
+     *
+     * @param element the element
+     */
+    private void removeFromGrid(@NonNull T element) {
+        BoundingBox box = boundsOf(element);
+        final int left = box.getLeft() >> shift;
+        final int bottom = box.getBottom() >> shift;
+        final int right = box.getRight() >> shift;
+        final int top = box.getTop() >> shift;
+        boolean found = false;
+        if (((long) right - left + 1) * ((long) top - bottom + 1) > maxCells) {
+            found = oversized.remove(element);
+        } else {
+            for (int x = left; x <= right; x++) {
+                for (int y = bottom; y <= top; y++) {
+                    found = removeFromCell(key(x, y), element) || found;
+                }
+            }
+        }
+        if (!found) {
+            Log.w(DEBUG_TAG, "Stale entry for " + element.getDescription() + ", searching all cells");
+            oversized.remove(element);
+            for (long key : cells.keys()) {
+                removeFromCell(key, element);
+            }
+        }
+    }
+
+    /**
+     * Remove an element from a specific cell, deleting the cell if it becomes empty
+     *
+     * @param key the cell key
+     * @param element the element
+     * @return true if the element was found
+     */
+    private boolean removeFromCell(long key, @NonNull T element) {
+        Cell<T> cell = cells.get(key);
+        if (cell != null) {
+            final List<T> elements = cell.elements;
+            final int size = elements.size();
+            for (int i = 0; i < size; i++) {
+                if (elements.get(i) == element) {
+                    // order is irrelevant, replace with the last entry
+                    elements.set(i, elements.get(size - 1));
+                    elements.remove(size - 1);
+                    if (elements.isEmpty()) {
+                        cells.remove(key);
+                    }
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return all elements whose bounds intersect with a BoundingBox
+     *
+     * @param box the BoundingBox
+     * @param storage the Storage this index belongs to
+     * @param result a List for the result
+     * @return result
+     */
+    @NonNull
+    synchronized List<T> query(@NonNull BoundingBox box, @NonNull Storage storage, @NonNull List<T> result) {
+        final int left = box.getLeft() >> shift;
+        final int bottom = box.getBottom() >> shift;
+        final int right = box.getRight() >> shift;
+        final int top = box.getTop() >> shift;
+        if (((long) right - left + 1) * ((long) top - bottom + 1) > cells.size()) {
+            // cheaper to check all occupied cells
+            for (Cell<T> cell : cells.values(tempCells)) {
+                if (cell.x >= left && cell.x <= right && cell.y >= bottom && cell.y <= top) {
+                    query(cell, box, left, bottom, result);
+                }
+            }
+            tempCells.clear();
+        } else {
+            for (int x = left; x <= right; x++) {
+                for (int y = bottom; y <= top; y++) {
+                    Cell<T> cell = cells.get(key(x, y));
+                    if (cell != null) {
+                        query(cell, box, left, bottom, result);
+                    }
+                }
+            }
+        }
+        for (T element : oversized) {
+            if (element.getBounds(tempBox).intersects(box)) {
+                result.add(element);
+            }
+        }
+        for (T element : volatiles) {
+            if (storage.containsInstance(element) && element.getBounds(tempBox).intersects(box)) {
+                result.add(element);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Add the elements in a cell that intersect with box to result
+     *
+     * Elements spanning multiple cells are only reported from the cell containing the lower left corner of the
+     * intersection of their bounds with the query, this avoids duplicates without any further bookkeeping
+     *
+     * @param cell the Cell
+     * @param box the query BoundingBox
+     * @param left the left most cell x of the query
+     * @param bottom the bottom cell y of the query
+     * @param result a List for the result
+     */
+    private void query(@NonNull Cell<T> cell, @NonNull BoundingBox box, int left, int bottom, @NonNull List<T> result) {
+        final List<T> elements = cell.elements;
+        final int size = elements.size();
+        for (int i = 0; i < size; i++) {
+            T element = elements.get(i);
+            BoundingBox bounds = element.getBounds(tempBox);
+            if (bounds.intersects(box) && Math.max(bounds.getLeft() >> shift, left) == cell.x && Math.max(bounds.getBottom() >> shift, bottom) == cell.y) {
+                result.add(element);
+            }
+        }
+    }
+}
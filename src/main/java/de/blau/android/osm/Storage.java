@@ -3,9 +3,7 @@ package de.blau.android.osm;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 
 import android.util.Log;
 import androidx.annotation.NonNull;
@@ -36,6 +34,26 @@ public class Storage implements Serializable {
 
     private transient LongHashSet nodeIsRef;
 
+    /**
+     * Spatial indices, these are built on first use
+     */
+    private transient SpatialIndex<Node> nodeSpatialIndex;
+    private transient SpatialIndex<Way>  waySpatialIndex;
+
+    /**
+     * Index from Node ids to Ways, built on first use
+     */
+    private transient NodeWayIndex nodeWayIndex;
+
+    /**
+     * Count of changes to the elements in storage, used to invalidate derived data
+     */
+    private transient int modCount = 0;
+
+    private static final int NODE_INDEX_SHIFT    = 14; // ~ 180 m cells
+    private static final int WAY_INDEX_SHIFT     = 15; // ~ 360 m cells
+    private static final int WAY_INDEX_MAX_CELLS = 64;
+
     /**
      * Default constructor
      * <p>
@@ -125,9 +143,6 @@ public class Storage implements Serializable {
     /**
      * Return all nodes in a bounding box
      * 
-     * Notes: - currently this does a sequential scan of all nodes - using a for loop instead of for each is twice as
-     * fast
-     * 
      * @param box bounding box to search in
      * @return a list of all nodes in box
      */
@@ -139,8 +154,7 @@ public class Storage implements Serializable {
     /**
      * Return all nodes in a bounding box
      * 
-     * Notes: - currently this does a sequential scan of all nodes - using a for loop instead of for each is twice as
-     * fast
+     * Uses the spatial index, the index is built on the first call
      * 
      * @param box bounding box to search in
      * @param result List of Node to hold the result
@@ -148,7 +162,7 @@ public class Storage implements Serializable {
      */
     @NonNull
     public List<Node> getNodes(@NonNull BoundingBox box, @NonNull List<Node> result) {
-        return nodes.values(result, (Node n) -> box.isIn(n.getLon(), n.getLat()));
+        return getNodeSpatialIndex().query(box, this, result);
     }
 
     /**
@@ -171,8 +185,6 @@ public class Storage implements Serializable {
 
     /**
      * Return all ways covered or possibly intersecting a bounding box
-     * <p>
-     * Note: currently this does a sequential scan of all ways
      * 
      * @param box bounding box to search in
      * @return a list of all ways in box
@@ -185,7 +197,7 @@ public class Storage implements Serializable {
     /**
      * Return all ways covered or possibly intersecting a bounding box
      * <p>
-     * Note: currently this does a sequential scan of all ways
+     * Uses the spatial index, the index is built on the first call
      * 
      * @param box bounding box to search in
      * @param result List of Way to hold the result
@@ -193,11 +205,7 @@ public class Storage implements Serializable {
      */
     @NonNull
     public List<Way> getWays(@NonNull BoundingBox box, @NonNull List<Way> result) {
-        BoundingBox newBox = new BoundingBox(); // avoid creating new instances
-        return ways.values(result, (Way w) -> {
-            BoundingBox wayBox = w.getBounds(newBox);
-            return wayBox.intersects(box);
-        });
+        return getWaySpatialIndex().query(box, this, result);
     }
 
     /**
@@ -258,6 +266,23 @@ public class Storage implements Serializable {
         return false;
     }
 
+    /**
+     * Test if this specific instance of an element is present in storage
+     * 
+     * @param element element to check for
+     * @return true if element is in storage
+     */
+    boolean containsInstance(@NonNull final OsmElement element) {
+        if (element instanceof Node) {
+            return nodes.get(element.getOsmId()) == element;
+        } else if (element instanceof Way) {
+            return ways.get(element.getOsmId()) == element;
+        } else if (element instanceof Relation) {
+            return relations.get(element.getOsmId()) == element;
+        }
+        return false;
+    }
+
     /**
      * Insert a node in to storage regardless of it is already present or not
      * 
@@ -265,11 +290,20 @@ public class Storage implements Serializable {
      */
     void insertNodeUnsafe(@NonNull final Node node) {
         try {
-            nodes.put(node.getOsmId(), node);
+            Node old = nodes.put(node.getOsmId(), node);
+            if (old != node) {
+                modCount++;
+                final SpatialIndex<Node> index = nodeSpatialIndex;
+                if (index != null) {
+                    if (old != null) {
+                        index.remove(old);
+                    }
+                    index.add(node);
+                }
+            }
         } catch (OutOfMemoryError err) {
             throw new StorageException(StorageException.OOM);
         }
-
     }
 
     /**
@@ -279,7 +313,24 @@ public class Storage implements Serializable {
      */
     void insertWayUnsafe(@NonNull final Way way) {
         try {
-            ways.put(way.getOsmId(), way);
+            Way old = ways.put(way.getOsmId(), way);
+            if (old != way) {
+                modCount++;
+                final SpatialIndex<Way> index = waySpatialIndex;
+                if (index != null) {
+                    if (old != null) {
+                        index.remove(old);
+                    }
+                    index.add(way);
+                }
+                final NodeWayIndex wayIndex = nodeWayIndex;
+                if (wayIndex != null) {
+                    if (old != null) {
+                        wayIndex.remove(old);
+                    }
+                    wayIndex.add(way);
+                }
+            }
         } catch (OutOfMemoryError err) {
             throw new StorageException(StorageException.OOM);
         }
@@ -333,7 +384,16 @@ public class Storage implements Serializable {
      * @return true if the node was in storage
      */
     boolean removeNode(@NonNull final Node node) {
-        return nodes.remove(node.getOsmId()) != null;
+        Node removed = (Node) nodes.remove(node.getOsmId());
+        if (removed != null) {
+            modCount++;
+            final SpatialIndex<Node> index = nodeSpatialIndex;
+            if (index != null) {
+                index.remove(removed);
+            }
+            return true;
+        }
+        return false;
     }
 
     /**
@@ -343,7 +403,20 @@ public class Storage implements Serializable {
      * @return true if the way was in storage
      */
     boolean removeWay(@NonNull final Way way) {
-        return ways.remove(way.getOsmId()) != null;
+        Way removed = (Way) ways.remove(way.getOsmId());
+        if (removed != null) {
+            modCount++;
+            final SpatialIndex<Way> index = waySpatialIndex;
+            if (index != null) {
+                index.remove(removed);
+            }
+            final NodeWayIndex wayIndex = nodeWayIndex;
+            if (wayIndex != null) {
+                wayIndex.remove(removed);
+            }
+            return true;
+        }
+        return false;
     }
 
     /**
@@ -364,9 +437,9 @@ public class Storage implements Serializable {
      */
     boolean removeElement(@Nullable final OsmElement element) {
         if (element instanceof Way) {
-            return ways.remove(element.getOsmId()) != null;
+            return removeWay((Way) element);
         } else if (element instanceof Node) {
-            return nodes.remove(element.getOsmId()) != null;
+            return removeNode((Node) element);
         } else if (element instanceof Relation) {
             return relations.remove(element.getOsmId()) != null;
         }
@@ -458,44 +531,44 @@ public class Storage implements Serializable {
     /**
      * Get all ways that node is a vertex of
      * 
-     * This method currently does a sequential scan of all ways in storage and should be avoided, note checking against
-     * the ways bounding boxes is slower than this
+     * This uses the Node to Way index which is built on the first call
      * 
      * @param node node to search for
      * @return list containing all ways containing node
      */
     @NonNull
     public List<Way> getWays(@NonNull final Node node) {
-        List<Way> mWays = new ArrayList<>();
-        return ways.values(mWays, (Way w) -> w.hasNode(node));
+        return getNodeWayIndex().get(node, this, new ArrayList<>());
     }
 
     /**
      * Get all nodes that are vertexes in a way
-     * <p>
-     * This method currently does a sequential scan of all ways in storage and should be avoided
      * 
      * @return all way nodes
      */
     @NonNull
     public List<Node> getWayNodes() {
-        Set<Node> waynodes = new HashSet<>();
-        for (Way way : ways) {
-            waynodes.addAll(way.getNodes());
+        NodeWayIndex index = getNodeWayIndex();
+        List<Node> waynodes = new ArrayList<>();
+        for (Node n : nodes) {
+            if (index.isWayNode(n, this)) {
+                waynodes.add(n);
+            }
         }
-        return new ArrayList<>(waynodes);
+        return waynodes;
     }
 
     /**
      * Tests if node is first or last node of any way in storage
-     * <p>
-     * This method currently does a sequential scan of all ways in storage and should be avoided
      * 
      * @param node node to check
      * @return true if node is the first or last node of at least one way
      */
     public boolean isEndNode(@Nullable final Node node) {
-        for (Way way : ways) {
+        if (node == null) {
+            return false;
+        }
+        for (Way way : getWays(node)) {
             if (way.isEndNode(node)) {
                 return true;
             }
@@ -566,6 +639,125 @@ public class Storage implements Serializable {
         nodes.rehash();
         ways.rehash();
         relations.rehash();
+        modCount++;
+        synchronized (this) {
+            // rebuild on next use
+            nodeSpatialIndex = null;
+            waySpatialIndex = null;
+            nodeWayIndex = null;
+        }
+    }
+
+    /**
+     * Get a count of the changes to the elements in this storage
+     * 
+     * The value changes whenever an element is added, removed or about to be modified, including changes to the members
+     * of a Relation, it can be used to check if data derived from the geometry of the elements needs to be recalculated
+     * 
+     * @return the current modification count
+     */
+    public int getModCount() {
+        return modCount;
+    }
+
+    /**
+     * Get the spatial index for nodes, building it if necessary
+     * 
+     * @return the node SpatialIndex
+     */
+    @NonNull
+    private synchronized SpatialIndex<Node> getNodeSpatialIndex() {
+        if (nodeSpatialIndex == null) {
+            SpatialIndex<Node> index = new SpatialIndex<>(NODE_INDEX_SHIFT, 1);
+            for (Node n : nodes) {
+                index.add(n);
+            }
+            nodeSpatialIndex = index;
+        }
+        return nodeSpatialIndex;
+    }
+
+    /**
+     * Get the spatial index for ways, building it if necessary
+     * 
+     * @return the way SpatialIndex
+     */
+    @NonNull
+    private synchronized SpatialIndex<Way> getWaySpatialIndex() {
+        if (waySpatialIndex == null) {
+            SpatialIndex<Way> index = new SpatialIndex<>(WAY_INDEX_SHIFT, WAY_INDEX_MAX_CELLS);
+            for (Way w : ways) {
+                index.add(w);
+            }
+            waySpatialIndex = index;
+        }
+        return waySpatialIndex;
+    }
+
+    /**
+     * Get the index from Nodes to Ways, building it if necessary
+     * 
+     * @return the NodeWayIndex
+     */
+    @NonNull
+    private synchronized NodeWayIndex getNodeWayIndex() {
+        if (nodeWayIndex == null) {
+            NodeWayIndex index = new NodeWayIndex(nodes.size());
+            for (Way w : ways) {
+                index.add(w);
+            }
+            nodeWayIndex = index;
+        }
+        return nodeWayIndex;
+    }
+
+    /**
+     * Indicate that the geometry of an element is about to change
+     * 
+     * This needs to be called before a Node is moved or the Node list of a Way is changed, including the Ways a moved
+     * Node is a member of. The element will be checked individually on queries until {@link #commitIndices()} is
+     * called.
+     * 
+     * @param element the OsmElement that will be modified
+     */
+    void invalidateIndices(@NonNull OsmElement element) {
+        modCount++;
+        if (element instanceof Node) {
+            final SpatialIndex<Node> index = nodeSpatialIndex;
+            if (index != null) {
+                index.invalidate((Node) element, containsInstance(element));
+            }
+        } else if (element instanceof Way) {
+            final SpatialIndex<Way> index = waySpatialIndex;
+            if (index != null) {
+                index.invalidate((Way) element, containsInstance(element));
+            }
+            final NodeWayIndex wayIndex = nodeWayIndex;
+            if (wayIndex != null) {
+                wayIndex.invalidate((Way) element);
+            }
+        }
+    }
+
+    /**
+     * Store all elements that have been invalidated with their current geometry in the indices
+     * 
+     * Call this when no further changes to the elements are expected, for example when a new undo checkpoint is
+     * created.
+     */
+    void commitIndices() {
+        final SpatialIndex<Node> nodeIndex = nodeSpatialIndex;
+        if (nodeIndex != null) {
+            nodeIndex.commit(this);
+        }
+        final SpatialIndex<Way> wayIndex = waySpatialIndex;
+        if (wayIndex != null) {
+            wayIndex.commit(this);
+        }
+        final NodeWayIndex nodeToWayIndex = nodeWayIndex;
+        if (nodeToWayIndex != null) {
+            nodeToWayIndex.commit(this);
+        }
     }
 
     /**
@@ -611,6 +803,22 @@ public class Storage implements Serializable {
         nodeIsRef.put(id);
     }
 
+    /**
+     * Add the Node references of an other Storage instance
+     * 
+     * @param other the other Storage
+     */
+    synchronized void addNodeRefs(@NonNull Storage other) {
+        LongHashSet otherRefs = other.nodeIsRef;
+        if (otherRefs != null) {
+            if (nodeIsRef == null) {
+                nodeIsRef = new LongHashSet(otherRefs);
+            } else {
+                nodeIsRef.putAll(otherRefs.values());
+            }
+        }
+    }
+
     /**
      * Remove all unreferenced nodes that are not in the bounding box
      * 
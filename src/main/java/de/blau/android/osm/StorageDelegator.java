@@ -1,7 +1,12 @@
 package de.blau.android.osm;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.net.ProtocolException;
@@ -85,6 +90,41 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
 
     public static final String FILENAME        = "lastActivity" + "." + FileExtensions.RES;
     public static final String BACKUP_FILENAME = FILENAME + ".backup";
+    static final String        JOURNAL_EXT     = ".journal";
+
+    /**
+     * A full snapshot is written instead of a journal entry if the journal is larger than the snapshot divided by this
+     */
+    private static final int COMPACTION_RATIO = 4;
+
+    /**
+     * Generation of the last snapshot that was written or read, 0 if none
+     */
+    private transient long generation = 0;
+
+    /**
+     * Set if changes have been made that are not tracked by the undo storage and therefore can't be journaled
+     */
+    private transient boolean fullSave = true;
+
+    /**
+     * Maximum number of changes uploaded in one request, 0 for the default
+     */
+    private transient int uploadBatchSize = 0;
+
+    /**
+     * The undo storage that was in use when the last snapshot was written
+     */
+    private transient UndoStorage journalUndo;
+
+    private transient long snapshotSize = 0;
+    private transient long journalSize  = 0;
+
+    /**
+     * Relations with members that are not in the current storage, keyed by member type and id, null if it needs to be
+     * rebuilt. Entries may be stale and are checked when used.
+     */
+    private transient MultiHashMap<String, Relation> unresolvedMembers;
 
     private transient SavingHelper<StorageDelegator> savingHelper = new SavingHelper<>();
 
@@ -113,8 +153,10 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
      */
     public void reset(boolean dirty) {
         this.dirty = dirty;
+        fullSave = true;
         apiStorage = new Storage();
         currentStorage = new Storage();
+        unresolvedMembers = null;
         undo = new UndoStorage(currentStorage, apiStorage);
         factory = new OsmElementFactory();
         imagery = new ArrayList<>();
@@ -127,8 +169,10 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
      */
     public synchronized void setCurrentStorage(@NonNull final Storage currentStorage) {
         dirty = true;
+        fullSave = true;
         apiStorage = new Storage();
         this.currentStorage = currentStorage;
+        unresolvedMembers = null;
         undo = new UndoStorage(currentStorage, apiStorage);
     }
 
@@ -269,6 +313,7 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
                 e.stamp();
                 e.resetHasProblem();
                 if (Way.NAME.equals(e.getName())) {
+                    currentStorage.invalidateIndices(e);
                     ((Way) e).invalidateBoundingBox();
                 } else if (Node.NAME.equals(e.getName())) {
                     nodeChanged = true;
@@ -281,6 +326,7 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
             }
             if (nodeChanged) {
                 for (Way w : currentStorage.getWays(changed)) {
+                    currentStorage.invalidateIndices(w);
                     w.invalidateBoundingBox();
                     w.resetHasProblem();
                 }
@@ -361,6 +407,8 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
      * @param w the way to operate on
      */
     private void invalidateWay(@NonNull Way w) {
+        currentStorage.invalidateIndices(w);
+        apiStorage.invalidateIndices(w);
         w.invalidateBoundingBox();
         if (w.hasTagKey(Tags.KEY_HIGHWAY)) {
             // we only validate way connections for highways currently
@@ -428,6 +476,7 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
      * apiStorage is empty. As a side effect it updates the id sequences for the creation of new elements.
      */
     public synchronized void fixupApiStorage() {
+        fullSave = true;
         try {
             long minNodeId = 0;
             long minWayId = 0;
@@ -2639,6 +2688,18 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
      * @throws IOException if saving failed
      */
     public synchronized void writeToFile(@NonNull Context ctx) throws IOException {
+        writeToFile(ctx, true);
+    }
+
+    /**
+     * Stores the current storage data to the default storage file
+     * 
+     * @param ctx Android Context
+     * @param withState if false and the journal can be appended to, only the changed elements are saved and not the
+     *            undo checkpoints, clipboard and so on, see {@link StorageJournal}
+     * @throws IOException if saving failed
+     */
+    synchronized void writeToFile(@NonNull Context ctx, boolean withState) throws IOException {
         if (apiStorage == null || currentStorage == null) {
             // don't write empty state files
             Log.i(DEBUG_TAG, "storage delegator empty, skipping save");
@@ -2651,7 +2712,8 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
 
         if (readingLock.tryLock()) {
             // TODO this doesn't really help with error conditions need to throw exception
-            if (savingHelper.save(ctx, FILENAME, this, true)) {
+            boolean saved = needsFullSave() ? saveSnapshot(ctx, FILENAME) : (appendJournal(ctx, FILENAME, withState) || saveSnapshot(ctx, FILENAME));
+            if (saved) {
                 dirty = false;
             } else {
                 // this is essentially catastrophic and can only happen if something went really wrong
@@ -2696,11 +2758,12 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
     public boolean readFromFile(Context context, String filename) {
         try {
             lock();
-            StorageDelegator newDelegator = savingHelper.load(context, filename, true);
+            StorageDelegator newDelegator = loadState(context, filename);
 
             if (newDelegator != null) {
                 Log.d(DEBUG_TAG, "read saved state");
                 currentStorage = newDelegator.currentStorage;
+                unresolvedMembers = null;
                 if (currentStorage.getBoundingBoxes().isEmpty()) { // can happen if data was added before load
                     try {
                         currentStorage.setBoundingBox(currentStorage.calcBoundingBoxFromData());
@@ -2712,7 +2775,12 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
                 undo = newDelegator.undo;
                 clipboard = newDelegator.clipboard;
                 factory = newDelegator.factory;
-                dirty = false; // data was just read, i.e. memory and file are in sync
+                generation = newDelegator.generation;
+                journalUndo = newDelegator.journalUndo;
+                snapshotSize = newDelegator.snapshotSize;
+                journalSize = newDelegator.journalSize;
+                fullSave = newDelegator.fullSave || !FILENAME.equals(filename);
+                dirty = newDelegator.fullSave; // data was just read, memory and file are in sync unless a snapshot is needed
                 return true;
             } else {
                 Log.d(DEBUG_TAG, "saved state null");
@@ -2723,6 +2791,197 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
         }
     }
 
+    /**
+     * Check if the changes since the last save can't be written to the journal
+     * 
+     * @return true if a full snapshot needs to be written
+     */
+    private boolean needsFullSave() {
+        return fullSave || generation == 0 || undo != journalUndo || journalSize > snapshotSize / COMPACTION_RATIO;
+    }
+
+    /**
+     * Write the state to a file in snapshot format
+     * 
+     * The file is first written to a temporary file which then replaces the original, the previous version is retained
+     * as a backup together with its journal
+     * 
+     * @param ctx Android Context
+     * @param filename the name of the file
+     * @return true if successful
+     */
+    private boolean saveSnapshot(@NonNull Context ctx, @NonNull String filename) {
+        String tempFilename = filename + "." + System.currentTimeMillis();
+        long start = System.currentTimeMillis();
+        long previousGeneration = generation;
+        generation = Math.max(System.currentTimeMillis(), previousGeneration + 1);
+        try (OutputStream out = new BufferedOutputStream(ctx.openFileOutput(tempFilename, Context.MODE_PRIVATE))) {
+            writeSnapshot(out);
+        } catch (Exception | Error e) { // NOSONAR crashing is not an option
+            Log.e(DEBUG_TAG, "failed to save " + filename, e);
+            ACRAHelper.nocrashReport(e, "failed to save " + filename + " " + e.getMessage());
+            ctx.deleteFile(tempFilename);
+            generation = previousGeneration;
+            return false;
+        }
+        String backupFilename = filename + ".backup";
+        SavingHelper.rename(ctx, filename, backupFilename); // don't overwrite last saved state
+        SavingHelper.rename(ctx, tempFilename, filename);
+        // a left over journal will be ignored as it has a different generation
+        ctx.deleteFile(backupFilename + JOURNAL_EXT);
+        SavingHelper.rename(ctx, filename + JOURNAL_EXT, backupFilename + JOURNAL_EXT);
+        undo.drainTouched();
+        journalUndo = undo;
+        snapshotSize = ctx.getFileStreamPath(filename).length();
+        journalSize = 0;
+        fullSave = false;
+        Log.i(DEBUG_TAG, "saved " + filename + " in " + (System.currentTimeMillis() - start) + " ms");
+        return true;
+    }
+
+    /**
+     * Append the elements that have changed since the last save and optionally the remaining state to the journal
+     * 
+     * If this fails the caller needs to write a full snapshot as the changed elements are no longer tracked
+     * 
+     * @param ctx Android Context
+     * @param filename the name of the snapshot file
+     * @param withState if true the undo checkpoints, clipboard, id sequences and imagery are written too
+     * @return true if successful
+     */
+    private boolean appendJournal(@NonNull Context ctx, @NonNull String filename, boolean withState) {
+        long start = System.currentTimeMillis();
+        Map<OsmElement, Long> touched = undo.drainTouched();
+        try (FileOutputStream out = ctx.openFileOutput(filename + JOURNAL_EXT, journalSize == 0 ? Context.MODE_PRIVATE : Context.MODE_APPEND)) {
+            byte[] entry = StorageJournal.createEntry(touched, currentStorage, apiStorage,
+                    withState ? new Serializable[] { undo, clipboard, factory, imagery } : null);
+            if (journalSize == 0) {
+                StorageJournal.writeHeader(out, generation);
+                journalSize = StorageJournal.HEADER_SIZE;
+            }
+            out.write(entry);
+            out.flush();
+            out.getFD().sync();
+            journalSize += entry.length;
+        } catch (Exception | Error e) { // NOSONAR crashing is not an option
+            Log.e(DEBUG_TAG, "failed to append to journal " + e.getMessage());
+            fullSave = true;
+            return false;
+        }
+        Log.i(DEBUG_TAG, "journaled " + touched.size() + " elements in " + (System.currentTimeMillis() - start) + " ms");
+        return true;
+    }
+
+    /**
+     * Load the state from a file and replay its journal if present
+     * 
+     * Files in the legacy FST format are still read, they will be replaced by a snapshot on the next save
+     * 
+     * @param context Android Context
+     * @param filename the name of the file
+     * @return a new StorageDelegator or null if the file couldn't be read
+     */
+    @Nullable
+    private StorageDelegator loadState(@NonNull Context context, @NonNull String filename) {
+        long start = System.currentTimeMillis();
+        try (InputStream in = new BufferedInputStream(context.openFileInput(filename))) {
+            if (StorageSnapshot.isSnapshot(in)) {
+                StorageDelegator newDelegator = readSnapshot(in);
+                newDelegator.snapshotSize = context.getFileStreamPath(filename).length();
+                newDelegator.journalUndo = newDelegator.undo;
+                newDelegator.fullSave = newDelegator.generation == 0;
+                if (context.getFileStreamPath(filename + JOURNAL_EXT).exists()) {
+                    try (InputStream journal = new BufferedInputStream(context.openFileInput(filename + JOURNAL_EXT))) {
+                        newDelegator.replayJournal(journal);
+                    }
+                }
+                Log.i(DEBUG_TAG, "loaded " + filename + " in " + (System.currentTimeMillis() - start) + " ms");
+                return newDelegator;
+            }
+        } catch (FileNotFoundException fnfe) {
+            // this happens a lot and shouldn't generate an error report
+            Log.e(DEBUG_TAG, "file not found " + filename);
+            return null;
+        } catch (Exception | Error e) { // NOSONAR crashing is not an option
+            Log.e(DEBUG_TAG, "failed to load " + filename, e);
+            ACRAHelper.nocrashReport(e, "failed to load " + filename + " " + e.getMessage());
+            return null;
+        }
+        Log.i(DEBUG_TAG, "migrating " + filename + " from FST format");
+        return savingHelper.load(context, filename, true);
+    }
+
+    /**
+     * Replay a journal on to the state read from a snapshot
+     * 
+     * If the journal is incomplete, for example because the app was killed while writing, everything up to the last
+     * complete entry is applied and a full snapshot will be written on the next save
+     * 
+     * @param in the InputStream to read the journal from
+     * @throws IOException if reading fails
+     */
+    @SuppressWarnings("unchecked")
+    void replayJournal(@NonNull InputStream in) throws IOException {
+        StorageJournal.Replay replay = StorageJournal.replay(in, generation, currentStorage, apiStorage);
+        Log.i(DEBUG_TAG, "replayed " + replay.entries + " journal entries complete " + replay.complete);
+        if (replay.entries > 0) {
+            Object[] state = replay.state;
+            if (state == null) {
+                Log.i(DEBUG_TAG, "journal without state, keeping the state from the snapshot");
+            } else if (state.length == 4 && state[0] instanceof UndoStorage && state[1] instanceof ClipboardStorage
+                    && state[2] instanceof OsmElementFactory && state[3] instanceof ArrayList) {
+                undo = (UndoStorage) state[0];
+                clipboard = (ClipboardStorage) state[1];
+                factory = (OsmElementFactory) state[2];
+                imagery = (ArrayList<String>) state[3];
+            } else {
+                Log.e(DEBUG_TAG, "unexpected journal state, clearing undo");
+                undo = new UndoStorage(currentStorage, apiStorage);
+            }
+            journalUndo = undo;
+            fixupBacklinks();
+        }
+        journalSize = replay.length;
+        fullSave = fullSave || !replay.complete;
+    }
+
+    /**
+     * Write the state of this instance in snapshot format
+     * 
+     * @param out the OutputStream to write to
+     * @throws IOException if writing fails
+     */
+    void writeSnapshot(@NonNull OutputStream out) throws IOException {
+        StorageSnapshot.write(out, new Serializable[] { currentStorage, apiStorage, undo, clipboard, factory, imagery, generation });
+    }
+
+    /**
+     * Create a new instance from a snapshot
+     * 
+     * @param in the InputStream to read from
+     * @return a new StorageDelegator
+     * @throws IOException if reading fails or the snapshot doesn't contain the expected objects
+     */
+    @SuppressWarnings("unchecked")
+    @NonNull
+    static StorageDelegator readSnapshot(@NonNull InputStream in) throws IOException {
+        Object[] state = StorageSnapshot.read(in);
+        if (state.length < 6 || !(state[0] instanceof Storage) || !(state[1] instanceof Storage) || !(state[2] instanceof UndoStorage)
+                || !(state[3] instanceof ClipboardStorage) || !(state[4] instanceof OsmElementFactory) || !(state[5] instanceof ArrayList)) {
+            throw new IOException("Unexpected snapshot contents");
+        }
+        StorageDelegator delegator = new StorageDelegator();
+        delegator.currentStorage = (Storage) state[0];
+        delegator.apiStorage = (Storage) state[1];
+        delegator.undo = (UndoStorage) state[2];
+        delegator.clipboard = (ClipboardStorage) state[3];
+        delegator.factory = (OsmElementFactory) state[4];
+        delegator.imagery = (ArrayList<String>) state[5];
+        // snapshots written before journaling was added don't have a generation
+        delegator.generation = state.length > 6 && state[6] instanceof Long ? (Long) state[6] : 0;
+        return delegator;
+    }
+
     /**
      * Return a localized list of strings describing the changes we would upload on {@link #uploadToServer(Server)}.
      * 
@@ -2767,6 +3026,7 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
     private void removeUnchanged() {
         for (Node node : new ArrayList<>(apiStorage.getNodes())) {
             if (node.getState() == OsmElement.STATE_UNCHANGED) {
+                undo.touch(node);
                 apiStorage.removeNode(node);
                 logUnchanged(node);
             }
@@ -2774,6 +3034,7 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
 
         for (Way way : new ArrayList<>(apiStorage.getWays())) {
             if (way.getState() == OsmElement.STATE_UNCHANGED) {
+                undo.touch(way);
                 apiStorage.removeWay(way);
                 logUnchanged(way);
             }
@@ -2781,6 +3042,7 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
 
         for (Relation relation : new ArrayList<>(apiStorage.getRelations())) {
             if (relation.getState() == OsmElement.STATE_UNCHANGED) {
+                undo.touch(relation);
                 apiStorage.removeRelation(relation);
                 logUnchanged(relation);
             }
@@ -2810,49 +3072,79 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
      */
     public synchronized void uploadToServer(@NonNull final Server server, @Nullable final String comment, @Nullable String source, boolean closeOpenChangeset,
             boolean closeChangeset, @Nullable Map<String, String> extraTags, @Nullable List<OsmElement> elements) throws IOException {
+        uploadToServer(null, server, comment, source, closeOpenChangeset, closeChangeset, extraTags, elements);
+    }
+
+    /**
+     * Upload created, modified and deleted data in diff format
+     * 
+     * The changes are uploaded in dependency ordered batches, if there are more changes than fit in to one changeset
+     * they are split over multiple changesets. If a Context is supplied the elements that a batch changed are appended
+     * to the journal after every batch without the undo checkpoints and the rest of the state, the complete state is
+     * only saved once at the end. An interrupted upload can be resumed from the last uploaded batch.
+     * 
+     * @param context Android Context used for saving the state after every batch, if null the state isn't saved
+     * @param server Server to upload changes to.
+     * @param comment Changeset comment tag
+     * @param source Changeset source tag
+     * @param closeOpenChangeset if true close any open Changeset first
+     * @param closeChangeset if true close the Changeset
+     * @param extraTags Additional tags to add
+     * @param elements List of OsmElement to upload if null all changed elements will be uploaded
+     * @throws IOException if the upload doesn't work
+     */
+    public synchronized void uploadToServer(@Nullable Context context, @NonNull final Server server, @Nullable final String comment, @Nullable String source,
+            boolean closeOpenChangeset, boolean closeChangeset, @Nullable Map<String, String> extraTags, @Nullable List<OsmElement> elements)
+            throws IOException {
 
         dirty = true; // storages will get modified as data is uploaded, these changes need to be saved to file
         removeUnchanged();
         // upload methods set dirty flag too, in case the file is saved during an upload
         boolean fullUpload = elements == null;
-        int uploadElementCount = fullUpload ? getApiElementCount() : elements.size();
-        int notUploadedElementCount = getApiElementCount() - uploadElementCount; // will be zero for normal uploads
-        boolean split = uploadElementCount > server.getCapabilities().getMaxElementsInChangeset();
+        UploadPlanner planner = new UploadPlanner(fullUpload ? listChangedElements() : elements);
+        final int maxChangeset = server.getCapabilities().getMaxElementsInChangeset();
+        final int batchSize = Math.min(uploadBatchSize > 0 ? uploadBatchSize : UploadPlanner.DEFAULT_BATCH_SIZE, maxChangeset);
+        boolean split = planner.remaining() > maxChangeset;
         int part = 1;
-        int elementCount = uploadElementCount;
-        while (elementCount > 0) {
+        int pending = planner.remaining();
+        while (pending > 0) {
             String tmpSource = source;
             if (split) {
                 tmpSource = source + " [" + part + "]";
             }
             server.openChangeset(closeOpenChangeset, comment, tmpSource, Util.toOsmList(imagery), extraTags);
-            try {
-                lock();
-                if (fullUpload) {
-                    server.diffUpload(this, getApiStorage());
-                } else {
-                    Storage storage = new Storage();
-                    // if we are uploading more than the limit elements
-                    // this will work as uploaded elements will have
-                    // unmodified status
-                    storage.addChangedElements(elements);
-                    server.diffUpload(this, storage);
+            int changes = server.getOpenChangesetChanges();
+            if (changes >= maxChangeset) { // reused changeset is full
+                Log.w(DEBUG_TAG, "Changeset " + server.getOpenChangeset() + " is full, opening a new one");
+                server.closeChangeset();
+                server.openChangeset(closeOpenChangeset, comment, tmpSource, Util.toOsmList(imagery), extraTags);
+                changes = server.getOpenChangesetChanges();
+            }
+            while (planner.remaining() > 0 && changes < maxChangeset) {
+                List<OsmElement> batch = planner.nextBatch(Math.min(batchSize, maxChangeset - changes));
+                try {
+                    lock();
+                    server.diffUpload(this, batch);
+                } finally {
+                    unlock();
+                }
+                changes += batch.size();
+                if (context != null) {
+                    writeToFile(context, false); // checkpoint
                 }
-            } finally {
-                unlock();
             }
 
-            if (closeChangeset || split) { // always close when splitting
+            if (closeChangeset || split || changes >= maxChangeset) { // always close when splitting
                 server.closeChangeset();
             }
             part++;
-            int currentElementCount = getApiElementCount();
-            if (currentElementCount < notUploadedElementCount + elementCount) {
-                elementCount = currentElementCount - notUploadedElementCount;
+            int remaining = planner.retainPending(apiStorage);
+            if (remaining < pending) {
+                pending = remaining;
             } else {
                 // element count didn't do anything, that should cause an exception to be
                 // thrown in diffUpload, but it is conceivable that that doesn't happen
-                Log.e(DEBUG_TAG, "Upload had no effect, API element count " + elementCount);
+                Log.e(DEBUG_TAG, "Upload had no effect, " + pending + " changes pending");
                 throw new ProtocolException("Upload had no effect");
             }
         }
@@ -2864,6 +3156,18 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
         if (fullUpload) {
             setImageryRecorded(false);
         }
+        if (context != null) {
+            writeToFile(context);
+        }
+    }
+
+    /**
+     * Set the maximum number of changes uploaded in one request
+     * 
+     * @param size the maximum number of changes
+     */
+    void setUploadBatchSize(int size) {
+        uploadBatchSize = size;
     }
 
     /**
@@ -2880,7 +3184,13 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
     }
 
     /**
-     * Merge additional data with existing, copy to a new storage because this may fail
+     * Merge additional data with existing
+     * 
+     * The elements that need to be added or replaced are first staged in a small delta without modifying anything, if
+     * a conflict is found the delta is simply discarded. Otherwise the delta is committed in place to the current
+     * storage, this retains the indices of the current storage and the cost is proportional to the size of the merged
+     * data, not to that of the existing data. The changed elements are recorded so that the next save can append them
+     * to the journal instead of writing a full snapshot.
      * 
      * This may throw an IllegalStateException if existing data was inconsistent
      * 
@@ -2898,14 +3208,18 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
         List<OsmElement> newElements = new ArrayList<>(); // elements that we need to run postMerg on
 
         synchronized (this) {
-
-            // make temp copy of current storage (we may have to abort
-            Storage temp = new Storage(currentStorage);
-
-            // retrieve the maps
-            LongOsmElementMap<Node> nodeIndex = temp.getNodeIndex();
-            LongOsmElementMap<Way> wayIndex = temp.getWayIndex();
-            LongOsmElementMap<Relation> relationIndex = temp.getRelationIndex();
+            // retrieve the maps, these are not changed before the merge is committed
+            LongOsmElementMap<Node> nodeIndex = currentStorage.getNodeIndex();
+            LongOsmElementMap<Way> wayIndex = currentStorage.getWayIndex();
+            LongOsmElementMap<Relation> relationIndex = currentStorage.getRelationIndex();
+
+            // the staged changes
+            LongOsmElementMap<Node> newNodes = new LongOsmElementMap<>(Math.max(storage.getNodeCount(), 1));
+            LongOsmElementMap<Way> newWays = new LongOsmElementMap<>(Math.max(storage.getWayCount(), 1));
+            LongOsmElementMap<Relation> newRelations = new LongOsmElementMap<>(Math.max(storage.getRelationCount(), 1));
+            Set<Way> relinkWays = new LinkedHashSet<>(); // existing ways that reference replaced nodes
+            List<Node> restoredNodes = new ArrayList<>(); // deleted nodes that are reinstated unchanged
+            List<Node> modifiedNodes = new ArrayList<>(); // deleted nodes that are reinstated as modified
 
             Log.d(DEBUG_TAG, "mergeData finished init");
 
@@ -2914,7 +3228,7 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
                 for (Node n : storage.getNodes()) {
                     Node apiNode = apiStorage.getNode(n.getOsmId()); // can contain deleted elements
                     if (!nodeIndex.containsKey(n.getOsmId()) && apiNode == null) { // new node no problem
-                        temp.insertNodeUnsafe(n);
+                        newNodes.put(n.getOsmId(), n);
                         newElements.add(n);
                     } else {
                         if (apiNode != null && apiNode.getState() == OsmElement.STATE_DELETED) {
@@ -2931,7 +3245,7 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
                                 continue; // can use node we already have
                             } else {
                                 if (existingNode.isUnchanged()) {
-                                    temp.insertNodeUnsafe(n);
+                                    newNodes.put(n.getOsmId(), n);
                                     newElements.add(n);
                                 } else {
                                     return false; // can't resolve conflicts, upload first
@@ -2951,7 +3265,7 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
                 for (Way w : storage.getWays()) {
                     Way apiWay = apiStorage.getWay(w.getOsmId()); // can contain deleted elements
                     if (!wayIndex.containsKey(w.getOsmId()) && apiWay == null) { // new way no problem
-                        temp.insertWayUnsafe(w);
+                        newWays.put(w.getOsmId(), w);
                         newElements.add(w);
                     } else {
                         if (apiWay != null && apiWay.getState() == OsmElement.STATE_DELETED) {
@@ -2967,7 +3281,7 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
                                 continue; // can use way we already have
                             } else {
                                 if (existingWay.isUnchanged()) {
-                                    temp.insertWayUnsafe(w);
+                                    newWays.put(w.getOsmId(), w);
                                     newElements.add(w);
                                 } else {
                                     return false; // can't resolve conflicts, upload first
@@ -2984,13 +3298,17 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
                 Log.d(DEBUG_TAG, "mergeData added ways");
 
                 // fix up way nodes
-                // all nodes should be in storage now, however new ways will have references to copies not in storage
-                for (Way w : wayIndex) {
+                // new ways will have references to copies not in storage, these are not in storage yet so they can be
+                // changed directly
+                for (Way w : newWays) {
                     List<Node> nodes = w.getNodes();
                     for (int i = 0; i < nodes.size(); i++) {
                         Node wayNode = nodes.get(i);
                         long wayNodeId = wayNode.getOsmId();
-                        Node n = nodeIndex.get(wayNodeId);
+                        Node n = newNodes.get(wayNodeId);
+                        if (n == null) {
+                            n = nodeIndex.get(wayNodeId);
+                        }
                         if (n != null) {
                             nodes.set(i, n);
                         } else {
@@ -3005,12 +3323,11 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
                                 Log.e(DEBUG_TAG, "mergeData null undeleting node " + wayNodeId);
                                 if (apiNode.getOsmVersion() == wayNode.getOsmVersion() && (apiNode.isTagged() && apiNode.getTags().equals(wayNode.getTags()))
                                         && apiNode.getLat() == wayNode.getLat() && apiNode.getLon() == wayNode.getLon()) {
-                                    apiNode.setState(OsmElement.STATE_UNCHANGED);
-                                    apiStorage.removeNode(apiNode);
+                                    restoredNodes.add(apiNode);
                                 } else {
-                                    apiNode.setState(OsmElement.STATE_MODIFIED);
+                                    modifiedNodes.add(apiNode);
                                 }
-                                temp.insertNodeUnsafe(apiNode);
+                                newNodes.put(wayNodeId, apiNode);
                                 nodes.set(i, apiNode);
                             } else {
                                 logAndSendReport("mergeData null way node for way " + w.getOsmId() + " v" + w.getOsmVersion() + " node " + wayNodeId
@@ -3020,6 +3337,17 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
                         }
                     }
                 }
+                // existing ways that reference nodes that are going to be replaced
+                for (Node n : newNodes) {
+                    Node existingNode = nodeIndex.get(n.getOsmId());
+                    if (existingNode != null) {
+                        for (Way w : currentStorage.getWays(existingNode)) {
+                            if (!newWays.containsKey(w.getOsmId())) {
+                                relinkWays.add(w);
+                            }
+                        }
+                    }
+                }
 
                 Log.d(DEBUG_TAG, "mergeData fixuped way nodes nodes");
 
@@ -3027,7 +3355,7 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
                 for (Relation r : storage.getRelations()) {
                     Relation apiRelation = apiStorage.getRelation(r.getOsmId()); // can contain deleted elements
                     if (!relationIndex.containsKey(r.getOsmId()) && apiRelation == null) { // new relation no problem
-                        temp.insertRelationUnsafe(r);
+                        newRelations.put(r.getOsmId(), r);
                         newElements.add(r);
                     } else {
                         if (apiRelation != null && apiRelation.getState() == OsmElement.STATE_DELETED) {
@@ -3044,7 +3372,7 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
                                 continue; // can use relation we already have
                             } else {
                                 if (existingRelation.isUnchanged()) {
-                                    temp.insertRelationUnsafe(r);
+                                    newRelations.put(r.getOsmId(), r);
                                     newElements.add(r);
                                 } else {
                                     return false; // can't resolve conflicts, upload first
@@ -3058,25 +3386,40 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
                     }
                 }
 
-                Log.d(DEBUG_TAG, "mergeData added relations");
-
-                // fixup relation back links and memberships
-
-                if (!redoBacklinks(temp, nodeIndex, wayIndex, relationIndex)) {
-                    Log.e(DEBUG_TAG, "mergeData redoBacklinks failed");
-                    return false;
+                // check that no members of the new relations have been deleted
+                for (Relation r : newRelations) {
+                    final List<RelationMember> members = r.getMembers();
+                    if (members == null) {
+                        Log.e(DEBUG_TAG, "Relation has no members " + r.getOsmId());
+                        continue;
+                    }
+                    for (RelationMember rm : members) {
+                        checkMember(r.getOsmId(), rm);
+                        if (mergedElement(r, rm, newNodes, newWays, newRelations) == null && memberIsDeletedInApi(r, rm)) {
+                            return false;
+                        }
+                    }
                 }
 
-                Log.d(DEBUG_TAG, "mergeData fixuped relations");
-
+                Log.d(DEBUG_TAG, "mergeData added relations");
             } catch (StorageException sex) {
                 // ran out of memory
                 Log.e(DEBUG_TAG, "mergeData exception " + sex.getMessage());
                 return false;
             }
 
-            currentStorage = temp;
-            undo.setCurrentStorage(temp);
+            // commit
+            try {
+                commitMerge(newNodes, newWays, newRelations, relinkWays, restoredNodes, modifiedNodes);
+            } catch (StorageException sex) {
+                // ran out of memory, the data is now only partially merged
+                Log.e(DEBUG_TAG, "mergeData commit exception " + sex.getMessage());
+                fixupBacklinks();
+                fullSave = true; // not all changes will have been recorded
+                return false;
+            }
+
+            Log.d(DEBUG_TAG, "mergeData fixuped relations");
         }
         // no need to do this in the synchronized block
         if (postMerge != null) {
@@ -3088,6 +3431,240 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
         return true; // Success
     }
 
+    /**
+     * Commit the changes staged by mergeData to the current storage
+     * 
+     * Nodes are inserted before the Ways referencing them. Relation members are only linked for the inserted
+     * Relations, the parents of replaced elements, the Relations that reference the merged elements in the merged data
+     * and existing Relations that have the merged elements as unresolved members, so existing Relations are not
+     * scanned as a whole on every merge. All changed elements are recorded for the journal.
+     * 
+     * @param newNodes Nodes to insert
+     * @param newWays Ways to insert, their Node lists already reference the merged Nodes
+     * @param newRelations Relations to insert
+     * @param relinkWays existing Ways that reference Nodes that are replaced
+     * @param restoredNodes deleted Nodes to reinstate unchanged
+     * @param modifiedNodes deleted Nodes to reinstate as modified
+     */
+    private void commitMerge(@NonNull LongOsmElementMap<Node> newNodes, @NonNull LongOsmElementMap<Way> newWays,
+            @NonNull LongOsmElementMap<Relation> newRelations, @NonNull Set<Way> relinkWays, @NonNull List<Node> restoredNodes,
+            @NonNull List<Node> modifiedNodes) {
+        // relations that may need members linked, by id as they may be replaced themselves
+        LongHashSet relinkRelations = new LongHashSet();
+        collectParentIds(newNodes, relinkRelations);
+        collectParentIds(newWays, relinkRelations);
+        collectParentIds(newRelations, relinkRelations);
+        MultiHashMap<String, Relation> unresolved = getUnresolvedMembers();
+        collectUnresolvedIds(newNodes, unresolved, relinkRelations);
+        collectUnresolvedIds(newWays, unresolved, relinkRelations);
+        collectUnresolvedIds(newRelations, unresolved, relinkRelations);
+        for (Node n : restoredNodes) {
+            n.setState(OsmElement.STATE_UNCHANGED);
+            apiStorage.removeNode(n);
+        }
+        for (Node n : modifiedNodes) {
+            n.setState(OsmElement.STATE_MODIFIED);
+        }
+        // relations that are replaced are no longer parents of their members
+        for (Relation r : newRelations) {
+            Relation existing = currentStorage.getRelation(r.getOsmId());
+            if (existing != null && existing.getMembers() != null) {
+                for (RelationMember rm : existing.getMembers()) {
+                    OsmElement e = rm.getElement();
+                    if (e != null) {
+                        e.removeParentRelation(existing);
+                    }
+                }
+            }
+        }
+        for (Way w : relinkWays) {
+            currentStorage.invalidateIndices(w);
+            undo.touch(w);
+        }
+        try {
+            for (Node n : newNodes) {
+                n.clearParentRelations();
+                currentStorage.insertNodeUnsafe(n);
+                undo.touch(n);
+            }
+            for (Way w : relinkWays) {
+                List<Node> nodes = w.getNodes();
+                for (int i = 0; i < nodes.size(); i++) {
+                    Node n = newNodes.get(nodes.get(i).getOsmId());
+                    if (n != null) {
+                        nodes.set(i, n);
+                    }
+                }
+                w.invalidateBoundingBox();
+            }
+            for (Way w : newWays) {
+                w.clearParentRelations();
+                currentStorage.insertWayUnsafe(w);
+                undo.touch(w);
+            }
+            for (Relation r : newRelations) {
+                r.clearParentRelations();
+                currentStorage.insertRelationUnsafe(r);
+                undo.touch(r);
+            }
+        } finally {
+            currentStorage.commitIndices();
+        }
+
+        if (newNodes.isEmpty() && newWays.isEmpty() && newRelations.isEmpty()) {
+            return;
+        }
+        LongOsmElementMap<Node> nodeIndex = currentStorage.getNodeIndex();
+        LongOsmElementMap<Way> wayIndex = currentStorage.getWayIndex();
+        LongOsmElementMap<Relation> relationIndex = currentStorage.getRelationIndex();
+        for (Relation r : newRelations) {
+            relinkRelations.put(r.getOsmId());
+        }
+        // link members that are new or have been replaced
+        for (long id : relinkRelations.values()) {
+            final Relation r = relationIndex.get(id);
+            if (r == null) {
+                continue;
+            }
+            final List<RelationMember> members = r.getMembers();
+            if (members == null) {
+                Log.e(DEBUG_TAG, "Relation has no members " + r.getOsmId());
+                continue;
+            }
+            final boolean inserted = newRelations.get(r.getOsmId()) == r;
+            for (RelationMember rm : members) {
+                OsmElement e = elementFromIndex(r, rm.getType(), rm.getRef(), nodeIndex, wayIndex, relationIndex);
+                if (e != null) {
+                    if (inserted || rm.getElement() != e) {
+                        rm.setElement(e);
+                        e.addParentRelation(r);
+                        undo.touch(r);
+                    }
+                } else {
+                    if (inserted && rm.downloaded()) {
+                        Log.w(DEBUG_TAG, "mergeData relation " + r.getOsmId() + " member " + rm.getType() + " " + rm.getRef() + " not in target storage");
+                        rm.setElement(null);
+                    }
+                    unresolved.add(unresolvedKey(rm.getType(), rm.getRef()), r);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the index of Relations with unresolved members, building it if necessary
+     * 
+     * @return a MultiHashMap keyed by member type and id
+     */
+    @NonNull
+    private MultiHashMap<String, Relation> getUnresolvedMembers() {
+        if (unresolvedMembers == null) {
+            unresolvedMembers = new MultiHashMap<>();
+            for (Relation r : currentStorage.getRelations()) {
+                final List<RelationMember> members = r.getMembers();
+                if (members != null) {
+                    for (RelationMember rm : members) {
+                        if (rm.getElement() == null) {
+                            unresolvedMembers.add(unresolvedKey(rm.getType(), rm.getRef()), r);
+                        }
+                    }
+                }
+            }
+        }
+        return unresolvedMembers;
+    }
+
+    /**
+     * Get the key for a member in the unresolved member index
+     * 
+     * @param type the member type
+     * @param ref the member id
+     * @return the key
+     */
+    @NonNull
+    private static String unresolvedKey(@NonNull String type, long ref) {
+        return type + ref;
+    }
+
+    /**
+     * Add the ids of the Relations that have staged elements as unresolved members to a set and remove them from the
+     * index, the members will be resolved when the Relations are linked
+     * 
+     * @param <T> the element type
+     * @param staged the staged elements
+     * @param unresolved the index of unresolved members
+     * @param ids the set to add the Relation ids to
+     */
+    private static <T extends OsmElement> void collectUnresolvedIds(@NonNull LongOsmElementMap<T> staged, @NonNull MultiHashMap<String, Relation> unresolved,
+            @NonNull LongHashSet ids) {
+        if (unresolved.isEmpty()) {
+            return;
+        }
+        for (T e : staged) {
+            String key = unresolvedKey(e.getName(), e.getOsmId());
+            if (unresolved.containsKey(key)) {
+                for (Relation r : unresolved.get(key)) {
+                    ids.put(r.getOsmId());
+                }
+                unresolved.removeKey(key);
+            }
+        }
+    }
+
+    /**
+     * Add the ids of the parent Relations of the staged elements and of the existing elements they replace to a set
+     * 
+     * The staged elements still have the parent Relations from the merged data, the existing ones those from the
+     * current storage.
+     * 
+     * @param <T> the element type
+     * @param staged the staged elements
+     * @param ids the set to add the Relation ids to
+     */
+    private <T extends OsmElement> void collectParentIds(@NonNull LongOsmElementMap<T> staged, @NonNull LongHashSet ids) {
+        for (T e : staged) {
+            addParentIds(e, ids);
+            OsmElement existing = currentStorage.getOsmElement(e.getName(), e.getOsmId());
+            if (existing != null && existing != e) {
+                addParentIds(existing, ids);
+            }
+        }
+    }
+
+    /**
+     * Add the ids of the parent Relations of an element to a set
+     * 
+     * @param e the OsmElement
+     * @param ids the set to add the Relation ids to
+     */
+    private static void addParentIds(@NonNull OsmElement e, @NonNull LongHashSet ids) {
+        List<Relation> parents = e.getParentRelations();
+        if (parents != null) {
+            for (Relation parent : parents) {
+                ids.put(parent.getOsmId());
+            }
+        }
+    }
+
+    /**
+     * Get a relation member from the staged elements of a merge or the current storage
+     * 
+     * @param r the Relation
+     * @param rm the RelationMember
+     * @param newNodes staged Nodes
+     * @param newWays staged Ways
+     * @param newRelations staged Relations
+     * @return the element or null
+     */
+    @Nullable
+    private OsmElement mergedElement(@NonNull Relation r, @NonNull RelationMember rm, @NonNull LongOsmElementMap<Node> newNodes,
+            @NonNull LongOsmElementMap<Way> newWays, @NonNull LongOsmElementMap<Relation> newRelations) {
+        final String type = rm.getType();
+        final long ref = rm.getRef();
+        OsmElement e = elementFromIndex(r, type, ref, newNodes, newWays, newRelations);
+        return e != null ? e : currentStorage.getOsmElement(type, ref);
+    }
+
     /**
      * Log an error and trigger sending a crash report
      * 
@@ -3216,6 +3793,7 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
      * Ensure that we have consistent backlinks
      */
     void fixupBacklinks() {
+        unresolvedMembers = null; // members may have been removed or restored
         // first zap all, really all, as referenced relations may have been deleted
         // a possible alternative would be to check undostorage for any relations
         for (OsmElement e : currentStorage.getElements()) {
@@ -3322,6 +3900,7 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
             }
             BoundingBox.prune(this, box);
         }
+        fullSave = true;
         dirty();
     }
 
@@ -3372,6 +3951,9 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
                 List<RelationMember> members = parent.getAllMembers(e);
                 for (RelationMember member : members) {
                     member.setElement(null);
+                    if (unresolvedMembers != null) {
+                        unresolvedMembers.add(unresolvedKey(member.getType(), member.getRef()), parent);
+                    }
                 }
             }
             if (logic != null) {
@@ -3421,6 +4003,7 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
             }
         }
         fixupBacklinks();
+        fullSave = true;
         dirty();
     }
 
@@ -3456,6 +4039,7 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
     public synchronized boolean applyOsc(@NonNull Storage osc, @Nullable PostMergeHandler postMerge) {
         Log.d(DEBUG_TAG, "applyOsc called");
         final String ABORTMESSAGE = "applyOsc aborting %s is unchanged/created";
+        fullSave = true;
 
         // make temp copy of current storage (we may have to abort
         Storage tempCurrent = new Storage(currentStorage);
@@ -3655,6 +4239,7 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
         Log.d(DEBUG_TAG, "applyOsc finshed");
         undo = tempUndo;
         currentStorage = tempCurrent;
+        unresolvedMembers = null;
         apiStorage = tempApi;
         return true; // Success
     }
@@ -3667,10 +4252,24 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
      * @return true if deleted
      */
     private boolean memberIsDeleted(@NonNull Relation r, @NonNull RelationMember rm) {
+        if (memberIsDeletedInApi(r, rm)) {
+            fixupBacklinks(); // nexessary as we've removed the original ones from the elements
+            return true; // can't resolve conflicts, upload first
+        }
+        return false;
+    }
+
+    /**
+     * Check if a referenced relation member is deleted without changing any backlinks
+     * 
+     * @param r the Relation
+     * @param rm the RelationMember
+     * @return true if deleted
+     */
+    private boolean memberIsDeletedInApi(@NonNull Relation r, @NonNull RelationMember rm) {
         OsmElement apiElement = apiStorage.getOsmElement(rm.getType(), rm.getRef());
         if (apiElement != null && apiElement.getState() == OsmElement.STATE_DELETED) {
             logAndSendReport("mergeData/applyOsc deleted " + rm.getType() + " in downloaded relation " + r.getOsmId());
-            fixupBacklinks(); // nexessary as we've removed the original ones from the elements
             return true; // can't resolve conflicts, upload first
         }
         return false;
@@ -3695,6 +4294,7 @@ public class StorageDelegator implements Serializable, Exportable, DataStorage {
      * @param version the new version
      */
     public void setOsmVersion(@NonNull OsmElement element, long version) {
+        fullSave = true;
         element.setOsmVersion(version);
         element.setState(OsmElement.STATE_MODIFIED);
         insertElementSafe(element);
@@ -0,0 +1,600 @@
+package de.blau.android.osm;
+
+import static de.blau.android.osm.StorageSnapshot.TYPE_NODE;
+import static de.blau.android.osm.StorageSnapshot.TYPE_RELATION;
+import static de.blau.android.osm.StorageSnapshot.TYPE_WAY;
+import static de.blau.android.osm.StorageSnapshot.nameOf;
+import static de.blau.android.osm.StorageSnapshot.readSignedVarLong;
+import static de.blau.android.osm.StorageSnapshot.readString;
+import static de.blau.android.osm.StorageSnapshot.readVarInt;
+import static de.blau.android.osm.StorageSnapshot.typeOf;
+import static de.blau.android.osm.StorageSnapshot.writeSignedVarLong;
+import static de.blau.android.osm.StorageSnapshot.writeString;
+import static de.blau.android.osm.StorageSnapshot.writeVarInt;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Append-only journal of the changes made since the last StorageDelegator snapshot
+ *
+ * Each entry contains the complete current state of the elements that have been touched since the previous entry
+ * (including their presence in the current and API storage), the bounding boxes of both storages and the remaining
+ * state (undo checkpoints, clipboard, id sequences, ...) serialised with standard Java serialisation. References to
+ * elements that are in one of the storages and to the storages themselves are replaced by keys, so that they can be
+ * resolved after the element records have been replayed on to the snapshot. Everything else, for example the contents
+ * of the clipboard, is serialised by value.
+ *
+ * Entries written while uploading only contain the element records and the bounding boxes. When such an entry is
+ * replayed, the state from the previous entry (or from the snapshot) is resolved first, the records are then applied
+ * to the same element instances that the state references, just as the upload changed them in memory.
+ *
+ * Entries are framed by their length and a CRC32 checksum, an incomplete or corrupt entry at the end of the journal,
+ * for example if the app was killed while writing, terminates the replay. The header contains the generation of the
+ * snapshot the journal belongs to, a journal with a different generation is ignored.
+ *
+ * Layout: magic, version, generation, entries (length, payload, crc), the payload starts with a flags byte
+ *
+ * @author simon
+ *
+ */
+final class StorageJournal {
+
+    private static final String DEBUG_TAG = "StorageJournal";
+
+    static final int MAGIC   = 0x564A524E; // VJRN
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 16;
+
+    private static final int MAX_ENTRY_SIZE = 64 * 1024 * 1024;
+
+    private static final int IN_CURRENT = 1;
+    private static final int IN_API     = 2;
+
+    private static final int HAS_STATE = 1;
+
+    private static final int CURRENT_STORAGE = 0;
+    private static final int API_STORAGE     = 1;
+
+    /**
+     * Private constructor to stop instantiation
+     */
+    private StorageJournal() {
+        // private
+    }
+
+    /**
+     * Reference to an OsmElement that is in one of the storages
+     */
+    private static final class ElementKey implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final byte type;
+        final long id;
+
+        /**
+         * Create a new key
+         *
+         * @param type the element type code
+         * @param id the element id
+         */
+        ElementKey(byte type, long id) {
+            this.type = type;
+            this.id = id;
+        }
+    }
+
+    /**
+     * Reference to one of the storages
+     */
+    private static final class StorageKey implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final int index;
+
+        /**
+         * Create a new key
+         *
+         * @param index CURRENT_STORAGE or API_STORAGE
+         */
+        StorageKey(int index) {
+            this.index = index;
+        }
+    }
+
+    /**
+     * The result of replaying a journal
+     */
+    static final class Replay {
+        /**
+         * The state from the last valid entry or null if no entry contained state
+         */
+        Object[] state;
+        /**
+         * Number of entries that were applied
+         */
+        int      entries;
+        /**
+         * Length of the valid part of the journal in bytes
+         */
+        long     length;
+        /**
+         * True if the journal didn't contain any incomplete or invalid data
+         */
+        boolean  complete;
+    }
+
+    /**
+     * Write the journal header
+     *
+     * @param out the OutputStream
+     * @param generation the generation of the snapshot the journal belongs to
+     * @throws IOException if writing fails
+     */
+    static void writeHeader(@NonNull OutputStream out, long generation) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeLong(generation);
+        data.flush();
+    }
+
+    /**
+     * Create a journal entry
+     *
+     * @param touched the elements that have been touched since the last entry, mapped to their id at that time
+     * @param current the current Storage
+     * @param api the API Storage
+     * @param state the rest of the state, if null the entry only contains the element records
+     * @return the framed entry ready to be appended to the journal
+     * @throws IOException if the state can't be serialised
+     */
+    @NonNull
+    static byte[] createEntry(@NonNull Map<OsmElement, Long> touched, @NonNull final Storage current, @NonNull final Storage api,
+            @Nullable Serializable[] state) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(payload);
+        data.writeByte(state != null ? HAS_STATE : 0);
+        writeVarInt(data, touched.size());
+        for (Entry<OsmElement, Long> entry : touched.entrySet()) {
+            writeRecord(data, entry.getKey(), entry.getValue(), current, api);
+        }
+        writeBoxes(data, current);
+        writeBoxes(data, api);
+        if (state != null) {
+            writeState(data, state, current, api);
+        }
+        data.flush();
+
+        CRC32 crc = new CRC32();
+        crc.update(payload.toByteArray());
+        ByteArrayOutputStream entry = new ByteArrayOutputStream(payload.size() + 8);
+        DataOutputStream entryData = new DataOutputStream(entry);
+        entryData.writeInt(payload.size());
+        payload.writeTo(entryData);
+        entryData.writeInt((int) crc.getValue());
+        entryData.flush();
+        return entry.toByteArray();
+    }
+
+    /**
+     * Serialise the state replacing references to elements in the storages and to the storages with keys
+     *
+     * @param data the output
+     * @param state the state
+     * @param current the current Storage
+     * @param api the API Storage
+     * @throws IOException if the state can't be serialised
+     */
+    private static void writeState(@NonNull DataOutputStream data, @NonNull Serializable[] state, @NonNull final Storage current,
+            @NonNull final Storage api) throws IOException {
+        ByteArrayOutputStream stateBytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream stateOut = new ObjectOutputStream(stateBytes) {
+            {
+                enableReplaceObject(true);
+            }
+
+            @Override
+            protected Object replaceObject(Object obj) throws IOException {
+                if (obj instanceof OsmElement) {
+                    OsmElement e = (OsmElement) obj;
+                    if (current.getOsmElement(e.getName(), e.getOsmId()) == e || api.getOsmElement(e.getName(), e.getOsmId()) == e) {
+                        return new ElementKey(typeOf(e.getName()), e.getOsmId());
+                    }
+                    return e; // not in storage, serialise the element itself
+                }
+                if (obj == current) {
+                    return new StorageKey(CURRENT_STORAGE);
+                }
+                if (obj == api) {
+                    return new StorageKey(API_STORAGE);
+                }
+                return obj;
+            }
+        }) {
+            stateOut.writeObject(state);
+        }
+        writeVarInt(data, stateBytes.size());
+        stateBytes.writeTo(data);
+    }
+
+    /**
+     * Write the current state of an element
+     *
+     * @param data the output
+     * @param e the OsmElement
+     * @param oldId the id of the element when it was first touched
+     * @param current the current Storage
+     * @param api the API Storage
+     * @throws IOException if writing fails
+     */
+    private static void writeRecord(@NonNull DataOutputStream data, @NonNull OsmElement e, long oldId, @NonNull Storage current, @NonNull Storage api)
+            throws IOException {
+        data.writeByte(typeOf(e.getName()));
+        writeSignedVarLong(data, oldId);
+        writeSignedVarLong(data, e.osmId);
+        writeSignedVarLong(data, e.osmVersion);
+        writeSignedVarLong(data, e.getTimestamp());
+        data.writeByte(e.state);
+        data.writeByte((current.contains(e) ? IN_CURRENT : 0) | (api.contains(e) ? IN_API : 0));
+        if (e.tags == null) {
+            writeVarInt(data, 0);
+        } else {
+            writeVarInt(data, e.tags.size());
+            for (Entry<String, String> tag : e.tags.entrySet()) {
+                writeString(data, tag.getKey());
+                writeString(data, tag.getValue());
+            }
+        }
+        if (e instanceof Node) {
+            writeSignedVarLong(data, ((Node) e).lat);
+            writeSignedVarLong(data, ((Node) e).lon);
+        } else if (e instanceof Way) {
+            List<Node> nodes = ((Way) e).getNodes();
+            writeVarInt(data, nodes.size());
+            long prev = 0;
+            for (Node n : nodes) {
+                writeSignedVarLong(data, n.osmId - prev);
+                prev = n.osmId;
+            }
+        } else if (e instanceof Relation) {
+            List<RelationMember> members = ((Relation) e).members;
+            writeVarInt(data, members.size());
+            for (RelationMember rm : members) {
+                data.writeByte(typeOf(rm.type));
+                writeSignedVarLong(data, rm.ref);
+                data.writeBoolean(rm.role != null);
+                if (rm.role != null) {
+                    writeString(data, rm.role);
+                }
+                data.writeBoolean(rm.getElement() != null);
+            }
+        }
+    }
+
+    /**
+     * Write the bounding boxes of a Storage
+     *
+     * @param data the output
+     * @param storage the Storage
+     * @throws IOException if writing fails
+     */
+    private static void writeBoxes(@NonNull DataOutputStream data, @NonNull Storage storage) throws IOException {
+        List<BoundingBox> boxes = storage.getBoundingBoxes();
+        writeVarInt(data, boxes.size());
+        for (BoundingBox box : boxes) {
+            data.writeInt(box.getLeft());
+            data.writeInt(box.getBottom());
+            data.writeInt(box.getRight());
+            data.writeInt(box.getTop());
+        }
+    }
+
+    /**
+     * Replay a journal on to the storages from the snapshot it belongs to
+     *
+     * @param in the InputStream to read from, should be buffered
+     * @param generation the generation of the snapshot
+     * @param current the current Storage from the snapshot
+     * @param api the API Storage from the snapshot
+     * @return a Replay object with the state from the last valid entry that contained state, nothing will have been
+     *         applied if the journal doesn't belong to the snapshot
+     * @throws IOException if reading fails
+     */
+    @NonNull
+    static Replay replay(@NonNull InputStream in, long generation, @NonNull final Storage current, @NonNull final Storage api) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        Replay replay = new Replay();
+        try {
+            int magic = data.readInt();
+            int version = data.readInt();
+            long journalGeneration = data.readLong();
+            if (magic != MAGIC || version != VERSION || journalGeneration != generation) {
+                Log.w(DEBUG_TAG, "Ignoring journal version " + version + " generation " + journalGeneration + " expected " + generation);
+                return replay;
+            }
+        } catch (EOFException eof) {
+            Log.w(DEBUG_TAG, "Incomplete journal header");
+            return replay;
+        }
+        replay.length = HEADER_SIZE;
+        byte[] stateBytes = null;
+        Object[] state = null;
+        while (true) {
+            byte[] payload;
+            try {
+                int first = data.read();
+                if (first < 0) { // clean end of the journal
+                    replay.complete = true;
+                    break;
+                }
+                int length = (first << 24) | (data.readUnsignedByte() << 16) | (data.readUnsignedByte() << 8) | data.readUnsignedByte();
+                if (length < 0 || length > MAX_ENTRY_SIZE) {
+                    Log.e(DEBUG_TAG, "Invalid length " + length + " of entry " + replay.entries);
+                    break;
+                }
+                payload = new byte[length];
+                data.readFully(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if (data.readInt() != (int) crc.getValue()) {
+                    Log.e(DEBUG_TAG, "Checksum mismatch in entry " + replay.entries);
+                    break;
+                }
+            } catch (EOFException eof) {
+                Log.e(DEBUG_TAG, "Incomplete entry " + replay.entries);
+                break;
+            }
+            DataInputStream entryData = new DataInputStream(new ByteArrayInputStream(payload));
+            final boolean hasState = (entryData.readByte() & HAS_STATE) != 0;
+            if (!hasState && stateBytes != null) {
+                // the state refers to the elements as they were before this entry
+                state = readState(stateBytes, current, api);
+                stateBytes = null;
+            }
+            byte[] entryState = apply(entryData, hasState, current, api);
+            if (hasState) {
+                stateBytes = entryState;
+                state = null;
+            }
+            replay.entries++;
+            replay.length += payload.length + 8L;
+        }
+        replay.state = stateBytes != null ? readState(stateBytes, current, api) : state;
+        return replay;
+    }
+
+    /**
+     * Apply the element records in an entry to the storages
+     *
+     * @param data the entry payload after the flags
+     * @param hasState true if the entry contains state
+     * @param current the current Storage
+     * @param api the API Storage
+     * @return the serialised state from the entry or null if it doesn't have any
+     * @throws IOException if the payload is invalid
+     */
+    @Nullable
+    private static byte[] apply(@NonNull DataInputStream data, boolean hasState, @NonNull Storage current, @NonNull Storage api) throws IOException {
+        final int count = readVarInt(data);
+        List<Way> ways = new ArrayList<>();
+        List<long[]> wayNodes = new ArrayList<>();
+        List<Relation> relations = new ArrayList<>();
+        List<List<Object[]>> relationMembers = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte type = data.readByte();
+            long oldId = readSignedVarLong(data);
+            long id = readSignedVarLong(data);
+            long version = readSignedVarLong(data);
+            long timestamp = readSignedVarLong(data);
+            byte state = data.readByte();
+            int flags = data.readByte();
+            TreeMap<String, String> tags = new TreeMap<>();
+            int tagCount = readVarInt(data);
+            for (int j = 0; j < tagCount; j++) {
+                tags.put(readString(data), readString(data));
+            }
+            OsmElement e = get(current, api, type, oldId);
+            if (e != null) {
+                // remove first as the id may change
+                current.removeElement(e);
+                api.removeElement(e);
+            } else if (flags != 0) {
+                switch (type) {
+                case TYPE_NODE:
+                    e = OsmElementFactory.createNode(id, version, timestamp, state, 0, 0);
+                    break;
+                case TYPE_WAY:
+                    e = OsmElementFactory.createWay(id, version, timestamp, state);
+                    break;
+                default:
+                    e = OsmElementFactory.createRelation(id, version, timestamp, state);
+                }
+            }
+            if (e != null) {
+                e.osmId = id;
+                e.osmVersion = version;
+                e.setTimestamp(timestamp);
+                e.setState(state);
+                e.setTags(tags);
+                if ((flags & IN_CURRENT) != 0) {
+                    current.insertElementUnsafe(e);
+                }
+                if ((flags & IN_API) != 0) {
+                    api.insertElementUnsafe(e);
+                }
+            }
+            switch (type) {
+            case TYPE_NODE:
+                int lat = (int) readSignedVarLong(data);
+                int lon = (int) readSignedVarLong(data);
+                if (e != null) {
+                    ((Node) e).lat = lat;
+                    ((Node) e).lon = lon;
+                }
+                break;
+            case TYPE_WAY:
+                long[] nodeIds = new long[readVarInt(data)];
+                long prev = 0;
+                for (int j = 0; j < nodeIds.length; j++) {
+                    prev += readSignedVarLong(data);
+                    nodeIds[j] = prev;
+                }
+                if (e != null) {
+                    ways.add((Way) e);
+                    wayNodes.add(nodeIds);
+                }
+                break;
+            case TYPE_RELATION:
+                int memberCount = readVarInt(data);
+                List<Object[]> members = new ArrayList<>(memberCount);
+                for (int j = 0; j < memberCount; j++) {
+                    String memberType = nameOf(data.readByte());
+                    long ref = readSignedVarLong(data);
+                    String role = data.readBoolean() ? readString(data) : null;
+                    members.add(new Object[] { new RelationMember(memberType, ref, role), data.readBoolean() });
+                }
+                if (e != null) {
+                    relations.add((Relation) e);
+                    relationMembers.add(members);
+                }
+                break;
+            default:
+                throw new IOException("Unknown element type " + type);
+            }
+        }
+        // references can only be resolved once all elements exist
+        for (int i = 0; i < ways.size(); i++) {
+            Way w = ways.get(i);
+            w.removeAllNodes();
+            for (long nodeId : wayNodes.get(i)) {
+                OsmElement n = get(current, api, TYPE_NODE, nodeId);
+                if (n != null) {
+                    w.addNode((Node) n);
+                } else {
+                    Log.w(DEBUG_TAG, "Node " + nodeId + " of way " + w.getOsmId() + " not found");
+                }
+            }
+            w.invalidateBoundingBox();
+        }
+        for (int i = 0; i < relations.size(); i++) {
+            Relation r = relations.get(i);
+            r.members.clear();
+            for (Object[] member : relationMembers.get(i)) {
+                RelationMember rm = (RelationMember) member[0];
+                if ((Boolean) member[1]) {
+                    rm.setElement(get(current, api, typeOf(rm.type), rm.ref));
+                }
+                r.addMember(rm);
+            }
+        }
+        readBoxes(data, current);
+        readBoxes(data, api);
+        if (!hasState) {
+            return null;
+        }
+        byte[] stateBytes = new byte[readVarInt(data)];
+        data.readFully(stateBytes);
+        return stateBytes;
+    }
+
+    /**
+     * Get an element from the current or API storage
+     *
+     * @param current the current Storage
+     * @param api the API Storage
+     * @param type the element type code
+     * @param id the element id
+     * @return the OsmElement or null if not found
+     * @throws IOException if the type is unknown
+     */
+    @Nullable
+    private static OsmElement get(@NonNull Storage current, @NonNull Storage api, byte type, long id) throws IOException {
+        String name = nameOf(type);
+        OsmElement e = current.getOsmElement(name, id);
+        return e != null ? e : api.getOsmElement(name, id);
+    }
+
+    /**
+     * Read and replace the bounding boxes of a Storage
+     *
+     * @param data the input
+     * @param storage the Storage
+     * @throws IOException if reading fails
+     */
+    private static void readBoxes(@NonNull DataInputStream data, @NonNull Storage storage) throws IOException {
+        storage.clearBoundingBoxList();
+        int boxes = readVarInt(data);
+        for (int i = 0; i < boxes; i++) {
+            storage.addBoundingBox(new BoundingBox(data.readInt(), data.readInt(), data.readInt(), data.readInt()));
+        }
+    }
+
+    /**
+     * Deserialise the state from an entry
+     *
+     * @param stateBytes the serialised state
+     * @param current the current Storage
+     * @param api the API Storage
+     * @return the state
+     * @throws IOException if the state can't be read
+     */
+    @NonNull
+    private static Object[] readState(@NonNull byte[] stateBytes, @NonNull final Storage current, @NonNull final Storage api) throws IOException {
+        try (ObjectInputStream stateIn = new ObjectInputStream(new ByteArrayInputStream(stateBytes)) {
+            {
+                enableResolveObject(true);
+            }
+
+            @Override
+            protected Object resolveObject(Object obj) throws IOException {
+                if (obj instanceof ElementKey) {
+                    ElementKey key = (ElementKey) obj;
+                    OsmElement e = get(current, api, key.type, key.id);
+                    if (e == null) {
+                        throw new IOException("Element " + nameOf(key.type) + " " + key.id + " not found");
+                    }
+                    return e;
+                }
+                if (obj instanceof StorageKey) {
+                    return ((StorageKey) obj).index == CURRENT_STORAGE ? current : api;
+                }
+                return obj;
+            }
+
+            @Override
+            protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+                try {
+                    return Class.forName(desc.getName(), false, StorageJournal.class.getClassLoader());
+                } catch (ClassNotFoundException e) {
+                    return super.resolveClass(desc);
+                }
+            }
+        }) {
+            return (Object[]) stateIn.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Invalid journal state " + e.getMessage());
+        }
+    }
+}
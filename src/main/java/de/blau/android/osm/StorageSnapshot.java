@@ -0,0 +1,914 @@
+package de.blau.android.osm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import de.blau.android.util.Util;
+
+/**
+ * Compact binary snapshot format for the state of a StorageDelegator
+ *
+ * The OSM elements from all Storage instances reachable from the state are written in a columnar fashion, per element
+ * type, sorted by id, with delta coded ids and coordinates, tags and roles referring to a common string table and Way
+ * nodes and relation members referring to positions in the element tables. Each Storage is written as a list of
+ * element indices plus its bounding boxes.
+ *
+ * Everything else (undo checkpoints, clipboard, id sequences, ...) is comparatively small and is written with standard
+ * Java serialisation, with references to OsmElements and Storage instances replaced by indices in to the tables above,
+ * so that object identity is retained when reading the snapshot back.
+ *
+ * Layout: magic, version, string table, nodes, ways, relations, parent relations, storages, references, state
+ *
+ * @author simon
+ *
+ */
+final class StorageSnapshot {
+
+    static final int MAGIC   = 0x56534E50; // VSNP
+    static final int VERSION = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final byte TYPE_NODE     = 0;
+    static final byte TYPE_WAY      = 1;
+    static final byte TYPE_RELATION = 2;
+
+    private static final Comparator<OsmElement> idOrder = (e1, e2) -> Util.longCompare(e1.getOsmId(), e2.getOsmId());
+
+    /**
+     * Private constructor to stop instantiation
+     */
+    private StorageSnapshot() {
+        // private
+    }
+
+    /**
+     * Reference to an OsmElement in the serialised state
+     */
+    private static final class ElementRef implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final int index;
+
+        /**
+         * Create a new reference
+         *
+         * @param index the index in the reference table
+         */
+        ElementRef(int index) {
+            this.index = index;
+        }
+    }
+
+    /**
+     * Reference to a Storage in the serialised state
+     */
+    private static final class StorageRef implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final int index;
+
+        /**
+         * Create a new reference
+         *
+         * @param index the index in the storage table
+         */
+        StorageRef(int index) {
+            this.index = index;
+        }
+    }
+
+    /**
+     * Check if the stream contains a snapshot, the stream must support mark and reset
+     *
+     * @param in the InputStream
+     * @return true if the stream starts with the snapshot magic number
+     * @throws IOException if reading fails
+     */
+    static boolean isSnapshot(@NonNull InputStream in) throws IOException {
+        in.mark(4);
+        try {
+            int magic = 0;
+            for (int i = 0; i < 4; i++) {
+                int b = in.read();
+                if (b < 0) {
+                    return false;
+                }
+                magic = (magic << 8) | b;
+            }
+            return magic == MAGIC;
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * Write a snapshot of state
+     *
+     * @param out the OutputStream to write to, should be buffered
+     * @param state the state to write
+     * @throws IOException if writing fails
+     */
+    static void write(@NonNull OutputStream out, @NonNull Serializable[] state) throws IOException {
+        new Writer().write(out, state);
+    }
+
+    /**
+     * Read a snapshot
+     *
+     * @param in the InputStream to read from, should be buffered
+     * @return the state as written
+     * @throws IOException if reading fails or the snapshot is invalid
+     */
+    @NonNull
+    static Object[] read(@NonNull InputStream in) throws IOException {
+        return new Reader().read(in);
+    }
+
+    private static final class Writer {
+        private final IdentityHashMap<OsmElement, Boolean> seen      = new IdentityHashMap<>();
+        private final Deque<OsmElement>                    pending   = new ArrayDeque<>();
+        private final List<Node>                           nodes     = new ArrayList<>();
+        private final List<Way>                            ways      = new ArrayList<>();
+        private final List<Relation>                       relations = new ArrayList<>();
+        private final IdentityHashMap<OsmElement, Integer> indices   = new IdentityHashMap<>();
+
+        private final IdentityHashMap<Storage, Integer> storageIndices = new IdentityHashMap<>();
+        private final List<Storage>                     storages       = new ArrayList<>();
+
+        private final IdentityHashMap<OsmElement, Integer> refIndices = new IdentityHashMap<>();
+        private final List<OsmElement>                     refs       = new ArrayList<>();
+
+        private final Map<String, Integer> strings     = new HashMap<>();
+        private final List<String>         stringTable = new ArrayList<>();
+
+        /**
+         * Write a snapshot of state
+         *
+         * @param out the OutputStream to write to
+         * @param state the state to write
+         * @throws IOException if writing fails
+         */
+        void write(@NonNull OutputStream out, @NonNull Serializable[] state) throws IOException {
+            // serialise the state first as this determines which Storages and elements we need to write
+            ByteArrayOutputStream stateBytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream stateOut = new ObjectOutputStream(stateBytes) {
+                {
+                    enableReplaceObject(true);
+                }
+
+                @Override
+                protected Object replaceObject(Object obj) throws IOException {
+                    if (obj instanceof OsmElement) {
+                        return new ElementRef(addRef((OsmElement) obj));
+                    }
+                    if (obj instanceof Storage) {
+                        return new StorageRef(addStorage((Storage) obj));
+                    }
+                    return obj;
+                }
+            }) {
+                stateOut.writeObject(state);
+            }
+            drain();
+            Collections.sort(nodes, idOrder);
+            Collections.sort(ways, idOrder);
+            Collections.sort(relations, idOrder);
+            index(nodes, 0);
+            index(ways, nodes.size());
+            index(relations, nodes.size() + ways.size());
+            collectStrings();
+
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            writeVarInt(data, stringTable.size());
+            for (String s : stringTable) {
+                writeString(data, s);
+            }
+            writeNodes(data);
+            writeWays(data);
+            writeRelations(data);
+            writeParents(data);
+            writeStorages(data);
+            writeVarInt(data, refs.size());
+            for (OsmElement e : refs) {
+                writeVarInt(data, indices.get(e));
+            }
+            writeVarInt(data, stateBytes.size());
+            stateBytes.writeTo(data);
+            data.flush();
+        }
+
+        /**
+         * Add a Storage and all its elements
+         *
+         * @param storage the Storage
+         * @return the index of the Storage
+         */
+        private int addStorage(@NonNull Storage storage) {
+            Integer index = storageIndices.get(storage);
+            if (index == null) {
+                index = storages.size();
+                storageIndices.put(storage, index);
+                storages.add(storage);
+                for (Node n : storage.getNodes()) {
+                    add(n);
+                }
+                for (Way w : storage.getWays()) {
+                    add(w);
+                }
+                for (Relation r : storage.getRelations()) {
+                    add(r);
+                }
+            }
+            return index;
+        }
+
+        /**
+         * Add a referenced element
+         *
+         * @param e the OsmElement
+         * @return the index of the reference
+         */
+        private int addRef(@NonNull OsmElement e) {
+            Integer index = refIndices.get(e);
+            if (index == null) {
+                index = refs.size();
+                refIndices.put(e, index);
+                refs.add(e);
+                add(e);
+            }
+            return index;
+        }
+
+        /**
+         * Add an element to the element tables
+         *
+         * @param e the OsmElement
+         */
+        private void add(@Nullable OsmElement e) {
+            if (e != null && seen.put(e, Boolean.TRUE) == null) {
+                if (e instanceof Node) {
+                    nodes.add((Node) e);
+                } else if (e instanceof Way) {
+                    ways.add((Way) e);
+                } else if (e instanceof Relation) {
+                    relations.add((Relation) e);
+                }
+                pending.push(e);
+            }
+        }
+
+        /**
+         * Add all elements that are referenced by the elements added so far
+         */
+        private void drain() {
+            while (!pending.isEmpty()) {
+                OsmElement e = pending.pop();
+                if (e instanceof Way) {
+                    for (Node n : ((Way) e).getNodes()) {
+                        add(n);
+                    }
+                } else if (e instanceof Relation) {
+                    for (RelationMember rm : ((Relation) e).members) {
+                        add(rm.getElement());
+                    }
+                }
+                List<Relation> parents = e.getParentRelations();
+                if (parents != null) {
+                    for (Relation r : parents) {
+                        add(r);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Assign the final indices to elements
+         *
+         * @param elements a sorted List of elements
+         * @param offset the index of the first element
+         */
+        private void index(@NonNull List<? extends OsmElement> elements, int offset) {
+            for (int i = 0; i < elements.size(); i++) {
+                indices.put(elements.get(i), offset + i);
+            }
+        }
+
+        /**
+         * Build the string table from tags and roles
+         */
+        private void collectStrings() {
+            for (Node n : nodes) {
+                collectTags(n);
+            }
+            for (Way w : ways) {
+                collectTags(w);
+            }
+            for (Relation r : relations) {
+                collectTags(r);
+                for (RelationMember rm : r.members) {
+                    if (rm.role != null) {
+                        string(rm.role);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Add the tags of an element to the string table
+         *
+         * @param e the OsmElement
+         */
+        private void collectTags(@NonNull OsmElement e) {
+            if (e.tags != null) {
+                for (Entry<String, String> tag : e.tags.entrySet()) {
+                    string(tag.getKey());
+                    string(tag.getValue());
+                }
+            }
+        }
+
+        /**
+         * Get the index of a string in the string table, adding it if necessary
+         *
+         * @param s the String
+         * @return the index
+         */
+        private int string(@NonNull String s) {
+            Integer index = strings.get(s);
+            if (index == null) {
+                index = stringTable.size();
+                strings.put(s, index);
+                stringTable.add(s);
+            }
+            return index;
+        }
+
+        /**
+         * Write the attributes common to all element types
+         *
+         * @param data the output
+         * @param elements the elements
+         * @throws IOException if writing fails
+         */
+        private void writeCommon(@NonNull DataOutputStream data, @NonNull List<? extends OsmElement> elements) throws IOException {
+            writeVarInt(data, elements.size());
+            long prev = 0;
+            for (OsmElement e : elements) {
+                writeSignedVarLong(data, e.osmId - prev);
+                prev = e.osmId;
+            }
+            for (OsmElement e : elements) {
+                writeSignedVarLong(data, e.osmVersion);
+            }
+            prev = 0;
+            for (OsmElement e : elements) {
+                long timestamp = e.getTimestamp();
+                writeSignedVarLong(data, timestamp - prev);
+                prev = timestamp;
+            }
+            for (OsmElement e : elements) {
+                data.writeByte(e.state);
+            }
+            for (OsmElement e : elements) {
+                if (e.tags == null) {
+                    writeVarInt(data, 0);
+                } else {
+                    writeVarInt(data, e.tags.size());
+                    for (Entry<String, String> tag : e.tags.entrySet()) {
+                        writeVarInt(data, strings.get(tag.getKey()));
+                        writeVarInt(data, strings.get(tag.getValue()));
+                    }
+                }
+            }
+        }
+
+        /**
+         * Write the Node table
+         *
+         * @param data the output
+         * @throws IOException if writing fails
+         */
+        private void writeNodes(@NonNull DataOutputStream data) throws IOException {
+            writeCommon(data, nodes);
+            int prev = 0;
+            for (Node n : nodes) {
+                writeSignedVarLong(data, (long) n.lat - prev);
+                prev = n.lat;
+            }
+            prev = 0;
+            for (Node n : nodes) {
+                writeSignedVarLong(data, (long) n.lon - prev);
+                prev = n.lon;
+            }
+        }
+
+        /**
+         * Write the Way table
+         *
+         * @param data the output
+         * @throws IOException if writing fails
+         */
+        private void writeWays(@NonNull DataOutputStream data) throws IOException {
+            writeCommon(data, ways);
+            for (Way w : ways) {
+                List<Node> wayNodes = w.getNodes();
+                writeVarInt(data, wayNodes.size());
+                int prev = 0;
+                for (Node n : wayNodes) {
+                    int index = indices.get(n);
+                    writeSignedVarLong(data, (long) index - prev);
+                    prev = index;
+                }
+            }
+        }
+
+        /**
+         * Write the Relation table
+         *
+         * @param data the output
+         * @throws IOException if writing fails
+         */
+        private void writeRelations(@NonNull DataOutputStream data) throws IOException {
+            writeCommon(data, relations);
+            for (Relation r : relations) {
+                writeVarInt(data, r.members.size());
+                for (RelationMember rm : r.members) {
+                    data.writeByte(typeOf(rm.type));
+                    writeSignedVarLong(data, rm.ref);
+                    writeVarInt(data, rm.role == null ? 0 : strings.get(rm.role) + 1);
+                    OsmElement e = rm.getElement();
+                    writeVarInt(data, e == null ? 0 : indices.get(e) + 1);
+                }
+            }
+        }
+
+        /**
+         * Write the parent relations of all elements
+         *
+         * @param data the output
+         * @throws IOException if writing fails
+         */
+        private void writeParents(@NonNull DataOutputStream data) throws IOException {
+            final int relationOffset = nodes.size() + ways.size();
+            for (List<? extends OsmElement> elements : new List<?>[] { nodes, ways, relations }) { // NOSONAR
+                for (OsmElement e : elements) {
+                    List<Relation> parents = e.getParentRelations();
+                    if (parents == null) {
+                        writeVarInt(data, 0);
+                    } else {
+                        writeVarInt(data, parents.size());
+                        for (Relation r : parents) {
+                            writeVarInt(data, indices.get(r) - relationOffset);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Write the contents of all Storages
+         *
+         * @param data the output
+         * @throws IOException if writing fails
+         */
+        private void writeStorages(@NonNull DataOutputStream data) throws IOException {
+            writeVarInt(data, storages.size());
+            for (Storage storage : storages) {
+                writeIndices(data, storage.getNodes());
+                writeIndices(data, storage.getWays());
+                writeIndices(data, storage.getRelations());
+                List<BoundingBox> boxes = storage.getBoundingBoxes();
+                writeVarInt(data, boxes.size());
+                for (BoundingBox box : boxes) {
+                    data.writeInt(box.getLeft());
+                    data.writeInt(box.getBottom());
+                    data.writeInt(box.getRight());
+                    data.writeInt(box.getTop());
+                }
+            }
+        }
+
+        /**
+         * Write the sorted indices of elements
+         *
+         * @param data the output
+         * @param elements the elements
+         * @throws IOException if writing fails
+         */
+        private void writeIndices(@NonNull DataOutputStream data, @NonNull List<? extends OsmElement> elements) throws IOException {
+            int[] temp = new int[elements.size()];
+            for (int i = 0; i < temp.length; i++) {
+                temp[i] = indices.get(elements.get(i));
+            }
+            Arrays.sort(temp);
+            writeVarInt(data, temp.length);
+            int prev = 0;
+            for (int index : temp) {
+                writeVarInt(data, index - prev);
+                prev = index;
+            }
+        }
+    }
+
+    private static final class Reader {
+        private String[]     stringTable;
+        private OsmElement[] elements;
+        private Storage[]    storages;
+        private OsmElement[] refs;
+
+        /**
+         * Read a snapshot
+         *
+         * @param in the InputStream
+         * @return the state
+         * @throws IOException if reading fails or the snapshot is invalid
+         */
+        @NonNull
+        Object[] read(@NonNull InputStream in) throws IOException {
+            DataInputStream data = new DataInputStream(in);
+            if (data.readInt() != MAGIC) {
+                throw new IOException("Not a snapshot");
+            }
+            int version = data.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+            stringTable = new String[readVarInt(data)];
+            for (int i = 0; i < stringTable.length; i++) {
+                stringTable[i] = readString(data);
+            }
+            List<Node> nodes = readNodes(data);
+            final int nodeCount = nodes.size();
+            List<Way> ways = readCommon(data, TYPE_WAY);
+            final int wayCount = ways.size();
+            elements = new OsmElement[nodeCount + wayCount];
+            nodes.toArray(elements);
+            for (int i = 0; i < wayCount; i++) {
+                elements[nodeCount + i] = ways.get(i);
+            }
+            for (Way w : ways) {
+                int size = readVarInt(data);
+                int index = 0;
+                for (int i = 0; i < size; i++) {
+                    index += (int) readSignedVarLong(data);
+                    w.addNode((Node) elements[index]);
+                }
+            }
+            List<Relation> relations = readCommon(data, TYPE_RELATION);
+            OsmElement[] temp = new OsmElement[nodeCount + wayCount + relations.size()];
+            System.arraycopy(elements, 0, temp, 0, elements.length);
+            for (int i = 0; i < relations.size(); i++) {
+                temp[nodeCount + wayCount + i] = relations.get(i);
+            }
+            elements = temp;
+            readMembers(data, relations);
+            readParents(data, relations);
+            readStorages(data);
+            refs = new OsmElement[readVarInt(data)];
+            for (int i = 0; i < refs.length; i++) {
+                refs[i] = elements[readVarInt(data)];
+            }
+            int stateSize = readVarInt(data);
+            byte[] stateBytes = new byte[stateSize];
+            data.readFully(stateBytes);
+            try (ObjectInputStream stateIn = new ObjectInputStream(new ByteArrayInputStream(stateBytes)) {
+                {
+                    enableResolveObject(true);
+                }
+
+                @Override
+                protected Object resolveObject(Object obj) throws IOException {
+                    if (obj instanceof ElementRef) {
+                        return refs[((ElementRef) obj).index];
+                    }
+                    if (obj instanceof StorageRef) {
+                        return storages[((StorageRef) obj).index];
+                    }
+                    return obj;
+                }
+
+                @Override
+                protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+                    try {
+                        return Class.forName(desc.getName(), false, StorageSnapshot.class.getClassLoader());
+                    } catch (ClassNotFoundException e) {
+                        return super.resolveClass(desc);
+                    }
+                }
+            }) {
+                return (Object[]) stateIn.readObject();
+            } catch (ClassNotFoundException | ClassCastException e) {
+                throw new IOException("Invalid snapshot state " + e.getMessage());
+            }
+        }
+
+        /**
+         * Read the attributes common to all element types and create the elements
+         *
+         * @param <T> the element type
+         * @param data the input
+         * @param type the element type
+         * @return a List of the new elements
+         * @throws IOException if reading fails
+         */
+        @SuppressWarnings("unchecked")
+        @NonNull
+        private <T extends OsmElement> List<T> readCommon(@NonNull DataInputStream data, byte type) throws IOException {
+            final int count = readVarInt(data);
+            long[] ids = new long[count];
+            long prev = 0;
+            for (int i = 0; i < count; i++) {
+                prev += readSignedVarLong(data);
+                ids[i] = prev;
+            }
+            long[] versions = new long[count];
+            for (int i = 0; i < count; i++) {
+                versions[i] = readSignedVarLong(data);
+            }
+            long[] timestamps = new long[count];
+            prev = 0;
+            for (int i = 0; i < count; i++) {
+                prev += readSignedVarLong(data);
+                timestamps[i] = prev;
+            }
+            List<T> result = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte state = data.readByte();
+                switch (type) {
+                case TYPE_NODE:
+                    result.add((T) OsmElementFactory.createNode(ids[i], versions[i], timestamps[i], state, 0, 0));
+                    break;
+                case TYPE_WAY:
+                    result.add((T) OsmElementFactory.createWay(ids[i], versions[i], timestamps[i], state));
+                    break;
+                default:
+                    result.add((T) OsmElementFactory.createRelation(ids[i], versions[i], timestamps[i], state));
+                }
+            }
+            for (T e : result) {
+                int tagCount = readVarInt(data);
+                if (tagCount > 0) {
+                    // written from a sorted map
+                    String[] keyValues = new String[tagCount * 2];
+                    for (int j = 0; j < keyValues.length; j++) {
+                        keyValues[j] = stringTable[readVarInt(data)];
+                    }
+                    e.tags = TagSet.ofSorted(keyValues);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Read the Node table
+         *
+         * @param data the input
+         * @return a List of Nodes
+         * @throws IOException if reading fails
+         */
+        @NonNull
+        private List<Node> readNodes(@NonNull DataInputStream data) throws IOException {
+            List<Node> nodes = readCommon(data, TYPE_NODE);
+            int prev = 0;
+            for (Node n : nodes) {
+                prev += (int) readSignedVarLong(data);
+                n.lat = prev;
+            }
+            prev = 0;
+            for (Node n : nodes) {
+                prev += (int) readSignedVarLong(data);
+                n.lon = prev;
+            }
+            return nodes;
+        }
+
+        /**
+         * Read the Relation members
+         *
+         * @param data the input
+         * @param relations the Relations
+         * @throws IOException if reading fails
+         */
+        private void readMembers(@NonNull DataInputStream data, @NonNull List<Relation> relations) throws IOException {
+            for (Relation r : relations) {
+                int size = readVarInt(data);
+                for (int i = 0; i < size; i++) {
+                    String type = nameOf(data.readByte());
+                    long ref = readSignedVarLong(data);
+                    int role = readVarInt(data);
+                    RelationMember rm = new RelationMember(type, ref, role == 0 ? null : stringTable[role - 1]);
+                    int element = readVarInt(data);
+                    if (element > 0) {
+                        rm.setElement(elements[element - 1]);
+                    }
+                    r.addMember(rm);
+                }
+            }
+        }
+
+        /**
+         * Read the parent relations of all elements
+         *
+         * @param data the input
+         * @param relations the Relations
+         * @throws IOException if reading fails
+         */
+        private void readParents(@NonNull DataInputStream data, @NonNull List<Relation> relations) throws IOException {
+            for (OsmElement e : elements) {
+                int size = readVarInt(data);
+                for (int i = 0; i < size; i++) {
+                    e.addParentRelation(relations.get(readVarInt(data)));
+                }
+            }
+        }
+
+        /**
+         * Read the contents of all Storages
+         *
+         * @param data the input
+         * @throws IOException if reading fails
+         */
+        private void readStorages(@NonNull DataInputStream data) throws IOException {
+            storages = new Storage[readVarInt(data)];
+            for (int s = 0; s < storages.length; s++) {
+                Storage storage = new Storage();
+                for (int type = TYPE_NODE; type <= TYPE_RELATION; type++) {
+                    int size = readVarInt(data);
+                    int index = 0;
+                    for (int i = 0; i < size; i++) {
+                        index += readVarInt(data);
+                        storage.insertElementUnsafe(elements[index]);
+                    }
+                }
+                int boxes = readVarInt(data);
+                for (int i = 0; i < boxes; i++) {
+                    storage.addBoundingBox(new BoundingBox(data.readInt(), data.readInt(), data.readInt(), data.readInt()));
+                }
+                storages[s] = storage;
+            }
+        }
+    }
+
+    /**
+     * Get the type code for an element type name
+     *
+     * @param name the name
+     * @return the type code
+     * @throws IOException if the name is unknown
+     */
+    static byte typeOf(@NonNull String name) throws IOException {
+        switch (name) {
+        case Node.NAME:
+            return TYPE_NODE;
+        case Way.NAME:
+            return TYPE_WAY;
+        case Relation.NAME:
+            return TYPE_RELATION;
+        default:
+            throw new IOException("Unknown element type " + name);
+        }
+    }
+
+    /**
+     * Get the element type name for a type code
+     *
+     * @param type the type code
+     * @return the name
+     * @throws IOException if the code is unknown
+     */
+    @NonNull
+    static String nameOf(byte type) throws IOException {
+        switch (type) {
+        case TYPE_NODE:
+            return Node.NAME;
+        case TYPE_WAY:
+            return Way.NAME;
+        case TYPE_RELATION:
+            return Relation.NAME;
+        default:
+            throw new IOException("Unknown element type " + type);
+        }
+    }
+
+    /**
+     * Write a non-negative int as a variable length quantity
+     *
+     * @param data the output
+     * @param value the value
+     * @throws IOException if writing fails
+     */
+    static void writeVarInt(@NonNull DataOutputStream data, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            data.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data.writeByte(value);
+    }
+
+    /**
+     * Read a non-negative variable length int
+     *
+     * @param data the input
+     * @return the value
+     * @throws IOException if reading fails
+     */
+    static int readVarInt(@NonNull DataInputStream data) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = data.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Invalid varint");
+    }
+
+    /**
+     * Write a signed long zigzag encoded as a variable length quantity
+     *
+     * @param data the output
+     * @param value the value
+     * @throws IOException if writing fails
+     */
+    static void writeSignedVarLong(@NonNull DataOutputStream data, long value) throws IOException {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            data.writeByte((int) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        data.writeByte((int) zigzag);
+    }
+
+    /**
+     * Read a signed zigzag encoded variable length long
+     *
+     * @param data the input
+     * @return the value
+     * @throws IOException if reading fails
+     */
+    static long readSignedVarLong(@NonNull DataInputStream data) throws IOException {
+        long zigzag = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = data.readUnsignedByte();
+            zigzag |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new IOException("Invalid varlong");
+    }
+
+    /**
+     * Write a String as length prefixed UTF-8
+     *
+     * @param data the output
+     * @param s the String
+     * @throws IOException if writing fails
+     */
+    static void writeString(@NonNull DataOutputStream data, @NonNull String s) throws IOException {
+        byte[] bytes = s.getBytes(UTF_8);
+        writeVarInt(data, bytes.length);
+        data.write(bytes);
+    }
+
+    /**
+     * Read a length prefixed UTF-8 String
+     *
+     * @param data the input
+     * @return the String
+     * @throws IOException if reading fails
+     */
+    @NonNull
+    static String readString(@NonNull DataInputStream data) throws IOException {
+        byte[] bytes = new byte[readVarInt(data)];
+        data.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
@@ -0,0 +1,457 @@
+package de.blau.android.osm;
+
+import java.io.Serializable;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Immutable, interned set of tags
+ *
+ * The tags are stored in a flat array of alternating keys and values sorted by key. Instances are obtained via
+ * {@link #of(Map)} which returns the same instance for equal tags, so that elements with identical tags share a
+ * single object, and the key and value Strings are shared between all instances. The pools only hold weak
+ * references, tag sets that are no longer used by any element will be garbage collected. The pools are concurrent
+ * and don't need a global lock, as tags are parsed on several threads at the same time.
+ *
+ * As instances are never modified they can safely be used as keys in caches and returned directly from
+ * {@link OsmElement#getTags()}.
+ *
+ * @author simon
+ *
+ */
+final class TagSet extends AbstractMap<String, String> implements SortedMap<String, String>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    static final TagSet EMPTY = new TagSet(new String[0]);
+
+    private static final Interner<TagSet> pool    = new TagSetInterner();
+    private static final Interner<String> strings = new Interner<>();
+
+    private final String[] keyValues;
+
+    private transient int hash = 0;
+
+    /**
+     * Construct a new instance
+     *
+     * @param keyValues alternating keys and values sorted by key
+     */
+    private TagSet(@NonNull String[] keyValues) {
+        this.keyValues = keyValues;
+    }
+
+    /**
+     * Get the interned TagSet for a Map of tags
+     *
+     * @param tags the tags, can be null
+     * @return a TagSet, EMPTY if tags is null or empty
+     */
+    @NonNull
+    static TagSet of(@Nullable Map<String, String> tags) {
+        if (tags == null || tags.isEmpty()) {
+            return EMPTY;
+        }
+        if (tags instanceof TagSet) {
+            return (TagSet) tags;
+        }
+        String[] keyValues = new String[tags.size() * 2];
+        if (tags instanceof SortedMap && ((SortedMap<String, String>) tags).comparator() == null) {
+            int i = 0;
+            for (Entry<String, String> tag : tags.entrySet()) {
+                keyValues[i++] = tag.getKey();
+                keyValues[i++] = tag.getValue();
+            }
+        } else {
+            String[] keys = tags.keySet().toArray(new String[tags.size()]);
+            Arrays.sort(keys);
+            for (int i = 0; i < keys.length; i++) {
+                keyValues[2 * i] = keys[i];
+                keyValues[2 * i + 1] = tags.get(keys[i]);
+            }
+        }
+        return intern(new TagSet(keyValues));
+    }
+
+    /**
+     * Get the interned TagSet for an array of alternating keys and values
+     *
+     * @param keyValues alternating keys and values, the keys must be unique and sorted, the array must not be modified
+     *            afterwards
+     * @return a TagSet
+     */
+    @NonNull
+    static TagSet ofSorted(@NonNull String[] keyValues) {
+        if (keyValues.length == 0) {
+            return EMPTY;
+        }
+        return intern(new TagSet(keyValues));
+    }
+
+    /**
+     * Return the pooled instance equal to a TagSet, adding it to the pool if necessary
+     *
+     * @param tagSet the TagSet
+     * @return the pooled instance
+     */
+    @NonNull
+    private static TagSet intern(@NonNull TagSet tagSet) {
+        TagSet pooled = pool.get(tagSet);
+        if (pooled != null) {
+            return pooled;
+        }
+        // not published yet, so the array can still be changed
+        String[] keyValues = tagSet.keyValues;
+        for (int i = 0; i < keyValues.length; i++) {
+            if (keyValues[i] != null) {
+                keyValues[i] = strings.intern(keyValues[i]);
+            }
+        }
+        return pool.add(tagSet);
+    }
+
+    /**
+     * Get the number of distinct TagSets currently in use
+     *
+     * @return the size of the pool
+     */
+    static int poolSize() {
+        return pool.size();
+    }
+
+    /**
+     * Concurrent pool of weakly referenced canonical instances
+     *
+     * @param <T> the type of the pooled objects
+     */
+    private static class Interner<T> {
+        private final ConcurrentHashMap<Object, WeakKey<T>> map   = new ConcurrentHashMap<>();
+        private final ReferenceQueue<T>                     queue = new ReferenceQueue<>();
+
+        /**
+         * Get the pooled instance equal to a value
+         *
+         * @param value the value
+         * @return the pooled instance or null if there is none
+         */
+        @Nullable
+        T get(@NonNull T value) {
+            expunge();
+            WeakKey<T> ref = map.get(new LookupKey(value, hash(value)));
+            return ref != null ? ref.get() : null;
+        }
+
+        /**
+         * Get the pooled instance equal to a value, adding the value if there is none
+         *
+         * @param value the value
+         * @return the pooled instance
+         */
+        @NonNull
+        T intern(@NonNull T value) {
+            T pooled = get(value);
+            return pooled != null ? pooled : add(value);
+        }
+
+        /**
+         * Add a value to the pool unless an equal one has been added concurrently
+         *
+         * @param value the value
+         * @return the pooled instance
+         */
+        @NonNull
+        T add(@NonNull T value) {
+            WeakKey<T> key = new WeakKey<>(value, hash(value), queue);
+            while (true) {
+                WeakKey<T> existing = map.putIfAbsent(key, key);
+                if (existing == null) {
+                    return value;
+                }
+                T pooled = existing.get();
+                if (pooled != null) {
+                    return pooled;
+                }
+                map.remove(existing, existing); // cleared but not expunged yet
+            }
+        }
+
+        /**
+         * Calculate the hash code used in the pool
+         *
+         * @param value the value
+         * @return the hash code
+         */
+        int hash(@NonNull T value) {
+            return value.hashCode();
+        }
+
+        /**
+         * Get the number of entries
+         *
+         * @return the number of pooled instances, may include some that have just been garbage collected
+         */
+        int size() {
+            expunge();
+            return map.size();
+        }
+
+        /**
+         * Remove the entries for garbage collected instances
+         */
+        private void expunge() {
+            Reference<? extends T> ref;
+            while ((ref = queue.poll()) != null) {
+                map.remove(ref, ref);
+            }
+        }
+    }
+
+    /**
+     * Pool for TagSets, the Map hash code only sums the entries and collides far more often than a hash of the array
+     */
+    private static final class TagSetInterner extends Interner<TagSet> {
+        @Override
+        int hash(@NonNull TagSet tagSet) {
+            return Arrays.hashCode(tagSet.keyValues);
+        }
+    }
+
+    /**
+     * Weak reference that compares equal to keys with an equal referent
+     *
+     * @param <T> the type of the referent
+     */
+    private static final class WeakKey<T> extends WeakReference<T> {
+        private final int hash;
+
+        /**
+         * Construct a new key
+         *
+         * @param referent the referenced object
+         * @param hash the pool hash code of referent
+         * @param queue the queue the key is added to once the referent has been garbage collected
+         */
+        WeakKey(@NonNull T referent, int hash, @NonNull ReferenceQueue<? super T> queue) {
+            super(referent, queue);
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            T referent = get();
+            if (referent == null) {
+                return false;
+            }
+            if (o instanceof WeakKey) {
+                return referent.equals(((WeakKey<?>) o).get());
+            }
+            return o instanceof LookupKey && referent.equals(((LookupKey) o).value);
+        }
+    }
+
+    /**
+     * Strongly referenced key for looking up entries without creating a WeakReference
+     */
+    private static final class LookupKey {
+        private final Object value;
+        private final int    hash;
+
+        /**
+         * Construct a new key
+         *
+         * @param value the value to look up
+         * @param hash the pool hash code of value
+         */
+        LookupKey(@NonNull Object value, int hash) {
+            this.value = value;
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof WeakKey) {
+                return value.equals(((WeakKey<?>) o).get());
+            }
+            return o instanceof LookupKey && value.equals(((LookupKey) o).value);
+        }
+    }
+
+    /**
+     * Make sure that deserialised instances are pooled
+     *
+     * @return the pooled instance
+     */
+    private Object readResolve() {
+        return keyValues.length == 0 ? EMPTY : intern(this);
+    }
+
+    /**
+     * Find the index of a key
+     *
+     * @param key the key
+     * @return the index of the key in keyValues or a negative value if not found
+     */
+    private int indexOf(@Nullable Object key) {
+        if (!(key instanceof String)) {
+            return -1;
+        }
+        int low = 0;
+        int high = keyValues.length / 2 - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = keyValues[2 * mid].compareTo((String) key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return 2 * mid;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String get(Object key) {
+        int index = indexOf(key);
+        return index >= 0 ? keyValues[index + 1] : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return keyValues.length / 2;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return keyValues.length == 0;
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        return new AbstractSet<Entry<String, String>>() {
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                return new Iterator<Entry<String, String>>() {
+                    int index = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return index < keyValues.length;
+                    }
+
+                    @Override
+                    public Entry<String, String> next() {
+                        if (index >= keyValues.length) {
+                            throw new NoSuchElementException();
+                        }
+                        Entry<String, String> entry = new SimpleImmutableEntry<>(keyValues[index], keyValues[index + 1]);
+                        index += 2;
+                        return entry;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return keyValues.length / 2;
+            }
+        };
+    }
+
+    @Override
+    public Comparator<? super String> comparator() {
+        return null;
+    }
+
+    @Override
+    public SortedMap<String, String> subMap(String fromKey, String toKey) {
+        return Collections.unmodifiableSortedMap(new TreeMap<>(this).subMap(fromKey, toKey));
+    }
+
+    @Override
+    public SortedMap<String, String> headMap(String toKey) {
+        return Collections.unmodifiableSortedMap(new TreeMap<>(this).headMap(toKey));
+    }
+
+    @Override
+    public SortedMap<String, String> tailMap(String fromKey) {
+        return Collections.unmodifiableSortedMap(new TreeMap<>(this).tailMap(fromKey));
+    }
+
+    @Override
+    public String firstKey() {
+        if (keyValues.length == 0) {
+            throw new NoSuchElementException();
+        }
+        return keyValues[0];
+    }
+
+    @Override
+    public String lastKey() {
+        if (keyValues.length == 0) {
+            throw new NoSuchElementException();
+        }
+        return keyValues[keyValues.length - 2];
+    }
+
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0) {
+            // same value as for any other Map with the same contents
+            for (int i = 0; i < keyValues.length; i += 2) {
+                String value = keyValues[i + 1];
+                h += keyValues[i].hashCode() ^ (value == null ? 0 : value.hashCode());
+            }
+            hash = h;
+        }
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o instanceof TagSet) {
+            return hashCode() == o.hashCode() && Arrays.equals(keyValues, ((TagSet) o).keyValues);
+        }
+        return super.equals(o);
+    }
+}
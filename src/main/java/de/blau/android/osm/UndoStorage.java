@@ -5,10 +5,12 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.Set;
+import java.util.SortedMap;
 
 import android.content.Context;
 import android.util.Log;
@@ -53,6 +55,12 @@ public class UndoStorage implements Serializable {
     private final LinkedList<Checkpoint> undoCheckpoints = new LinkedList<>();
     private final LinkedList<Checkpoint> redoCheckpoints = new LinkedList<>();
 
+    /**
+     * Elements that have been changed since the state was last saved, mapped to their id at the time they were first
+     * changed
+     */
+    private transient Map<OsmElement, Long> touched;
+
     static final Comparator<UndoElement> elementOrder = (ue1, ue2) -> {
         OsmElement e1 = ue1.element;
         OsmElement e2 = ue2.element;
@@ -145,6 +153,9 @@ public class UndoStorage implements Serializable {
      * @param name the name of the checkpoint, used for debugging and display purposes
      */
     public void createCheckpoint(@NonNull String name) {
+        // changes from the previous operation are complete
+        currentStorage.commitIndices();
+        apiStorage.commitIndices();
         if (undoCheckpoints.isEmpty() || !undoCheckpoints.getLast().isEmpty()) {
             undoCheckpoints.add(new Checkpoint(name));
         } else {
@@ -182,6 +193,7 @@ public class UndoStorage implements Serializable {
      * @param element the element to save
      */
     void save(@NonNull OsmElement element) {
+        invalidateIndices(element);
         try {
             if (undoCheckpoints.isEmpty()) {
                 Log.e(DEBUG_TAG, "Attempted to save without valid checkpoint - forgot to call createCheckpoint()");
@@ -203,6 +215,7 @@ public class UndoStorage implements Serializable {
      * @param inApiStorage true if the element is in the api storage
      */
     void save(@NonNull OsmElement element, boolean inCurrentStorage, boolean inApiStorage) {
+        invalidateIndices(element);
         try {
             if (undoCheckpoints.isEmpty()) {
                 Log.e(DEBUG_TAG, "Attempted to save without valid checkpoint - forgot to call createCheckpoint()");
@@ -214,6 +227,45 @@ public class UndoStorage implements Serializable {
         }
     }
 
+    /**
+     * Mark the element as about to be changed in the indices of both storages and record it for the journal
+     * 
+     * @param element the element that will be changed
+     */
+    private void invalidateIndices(@NonNull OsmElement element) {
+        currentStorage.invalidateIndices(element);
+        apiStorage.invalidateIndices(element);
+        touch(element);
+    }
+
+    /**
+     * Record that the element is about to be changed for the journal without creating an undo entry
+     * 
+     * This is used for changes that can't be undone, for example the new ids and versions assigned on upload
+     * 
+     * @param element the element that will be changed
+     */
+    void touch(@NonNull OsmElement element) {
+        if (touched == null) {
+            touched = new HashMap<>();
+        }
+        if (!touched.containsKey(element)) {
+            touched.put(element, element.getOsmId());
+        }
+    }
+
+    /**
+     * Get the elements that have been changed or restored since the last call and reset the list
+     * 
+     * @return a Map of the changed elements to their ids before the changes
+     */
+    @NonNull
+    Map<OsmElement, Long> drainTouched() {
+        Map<OsmElement, Long> result = touched != null ? touched : new HashMap<>();
+        touched = null;
+        return result;
+    }
+
     /**
      * Remove the saved state of this element from the last checkpoint
      * 
@@ -511,23 +563,17 @@ public class UndoStorage implements Serializable {
                         redoCheckpoint.add(getUptodateElement(ue.element)); // save current state
                     }
                 }
+                Set<Way> affectedWays = invalidateWaysForRestoredNodes(list);
                 // we sort according to element type and relation membership so that
                 // all member elements should be restored before their parents
                 Collections.sort(list, elementOrder);
-                boolean restoredNode = false;
                 for (UndoElement ue : list) {
-                    if (ue instanceof UndoNode) {
-                        restoredNode = true;
-                    }
                     ok = (ue.restore() != null) && ok;
                 }
-                if (restoredNode) {
-                    // zap the bounding box of all ways as their geometry may have changed
-                    //
-                    // this looks expensive but is actually the cheapest option
-                    for (Way way : currentStorage.getWays()) {
-                        way.invalidateBoundingBox();
-                    }
+                // zap the bounding box of the ways the restored nodes are members of as their geometry may have changed,
+                // restored ways take care of themselves
+                for (Way way : affectedWays) {
+                    way.invalidateBoundingBox();
                 }
 
                 delegator.fixupBacklinks();
@@ -535,6 +581,32 @@ public class UndoStorage implements Serializable {
             return ok;
         }
 
+        /**
+         * Mark all Ways in current storage that contain Nodes that are going to be restored as about to change in the
+         * storage indices
+         * 
+         * This needs to be done before the Nodes are restored
+         * 
+         * @param list the UndoElements to restore
+         * @return the Ways that contain restored Nodes
+         */
+        @NonNull
+        private Set<Way> invalidateWaysForRestoredNodes(@NonNull List<UndoElement> list) {
+            Set<Way> ways = new HashSet<>();
+            for (UndoElement ue : list) {
+                if (ue instanceof UndoNode) {
+                    Node n = currentStorage.getNode(ue.getOsmId());
+                    if (n != null) {
+                        ways.addAll(currentStorage.getWays(n));
+                    }
+                }
+            }
+            for (Way w : ways) {
+                invalidateIndices(w);
+            }
+            return ways;
+        }
+
         /**
          * @return true if no elements have yet been stored in this checkpoint
          */
@@ -580,10 +652,10 @@ public class UndoStorage implements Serializable {
 
         final OsmElement element;
 
-        private final long                    osmId;
-        private final long                    osmVersion;
-        private final byte                    state;
-        private final TreeMap<String, String> tags;
+        private final long                      osmId;
+        private final long                      osmVersion;
+        private final byte                      state;
+        private final SortedMap<String, String> tags;
 
         private final boolean inCurrentStorage;
         private final boolean inApiStorage;
@@ -606,7 +678,7 @@ public class UndoStorage implements Serializable {
             osmId = originalElement.osmId;
             osmVersion = originalElement.osmVersion;
             state = originalElement.state;
-            tags = originalElement.tags == null ? new TreeMap<>() : new TreeMap<>(originalElement.tags);
+            tags = TagSet.of(originalElement.tags); // immutable, no need to copy
 
             parentRelations = element.getParentRelations() != null ? new ArrayList<>(element.getParentRelations()) : null;
         }
@@ -621,6 +693,7 @@ public class UndoStorage implements Serializable {
             // Restore element existence
             Log.e(DEBUG_TAG, "restoring " + element.getOsmId() + " state " + state + " current " + inCurrentStorage + " api " + inApiStorage);
             OsmElement restored = getUptodateElement(element);
+            invalidateIndices(restored);
             try {
                 if (inCurrentStorage) {
                     currentStorage.insertElementSafe(restored);
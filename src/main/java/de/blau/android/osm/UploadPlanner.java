@@ -0,0 +1,167 @@
+package de.blau.android.osm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Split a set of changes in to batches for uploading
+ *
+ * The changes are ordered so that every element only depends on elements that come before it: created Nodes, Ways and
+ * Relations, modified Nodes, Ways and Relations, then deleted Relations, Ways and Nodes. Created and modified Relations
+ * are ordered with their member Relations first, deleted Relations with their parents first. As a consequence the
+ * changes can be split in to batches, and the batches in to changesets, at any position.
+ *
+ * @author simon
+ *
+ */
+final class UploadPlanner {
+
+    /**
+     * Default number of elements uploaded in one request
+     */
+    static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private List<OsmElement> changes;
+    private int              position = 0;
+
+    /**
+     * Construct a new planner
+     *
+     * @param elements the elements to upload, unchanged elements are ignored
+     */
+    UploadPlanner(@NonNull Collection<? extends OsmElement> elements) {
+        changes = order(elements);
+    }
+
+    /**
+     * @return the number of changes that have not been returned by {@link #nextBatch(int)} yet
+     */
+    int remaining() {
+        return changes.size() - position;
+    }
+
+    /**
+     * Get the next batch of changes
+     *
+     * @param maxSize the maximum number of changes in the batch
+     * @return a List of changes in dependency order, empty if there are no further changes
+     */
+    @NonNull
+    List<OsmElement> nextBatch(int maxSize) {
+        int end = Math.min(changes.size(), position + maxSize);
+        List<OsmElement> batch = changes.subList(position, end);
+        position = end;
+        return batch;
+    }
+
+    /**
+     * Remove the changes that have been uploaded and start again from the beginning
+     *
+     * @param api the API Storage, uploaded elements are removed from this
+     * @return the number of changes that still need to be uploaded
+     */
+    int retainPending(@NonNull Storage api) {
+        List<OsmElement> pending = new ArrayList<>();
+        for (OsmElement e : changes) {
+            if (e.getState() != OsmElement.STATE_UNCHANGED && api.contains(e)) {
+                pending.add(e);
+            }
+        }
+        changes = pending;
+        position = 0;
+        return changes.size();
+    }
+
+    /**
+     * Order changes so that they can be uploaded in any number of consecutive batches
+     *
+     * @param elements the elements, unchanged elements are ignored
+     * @return a List of the changes in dependency order
+     */
+    @NonNull
+    static List<OsmElement> order(@NonNull Collection<? extends OsmElement> elements) {
+        List<OsmElement> result = new ArrayList<>(elements.size());
+        add(result, elements, Node.class, OsmElement.STATE_CREATED);
+        add(result, elements, Way.class, OsmElement.STATE_CREATED);
+        addRelations(result, elements, OsmElement.STATE_CREATED);
+        add(result, elements, Node.class, OsmElement.STATE_MODIFIED);
+        add(result, elements, Way.class, OsmElement.STATE_MODIFIED);
+        addRelations(result, elements, OsmElement.STATE_MODIFIED);
+        addRelations(result, elements, OsmElement.STATE_DELETED);
+        add(result, elements, Way.class, OsmElement.STATE_DELETED);
+        add(result, elements, Node.class, OsmElement.STATE_DELETED);
+        return result;
+    }
+
+    /**
+     * Add all elements of a specific type and state
+     *
+     * @param result the List to add the elements to
+     * @param elements the elements
+     * @param type the type of the elements to add
+     * @param state the state of the elements to add
+     */
+    private static void add(@NonNull List<OsmElement> result, @NonNull Collection<? extends OsmElement> elements, @NonNull Class<? extends OsmElement> type,
+            byte state) {
+        for (OsmElement e : elements) {
+            if (e.state == state && type.isInstance(e)) {
+                result.add(e);
+            }
+        }
+    }
+
+    /**
+     * Add all Relations with a specific state, with their member Relations first, or for deleted Relations last
+     *
+     * Loops are broken at an arbitrary position
+     *
+     * @param result the List to add the Relations to
+     * @param elements the elements
+     * @param state the state of the Relations to add
+     */
+    private static void addRelations(@NonNull List<OsmElement> result, @NonNull Collection<? extends OsmElement> elements, byte state) {
+        List<Relation> relations = new ArrayList<>();
+        for (OsmElement e : elements) {
+            if (e.state == state && e instanceof Relation) {
+                relations.add((Relation) e);
+            }
+        }
+        if (relations.isEmpty()) {
+            return;
+        }
+        Set<Relation> pending = new HashSet<>(relations);
+        List<Relation> sorted = new ArrayList<>(relations.size());
+        for (Relation r : relations) {
+            addMembersFirst(r, pending, sorted);
+        }
+        if (state == OsmElement.STATE_DELETED) {
+            Collections.reverse(sorted);
+        }
+        result.addAll(sorted);
+    }
+
+    /**
+     * Add a Relation after its member Relations if it hasn't been added yet
+     *
+     * @param relation the Relation
+     * @param pending Relations that still need to be added
+     * @param sorted the Relations in order
+     */
+    private static void addMembersFirst(@NonNull Relation relation, @NonNull Set<Relation> pending, @NonNull List<Relation> sorted) {
+        if (pending.remove(relation)) {
+            for (RelationMember member : relation.getMembers()) {
+                OsmElement e = member.getElement();
+                if (e instanceof Relation) {
+                    addMembersFirst((Relation) e, pending, sorted);
+                }
+            }
+            sorted.add(relation);
+        }
+    }
+}
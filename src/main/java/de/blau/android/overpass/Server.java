@@ -7,8 +7,6 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
-import javax.xml.parsers.ParserConfigurationException;
-
 import org.xml.sax.SAXException;
 
 import android.content.Context;
@@ -24,7 +22,7 @@ import de.blau.android.geocode.QueryNominatim;
 import de.blau.android.geocode.Search.SearchResult;
 import de.blau.android.osm.BoundingBox;
 import de.blau.android.osm.OsmElement;
-import de.blau.android.osm.OsmParser;
+import de.blau.android.osm.OsmPullParser;
 import de.blau.android.osm.Storage;
 import de.blau.android.osm.StorageDelegator;
 import de.blau.android.osm.ViewBox;
@@ -249,11 +247,9 @@ public final class Server {
 
         Response response = client.newCall(request).execute();
         if (response.isSuccessful()) {
-            final OsmParser osmParser = new OsmParser();
+            final OsmPullParser osmParser = new OsmPullParser();
             try (ResponseBody responseBody = response.body(); InputStream in = responseBody.byteStream()) {
                 osmParser.start(in);
-            } catch (ParserConfigurationException pcex) {
-                throw new IOException(pcex);
             }
             return osmParser.getStorage();
         }
@@ -1,6 +1,7 @@
 package de.blau.android.presets;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
@@ -9,6 +10,8 @@ import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.PrintStream;
 import java.io.Serializable;
 import java.security.DigestInputStream;
@@ -24,6 +27,7 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import javax.xml.parsers.ParserConfigurationException;
@@ -119,12 +123,12 @@ public class Preset implements Serializable {
      * Lists items having a tag. The map key is tagkey+"\t"+tagvalue. tagItems.get(tagkey+"\t"+tagvalue) will give you
      * all items that have the tag tagkey=tagvalue
      */
-    private final MultiHashMap<String, PresetItem> tagItems = new MultiHashMap<>();
+    private MultiHashMap<String, PresetItem> tagItems = new MultiHashMap<>();
 
     /**
      * Lists items that define objects
      */
-    private final MultiHashMap<String, PresetItem> objectItems = new MultiHashMap<>();
+    private MultiHashMap<String, PresetItem> objectItems = new MultiHashMap<>();
 
     /** The root group of the preset, containing all top-level groups and items */
     private PresetGroup rootGroup;
@@ -136,19 +140,32 @@ public class Preset implements Serializable {
     private List<String> objectKeys = new ArrayList<>();
 
     /** Maps all possible keys to the respective values for autosuggest (only key/values applying to nodes) */
-    private final MultiHashMap<String, StringWithDescription> autosuggestNodes      = new MultiHashMap<>(true);
+    private MultiHashMap<String, StringWithDescription> autosuggestNodes      = new MultiHashMap<>(true);
     /** Maps all possible keys to the respective values for autosuggest (only key/values applying to ways) */
-    private final MultiHashMap<String, StringWithDescription> autosuggestWays       = new MultiHashMap<>(true);
+    private MultiHashMap<String, StringWithDescription> autosuggestWays       = new MultiHashMap<>(true);
     /** Maps all possible keys to the respective values for autosuggest (only key/values applying to closed ways) */
-    private final MultiHashMap<String, StringWithDescription> autosuggestClosedways = new MultiHashMap<>(true);
+    private MultiHashMap<String, StringWithDescription> autosuggestClosedways = new MultiHashMap<>(true);
     /** Maps all possible keys to the respective values for autosuggest (only key/values applying to areas (MPs)) */
-    private final MultiHashMap<String, StringWithDescription> autosuggestAreas      = new MultiHashMap<>(true);
+    private MultiHashMap<String, StringWithDescription> autosuggestAreas      = new MultiHashMap<>(true);
     /** Maps all possible keys to the respective values for autosuggest (only key/values applying to closed ways) */
-    private final MultiHashMap<String, StringWithDescription> autosuggestRelations  = new MultiHashMap<>(true);
+    private MultiHashMap<String, StringWithDescription> autosuggestRelations  = new MultiHashMap<>(true);
 
     /** for search support */
-    private final MultiHashMap<String, PresetItem> searchIndex           = new MultiHashMap<>();
-    private final MultiHashMap<String, PresetItem> translatedSearchIndex = new MultiHashMap<>();
+    private MultiHashMap<String, PresetItem> searchIndex           = new MultiHashMap<>();
+    private MultiHashMap<String, PresetItem> translatedSearchIndex = new MultiHashMap<>();
+
+    /**
+     * Index of objectItems by key and value, built on demand
+     */
+    private transient Map<String, KeyCandidates> objectIndex;
+
+    /**
+     * Incremented whenever the object items of any Preset change
+     */
+    private static final AtomicInteger objectItemsGeneration = new AtomicInteger();
+
+    private static final int              MATCH_CACHE_SIZE = 2000;
+    private static final PresetMatchCache matchCache       = new PresetMatchCache(MATCH_CACHE_SIZE);
 
     private Po po = null;
 
@@ -204,6 +221,7 @@ public class Preset implements Serializable {
         directory.mkdir();
 
         InputStream fileStream = null;
+        MessageDigest poDigest = MessageDigest.getInstance(PresetCache.DIGEST);
         try {
             isDefault = AdvancedPrefDatabase.ID_DEFAULT.equals(directory.getName());
             if (isDefault) {
@@ -220,7 +238,7 @@ public class Preset implements Serializable {
                         if (poFileStream == null) {
                             poFileStream = iconManager.openAsset(DEFAULT_PRESET_TRANSLATION + language + "." + FileExtensions.PO, true);
                         }
-                        po = de.blau.android.util.Util.parsePoFile(poFileStream);
+                        po = de.blau.android.util.Util.parsePoFile(PresetCache.digest(poFileStream, poDigest));
                     } finally {
                         SavingHelper.close(poFileStream);
                     }
@@ -254,7 +272,7 @@ public class Preset implements Serializable {
                                         // no translations
                                     }
                                 }
-                                po = de.blau.android.util.Util.parsePoFile(poFileStream);
+                                po = de.blau.android.util.Util.parsePoFile(PresetCache.digest(poFileStream, poDigest));
                             } finally {
                                 SavingHelper.close(poFileStream);
                             }
@@ -265,16 +283,17 @@ public class Preset implements Serializable {
                 }
             }
 
-            DigestInputStream hashStream = new DigestInputStream(fileStream, MessageDigest.getInstance("SHA-256"));
+            MessageDigest digest = MessageDigest.getInstance(PresetCache.DIGEST);
+            byte[] xml = PresetCache.readAll(new DigestInputStream(fileStream, digest));
+            String hashValue = Hash.toHex(digest.digest());
 
-            PresetParser.parseXML(this, hashStream, App.getPreferences(ctx).supportPresetLabels());
-
-            // Finish hash
-            String hashValue = Hash.toHex(hashStream.getMessageDigest().digest());
-            // in theory, it could be possible that the stream parser does not read the entire file
-            // and maybe even randomly stops at a different place each time.
-            // in practice, it does read the full file, which means this gives the actual sha256 of the file,
-            // - even if you add a 1 MB comment after the document-closing tag.
+            // the cached contents depend on the translations and options used when parsing
+            boolean supportLabels = App.getPreferences(ctx).supportPresetLabels();
+            String cacheKey = PresetCache.key(hashValue, po != null ? Hash.toHex(poDigest.digest()) : null, Locale.getDefault(), supportLabels);
+            if (!PresetCache.read(this, cacheKey)) {
+                PresetParser.parseXML(this, new ByteArrayInputStream(xml), supportLabels);
+                PresetCache.write(this, cacheKey);
+            }
 
             mru = PresetMRUInfo.getMRU(directory, hashValue);
             Log.d(DEBUG_TAG, "search index length: " + searchIndex.getKeys().size());
@@ -394,6 +413,60 @@ public class Preset implements Serializable {
         this.description = description;
     }
 
+    /**
+     * Write everything that is read from the preset XML file
+     * 
+     * @param out the ObjectOutputStream to write to
+     * @throws IOException if writing fails
+     */
+    void writeContents(@NonNull ObjectOutputStream out) throws IOException {
+        out.writeObject(version);
+        out.writeObject(shortDescription);
+        out.writeObject(description);
+        out.writeObject(rootGroup);
+        out.writeObject(objectKeys);
+        out.writeObject(tagItems);
+        out.writeObject(objectItems);
+        out.writeObject(autosuggestNodes);
+        out.writeObject(autosuggestWays);
+        out.writeObject(autosuggestClosedways);
+        out.writeObject(autosuggestAreas);
+        out.writeObject(autosuggestRelations);
+        out.writeObject(searchIndex);
+        out.writeObject(translatedSearchIndex);
+    }
+
+    /**
+     * Read the contents written by {@link #writeContents(ObjectOutputStream)}
+     * 
+     * @param in the ObjectInputStream to read from
+     * @throws IOException if reading fails
+     * @throws ClassNotFoundException if a class can't be found
+     */
+    @SuppressWarnings("unchecked")
+    void readContents(@NonNull ObjectInputStream in) throws IOException, ClassNotFoundException {
+        // read everything before changing any fields so that a failure leaves this unchanged
+        Object[] contents = new Object[14];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = in.readObject();
+        }
+        version = (String) contents[0];
+        shortDescription = (String) contents[1];
+        description = (String) contents[2];
+        rootGroup = (PresetGroup) contents[3];
+        objectKeys = (List<String>) contents[4];
+        tagItems = (MultiHashMap<String, PresetItem>) contents[5];
+        objectItems = (MultiHashMap<String, PresetItem>) contents[6];
+        autosuggestNodes = (MultiHashMap<String, StringWithDescription>) contents[7];
+        autosuggestWays = (MultiHashMap<String, StringWithDescription>) contents[8];
+        autosuggestClosedways = (MultiHashMap<String, StringWithDescription>) contents[9];
+        autosuggestAreas = (MultiHashMap<String, StringWithDescription>) contents[10];
+        autosuggestRelations = (MultiHashMap<String, StringWithDescription>) contents[11];
+        searchIndex = (MultiHashMap<String, PresetItem>) contents[12];
+        translatedSearchIndex = (MultiHashMap<String, PresetItem>) contents[13];
+        objectItemsChanged();
+    }
+
     /**
      * Recursively add tags from the preset to the index of the new preset
      * 
@@ -452,6 +525,7 @@ public class Preset implements Serializable {
     private void addToObjectItems(@NonNull String key, @NonNull PresetFixedField field, @NonNull PresetItem item) {
         if (field.isObject(objectKeys)) {
             objectItems.add(key + "\t" + field.getValue().getValue(), item);
+            objectItemsChanged();
         }
     }
 
@@ -464,6 +538,7 @@ public class Preset implements Serializable {
      */
     private void addToObjectItems(@NonNull String key, @NonNull String value, @NonNull PresetItem item) {
         objectItems.add(key + "\t" + value, item);
+        objectItemsChanged();
     }
 
     /**
@@ -474,6 +549,53 @@ public class Preset implements Serializable {
      */
     private void addToObjectItems(@NonNull String key, @NonNull PresetItem item) {
         objectItems.add(key + "\t", item);
+        objectItemsChanged();
+    }
+
+    /**
+     * Candidates for matching for one key
+     */
+    private static final class KeyCandidates {
+        Set<PresetItem>                    anyValue = Collections.emptySet();
+        final Map<String, Set<PresetItem>> byValue  = new HashMap<>();
+    }
+
+    /**
+     * Invalidate everything derived from objectItems
+     */
+    private synchronized void objectItemsChanged() {
+        objectIndex = null;
+        objectItemsGeneration.incrementAndGet();
+    }
+
+    /**
+     * Get objectItems indexed by key and value
+     * 
+     * The sets are views of the ones in objectItems, so the iteration order is the same
+     * 
+     * @return a map from key to the candidates for that key
+     */
+    @NonNull
+    private synchronized Map<String, KeyCandidates> getObjectIndex() {
+        if (objectIndex == null) {
+            Map<String, KeyCandidates> index = new HashMap<>();
+            for (String tagString : objectItems.getKeys()) {
+                int tab = tagString.indexOf('\t');
+                String key = tagString.substring(0, tab);
+                KeyCandidates candidates = index.get(key);
+                if (candidates == null) {
+                    candidates = new KeyCandidates();
+                    index.put(key, candidates);
+                }
+                if (tab == tagString.length() - 1) {
+                    candidates.anyValue = objectItems.get(tagString);
+                } else {
+                    candidates.byValue.put(tagString.substring(tab + 1), objectItems.get(tagString));
+                }
+            }
+            objectIndex = index;
+        }
+        return objectIndex;
     }
 
     /**
@@ -615,6 +737,7 @@ public class Preset implements Serializable {
         for (String key : objectItems.getKeys()) {
             objectItems.removeItem(key, item);
         }
+        objectItemsChanged();
         removeRecentlyUsed(item);
         item.getParent().removeElement(item);
         item.setParent(null);
@@ -1110,13 +1233,46 @@ public class Preset implements Serializable {
     @Nullable
     public static PresetItem findBestMatch(@Nullable Preset[] presets, @Nullable Map<String, String> tags, @Nullable String region,
             @Nullable ElementType elementType, boolean useAddressKeys, @Nullable Map<String, String> ignoreTags) {
-        int bestMatchStrength = 0;
-        PresetItem bestMatch = null;
-
         if (tags == null || presets == null) {
             Log.e(DEBUG_TAG, "findBestMatch " + (tags == null ? "tags null" : "presets null"));
             return null;
         }
+        int generation = objectItemsGeneration.get();
+        Object cached = matchCache.get(presets, tags, region, elementType, useAddressKeys, ignoreTags, generation);
+        if (cached != PresetMatchCache.NOT_CACHED) {
+            return (PresetItem) cached;
+        }
+        PresetItem bestMatch = findBestMatchUncached(presets, tags, region, elementType, useAddressKeys, ignoreTags);
+        matchCache.put(presets, tags, region, elementType, useAddressKeys, ignoreTags, generation, bestMatch);
+        return bestMatch;
+    }
+
+    /**
+     * Get the cache used by findBestMatch
+     * 
+     * @return the PresetMatchCache
+     */
+    @NonNull
+    static PresetMatchCache getMatchCache() {
+        return matchCache;
+    }
+
+    /**
+     * Find the best match without using the cache
+     * 
+     * @param presets presets presets to match against
+     * @param tags tags to check against (i.e. tags of a map element)
+     * @param region if not null this will be taken in to account wrt scoring
+     * @param elementType if not null the ElementType will be considered
+     * @param useAddressKeys use addr: keys if true
+     * @param ignoreTags Map of keys to ignore
+     * @return a preset or null if none found
+     */
+    @Nullable
+    static PresetItem findBestMatchUncached(@NonNull Preset[] presets, @NonNull Map<String, String> tags, @Nullable String region,
+            @Nullable ElementType elementType, boolean useAddressKeys, @Nullable Map<String, String> ignoreTags) {
+        int bestMatchStrength = 0;
+        PresetItem bestMatch = null;
 
         // Build candidate list
         Set<PresetItem> possibleMatches = new LinkedHashSet<>();
@@ -1205,16 +1361,21 @@ public class Preset implements Serializable {
             if (p == null) {
                 continue;
             }
+            Map<String, KeyCandidates> index = p.getObjectIndex();
             for (Entry<String, String> tag : tags.entrySet()) {
                 final String key = tag.getKey();
                 final String value = tag.getValue();
                 final String ignoreValue = ignoreTags != null ? ignoreTags.get(key) : null;
                 final boolean ignore = "".equals(ignoreValue) || value.equals(ignoreValue);
                 if ((useAddressKeys || !key.startsWith(Tags.KEY_ADDR_BASE)) && !ignore) {
-                    String tagString = key + "\t";
-                    possibleMatches.addAll(p.objectItems.get(tagString)); // for stuff that doesn't have fixed
-                                                                          // values
-                    possibleMatches.addAll(p.objectItems.get(tagString + value));
+                    KeyCandidates candidates = index.get(key);
+                    if (candidates != null) {
+                        possibleMatches.addAll(candidates.anyValue); // for stuff that doesn't have fixed values
+                        Set<PresetItem> items = candidates.byValue.get(value);
+                        if (items != null) {
+                            possibleMatches.addAll(items);
+                        }
+                    }
                 }
             }
         }
@@ -0,0 +1,211 @@
+package de.blau.android.presets;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Locale;
+
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import de.blau.android.BuildConfig;
+import de.blau.android.contract.Files;
+
+/**
+ * Binary cache of the contents of a parsed preset
+ * 
+ * The groups, items and indices built by the parser are serialized to a file in the preset directory. The file starts
+ * with a format version and a key that is derived from the hashes of the preset and translation files, the locale, the
+ * options that influence parsing and the app version, the cache is only used if all of these match. References to the
+ * Preset object itself are written as a placeholder and replaced by the Preset being loaded when reading.
+ * 
+ * @author simon
+ *
+ */
+final class PresetCache {
+
+    private static final String DEBUG_TAG = PresetCache.class.getSimpleName();
+
+    static final String DIGEST = "SHA-256";
+
+    private static final int FORMAT_VERSION = 1;
+    private static final int BUFFER_SIZE    = 0x10000;
+
+    /**
+     * Placeholder for the Preset the contents belong to
+     */
+    private enum PresetReference {
+        INSTANCE
+    }
+
+    /**
+     * Private constructor to prevent instantiation
+     */
+    private PresetCache() {
+        // empty
+    }
+
+    /**
+     * Build the key the cached contents are valid for
+     * 
+     * @param presetHash hash of the preset file
+     * @param poHash hash of the translation file or null if none is used
+     * @param locale the current Locale
+     * @param supportLabels value of the preset label preference
+     * @return a String to store with the contents
+     */
+    @NonNull
+    static String key(@NonNull String presetHash, @Nullable String poHash, @NonNull Locale locale, boolean supportLabels) {
+        // the locale is always included as the parser selects localized links with it even without translations
+        return presetHash + " " + (poHash != null ? poHash : "-") + " " + locale + " " + supportLabels + " " + BuildConfig.VERSION_CODE;
+    }
+
+    /**
+     * Read the cached contents in to a Preset
+     * 
+     * @param preset the Preset, its directory must be set
+     * @param key the key the contents need to match
+     * @return true if the contents were read
+     */
+    static boolean read(@NonNull Preset preset, @NonNull String key) {
+        File file = new File(preset.getDirectory(), Files.FILE_NAME_PRESET_CACHE);
+        if (!file.exists()) {
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE); ContentsInputStream contents = new ContentsInputStream(in, preset)) {
+            if (contents.readInt() != FORMAT_VERSION || !key.equals(contents.readUTF())) {
+                Log.i(DEBUG_TAG, "Stale cache for " + preset.getDirectory());
+                return false;
+            }
+            preset.readContents(contents);
+            Log.i(DEBUG_TAG, "Read cached preset in " + (System.currentTimeMillis() - start) + " ms");
+            return true;
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            Log.e(DEBUG_TAG, "Reading cache for " + preset.getDirectory() + " failed " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Write the contents of a freshly parsed Preset to the cache
+     * 
+     * The file is written under a temporary name and then renamed so that a concurrent reader will never see a partial
+     * file. Failures are logged and otherwise ignored.
+     * 
+     * @param preset the Preset, its directory must be set
+     * @param key the key the contents are valid for
+     */
+    static void write(@NonNull Preset preset, @NonNull String key) {
+        File file = new File(preset.getDirectory(), Files.FILE_NAME_PRESET_CACHE);
+        File temp = new File(preset.getDirectory(), Files.FILE_NAME_PRESET_CACHE + ".tmp");
+        long start = System.currentTimeMillis();
+        try {
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), BUFFER_SIZE);
+                    ContentsOutputStream contents = new ContentsOutputStream(out, preset)) {
+                contents.writeInt(FORMAT_VERSION);
+                contents.writeUTF(key);
+                preset.writeContents(contents);
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Renaming " + temp + " failed");
+            }
+            Log.i(DEBUG_TAG, "Wrote preset cache in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (IOException e) {
+            Log.e(DEBUG_TAG, "Writing cache for " + preset.getDirectory() + " failed " + e.getMessage());
+            if (temp.exists() && !temp.delete()) {
+                Log.e(DEBUG_TAG, "Unable to delete " + temp);
+            }
+        }
+    }
+
+    /**
+     * Read an InputStream completely
+     * 
+     * @param in the InputStream
+     * @return the contents of the stream
+     * @throws IOException if reading fails
+     */
+    @NonNull
+    static byte[] readAll(@NonNull InputStream in) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream(Math.max(in.available(), BUFFER_SIZE));
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            result.write(buffer, 0, count);
+        }
+        return result.toByteArray();
+    }
+
+    /**
+     * Wrap an InputStream so that the bytes read are added to a digest
+     * 
+     * @param in the InputStream or null
+     * @param digest the MessageDigest
+     * @return a DigestInputStream or null if in was null
+     */
+    @Nullable
+    static InputStream digest(@Nullable InputStream in, @NonNull MessageDigest digest) {
+        return in != null ? new DigestInputStream(in, digest) : null;
+    }
+
+    /**
+     * ObjectOutputStream that replaces the Preset with a placeholder
+     */
+    private static final class ContentsOutputStream extends ObjectOutputStream {
+        private final Preset preset;
+
+        /**
+         * Construct a new stream
+         * 
+         * @param out the OutputStream to write to
+         * @param preset the Preset to replace
+         * @throws IOException if writing the stream header fails
+         */
+        ContentsOutputStream(@NonNull OutputStream out, @NonNull Preset preset) throws IOException {
+            super(out);
+            this.preset = preset;
+            enableReplaceObject(true);
+        }
+
+        @Override
+        protected Object replaceObject(Object obj) throws IOException {
+            return obj == preset ? PresetReference.INSTANCE : obj;
+        }
+    }
+
+    /**
+     * ObjectInputStream that replaces the placeholder with the Preset
+     */
+    private static final class ContentsInputStream extends ObjectInputStream {
+        private final Preset preset;
+
+        /**
+         * Construct a new stream
+         * 
+         * @param in the InputStream to read from
+         * @param preset the Preset to use for the placeholder
+         * @throws IOException if reading the stream header fails
+         */
+        ContentsInputStream(@NonNull InputStream in, @NonNull Preset preset) throws IOException {
+            super(in);
+            this.preset = preset;
+            enableResolveObject(true);
+        }
+
+        @Override
+        protected Object resolveObject(Object obj) throws IOException {
+            return obj == PresetReference.INSTANCE ? preset : obj;
+        }
+    }
+}
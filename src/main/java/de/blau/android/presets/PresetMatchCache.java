@@ -0,0 +1,227 @@
+package de.blau.android.presets;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import de.blau.android.osm.OsmElement.ElementType;
+
+/**
+ * Bounded LRU cache for the results of {@link Preset#findBestMatch(Preset[], Map, String, ElementType, boolean, Map)}
+ *
+ * Entries are keyed by the presets, the tags and all other arguments that influence the result, lookups use a reusable
+ * probe so a hit doesn't allocate, the tags are only copied when an entry is added. All entries are dropped when the
+ * object items of any preset change, this is detected by comparing a generation counter.
+ *
+ * @author simon
+ *
+ */
+final class PresetMatchCache {
+
+    /**
+     * Returned by get if there is no entry
+     */
+    static final Object NOT_CACHED = new Object();
+
+    /**
+     * Stored for lookups that didn't find a match
+     */
+    private static final Object NO_MATCH = new Object();
+
+    private final Map<Key, Object> cache;
+    private final Key              probe = new Key();
+    private int                    generation;
+    private long                   hits;
+    private long                   misses;
+
+    private static final class Key {
+        Preset[]            presets;
+        Map<String, String> tags;
+        String              region;
+        ElementType         elementType;
+        boolean             useAddressKeys;
+        Map<String, String> ignoreTags;
+        int                 hash;
+
+        /**
+         * Set the fields and calculate the hash code
+         *
+         * @param presets the Presets
+         * @param tags the tags
+         * @param region the region or null
+         * @param elementType the ElementType or null
+         * @param useAddressKeys the address key flag
+         * @param ignoreTags tags to ignore or null
+         */
+        void set(@NonNull Preset[] presets, @NonNull Map<String, String> tags, @Nullable String region, @Nullable ElementType elementType,
+                boolean useAddressKeys, @Nullable Map<String, String> ignoreTags) {
+            this.presets = presets;
+            this.tags = tags;
+            this.region = region;
+            this.elementType = elementType;
+            this.useAddressKeys = useAddressKeys;
+            this.ignoreTags = ignoreTags;
+            int result = Arrays.hashCode(presets);
+            result = 31 * result + tags.hashCode();
+            result = 31 * result + (region != null ? region.hashCode() : 0);
+            result = 31 * result + (elementType != null ? elementType.hashCode() : 0);
+            result = 31 * result + (useAddressKeys ? 1 : 0);
+            hash = 31 * result + (ignoreTags != null ? ignoreTags.hashCode() : 0);
+        }
+
+        /**
+         * Create a copy that doesn't share the mutable arguments
+         *
+         * @return a new Key
+         */
+        @NonNull
+        Key copy() {
+            Key copy = new Key();
+            copy.presets = presets.clone();
+            copy.tags = new HashMap<>(tags);
+            copy.region = region;
+            copy.elementType = elementType;
+            copy.useAddressKeys = useAddressKeys;
+            copy.ignoreTags = ignoreTags != null ? new HashMap<>(ignoreTags) : null;
+            copy.hash = hash;
+            return copy;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash && useAddressKeys == other.useAddressKeys && elementType == other.elementType && Objects.equals(region, other.region)
+                    && Arrays.equals(presets, other.presets) && tags.equals(other.tags) && Objects.equals(ignoreTags, other.ignoreTags);
+        }
+    }
+
+    /**
+     * Construct a new cache
+     *
+     * @param maxSize the maximum number of entries
+     */
+    PresetMatchCache(final int maxSize) {
+        cache = new LinkedHashMap<Key, Object>(maxSize, 0.75f, true) { // NOSONAR
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Object> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Look up a result
+     *
+     * @param presets the Presets
+     * @param tags the tags
+     * @param region the region or null
+     * @param elementType the ElementType or null
+     * @param useAddressKeys the address key flag
+     * @param ignoreTags tags to ignore or null
+     * @param currentGeneration the current generation of the preset object items
+     * @return the cached PresetItem, null if there was no match or NOT_CACHED if there is no entry
+     */
+    @Nullable
+    synchronized Object get(@NonNull Preset[] presets, @NonNull Map<String, String> tags, @Nullable String region, @Nullable ElementType elementType,
+            boolean useAddressKeys, @Nullable Map<String, String> ignoreTags, int currentGeneration) {
+        if (currentGeneration != generation) {
+            cache.clear();
+            generation = currentGeneration;
+        }
+        probe.set(presets, tags, region, elementType, useAddressKeys, ignoreTags);
+        Object result = cache.get(probe);
+        releaseProbe();
+        if (result == null) {
+            misses++;
+            return NOT_CACHED;
+        }
+        hits++;
+        return result == NO_MATCH ? null : result;
+    }
+
+    /**
+     * Add a result
+     *
+     * @param presets the Presets
+     * @param tags the tags
+     * @param region the region or null
+     * @param elementType the ElementType or null
+     * @param useAddressKeys the address key flag
+     * @param ignoreTags tags to ignore or null
+     * @param generation the generation of the preset object items the result was determined with
+     * @param match the best match or null
+     */
+    synchronized void put(@NonNull Preset[] presets, @NonNull Map<String, String> tags, @Nullable String region, @Nullable ElementType elementType,
+            boolean useAddressKeys, @Nullable Map<String, String> ignoreTags, int generation, @Nullable PresetItem match) {
+        if (generation != this.generation) {
+            return; // presets changed while matching
+        }
+        probe.set(presets, tags, region, elementType, useAddressKeys, ignoreTags);
+        cache.put(probe.copy(), match != null ? match : NO_MATCH);
+        releaseProbe();
+    }
+
+    /**
+     * Don't hold on to the arguments of the last call
+     */
+    private void releaseProbe() {
+        probe.presets = null;
+        probe.tags = null;
+        probe.ignoreTags = null;
+    }
+
+    /**
+     * Remove all entries and reset the counters
+     */
+    synchronized void clear() {
+        cache.clear();
+        hits = 0;
+        misses = 0;
+    }
+
+    /**
+     * @return the number of entries
+     */
+    synchronized int size() {
+        return cache.size();
+    }
+
+    /**
+     * @return the number of lookups that found an entry
+     */
+    synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of lookups that didn't find an entry
+     */
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the fraction of lookups that found an entry
+     */
+    synchronized double getHitRate() {
+        long total = hits + misses;
+        return total > 0 ? (double) hits / total : 0d;
+    }
+}
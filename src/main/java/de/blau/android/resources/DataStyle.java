@@ -290,6 +290,7 @@ public final class DataStyle extends DefaultHandler {
                 cascadedStyles = new ArrayList<>();
             }
             cascadedStyles.add(style);
+            invalidateMatchers();
         }
 
         /**
@@ -497,6 +498,17 @@ public final class DataStyle extends DefaultHandler {
             return true;
         }
 
+        /**
+         * Match the provided tags and closed status with this style
+         * 
+         * @param elementTags the provided tags
+         * @param closedWay true if the element is a closed way
+         * @return true if all tags are present in element tags and the closed status is compatible
+         */
+        boolean matches(@NonNull SortedMap<String, String> elementTags, boolean closedWay) {
+            return (closed == null || closed == closedWay) && match(elementTags);
+        }
+
         /**
          * Get the minimum zoom level objects with this style should be visible from on
          * 
@@ -570,6 +582,7 @@ public final class DataStyle extends DefaultHandler {
          */
         public void setClosed(boolean closed) {
             this.closed = Boolean.valueOf(closed);
+            invalidateMatchers();
         }
 
         /**
@@ -747,6 +760,10 @@ public final class DataStyle extends DefaultHandler {
     private FeatureStyle               wayStyles;
     private FeatureStyle               relationStyles;
 
+    private StyleMatcher nodeMatcher;
+    private StyleMatcher wayMatcher;
+    private StyleMatcher relationMatcher;
+
     private static DataStyle                  currentStyle;
     private static HashMap<String, DataStyle> availableStyles = new HashMap<>();
 
@@ -1803,6 +1820,7 @@ public final class DataStyle extends DefaultHandler {
                 // overwrites existing profiles
                 internalStyles.put(type, tempFeatureStyle);
             }
+            invalidateMatchers();
 
             try {
                 tempFeatureStyle = styleStack.pop();
@@ -2019,12 +2037,13 @@ public final class DataStyle extends DefaultHandler {
         final boolean styleable = element instanceof StyleableFeature;
         FeatureStyle style = styleable ? ((StyleableFeature) element).getStyle() : null;
         if (style == null) {
+            final DataStyle current = currentStyle;
             if (element instanceof Way) {
-                style = matchRecursive(currentStyle.wayStyles, element.getTags(), ((Way) element).isClosed());
+                style = current.getWayMatcher().match(element.getTags(), ((Way) element).isClosed());
             } else if (element instanceof Node) {
-                style = matchRecursive(currentStyle.nodeStyles, element.getTags(), false);
+                style = current.getNodeMatcher().match(element.getTags(), false);
             } else {
-                style = matchRecursive(currentStyle.relationStyles, element.getTags(), false);
+                style = current.getRelationMatcher().match(element.getTags(), false);
             }
             if (styleable) {
                 ((StyleableFeature) element).setStyle(style);
@@ -2034,23 +2053,86 @@ public final class DataStyle extends DefaultHandler {
     }
 
     /**
-     * Recursively traverse the styles and try to find a match
+     * Get the compiled node styles, compiling them if necessary
      * 
-     * @param style the style
-     * @param tags tags from the element we are trying to match
-     * @param closed true if the element is a way and closed
-     * @return the best matching style
+     * @return a StyleMatcher
      */
     @NonNull
-    private static FeatureStyle matchRecursive(@NonNull FeatureStyle style, @NonNull SortedMap<String, String> tags, boolean closed) {
-        FeatureStyle result = style;
-        if (style.cascadedStyles != null) {
-            for (FeatureStyle s : style.cascadedStyles) {
-                if ((s.closed == null || s.closed == closed) && s.match(tags)) {
-                    return matchRecursive(s, tags, closed);
-                }
-            }
+    private StyleMatcher getNodeMatcher() {
+        StyleMatcher matcher = nodeMatcher;
+        if (matcher == null) {
+            matcher = new StyleMatcher(nodeStyles);
+            nodeMatcher = matcher;
+        }
+        return matcher;
+    }
+
+    /**
+     * Get the compiled way styles, compiling them if necessary
+     * 
+     * @return a StyleMatcher
+     */
+    @NonNull
+    private StyleMatcher getWayMatcher() {
+        StyleMatcher matcher = wayMatcher;
+        if (matcher == null) {
+            matcher = new StyleMatcher(wayStyles);
+            wayMatcher = matcher;
+        }
+        return matcher;
+    }
+
+    /**
+     * Get the compiled relation styles, compiling them if necessary
+     * 
+     * @return a StyleMatcher
+     */
+    @NonNull
+    private StyleMatcher getRelationMatcher() {
+        StyleMatcher matcher = relationMatcher;
+        if (matcher == null) {
+            matcher = new StyleMatcher(relationStyles);
+            relationMatcher = matcher;
         }
-        return result;
+        return matcher;
+    }
+
+    /**
+     * Get the root of the node styles
+     * 
+     * @return the root FeatureStyle
+     */
+    @NonNull
+    FeatureStyle getNodeStyles() {
+        return nodeStyles;
+    }
+
+    /**
+     * Get the root of the way styles
+     * 
+     * @return the root FeatureStyle
+     */
+    @NonNull
+    FeatureStyle getWayStyles() {
+        return wayStyles;
+    }
+
+    /**
+     * Get the root of the relation styles
+     * 
+     * @return the root FeatureStyle
+     */
+    @NonNull
+    FeatureStyle getRelationStyles() {
+        return relationStyles;
+    }
+
+    /**
+     * Throw away the compiled styles and the memoised results, needs to be called if the style tree changes
+     */
+    private void invalidateMatchers() {
+        nodeMatcher = null;
+        wayMatcher = null;
+        relationMatcher = null;
     }
 }
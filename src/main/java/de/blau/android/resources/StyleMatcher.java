@@ -0,0 +1,206 @@
+package de.blau.android.resources;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.WeakHashMap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import de.blau.android.resources.DataStyle.FeatureStyle;
+
+/**
+ * Compiled form of a FeatureStyle tree
+ *
+ * For every style with cascaded styles the children are indexed by one of the keys they require, so that only the
+ * children that can potentially match the tags of an element have to be checked. The result is memoised per tag set
+ * and closed flag, as elements have interned tags this is typically a single hash lookup. The memo only holds weak
+ * references to the tags, entries for tag sets no longer in use are removed automatically.
+ *
+ * The result is the same as that of a depth first walk of the tree that descends in to the first matching child.
+ *
+ * @author simon
+ *
+ */
+final class StyleMatcher {
+
+    private static final int[] NO_POSITIONS = new int[0];
+
+    private final Level root;
+
+    private final WeakHashMap<SortedMap<String, String>, FeatureStyle[]> memo = new WeakHashMap<>();
+
+    /**
+     * One level of the compiled tree
+     */
+    private static final class Level {
+        final FeatureStyle       style;
+        final Level[]            children;
+        final Map<String, int[]> byKey    = new HashMap<>();
+        final int[]              anyTags;
+
+        /**
+         * Compile a style and its cascaded styles
+         *
+         * @param style the style
+         */
+        Level(@NonNull FeatureStyle style) {
+            this.style = style;
+            List<FeatureStyle> cascaded = style.cascadedStyles;
+            int count = cascaded != null ? cascaded.size() : 0;
+            children = new Level[count];
+            Map<String, List<Integer>> positions = new HashMap<>();
+            List<Integer> unkeyed = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                FeatureStyle child = cascaded.get(i);
+                children[i] = new Level(child);
+                String key = indexKey(child);
+                if (key == null) {
+                    unkeyed.add(i);
+                } else {
+                    List<Integer> list = positions.get(key);
+                    if (list == null) {
+                        list = new ArrayList<>();
+                        positions.put(key, list);
+                    }
+                    list.add(i);
+                }
+            }
+            for (Entry<String, List<Integer>> entry : positions.entrySet()) {
+                byKey.put(entry.getKey(), toArray(entry.getValue()));
+            }
+            anyTags = toArray(unkeyed);
+        }
+
+        /**
+         * Select the key a style is indexed by, preferring keys with a specific value
+         *
+         * @param style the style
+         * @return the key or null if the style doesn't require any tags
+         */
+        @Nullable
+        private static String indexKey(@NonNull FeatureStyle style) {
+            String result = null;
+            for (Entry<String, String> tag : style.tags.entrySet()) {
+                if (!"*".equals(tag.getValue())) {
+                    return tag.getKey();
+                }
+                if (result == null) {
+                    result = tag.getKey();
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Convert a list of positions to an array
+         *
+         * @param list the positions in ascending order
+         * @return an int array
+         */
+        @NonNull
+        private static int[] toArray(@NonNull List<Integer> list) {
+            if (list.isEmpty()) {
+                return NO_POSITIONS;
+            }
+            int[] result = new int[list.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = list.get(i);
+            }
+            return result;
+        }
+
+        /**
+         * Find the first child that matches
+         *
+         * @param tags the tags of the element
+         * @param closed true if the element is a closed way
+         * @return the matching child or null
+         */
+        @Nullable
+        Level firstMatch(@NonNull SortedMap<String, String> tags, boolean closed) {
+            if (children.length == 0) {
+                return null;
+            }
+            int best = scan(anyTags, children.length, tags, closed);
+            if (!byKey.isEmpty()) {
+                for (String key : tags.keySet()) {
+                    int[] positions = byKey.get(key);
+                    if (positions != null) {
+                        best = scan(positions, best, tags, closed);
+                    }
+                }
+            }
+            return best < children.length ? children[best] : null;
+        }
+
+        /**
+         * Check candidates that come before the best match found so far
+         *
+         * @param positions candidate positions in ascending order
+         * @param best the position of the best match so far
+         * @param tags the tags of the element
+         * @param closed true if the element is a closed way
+         * @return the position of the best match
+         */
+        private int scan(@NonNull int[] positions, int best, @NonNull SortedMap<String, String> tags, boolean closed) {
+            for (int p : positions) {
+                if (p >= best) {
+                    break;
+                }
+                if (children[p].style.matches(tags, closed)) {
+                    return p;
+                }
+            }
+            return best;
+        }
+    }
+
+    /**
+     * Compile a style tree
+     *
+     * @param style the root of the tree
+     */
+    StyleMatcher(@NonNull FeatureStyle style) {
+        root = new Level(style);
+    }
+
+    /**
+     * Find the best matching style
+     *
+     * @param tags the tags of the element, must not be modified afterwards
+     * @param closed true if the element is a closed way
+     * @return the style
+     */
+    @NonNull
+    synchronized FeatureStyle match(@NonNull SortedMap<String, String> tags, boolean closed) {
+        FeatureStyle[] styles = memo.get(tags);
+        if (styles == null) {
+            styles = new FeatureStyle[2];
+            memo.put(tags, styles);
+        }
+        int index = closed ? 1 : 0;
+        FeatureStyle result = styles[index];
+        if (result == null) {
+            Level level = root;
+            for (Level next = level.firstMatch(tags, closed); next != null; next = level.firstMatch(tags, closed)) {
+                level = next;
+            }
+            result = level.style;
+            styles[index] = result;
+        }
+        return result;
+    }
+
+    /**
+     * Get the number of memoised tag sets
+     *
+     * @return the number of entries in the memo
+     */
+    synchronized int size() {
+        return memo.size();
+    }
+}
@@ -1,6 +1,5 @@
 package de.blau.android.services.util;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashMap;
@@ -30,8 +29,6 @@ public class MBTileProviderDataBase implements LocalTileContainer {
     private static final String  DEBUG_TAG = "MBTilePro...DataBase";
     private static final boolean DEBUGMODE = false;
 
-    private static final int BUFFER_SIZE = 4096;
-
     static final String         T_MBTILES            = "tiles";
     private static final String T_MBTILES_ZOOM_LEVEL = "zoom_level";
     private static final String T_MBTILES_TILE_X     = "tile_column";
@@ -59,13 +56,7 @@ public class MBTileProviderDataBase implements LocalTileContainer {
 
     private final Pools.SynchronizedPool<SQLiteStatement> getStatements;
 
-    private static class BufferWrapper {
-        byte[] buffer = new byte[BUFFER_SIZE];
-    }
-
-    private final Pools.SynchronizedPool<BufferWrapper> buffers;
-
-    private final Pools.SynchronizedPool<ByteArrayOutputStream> streams;
+    private final Pools.SynchronizedPool<ReadBuffer> buffers;
 
     private Map<String, String> metadata = null;
 
@@ -88,11 +79,9 @@ public class MBTileProviderDataBase implements LocalTileContainer {
         }
         getStatements = new Pools.SynchronizedPool<>(maxThreads);
         buffers = new Pools.SynchronizedPool<>(maxThreads);
-        streams = new Pools.SynchronizedPool<>(maxThreads);
         Log.i(DEBUG_TAG, "Allocating " + maxThreads + " prepared statements");
         for (int i = 0; i < maxThreads; i++) {
-            buffers.release(new BufferWrapper());
-            streams.release(new ByteArrayOutputStream());
+            buffers.release(new ReadBuffer());
             getStatements.release(mDatabase.compileStatement(T_MBTILES_GET));
         }
     }
@@ -111,21 +100,13 @@ public class MBTileProviderDataBase implements LocalTileContainer {
     public byte[] getTile(@NonNull final MapTile aTile) throws IOException {
         try (InputStream is = getTileStream(aTile)) {
             if (is != null) {
-                ByteArrayOutputStream bos = streams.acquire();
-                BufferWrapper b = buffers.acquire();
-                if (bos != null && b != null) {
+                ReadBuffer buffer = buffers.acquire();
+                if (buffer != null) {
                     try {
-                        bos.reset();
-                        byte[] buffer = b.buffer;
-                        int bytesRead;
-                        while ((bytesRead = is.read(buffer)) != -1) {
-                            bos.write(buffer, 0, bytesRead);
-                        }
+                        return buffer.read(is, -1);
                     } finally {
-                        streams.release(bos);
-                        buffers.release(b);
+                        buffers.release(buffer);
                     }
-                    return bos.toByteArray();
                 }
                 throw new IOException("Pools exhausted");
             }
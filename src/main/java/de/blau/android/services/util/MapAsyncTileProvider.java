@@ -1,15 +1,23 @@
 package de.blau.android.services.util;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import android.util.Log;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import de.blau.android.util.Util;
 import de.blau.android.views.util.MapTileProviderCallback;
 
 /**
@@ -28,14 +36,45 @@ public abstract class MapAsyncTileProvider {
     public static final int DOESNOTEXIST = 2;
     public static final int NONETWORK    = 3;
     public static final int RETRY        = 4;
+    public static final int CANCELLED    = 5;
 
     public static final int ALLZOOMS = -1;
 
     ThreadPoolExecutor                  mThreadPool;
-    private final Map<String, Runnable> mPending = new HashMap<>();
+    private final Map<String, Runnable> mPending    = new HashMap<>();
+    private long                        coalesced;
+    private long                        cancelled;
+    private long                        sequence;
+    final TilePriorities                priorities  = new TilePriorities();
+    private final Object                reorderLock = new Object();
 
     /**
-     * Queue a tile for loading, if it is already in the queue this returns without doing anything
+     * Order for queued requests, anything that isn't a TileLoader runs first, then by priority and then in the order
+     * they were added
+     */
+    private static final Comparator<Runnable> QUEUE_ORDER = (r1, r2) -> {
+        if (!(r1 instanceof TileLoader) || !(r2 instanceof TileLoader)) {
+            return Boolean.compare(r1 instanceof TileLoader, r2 instanceof TileLoader);
+        }
+        TileLoader l1 = (TileLoader) r1;
+        TileLoader l2 = (TileLoader) r2;
+        int result = Double.compare(l1.priority, l2.priority);
+        return result != 0 ? result : Util.longCompare(l1.sequence, l2.sequence);
+    };
+
+    /**
+     * Create a thread pool that runs the queued requests in order of their priority
+     * 
+     * @param threads the number of threads
+     * @return a ThreadPoolExecutor
+     */
+    @NonNull
+    static ThreadPoolExecutor newThreadPool(int threads) {
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(64, QUEUE_ORDER));
+    }
+
+    /**
+     * Queue a tile for loading, if it is already in the queue the callback is added to the pending request
      * 
      * @param aTile the tile descriptor
      * @param aCallback the call back for when the tile has been loaded
@@ -43,11 +82,19 @@ public abstract class MapAsyncTileProvider {
     public synchronized void loadMapTileAsync(@NonNull final MapTile aTile, final MapTileProviderCallback aCallback) {
         final String tileId = aTile.toId();
         synchronized (mPending) {
-            if (mPending.containsKey(tileId)) {
+            Runnable pending = mPending.get(tileId);
+            if (pending instanceof TileLoader && ((TileLoader) pending).coalesce(aCallback)) {
+                coalesced++;
                 return;
             }
         }
         Runnable r = getTileLoader(aTile, aCallback);
+        if (r instanceof TileLoader) {
+            TileLoader loader = (TileLoader) r;
+            // a tile that is requested while outside of the viewport still gets loaded, but last
+            loader.priority = Math.min(priorities.get(aTile), 2 * TilePriorities.OUTSIDE_PENALTY);
+            loader.sequence = sequence++;
+        }
         synchronized (mPending) {
             mPending.put(tileId, r);
         }
@@ -55,6 +102,9 @@ public abstract class MapAsyncTileProvider {
             mThreadPool.execute(r);
         } catch (RejectedExecutionException rjee) {
             Log.e(DEBUG_TAG, "Execution rejected " + rjee.getMessage());
+            synchronized (mPending) {
+                mPending.remove(tileId); // don't coalesce further requests in to one that will never run
+            }
         }
     }
 
@@ -102,6 +152,97 @@ public abstract class MapAsyncTileProvider {
         }
     }
 
+    /**
+     * Set the current viewport for a tile source, queued requests are re-ordered and requests for tiles far outside of
+     * the viewport are cancelled with reason CANCELLED
+     * 
+     * @param rendererId the id of the tile source
+     * @param zoom the zoom level
+     * @param left the left most tile x number, may be outside of the valid range when wrapping
+     * @param top the top most tile y number
+     * @param right the right most tile x number
+     * @param bottom the bottom most tile y number
+     */
+    public void setViewport(@NonNull String rendererId, int zoom, int left, int top, int right, int bottom) {
+        if (updateViewport(rendererId, zoom, left, top, right, bottom)) {
+            reorderQueue();
+        }
+    }
+
+    /**
+     * Set the current viewport for a tile source without touching queued requests
+     * 
+     * This is cheap and can be called on the UI thread before new requests are made so that they get the correct
+     * priority, the queue should then be re-ordered with {@link #reorderQueue()}.
+     * 
+     * @param rendererId the id of the tile source
+     * @param zoom the zoom level
+     * @param left the left most tile x number, may be outside of the valid range when wrapping
+     * @param top the top most tile y number
+     * @param right the right most tile x number
+     * @param bottom the bottom most tile y number
+     * @return true if the viewport has changed
+     */
+    public boolean updateViewport(@NonNull String rendererId, int zoom, int left, int top, int right, int bottom) {
+        return priorities.set(rendererId, zoom, left, top, right, bottom);
+    }
+
+    /**
+     * Re-order queued requests with the current viewports and cancel requests for tiles far outside of them with
+     * reason CANCELLED
+     * 
+     * Can be called from several threads at the same time, the calls are serialized and always use the latest
+     * viewports.
+     */
+    public void reorderQueue() {
+        List<TileLoader> stale = new ArrayList<>();
+        synchronized (reorderLock) {
+            List<Runnable> queued = new ArrayList<>();
+            mThreadPool.getQueue().drainTo(queued);
+            List<Runnable> keep = new ArrayList<>(queued.size());
+            for (Runnable r : queued) {
+                if (r instanceof TileLoader) {
+                    TileLoader loader = (TileLoader) r;
+                    double priority = priorities.get(loader.mTile);
+                    if (priority == TilePriorities.STALE) {
+                        stale.add(loader);
+                        continue;
+                    }
+                    loader.priority = priority;
+                }
+                keep.add(r);
+            }
+            // the queue is only used once all threads have been started, so we can simply put the requests back
+            mThreadPool.getQueue().addAll(keep);
+        }
+        // cancelling calls back, don't hold the lock for that
+        for (TileLoader loader : stale) {
+            loader.cancel();
+        }
+    }
+
+    /**
+     * Get the number of requests that were added to an already pending request for the same tile
+     * 
+     * @return the count of coalesced requests
+     */
+    public long getCoalescedCount() {
+        synchronized (mPending) {
+            return coalesced;
+        }
+    }
+
+    /**
+     * Get the number of queued requests that were cancelled because the tile was no longer near the viewport
+     * 
+     * @return the count of cancelled requests
+     */
+    public long getCancelledCount() {
+        synchronized (mPending) {
+            return cancelled;
+        }
+    }
+
     /**
      * Get the TileLoader for a tile
      * 
@@ -112,8 +253,10 @@ public abstract class MapAsyncTileProvider {
     protected abstract Runnable getTileLoader(@NonNull final MapTile aTile, @NonNull final MapTileProviderCallback aCallback);
 
     abstract class TileLoader implements Runnable {
-        final MapTile                 mTile;
-        final MapTileProviderCallback mCallback;
+        final MapTile           mTile;
+        final CoalescedCallback mCallback;
+        double                  priority;
+        long                    sequence;
 
         /**
          * Construct a new TileLoader
@@ -123,7 +266,32 @@ public abstract class MapAsyncTileProvider {
          */
         protected TileLoader(@NonNull final MapTile aTile, @NonNull final MapTileProviderCallback aCallback) {
             mTile = aTile;
-            mCallback = aCallback;
+            mCallback = new CoalescedCallback(aCallback);
+        }
+
+        /**
+         * Add the callback of a further request for the same tile
+         * 
+         * @param aCallback the callback
+         * @return true if the callback will be called, false if the result has already been delivered
+         */
+        boolean coalesce(@NonNull final MapTileProviderCallback aCallback) {
+            return mCallback.add(aCallback);
+        }
+
+        /**
+         * Remove the request without running it and tell the callers
+         */
+        void cancel() {
+            synchronized (mPending) {
+                cancelled++;
+            }
+            finished();
+            try {
+                mCallback.mapTileFailed(mTile.rendererID, mTile.zoomLevel, mTile.x, mTile.y, CANCELLED, null);
+            } catch (IOException e) {
+                Log.e(DEBUG_TAG, "mapTileFailed failed with " + e.getMessage());
+            }
         }
 
         /**
@@ -131,7 +299,88 @@ public abstract class MapAsyncTileProvider {
          */
         void finished() {
             synchronized (mPending) {
-                mPending.remove(mTile.toId());
+                final String tileId = mTile.toId();
+                // a new request may have replaced us if the result was already delivered
+                if (mPending.get(tileId) == this) {
+                    mPending.remove(tileId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Callback that passes the result on to all requests for a tile
+     * 
+     * Once a result has been delivered no further callbacks can be added, an exception thrown by one callback doesn't
+     * stop delivery to the others and is re-thrown at the end.
+     */
+    static final class CoalescedCallback implements MapTileProviderCallback {
+        private final List<MapTileProviderCallback> callbacks = new ArrayList<>(1);
+        private boolean                             delivered = false;
+
+        /**
+         * Construct a new instance
+         * 
+         * @param callback the callback of the initial request
+         */
+        CoalescedCallback(@NonNull MapTileProviderCallback callback) {
+            callbacks.add(callback);
+        }
+
+        /**
+         * Add a callback
+         * 
+         * @param callback the callback
+         * @return true if the callback will be called
+         */
+        synchronized boolean add(@NonNull MapTileProviderCallback callback) {
+            if (delivered) {
+                return false;
+            }
+            if (!callbacks.contains(callback)) {
+                callbacks.add(callback);
+            }
+            return true;
+        }
+
+        /**
+         * Mark the result as delivered
+         * 
+         * @return the callbacks to call
+         */
+        @NonNull
+        private synchronized List<MapTileProviderCallback> deliver() {
+            delivered = true;
+            return callbacks;
+        }
+
+        @Override
+        public void mapTileLoaded(@NonNull String rendererID, int zoomLevel, int tileX, int tileY, @NonNull byte[] data) throws IOException {
+            IOException exception = null;
+            for (MapTileProviderCallback callback : deliver()) {
+                try {
+                    callback.mapTileLoaded(rendererID, zoomLevel, tileX, tileY, data);
+                } catch (IOException e) {
+                    exception = e;
+                }
+            }
+            if (exception != null) {
+                throw exception;
+            }
+        }
+
+        @Override
+        public void mapTileFailed(@NonNull String rendererID, int zoomLevel, int tileX, int tileY, int reason, @Nullable String message) throws IOException {
+            IOException exception = null;
+            for (MapTileProviderCallback callback : deliver()) {
+                try {
+                    callback.mapTileFailed(rendererID, zoomLevel, tileX, tileY, reason, message);
+                } catch (IOException e) {
+                    exception = e;
+                }
+            }
+            if (exception != null) {
+                throw exception;
             }
         }
     }
@@ -1,24 +1,22 @@
 // Created by plusminus on 21:31:36 - 25.09.2008
 package de.blau.android.services.util;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.nio.charset.Charset;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.InflaterInputStream;
 
@@ -35,12 +33,14 @@ import de.blau.android.App;
 import de.blau.android.R;
 import de.blau.android.contract.MimeTypes;
 import de.blau.android.exception.InvalidTileException;
+import de.blau.android.osm.OsmXml;
 import de.blau.android.resources.TileLayerSource;
 import de.blau.android.resources.TileLayerSource.Header;
 import de.blau.android.util.NetworkStatus;
 import de.blau.android.util.OkHttpFileChannel;
 import de.blau.android.views.util.MapTileProvider;
 import de.blau.android.views.util.MapTileProviderCallback;
+import okhttp3.CacheControl;
 import okhttp3.Call;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
@@ -88,6 +88,13 @@ public class MapTileDownloader extends MapAsyncTileProvider {
 
     public static final long TIMEOUT = 5000;
 
+    /**
+     * Time after which tiles with validators but without explicit expiry information are revalidated
+     */
+    static final long DEFAULT_MAX_AGE = 7 * 24 * 3600 * 1000L;
+
+    private static final int MAX_PRESIZED_BODY = 4 * 1024 * 1024;
+
     private final Context                     mCtx;
     private final MapTileSaver                mapTileSaver;
     private final NetworkStatus               networkStatus;
@@ -95,6 +102,11 @@ public class MapTileDownloader extends MapAsyncTileProvider {
     private final ReaderCache<String, Reader> pmtilesReaderCache = new ReaderCache<>();
     private final HashSet<String>             disabled           = new HashSet<>();
 
+    private final AtomicLong requests        = new AtomicLong();
+    private final AtomicLong notModified     = new AtomicLong();
+    private final AtomicLong bytesDownloaded = new AtomicLong();
+    private final AtomicLong bytesSaved      = new AtomicLong();
+
     /**
      * Construct a new MapTileDownloader
      * 
@@ -105,7 +117,7 @@ public class MapTileDownloader extends MapAsyncTileProvider {
         mCtx = ctx;
         this.mapTileSaver = mapTileSaver;
         networkStatus = new NetworkStatus(ctx);
-        mThreadPool = (ThreadPoolExecutor) Executors.newFixedThreadPool(App.getPreferences(ctx).getMaxTileDownloadThreads());
+        mThreadPool = newThreadPool(App.getPreferences(ctx).getMaxTileDownloadThreads());
         client = App.getHttpClient().newBuilder().connectTimeout(TIMEOUT, TimeUnit.MILLISECONDS).readTimeout(TIMEOUT, TimeUnit.MILLISECONDS).build();
     }
 
@@ -114,10 +126,53 @@ public class MapTileDownloader extends MapAsyncTileProvider {
         return new TileLoader(aTile, aCallback);
     }
 
+    /**
+     * Get the number of HTTP requests made for tiles, not including PMTiles sources
+     * 
+     * @return the request count
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * Get the number of conditional requests that resulted in a 304 Not Modified response
+     * 
+     * @return the count of not modified responses
+     */
+    public long getNotModifiedCount() {
+        return notModified.get();
+    }
+
+    /**
+     * Get the number of bytes of tile data received
+     * 
+     * @return the number of bytes downloaded
+     */
+    public long getBytesDownloaded() {
+        return bytesDownloaded.get();
+    }
+
+    /**
+     * Get the number of bytes of tile data that didn't have to be downloaded because the cached tile was still valid
+     * 
+     * @return the number of bytes saved
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
     private class TileLoader extends MapAsyncTileProvider.TileLoader {
 
-        private static final String HTTP_HEADER_ACCEPT_ENCODING = "Accept-Encoding";
-        private static final String GZIP                        = "gzip";
+        private static final String HTTP_HEADER_ACCEPT_ENCODING   = "Accept-Encoding";
+        private static final String GZIP                          = "gzip";
+        private static final String HTTP_HEADER_ETAG              = "ETag";
+        private static final String HTTP_HEADER_LAST_MODIFIED     = "Last-Modified";
+        private static final String HTTP_HEADER_EXPIRES           = "Expires";
+        private static final String HTTP_HEADER_IF_NONE_MATCH     = "If-None-Match";
+        private static final String HTTP_HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+        private TileValidators responseValidators;
 
         /**
          * Construct a new TileLoader
@@ -140,9 +195,26 @@ public class MapTileDownloader extends MapAsyncTileProvider {
                 TileLayerSource source = TileLayerSource.get(mCtx, sourceId, false);
                 if (source != null && !disabled.contains(sourceId)) {
                     try {
-                        byte[] data = TileLayerSource.TYPE_PMT_3.equals(source.getType()) ? downloadPMTiles(source, mTile) : downloadTile(source, mTile);
+                        if (TileLayerSource.TYPE_PMT_3.equals(source.getType())) {
+                            byte[] data = downloadPMTiles(source, mTile);
+                            mCallback.mapTileLoaded(mTile.rendererID, mTile.zoomLevel, mTile.x, mTile.y, data);
+                            mapTileSaver.saveTile(mTile, data);
+                            return;
+                        }
+                        TileValidators cached = mapTileSaver.getValidators(mTile);
+                        byte[] data = downloadTile(source, mTile, cached);
+                        if (data == null) { // not modified
+                            data = mapTileSaver.refreshTile(mTile, cached.update(responseValidators));
+                            if (data == null) {
+                                throw new IOException("Revalidated tile no longer in cache " + mTile);
+                            }
+                            notModified.incrementAndGet();
+                            bytesSaved.addAndGet(data.length);
+                            mCallback.mapTileLoaded(mTile.rendererID, mTile.zoomLevel, mTile.x, mTile.y, data);
+                            return;
+                        }
                         mCallback.mapTileLoaded(mTile.rendererID, mTile.zoomLevel, mTile.x, mTile.y, data);
-                        mapTileSaver.saveTile(mTile, data);
+                        mapTileSaver.saveTile(mTile, data, responseValidators);
                     } catch (FileNotFoundException | InvalidTileException ex) {
                         mapTileSaver.markAsInvalid(mTile);
                         mCallback.mapTileFailed(sourceId, mTile.zoomLevel, mTile.x, mTile.y, DOESNOTEXIST, ex.getMessage());
@@ -225,19 +297,39 @@ public class MapTileDownloader extends MapAsyncTileProvider {
         /**
          * Download a tile from a tiles/WMS server
          * 
+         * If validators for a cached copy of the tile are provided a conditional request is made, the validators from
+         * the response are available in responseValidators afterwards.
+         * 
          * @param source the TileLayerSource
          * @param mTile the tile
+         * @param cached validators for the cached copy of the tile or null
+         * @return the tile data or null if the cached tile hasn't been modified
          * @throws FileNotFoundException tile not found
          * @throws IOException if something goes wrong downloading
          * @throws InvalidTileException invalid tile
          */
-        private byte[] downloadTile(@NonNull TileLayerSource source, @NonNull MapTile mTile) throws IOException {
+        @Nullable
+        private byte[] downloadTile(@NonNull TileLayerSource source, @NonNull MapTile mTile, @Nullable TileValidators cached) throws IOException {
             final String tileURLString = buildURL(source, mTile);
             Builder builder = new Request.Builder().url(tileURLString);
             addCustomHeaders(source, builder);
+            final boolean conditional = cached != null && cached.canRevalidate();
+            if (conditional) {
+                if (cached.getEtag() != null) {
+                    builder.header(HTTP_HEADER_IF_NONE_MATCH, cached.getEtag());
+                }
+                if (cached.getLastModified() != null) {
+                    builder.header(HTTP_HEADER_IF_MODIFIED_SINCE, cached.getLastModified());
+                }
+            }
             Request request = builder.addHeader(HTTP_HEADER_ACCEPT_ENCODING, GZIP).build();
             Call tileCall = client.newCall(request);
+            requests.incrementAndGet();
             try (Response tileCallResponse = tileCall.execute()) {
+                responseValidators = getValidators(tileCallResponse, System.currentTimeMillis());
+                if (conditional && tileCallResponse.code() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    return null;
+                }
                 if (tileCallResponse.isSuccessful()) {
                     ResponseBody responseBody = tileCallResponse.body();
                     InputStream inputStream = responseBody.byteStream();
@@ -258,13 +350,9 @@ public class MapTileDownloader extends MapAsyncTileProvider {
                             }
                         }
                     }
-                    try (final InputStream in = new BufferedInputStream(inputStream, StreamUtils.IO_BUFFER_SIZE);
-                            final ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
-                            final OutputStream out = new BufferedOutputStream(dataStream, StreamUtils.IO_BUFFER_SIZE)) {
-                        StreamUtils.copy(in, out);
-                        out.flush();
-
-                        byte[] data = dataStream.toByteArray();
+                    try (final InputStream in = inputStream) {
+                        byte[] data = readBody(in, responseBody.contentLength());
+                        bytesDownloaded.addAndGet(data.length);
                         if (data.length == 0) {
                             throw new FileNotFoundException(mCtx.getString(R.string.empty_tile));
                         }
@@ -275,17 +363,17 @@ public class MapTileDownloader extends MapAsyncTileProvider {
                             case MimeTypes.IMAGE_TYPE:
                                 if (MimeTypes.BMP_SUBTYPE.equalsIgnoreCase(format.subtype())) {
                                     // if tile is in BMP format, compress
-                                    data = compressBitmap(CompressFormat.PNG, dataStream, data);
+                                    data = compressBitmap(CompressFormat.PNG, data);
                                 }
                                 break;
                             case MimeTypes.TEXT_TYPE:
                                 // this can't be a tile and is likely an error message
-                                throw new FileNotFoundException(mCtx.getString(R.string.tile_error_message, tileURLString, responseBody.string()));
+                                throw new FileNotFoundException(mCtx.getString(R.string.tile_error_message, tileURLString, bodyToString(data)));
                             case MimeTypes.APPLICATION_TYPE: // WMS errors, MVT tiles
                                 switch (format.subtype().toLowerCase()) {
                                 case MimeTypes.WMS_EXCEPTION_XML_SUBTYPE:
                                 case MimeTypes.JSON_SUBTYPE:
-                                    throw new FileNotFoundException(mCtx.getString(R.string.tile_error_message, tileURLString, responseBody.string()));
+                                    throw new FileNotFoundException(mCtx.getString(R.string.tile_error_message, tileURLString, bodyToString(data)));
                                 case MimeTypes.MVT_SUBTYPE:
                                 case MimeTypes.X_PROTOBUF_SUBTYPE:
                                     byte[] noTileTile = source.getNoTileTile();
@@ -315,6 +403,80 @@ public class MapTileDownloader extends MapAsyncTileProvider {
             }
         }
 
+        /**
+         * Read a response body in to a single buffer
+         * 
+         * If the length is known the buffer is allocated with the exact size up front, otherwise it is grown as
+         * necessary and trimmed at the end.
+         * 
+         * @param in the InputStream for the body
+         * @param contentLength the length of the body or -1 if unknown
+         * @return the body
+         * @throws IOException if reading fails
+         */
+        @NonNull
+        private byte[] readBody(@NonNull InputStream in, long contentLength) throws IOException {
+            final boolean presized = contentLength >= 0 && contentLength <= MAX_PRESIZED_BODY;
+            byte[] buffer = new byte[presized ? (int) contentLength : StreamUtils.IO_BUFFER_SIZE];
+            int length = 0;
+            while (true) {
+                if (length == buffer.length) {
+                    if (presized) {
+                        if (in.read() == -1) {
+                            return buffer;
+                        }
+                        throw new IOException("Response body longer than Content-Length " + contentLength);
+                    }
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                int read = in.read(buffer, length, buffer.length - length);
+                if (read == -1) {
+                    return length == buffer.length ? buffer : Arrays.copyOf(buffer, length);
+                }
+                length += read;
+            }
+        }
+
+        /**
+         * Convert a response body to a String for error messages
+         * 
+         * @param data the body
+         * @return a String
+         */
+        @NonNull
+        private String bodyToString(@NonNull byte[] data) {
+            return new String(MapTileProvider.unGZip(data), Charset.forName(OsmXml.UTF_8));
+        }
+
+        /**
+         * Get the validators and the expiry time from the headers of a response
+         * 
+         * Cache-Control takes precedence over Expires, if neither is present but there is a validator the tile will be
+         * revalidated after DEFAULT_MAX_AGE, otherwise never.
+         * 
+         * @param response the Response
+         * @param now the current time in ms since the epoch
+         * @return a TileValidators instance
+         */
+        @NonNull
+        private TileValidators getValidators(@NonNull Response response, long now) {
+            String etag = response.header(HTTP_HEADER_ETAG);
+            String lastModified = response.header(HTTP_HEADER_LAST_MODIFIED);
+            CacheControl cacheControl = response.cacheControl();
+            long expires = TileValidators.NEVER;
+            Date expiresDate = response.headers().getDate(HTTP_HEADER_EXPIRES);
+            if (cacheControl.noCache()) {
+                expires = now;
+            } else if (cacheControl.maxAgeSeconds() >= 0) {
+                expires = now + cacheControl.maxAgeSeconds() * 1000L;
+            } else if (expiresDate != null) {
+                expires = Math.max(now, expiresDate.getTime());
+            } else if (etag != null || lastModified != null) {
+                expires = now + DEFAULT_MAX_AGE;
+            }
+            return new TileValidators(etag, lastModified, expires);
+        }
+
         /**
          * Add custom headers from configuration to the request
          * 
@@ -334,14 +496,13 @@ public class MapTileDownloader extends MapAsyncTileProvider {
          * Compress bitmap
          * 
          * @param compressFormat destination format
-         * @param dataStream preallocated datastream for conversion
          * @param data input data
          * @return the compressed data
          */
-        private byte[] compressBitmap(@NonNull CompressFormat compressFormat, @NonNull final ByteArrayOutputStream dataStream, @NonNull byte[] data) {
+        private byte[] compressBitmap(@NonNull CompressFormat compressFormat, @NonNull byte[] data) {
             data = MapTileProvider.unGZip(data); // unzip if compressed
             Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, null);
-            dataStream.reset();
+            ByteArrayOutputStream dataStream = new ByteArrayOutputStream(data.length);
             bitmap.compress(compressFormat, 100, dataStream);
             bitmap.recycle();
             return dataStream.toByteArray();
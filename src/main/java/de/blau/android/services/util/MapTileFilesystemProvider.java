@@ -2,13 +2,13 @@ package de.blau.android.services.util;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.content.Context;
 import android.database.sqlite.SQLiteException;
@@ -50,7 +50,8 @@ public class MapTileFilesystemProvider extends MapAsyncTileProvider implements M
     private final Context                 mCtx;
     private final MapTileProviderDataBase tileCache;
     private final int                     mMaxFSCacheByteSize;
-    private int                           mCurrentCacheByteSize;
+    private final AtomicInteger           mCurrentCacheByteSize = new AtomicInteger();
+    private final TileCacheWriter         writer;
 
     private final Map<String, LocalTileContainer> tileContainerCache = new HashMap<>();
     private final Set<String>                     errorDisplayed     = new HashSet<>(); // track error display
@@ -71,26 +72,27 @@ public class MapTileFilesystemProvider extends MapAsyncTileProvider implements M
         mCtx = ctx;
         mMaxFSCacheByteSize = aMaxFSCacheByteSize;
         tileCache = new MapTileProviderDataBase(new CustomDatabaseContext(ctx, mountPoint.getAbsolutePath()));
+        writer = new TileCacheWriter(tileCache, this::evictIfNeeded);
 
         int maxThreads = App.getPreferences(ctx).getMaxTileDownloadThreads();
-        mThreadPool = (ThreadPoolExecutor) Executors.newFixedThreadPool(maxThreads);
+        mThreadPool = newThreadPool(maxThreads);
 
         mTileDownloader = new MapTileDownloader(ctx, this);
 
         mThreadPool.execute(() -> {
             // mCurrentCacheByteSize will be zero till this is set which is harmless
-            mCurrentCacheByteSize = tileCache.getCurrentFSCacheByteSize();
+            mCurrentCacheByteSize.set(tileCache.getCurrentFSCacheByteSize());
             Log.d(DEBUG_TAG, "Currently used cache-size is: " + mCurrentCacheByteSize + " of " + mMaxFSCacheByteSize + " Bytes");
         });
     }
 
     /**
-     * Get the current size of the caches contents
+     * Get the current size of the caches contents including tiles that have not been written yet
      * 
      * @return size in bytes
      */
     public int getCurrentCacheByteSize() {
-        return mCurrentCacheByteSize;
+        return mCurrentCacheByteSize.get() + writer.getPendingBytes();
     }
 
     @Override
@@ -98,31 +100,81 @@ public class MapTileFilesystemProvider extends MapAsyncTileProvider implements M
         return new TileLoader(aTile, aCallback);
     }
 
+    /**
+     * Get the downloader used for tiles that are not in the cache or have expired
+     * 
+     * @return the MapTileDownloader
+     */
+    @NonNull
+    MapTileDownloader getTileDownloader() {
+        return mTileDownloader;
+    }
+
     @Override
     public void saveTile(final MapTile tile, final byte[] data) throws IOException {
-        try {
-            final int bytesGrown = tileCache.addTile(tile, data);
-            mCurrentCacheByteSize += bytesGrown;
+        saveTile(tile, data, null);
+    }
+
+    @Override
+    public void saveTile(@NonNull final MapTile tile, @NonNull final byte[] data, @Nullable TileValidators validators) throws IOException {
+        writer.save(tile, data, validators);
+    }
 
+    /**
+     * Update the cache size after a batch of writes and free space if the cache is full, runs on the writer thread
+     */
+    private void evictIfNeeded() {
+        final int size = mCurrentCacheByteSize.addAndGet(writer.takeSizeChange());
+        if (Log.isLoggable(DEBUG_TAG, Log.DEBUG)) {
+            Log.d(DEBUG_TAG, "FSCache Size is now: " + size + " Bytes");
+        }
+        /* If Cache is full... */
+        if (size > mMaxFSCacheByteSize) {
             if (Log.isLoggable(DEBUG_TAG, Log.DEBUG)) {
-                Log.d(DEBUG_TAG, "FSCache Size is now: " + mCurrentCacheByteSize + " Bytes");
+                Log.d(DEBUG_TAG, "Freeing FS cache...");
             }
-            /* If Cache is full... */
-            if (mCurrentCacheByteSize > mMaxFSCacheByteSize) {
-                if (Log.isLoggable(DEBUG_TAG, Log.DEBUG)) {
-                    Log.d(DEBUG_TAG, "Freeing FS cache...");
-                }
-                // Free 5% of cache
-                mCurrentCacheByteSize -= tileCache.deleteOldest((int) (mMaxFSCacheByteSize * 0.05f));
-            }
-            if (Log.isLoggable(DEBUG_TAG, Log.DEBUG)) {
-                Log.d(DEBUG_TAG, "Tile saved");
+            // Free what a batch has overshot plus 5% of cache
+            synchronized (this) {
+                mCurrentCacheByteSize.addAndGet((int) -tileCache.deleteOldest(size - mMaxFSCacheByteSize + (int) (mMaxFSCacheByteSize * 0.05f)));
             }
-        } catch (IllegalStateException e) {
-            if (Log.isLoggable(DEBUG_TAG, Log.DEBUG)) {
-                Log.d(DEBUG_TAG, "Tile saving failed", e);
+        }
+    }
+
+    /**
+     * Wait until all queued tile writes have been committed
+     */
+    void flushWrites() {
+        writer.flush();
+    }
+
+    @Override
+    @Nullable
+    public TileValidators getValidators(@NonNull MapTile tile) throws IOException {
+        TileCacheWriter.Write pending = writer.peek(tile);
+        if (pending != null) {
+            return pending.validators;
+        }
+        return tileCache.getValidators(tile);
+    }
+
+    @Override
+    @Nullable
+    public byte[] refreshTile(@NonNull MapTile tile, @NonNull TileValidators validators) throws IOException {
+        byte[] data = null;
+        TileCacheWriter.Write pending = writer.peek(tile);
+        if (pending != null) {
+            data = pending.data;
+        } else {
+            try {
+                data = tileCache.getTile(tile);
+            } catch (InvalidTileException itex) {
+                return null;
             }
         }
+        if (data != null) {
+            writer.refresh(tile, validators);
+        }
+        return data;
     }
 
     /**
@@ -138,10 +190,11 @@ public class MapTileFilesystemProvider extends MapAsyncTileProvider implements M
      * @param bytesToCut how much we want to make free
      */
     private void cutCurrentCacheBy(final int bytesToCut) {
+        writer.flush();
         synchronized (this) {
             tileCache.deleteOldest(bytesToCut);
+            mCurrentCacheByteSize.set(tileCache.getCurrentFSCacheByteSize());
         }
-        mCurrentCacheByteSize = tileCache.getCurrentFSCacheByteSize();
     }
 
     /**
@@ -150,9 +203,12 @@ public class MapTileFilesystemProvider extends MapAsyncTileProvider implements M
      * @param sourceId the provider or null for all
      */
     public void flushCache(@Nullable String sourceId) {
+        writer.flush();
         try {
-            tileCache.flushCache(sourceId);
-            mCurrentCacheByteSize = tileCache.getCurrentFSCacheByteSize();
+            synchronized (this) {
+                tileCache.flushCache(sourceId);
+                mCurrentCacheByteSize.set(tileCache.getCurrentFSCacheByteSize());
+            }
             mTileDownloader.flushDisabled(sourceId);
         } catch (EmptyCacheException e) {
             if (Log.isLoggable(DEBUG_TAG, Log.DEBUG)) {
@@ -161,6 +217,18 @@ public class MapTileFilesystemProvider extends MapAsyncTileProvider implements M
         }
     }
 
+    @Override
+    public boolean updateViewport(@NonNull String rendererId, int zoom, int left, int top, int right, int bottom) {
+        final boolean changed = super.updateViewport(rendererId, zoom, left, top, right, bottom);
+        return mTileDownloader.updateViewport(rendererId, zoom, left, top, right, bottom) || changed;
+    }
+
+    @Override
+    public void reorderQueue() {
+        super.reorderQueue();
+        mTileDownloader.reorderQueue();
+    }
+
     @Override
     public void flushQueue(@NonNull String rendererId, int zoom) {
         // don't bother flushing our queue
@@ -215,12 +283,30 @@ public class MapTileFilesystemProvider extends MapAsyncTileProvider implements M
                         return;
                     }
                 } else {
-                    // retrieve from on device cache or download
-                    data = tileCache.getTile(mTile);
-                    if (data == null) {
-                        download = true;
-                        mTileDownloader.loadMapTileAsync(mTile, passedOnCallback);
-                        return;
+                    // retrieve from the write queue, the on device cache or download
+                    final long now = System.currentTimeMillis();
+                    boolean expired;
+                    TileCacheWriter.Write pending = writer.peek(mTile);
+                    if (pending != null) {
+                        if (pending.data == null) {
+                            throw new InvalidTileException(MapTileProviderDataBase.TILE_MARKED_INVALID_IN_DATABASE);
+                        }
+                        data = pending.data;
+                        expired = pending.validators != null && pending.validators.isExpired(now);
+                    } else {
+                        MapTileProviderDataBase.CachedTile cached = tileCache.getCachedTile(mTile);
+                        if (cached == null) {
+                            download = true;
+                            mTileDownloader.loadMapTileAsync(mTile, passedOnCallback);
+                            return;
+                        }
+                        data = cached.data;
+                        expired = cached.isExpired(now);
+                        writer.touch(mTile); // keep recently used tiles from being evicted
+                    }
+                    if (expired) {
+                        // use the cached tile now, the downloader will make a conditional request
+                        mTileDownloader.loadMapTileAsync(mTile, new RevalidateCallback(mCallback, data));
                     }
                 }
                 mCallback.mapTileLoaded(mTile.rendererID, mTile.zoomLevel, mTile.x, mTile.y, data);
@@ -304,6 +390,46 @@ public class MapTileFilesystemProvider extends MapAsyncTileProvider implements M
         };
     }
 
+    /**
+     * Callback for background revalidation of expired tiles
+     * 
+     * The stale tile has already been delivered and the downloader updates the cache, if the server returned new
+     * contents they are passed on so that the tile that is displayed can be replaced.
+     */
+    private static final class RevalidateCallback implements MapTileProviderCallback {
+        private final MapTileProviderCallback callback;
+        private final byte[]                  stale;
+
+        /**
+         * Construct a new callback
+         * 
+         * @param callback the callback the stale tile was delivered to
+         * @param stale the contents of the stale tile
+         */
+        RevalidateCallback(@NonNull MapTileProviderCallback callback, @NonNull byte[] stale) {
+            this.callback = callback;
+            this.stale = stale;
+        }
+
+        @Override
+        public void mapTileLoaded(@NonNull String rendererID, int zoomLevel, int tileX, int tileY, @NonNull byte[] aImage) throws IOException {
+            if (Arrays.equals(stale, aImage)) { // not modified
+                if (Log.isLoggable(DEBUG_TAG, Log.DEBUG)) {
+                    Log.d(DEBUG_TAG, "Revalidated " + rendererID + " " + zoomLevel + "/" + tileX + "/" + tileY);
+                }
+                return;
+            }
+            callback.mapTileLoaded(rendererID, zoomLevel, tileX, tileY, aImage);
+        }
+
+        @Override
+        public void mapTileFailed(@NonNull String rendererID, int zoomLevel, int tileX, int tileY, int reason, String message) {
+            if (Log.isLoggable(DEBUG_TAG, Log.DEBUG)) {
+                Log.d(DEBUG_TAG, "Revalidating " + rendererID + " " + zoomLevel + "/" + tileX + "/" + tileY + " failed " + reason + " " + message);
+            }
+        }
+    }
+
     /**
      * Display an error notification once per "source"
      * 
@@ -331,6 +457,7 @@ public class MapTileFilesystemProvider extends MapAsyncTileProvider implements M
      */
     public void destroy() {
         Log.d(DEBUG_TAG, "Closing tile databases");
+        writer.shutdown();
         tileCache.close();
         synchronized (tileContainerCache) {
             for (LocalTileContainer container : tileContainerCache.values()) {
@@ -344,7 +471,7 @@ public class MapTileFilesystemProvider extends MapAsyncTileProvider implements M
 
     @Override
     public void markAsInvalid(@NonNull MapTile mTile) throws IOException {
-        tileCache.addTile(mTile, null);
+        writer.markInvalid(mTile);
     }
 
     /**
@@ -1,6 +1,5 @@
 package de.blau.android.services.util;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -42,7 +41,7 @@ public class MapTileProviderDataBase {
     private static final String DEBUG_TAG = "MapTilePro...DataBase";
 
     private static final String DATABASE_NAME    = "osmaptilefscache_db";
-    private static final int    DATABASE_VERSION = 8;
+    private static final int    DATABASE_VERSION = 10;
 
     static final String         T_FSCACHE             = "tiles";
     private static final String T_FSCACHE_RENDERER_ID = "rendererID";
@@ -54,6 +53,9 @@ public class MapTileProviderDataBase {
     private static final String T_FSCACHE_USAGECOUNT = "countused";
     private static final String T_FSCACHE_FILESIZE   = "filesize";
     static final String         T_FSCACHE_DATA       = "tile_data";
+    private static final String T_FSCACHE_ETAG          = "etag";
+    private static final String T_FSCACHE_LAST_MODIFIED = "last_modified";
+    private static final String T_FSCACHE_EXPIRES       = "expires";
 
     private static final String T_RENDERER               = "t_renderer";
     private static final String T_RENDERER_ID            = "id";
@@ -66,9 +68,14 @@ public class MapTileProviderDataBase {
     private static final String T_FSCACHE_CREATE_COMMAND = "CREATE TABLE IF NOT EXISTS " + T_FSCACHE + " (" + T_FSCACHE_RENDERER_ID + " VARCHAR(255) NOT NULL,"
             + T_FSCACHE_ZOOM_LEVEL + " INTEGER NOT NULL," + T_FSCACHE_TILE_X + " INTEGER NOT NULL," + T_FSCACHE_TILE_Y + " INTEGER NOT NULL,"
             + T_FSCACHE_TIMESTAMP + " INTEGER NOT NULL," + T_FSCACHE_USAGECOUNT + " INTEGER NOT NULL DEFAULT 1," + T_FSCACHE_FILESIZE + " INTEGER NOT NULL,"
-            + T_FSCACHE_DATA + " BLOB," + " PRIMARY KEY(" + T_FSCACHE_RENDERER_ID + "," + T_FSCACHE_ZOOM_LEVEL + "," + T_FSCACHE_TILE_X + "," + T_FSCACHE_TILE_Y
+            + T_FSCACHE_DATA + " BLOB," + T_FSCACHE_ETAG + " TEXT," + T_FSCACHE_LAST_MODIFIED + " TEXT," + T_FSCACHE_EXPIRES + " INTEGER NOT NULL DEFAULT 0,"
+            + " PRIMARY KEY(" + T_FSCACHE_RENDERER_ID + "," + T_FSCACHE_ZOOM_LEVEL + "," + T_FSCACHE_TILE_X + "," + T_FSCACHE_TILE_Y
             + ")" + ");";
 
+    private static final String T_FSCACHE_TIMESTAMP_INDEX                = "tiles_timestamp";
+    private static final String T_FSCACHE_TIMESTAMP_INDEX_CREATE_COMMAND = "CREATE INDEX IF NOT EXISTS " + T_FSCACHE_TIMESTAMP_INDEX + " ON " + T_FSCACHE + " ("
+            + T_FSCACHE_TIMESTAMP + ")";
+
     private static final String T_RENDERER_CREATE_COMMAND = "CREATE TABLE IF NOT EXISTS " + T_RENDERER + " (" + T_RENDERER_ID + " VARCHAR(255) PRIMARY KEY,"
             + T_RENDERER_NAME + " VARCHAR(255)," + T_RENDERER_BASE_URL + " VARCHAR(255)," + T_RENDERER_ZOOM_MIN + " INTEGER NOT NULL," + T_RENDERER_ZOOM_MAX
             + " INTEGER NOT NULL," + T_RENDERER_TILE_SIZE_LOG + " INTEGER NOT NULL" + ");";
@@ -85,12 +92,16 @@ public class MapTileProviderDataBase {
     static final String T_FSCACHE_WHERE_NOT_INVALID = T_FSCACHE_RENDERER_ID + SQL_ARG + AND + T_FSCACHE_ZOOM_LEVEL + SQL_ARG + AND + T_FSCACHE_TILE_X + SQL_ARG
             + AND + T_FSCACHE_TILE_Y + SQL_ARG + AND + T_FSCACHE_FILESIZE + ">0";
 
-    private static final String T_FSCACHE_SELECT_OLDEST = "SELECT " + T_FSCACHE_RENDERER_ID + "," + T_FSCACHE_ZOOM_LEVEL + "," + T_FSCACHE_TILE_X + ","
-            + T_FSCACHE_TILE_Y + "," + T_FSCACHE_FILESIZE + " FROM " + T_FSCACHE + " WHERE " + T_FSCACHE_FILESIZE + " > 0 ORDER BY " + T_FSCACHE_TIMESTAMP
-            + " ASC";
+    private static final String ROWID                   = "rowid";
+    private static final String T_FSCACHE_SELECT_OLDEST = "SELECT " + ROWID + "," + T_FSCACHE_FILESIZE + " FROM " + T_FSCACHE + " WHERE "
+            + T_FSCACHE_FILESIZE + " > 0 ORDER BY " + T_FSCACHE_TIMESTAMP + " ASC LIMIT ";
+    private static final int    EVICTION_CHUNK          = 256;
 
     private static final String T_FSCACHE_GET = "SELECT " + T_FSCACHE_DATA + " FROM " + T_FSCACHE + " WHERE " + T_FSCACHE_WHERE;
 
+    private static final String T_FSCACHE_GET_WITH_EXPIRES = "SELECT " + T_FSCACHE_DATA + "," + T_FSCACHE_EXPIRES + " FROM " + T_FSCACHE + " WHERE "
+            + T_FSCACHE_WHERE;
+
     static final String TILE_MARKED_INVALID_IN_DATABASE = "Tile marked invalid in database";
 
     // ===========================================================
@@ -101,6 +112,7 @@ public class MapTileProviderDataBase {
     private final SQLiteDatabase mDatabase;
 
     private final Pools.SynchronizedPool<SQLiteStatement> getStatements;
+    private final Pools.SynchronizedPool<ReadBuffer>      readBuffers;
 
     // ===========================================================
     // Constructors
@@ -116,6 +128,7 @@ public class MapTileProviderDataBase {
         mDatabase = databaseHelper.getWritableDatabase();
         int maxThreads = App.getPreferences(context).getMaxTileDownloadThreads();
         getStatements = new Pools.SynchronizedPool<>(maxThreads);
+        readBuffers = new Pools.SynchronizedPool<>(maxThreads);
         Log.i(DEBUG_TAG, "Allocating " + (maxThreads) + " prepared statements");
         for (int i = 0; i < maxThreads; i++) {
             getStatements.release(mDatabase.compileStatement(T_FSCACHE_GET));
@@ -165,6 +178,19 @@ public class MapTileProviderDataBase {
      * @throws IOException if adding the tile fails
      */
     public int addTile(@NonNull final MapTile aTile, @Nullable final byte[] tileData) throws IOException {
+        return addTile(aTile, tileData, null);
+    }
+
+    /**
+     * Save tile data and HTTP cache validators to the database, replaces an existing tile if new data is provided
+     * 
+     * @param aTile tile meta data
+     * @param tileData the tile image data
+     * @param validators validators and expiry for the tile or null
+     * @return the change in size of the cache
+     * @throws IOException if adding the tile fails
+     */
+    public int addTile(@NonNull final MapTile aTile, @Nullable final byte[] tileData, @Nullable TileValidators validators) throws IOException {
         if (MapViewConstants.DEBUGMODE) {
             Log.d(MapTileFilesystemProvider.DEBUG_TAG, "adding " + aTile);
         }
@@ -178,6 +204,7 @@ public class MapTileProviderDataBase {
                 cv.put(T_FSCACHE_TIMESTAMP, System.currentTimeMillis());
                 cv.put(T_FSCACHE_FILESIZE, tileData != null ? tileData.length : 0); // 0 == invalid
                 cv.put(T_FSCACHE_DATA, tileData);
+                putValidators(cv, validators);
                 long result = mDatabase.insertOrThrow(T_FSCACHE, null, cv);
                 if (MapViewConstants.DEBUGMODE) {
                     Log.d(MapTileFilesystemProvider.DEBUG_TAG, "Inserting new tile result " + result);
@@ -185,18 +212,22 @@ public class MapTileProviderDataBase {
                 return tileData != null ? tileData.length : 0;
             }
         } catch (SQLiteConstraintException scex) {
-            if (tileData != null && isInvalid(aTile)) {
-                Log.w(DEBUG_TAG, "Formerly invalid tile has become available " + aTile);
-                // try to update tile with current data now that it has become available
+            if (tileData != null) {
+                // either a formerly invalid tile has become available or the tile has changed on the server
+                final int oldSize = getTileSize(aTile);
+                if (oldSize == 0) {
+                    Log.w(DEBUG_TAG, "Formerly invalid tile has become available " + aTile);
+                }
                 final ContentValues cv = new ContentValues();
                 cv.put(T_FSCACHE_TIMESTAMP, System.currentTimeMillis());
                 cv.put(T_FSCACHE_FILESIZE, tileData.length);
                 cv.put(T_FSCACHE_DATA, tileData);
+                putValidators(cv, validators);
                 long result = mDatabase.update(T_FSCACHE, cv, T_FSCACHE_WHERE, tileToWhereArgs(aTile));
                 if (MapViewConstants.DEBUGMODE) {
-                    Log.d(MapTileFilesystemProvider.DEBUG_TAG, "Inserting tile for invalid one result " + result);
+                    Log.d(MapTileFilesystemProvider.DEBUG_TAG, "Replacing existing tile result " + result);
                 }
-                return tileData.length;
+                return tileData.length - oldSize;
             }
             Log.w(DEBUG_TAG, "Constraint violated inserting tile " + aTile);
         } catch (SQLiteException sex) { // handle these the same
@@ -205,6 +236,88 @@ public class MapTileProviderDataBase {
         return 0;
     }
 
+    /**
+     * Add the validator columns to a ContentValues object
+     * 
+     * @param cv the ContentValues
+     * @param validators the validators or null
+     */
+    private static void putValidators(@NonNull ContentValues cv, @Nullable TileValidators validators) {
+        cv.put(T_FSCACHE_ETAG, validators != null ? validators.getEtag() : null);
+        cv.put(T_FSCACHE_LAST_MODIFIED, validators != null ? validators.getLastModified() : null);
+        cv.put(T_FSCACHE_EXPIRES, validators != null ? validators.getExpires() : TileValidators.NEVER);
+    }
+
+    /**
+     * Get the stored size of a tile
+     * 
+     * @param aTile the tile meta data
+     * @return the size of the tile, 0 if it is invalid or not present
+     */
+    private int getTileSize(@NonNull final MapTile aTile) {
+        try (Cursor c = mDatabase.query(T_FSCACHE, new String[] { T_FSCACHE_FILESIZE }, T_FSCACHE_WHERE, tileToWhereArgs(aTile), null, null, null)) {
+            return c.moveToFirst() ? c.getInt(0) : 0;
+        }
+    }
+
+    /**
+     * Get the HTTP cache validators and the expiry time for a valid tile
+     * 
+     * @param aTile the tile meta data
+     * @return a TileValidators object or null if the tile isn't present or is invalid
+     * @throws IOException if reading from the database fails
+     */
+    @Nullable
+    public TileValidators getValidators(@NonNull final MapTile aTile) throws IOException {
+        if (!mDatabase.isOpen()) {
+            return null;
+        }
+        try (Cursor c = mDatabase.query(T_FSCACHE, new String[] { T_FSCACHE_ETAG, T_FSCACHE_LAST_MODIFIED, T_FSCACHE_EXPIRES }, T_FSCACHE_WHERE_NOT_INVALID,
+                tileToWhereArgs(aTile), null, null, null)) {
+            if (c.moveToFirst()) {
+                return new TileValidators(c.isNull(0) ? null : c.getString(0), c.isNull(1) ? null : c.getString(1), c.getLong(2));
+            }
+            return null;
+        } catch (SQLiteException sex) {
+            throw new IOException(sex.getMessage());
+        }
+    }
+
+    /**
+     * Check if a valid tile has expired and should be revalidated
+     * 
+     * @param aTile the tile meta data
+     * @param now the current time in ms since the epoch
+     * @return true if the tile has expired
+     * @throws IOException if reading from the database fails
+     */
+    public boolean isExpired(@NonNull final MapTile aTile, long now) throws IOException {
+        TileValidators validators = getValidators(aTile);
+        return validators != null && validators.isExpired(now);
+    }
+
+    /**
+     * Update the validators and the timestamp of a tile after the server has told us that it hasn't changed
+     * 
+     * @param aTile the tile meta data
+     * @param validators the new validators
+     * @return true if the tile was present and has been updated
+     * @throws IOException if writing to the database fails
+     */
+    public boolean refreshTile(@NonNull final MapTile aTile, @NonNull TileValidators validators) throws IOException {
+        if (!mDatabase.isOpen()) {
+            return false;
+        }
+        try {
+            final ContentValues cv = new ContentValues();
+            cv.put(T_FSCACHE_TIMESTAMP, System.currentTimeMillis());
+            putValidators(cv, validators);
+            return mDatabase.update(T_FSCACHE, cv, T_FSCACHE_WHERE_NOT_INVALID, tileToWhereArgs(aTile)) > 0;
+        } catch (SQLiteException sex) {
+            throw new IOException(sex.getMessage());
+        }
+    }
+
     /**
      * Get a SQLite argument array for a WHERE clause
      * 
@@ -217,7 +330,10 @@ public class MapTileProviderDataBase {
     }
 
     /**
-     * Returns requested tile and increases use count and date
+     * Returns requested tile
+     * 
+     * The blob is read directly in to an array of the right size if the size of the file descriptor is known, otherwise
+     * via a pooled scratch buffer.
      * 
      * @param aTile the tile meta data
      * @return the contents of the tile or null on failure to retrieve
@@ -247,16 +363,16 @@ public class MapTileProviderDataBase {
                         throw new InvalidTileException(TILE_MARKED_INVALID_IN_DATABASE);
                     }
 
-                    ParcelFileDescriptor.AutoCloseInputStream acis = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
-                    ByteArrayOutputStream bos = new ByteArrayOutputStream();
-
-                    byte[] buffer = new byte[4096];
-                    int bytesRead;
-                    while ((bytesRead = acis.read(buffer)) != -1) {
-                        bos.write(buffer, 0, bytesRead);
+                    final long size = pfd.getStatSize();
+                    ReadBuffer buffer = readBuffers.acquire();
+                    if (buffer == null) { // created lazily
+                        buffer = new ReadBuffer();
+                    }
+                    try (ParcelFileDescriptor.AutoCloseInputStream acis = new ParcelFileDescriptor.AutoCloseInputStream(pfd)) {
+                        return buffer.read(acis, size);
+                    } finally {
+                        readBuffers.release(buffer);
                     }
-                    acis.close();
-                    return bos.toByteArray();
                 } catch (SQLiteDoneException sde) {
                     // nothing found
                     return null;
@@ -276,7 +392,73 @@ public class MapTileProviderDataBase {
     }
 
     /**
-     * Remove old tiles until enough space is present
+     * Returns requested tile together with its expiry time
+     * 
+     * Both are retrieved with one query, if the tile is too large to be read via a cursor window this falls back to
+     * {@link #getTile(MapTile)} and {@link #getValidators(MapTile)}.
+     * 
+     * @param aTile the tile meta data
+     * @return a CachedTile or null if the tile isn't in the cache
+     * @throws IOException if reading the tile fails or it is marked as invalid
+     */
+    @Nullable
+    public CachedTile getCachedTile(@NonNull final MapTile aTile) throws IOException {
+        if (!mDatabase.isOpen()) {
+            return null;
+        }
+        try (Cursor c = mDatabase.rawQuery(T_FSCACHE_GET_WITH_EXPIRES, tileToWhereArgs(aTile))) {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            if (c.isNull(0)) {
+                throw new InvalidTileException(TILE_MARKED_INVALID_IN_DATABASE);
+            }
+            return new CachedTile(c.getBlob(0), c.getLong(1));
+        } catch (SQLiteException sex) {
+            Log.w(DEBUG_TAG, "Reading " + aTile + " via cursor failed " + sex.getMessage());
+        }
+        byte[] data = getTile(aTile);
+        if (data == null) {
+            return null;
+        }
+        TileValidators validators = getValidators(aTile);
+        return new CachedTile(data, validators != null ? validators.getExpires() : TileValidators.NEVER);
+    }
+
+    /**
+     * The contents of a cached tile and its expiry time
+     */
+    public static final class CachedTile {
+        final byte[] data;
+        final long   expires;
+
+        /**
+         * Construct a new instance
+         * 
+         * @param data the contents of the tile
+         * @param expires the expiry time in ms since the epoch or TileValidators.NEVER
+         */
+        CachedTile(@NonNull byte[] data, long expires) {
+            this.data = data;
+            this.expires = expires;
+        }
+
+        /**
+         * Check if the tile has expired and should be revalidated
+         * 
+         * @param now the current time in ms since the epoch
+         * @return true if the tile has expired
+         */
+        boolean isExpired(long now) {
+            return expires != TileValidators.NEVER && expires <= now;
+        }
+    }
+
+    /**
+     * Remove the least recently used tiles until enough space is present
+     * 
+     * Walks the timestamp index in chunks of EVICTION_CHUNK tiles and deletes by rowid, each chunk in its own
+     * transaction, so that neither a complete scan nor a long running transaction is necessary.
      * 
      * @param pSizeNeeded the extra size we need
      * @return the size we actually gained
@@ -287,59 +469,84 @@ public class MapTileProviderDataBase {
             Log.e(MapTileFilesystemProvider.DEBUG_TAG, "deleteOldest called on closed DB");
             return 0;
         }
-        final Cursor c = mDatabase.rawQuery(T_FSCACHE_SELECT_OLDEST, null);
-
-        final List<MapTile> deleteFromDB = new ArrayList<>();
         long sizeGained = 0;
-        if (c != null) {
-            try {
-                MapTile tileToBeDeleted;
-                try {
-                    if (c.moveToFirst()) {
-                        do {
-                            final int sizeItem = c.getInt(c.getColumnIndexOrThrow(T_FSCACHE_FILESIZE));
-                            sizeGained += sizeItem;
-                            tileToBeDeleted = new MapTile(c.getString(c.getColumnIndexOrThrow(T_FSCACHE_RENDERER_ID)),
-                                    c.getInt(c.getColumnIndexOrThrow(T_FSCACHE_ZOOM_LEVEL)), c.getInt(c.getColumnIndexOrThrow(T_FSCACHE_TILE_X)),
-                                    c.getInt(c.getColumnIndexOrThrow(T_FSCACHE_TILE_Y)));
-
-                            deleteFromDB.add(tileToBeDeleted);
-                        } while (c.moveToNext() && sizeGained < pSizeNeeded);
-                    } else {
+        try {
+            while (sizeGained < pSizeNeeded) {
+                final List<String> deleteFromDB = new ArrayList<>();
+                try (Cursor c = mDatabase.rawQuery(T_FSCACHE_SELECT_OLDEST + EVICTION_CHUNK, null)) {
+                    while (c.moveToNext() && sizeGained < pSizeNeeded) {
+                        deleteFromDB.add(Long.toString(c.getLong(0)));
+                        sizeGained += c.getInt(1);
+                    }
+                }
+                if (deleteFromDB.isEmpty()) {
+                    if (sizeGained == 0) {
                         throw new EmptyCacheException("Cache seems to be empty.");
                     }
-
-                    if (mDatabase.isOpen()) {
-                        try {
-                            mDatabase.beginTransaction();
-                            for (MapTile t : deleteFromDB) {
-                                mDatabase.delete(T_FSCACHE, T_FSCACHE_WHERE, tileToWhereArgs(t));
-                            }
-                            mDatabase.setTransactionSuccessful();
-                        } finally {
-                            if (mDatabase.inTransaction()) {
-                                mDatabase.endTransaction();
-                            }
-                        }
+                    break;
+                }
+                mDatabase.beginTransaction();
+                try {
+                    for (String rowId : deleteFromDB) {
+                        mDatabase.delete(T_FSCACHE, ROWID + SQL_ARG, new String[] { rowId });
                     }
-                } catch (SQLiteException | java.lang.IllegalStateException e) {
-                    Log.e(MapTileFilesystemProvider.DEBUG_TAG, "Exception in deleteOldest " + e);
-                } catch (NullPointerException e) {
-                    // just log ... likely these are really spurious
-                    Log.e(MapTileFilesystemProvider.DEBUG_TAG, "NPE in deleteOldest " + e);
-                } catch (EmptyCacheException e) {
-                    Log.e(MapTileFilesystemProvider.DEBUG_TAG, "Exception in deleteOldest cache empty " + e);
-                } catch (Exception e) {
-                    ACRAHelper.nocrashReport(e, e.getMessage());
+                    mDatabase.setTransactionSuccessful();
+                } finally {
+                    mDatabase.endTransaction();
                 }
-            } finally {
-                c.close();
             }
+        } catch (SQLiteException | java.lang.IllegalStateException e) {
+            Log.e(MapTileFilesystemProvider.DEBUG_TAG, "Exception in deleteOldest " + e);
+        } catch (NullPointerException e) {
+            // just log ... likely these are really spurious
+            Log.e(MapTileFilesystemProvider.DEBUG_TAG, "NPE in deleteOldest " + e);
+        } catch (EmptyCacheException e) {
+            Log.e(MapTileFilesystemProvider.DEBUG_TAG, "Exception in deleteOldest cache empty " + e);
+        } catch (Exception e) {
+            ACRAHelper.nocrashReport(e, e.getMessage());
         }
         Log.d(DEBUG_TAG, "deleteOldest size gained " + sizeGained);
         return sizeGained;
     }
 
+    /**
+     * Update the timestamp of a tile so that it is considered recently used
+     * 
+     * @param aTile the tile meta data
+     * @throws IOException if writing to the database fails
+     */
+    public void touchTile(@NonNull final MapTile aTile) throws IOException {
+        if (!mDatabase.isOpen()) {
+            return;
+        }
+        try {
+            final ContentValues cv = new ContentValues();
+            cv.put(T_FSCACHE_TIMESTAMP, System.currentTimeMillis());
+            mDatabase.update(T_FSCACHE, cv, T_FSCACHE_WHERE, tileToWhereArgs(aTile));
+        } catch (SQLiteException sex) {
+            throw new IOException(sex.getMessage());
+        }
+    }
+
+    /**
+     * Run a batch of writes in a single transaction
+     * 
+     * @param batch the writes
+     */
+    void runInTransaction(@NonNull Runnable batch) {
+        if (!mDatabase.isOpen()) {
+            Log.e(DEBUG_TAG, "runInTransaction called on closed DB");
+            return;
+        }
+        mDatabase.beginTransaction();
+        try {
+            batch.run();
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
     /**
      * Delete all tiles from cache for a specific renderer
      * 
@@ -438,6 +645,7 @@ public class MapTileProviderDataBase {
             try {
                 db.execSQL(T_RENDERER_CREATE_COMMAND);
                 db.execSQL(T_FSCACHE_CREATE_COMMAND);
+                db.execSQL(T_FSCACHE_TIMESTAMP_INDEX_CREATE_COMMAND);
             } catch (SQLException e) {
                 Log.w(MapTileFilesystemProvider.DEBUG_TAG, "Problem creating database", e);
             }
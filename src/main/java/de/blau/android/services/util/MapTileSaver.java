@@ -3,6 +3,7 @@ package de.blau.android.services.util;
 import java.io.IOException;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 public interface MapTileSaver {
     
@@ -14,6 +15,43 @@ public interface MapTileSaver {
      * @throws IOException if saving the file goes wrong
      */
     public void saveTile(final MapTile tile, final byte[] data) throws IOException;
+
+    /**
+     * Save the image data and the HTTP cache validators for a tile to the database, making space if necessary
+     * 
+     * @param tile tile meta-data
+     * @param data the tile image data
+     * @param validators the validators from the response or null
+     * @throws IOException if saving the file goes wrong
+     */
+    public default void saveTile(@NonNull final MapTile tile, @NonNull final byte[] data, @Nullable TileValidators validators) throws IOException {
+        saveTile(tile, data);
+    }
+
+    /**
+     * Get the HTTP cache validators for a stored tile
+     * 
+     * @param tile tile meta-data
+     * @return the validators or null if the tile isn't stored
+     * @throws IOException if reading from the database fails
+     */
+    @Nullable
+    public default TileValidators getValidators(@NonNull MapTile tile) throws IOException {
+        return null;
+    }
+
+    /**
+     * Update the validators of a stored tile after a 304 Not Modified response
+     * 
+     * @param tile tile meta-data
+     * @param validators the updated validators
+     * @return the stored tile image data or null if the tile is no longer stored
+     * @throws IOException if accessing the database fails
+     */
+    @Nullable
+    public default byte[] refreshTile(@NonNull MapTile tile, @NonNull TileValidators validators) throws IOException {
+        return null;
+    }
     
     /**
      * Mark a tile as invalid (really doesn't exist)
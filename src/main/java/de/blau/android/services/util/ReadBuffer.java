@@ -0,0 +1,117 @@
+package de.blau.android.services.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Reads complete streams in to byte arrays with as little copying as possible
+ *
+ * If the size of the data is known in advance it is read directly in to an array of that size, otherwise it is read in
+ * to a scratch buffer that is allocated on first use, retained between calls and copied once to an array of the final
+ * size. Instances are not thread safe and are intended to be pooled.
+ *
+ * @author simon
+ *
+ */
+public final class ReadBuffer {
+
+    private static final int DEFAULT_SIZE = 32 * 1024;
+    private static final int MAX_RETAINED = 512 * 1024;
+
+    private byte[] buffer = null;
+
+    /**
+     * Read a stream until EOF
+     *
+     * @param in the InputStream, not closed by this method
+     * @param sizeHint the expected size or a value &lt;= 0 if not known, the result is correct even if the hint is wrong
+     * @return an array containing all the data
+     * @throws IOException if reading fails
+     */
+    @NonNull
+    public byte[] read(@NonNull InputStream in, long sizeHint) throws IOException {
+        int length = 0;
+        if (sizeHint > 0 && sizeHint < Integer.MAX_VALUE) {
+            byte[] result = new byte[(int) sizeHint];
+            length = fill(in, result, 0);
+            if (length < result.length) {
+                return Arrays.copyOf(result, length); // hint was too large
+            }
+            int next = in.read();
+            if (next == -1) {
+                return result;
+            }
+            // hint was too small, continue in the scratch buffer
+            ensureCapacity(length + 1);
+            System.arraycopy(result, 0, buffer, 0, length);
+            buffer[length++] = (byte) next;
+        }
+        ensureCapacity(DEFAULT_SIZE);
+        while (true) {
+            if (length == buffer.length) {
+                ensureCapacity(length + 1);
+            }
+            int read = in.read(buffer, length, buffer.length - length);
+            if (read == -1) {
+                break;
+            }
+            length += read;
+        }
+        byte[] result = Arrays.copyOf(buffer, length);
+        if (buffer.length > MAX_RETAINED) {
+            buffer = null; // don't hold on to huge buffers
+        }
+        return result;
+    }
+
+    /**
+     * Read from a stream until an array is full or EOF is reached
+     *
+     * @param in the InputStream
+     * @param target the target array
+     * @param offset where to start in the array
+     * @return the number of bytes in target
+     * @throws IOException if reading fails
+     */
+    private static int fill(@NonNull InputStream in, @NonNull byte[] target, int offset) throws IOException {
+        int length = offset;
+        while (length < target.length) {
+            int read = in.read(target, length, target.length - length);
+            if (read == -1) {
+                break;
+            }
+            length += read;
+        }
+        return length;
+    }
+
+    /**
+     * Grow the scratch buffer, retaining its contents
+     *
+     * @param capacity the minimum capacity
+     */
+    private void ensureCapacity(int capacity) {
+        if (buffer == null) {
+            buffer = new byte[Math.max(capacity, DEFAULT_SIZE)];
+        } else if (capacity > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+        }
+    }
+
+    /**
+     * Get the size of the uncompressed data from the trailer of a gzip stream
+     *
+     * @param data the gzip compressed data
+     * @return the size modulo 2^32 as stored in the trailer or -1 if data is too short
+     */
+    public static long gzipSize(@NonNull byte[] data) {
+        final int length = data.length;
+        if (length < 18) { // minimum header plus trailer
+            return -1;
+        }
+        return (data[length - 4] & 0xFFL) | (data[length - 3] & 0xFFL) << 8 | (data[length - 2] & 0xFFL) << 16 | (data[length - 1] & 0xFFL) << 24;
+    }
+}
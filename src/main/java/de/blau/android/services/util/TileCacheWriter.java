@@ -0,0 +1,312 @@
+package de.blau.android.services.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Write-behind queue for the on device tile cache
+ *
+ * Writes are queued per tile, a later write for the same tile replaces an earlier one that hasn't been written yet.
+ * A single background thread commits the queue in batches of up to MAX_BATCH writes per transaction and then runs the
+ * maintenance task, threads adding writes never wait for the database. Tiles that have been queued but not committed
+ * yet are available via {@link #peek(MapTile)}.
+ *
+ * @author simon
+ *
+ */
+class TileCacheWriter {
+    private static final String DEBUG_TAG = TileCacheWriter.class.getSimpleName();
+
+    private static final int MAX_BATCH = 64;
+
+    enum Type {
+        SAVE, INVALID, TOUCH, REFRESH
+    }
+
+    static final class Write {
+        final Type           type;
+        final MapTile        tile;
+        final byte[]         data;
+        final TileValidators validators;
+
+        /**
+         * Construct a new write
+         *
+         * @param type the type of write
+         * @param tile the tile
+         * @param data the tile data for SAVE
+         * @param validators the validators for SAVE and REFRESH
+         */
+        Write(@NonNull Type type, @NonNull MapTile tile, @Nullable byte[] data, @Nullable TileValidators validators) {
+            this.type = type;
+            this.tile = tile;
+            this.data = data;
+            this.validators = validators;
+        }
+    }
+
+    private final MapTileProviderDataBase tileCache;
+    private final Runnable                maintenance;
+    private final ExecutorService         executor     = Executors.newSingleThreadExecutor();
+    private final Map<String, Write>      pending      = new LinkedHashMap<>();
+    private final Map<String, Write>      writing      = new HashMap<>();
+    private final AtomicInteger           pendingBytes = new AtomicInteger();
+    private final AtomicInteger           sizeChange   = new AtomicInteger();
+    private boolean                       scheduled    = false;
+    private long                          batches      = 0;
+
+    /**
+     * Construct a new writer
+     *
+     * @param tileCache the database to write to
+     * @param maintenance a task to run on the writer thread after every batch
+     */
+    TileCacheWriter(@NonNull MapTileProviderDataBase tileCache, @NonNull Runnable maintenance) {
+        this.tileCache = tileCache;
+        this.maintenance = maintenance;
+    }
+
+    /**
+     * Queue tile data for saving
+     *
+     * @param tile the tile
+     * @param data the tile data
+     * @param validators validators or null
+     */
+    void save(@NonNull MapTile tile, @NonNull byte[] data, @Nullable TileValidators validators) {
+        queue(new Write(Type.SAVE, tile, data, validators), true);
+    }
+
+    /**
+     * Queue marking a tile as invalid
+     *
+     * @param tile the tile
+     */
+    void markInvalid(@NonNull MapTile tile) {
+        queue(new Write(Type.INVALID, tile, null, null), true);
+    }
+
+    /**
+     * Queue updating the timestamp of a tile, does nothing if there is already a write for the tile
+     *
+     * @param tile the tile
+     */
+    void touch(@NonNull MapTile tile) {
+        queue(new Write(Type.TOUCH, tile, null, null), false);
+    }
+
+    /**
+     * Queue updating the validators of a tile, if the tile data is still queued the validators are updated there
+     *
+     * @param tile the tile
+     * @param validators the new validators
+     */
+    void refresh(@NonNull MapTile tile, @NonNull TileValidators validators) {
+        synchronized (pending) {
+            Write existing = pending.get(tile.toId());
+            if (existing != null && existing.type == Type.SAVE) {
+                queue(new Write(Type.SAVE, tile, existing.data, validators), true);
+                return;
+            }
+        }
+        queue(new Write(Type.REFRESH, tile, null, validators), true);
+    }
+
+    /**
+     * Add a write to the queue and make sure it will be processed
+     *
+     * @param write the Write
+     * @param replace if false and there already is a write for the tile, don't add it
+     */
+    private void queue(@NonNull Write write, boolean replace) {
+        final String key = write.tile.toId();
+        synchronized (pending) {
+            Write previous = pending.get(key);
+            if (previous != null) {
+                if (!replace) {
+                    return;
+                }
+                pending.remove(key); // re-insert at the end
+                if (previous.type == Type.SAVE) {
+                    pendingBytes.addAndGet(-previous.data.length);
+                }
+            }
+            pending.put(key, write);
+            if (write.type == Type.SAVE) {
+                pendingBytes.addAndGet(write.data.length);
+            }
+            if (!scheduled) {
+                try {
+                    executor.execute(this::drain);
+                    scheduled = true;
+                } catch (RejectedExecutionException rjee) {
+                    Log.e(DEBUG_TAG, "Execution rejected " + rjee.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the queued data or invalid marker for a tile that hasn't been committed yet
+     *
+     * @param tile the tile
+     * @return a SAVE or INVALID Write or null
+     */
+    @Nullable
+    Write peek(@NonNull MapTile tile) {
+        final String key = tile.toId();
+        synchronized (pending) {
+            Write write = pending.get(key);
+            if (write == null || write.type == Type.TOUCH || write.type == Type.REFRESH) {
+                Write inProgress = writing.get(key);
+                if (inProgress != null && (inProgress.type == Type.SAVE || inProgress.type == Type.INVALID)) {
+                    return inProgress;
+                }
+            }
+            return write != null && (write.type == Type.SAVE || write.type == Type.INVALID) ? write : null;
+        }
+    }
+
+    /**
+     * Get the number of bytes of tile data that are queued or being written
+     *
+     * @return the number of bytes
+     */
+    int getPendingBytes() {
+        return pendingBytes.get();
+    }
+
+    /**
+     * Get and reset the change in size of the database since the last call
+     *
+     * @return the change in bytes
+     */
+    int takeSizeChange() {
+        return sizeChange.getAndSet(0);
+    }
+
+    /**
+     * @return the number of transactions committed so far
+     */
+    long getBatchCount() {
+        synchronized (pending) {
+            return batches;
+        }
+    }
+
+    /**
+     * Write all queued writes, runs on the writer thread
+     */
+    private void drain() {
+        while (true) {
+            final List<Write> batch = new ArrayList<>();
+            synchronized (pending) {
+                if (pending.isEmpty()) {
+                    scheduled = false;
+                    return;
+                }
+                Iterator<Write> it = pending.values().iterator();
+                while (it.hasNext() && batch.size() < MAX_BATCH) {
+                    Write write = it.next();
+                    it.remove();
+                    writing.put(write.tile.toId(), write);
+                    batch.add(write);
+                }
+            }
+            try {
+                tileCache.runInTransaction(() -> {
+                    for (Write write : batch) {
+                        write(write);
+                    }
+                });
+            } catch (RuntimeException e) {
+                Log.e(DEBUG_TAG, "Writing batch failed " + e.getMessage());
+            } finally {
+                synchronized (pending) {
+                    for (Write write : batch) {
+                        writing.remove(write.tile.toId());
+                        if (write.type == Type.SAVE) {
+                            pendingBytes.addAndGet(-write.data.length);
+                        }
+                    }
+                    batches++;
+                }
+            }
+            try {
+                maintenance.run();
+            } catch (RuntimeException e) {
+                Log.e(DEBUG_TAG, "Maintenance failed " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Write an individual entry
+     *
+     * @param write the Write
+     */
+    private void write(@NonNull Write write) {
+        try {
+            switch (write.type) {
+            case SAVE:
+                sizeChange.addAndGet(tileCache.addTile(write.tile, write.data, write.validators));
+                break;
+            case INVALID:
+                tileCache.addTile(write.tile, null);
+                break;
+            case TOUCH:
+                tileCache.touchTile(write.tile);
+                break;
+            case REFRESH:
+                tileCache.refreshTile(write.tile, write.validators);
+                break;
+            }
+        } catch (IOException e) {
+            Log.e(DEBUG_TAG, "Writing " + write.type + " for " + write.tile + " failed " + e.getMessage());
+        }
+    }
+
+    /**
+     * Wait until everything queued before this call has been written
+     */
+    void flush() {
+        try {
+            // the executor is single threaded so this can't run concurrently with a scheduled drain
+            executor.submit(this::drain).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | RejectedExecutionException e) {
+            Log.e(DEBUG_TAG, "flush failed " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write everything that is queued and stop the writer thread
+     */
+    void shutdown() {
+        flush();
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                Log.e(DEBUG_TAG, "Writer didn't terminate");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
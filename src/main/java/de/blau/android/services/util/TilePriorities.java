@@ -0,0 +1,124 @@
+package de.blau.android.services.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Priorities for queued tile requests based on the current viewport of each tile source
+ *
+ * Tiles are ordered by their distance in tiles from the centre of the viewport, tiles at a different zoom level than
+ * the viewport are penalized per level of difference and tiles outside of the viewport come after all visible tiles.
+ * Tiles that are STALE_MARGIN or more tiles away from the viewport are no longer needed.
+ *
+ * @author simon
+ *
+ */
+final class TilePriorities {
+
+    static final double STALE           = Double.POSITIVE_INFINITY;
+    static final double OUTSIDE_PENALTY = 1000;
+    static final double UNKNOWN         = OUTSIDE_PENALTY; // no viewport for the source
+    static final double ZOOM_WEIGHT     = 2;
+    static final int    STALE_MARGIN    = 2;
+
+    private static final class Viewport {
+        final int    zoom;
+        final int    left;
+        final int    top;
+        final int    right;
+        final int    bottom;
+        final double centreX;
+        final double centreY;
+        final double halfWidth;
+        final double halfHeight;
+
+        /**
+         * Construct a new viewport
+         *
+         * @param zoom the zoom level
+         * @param left the left most tile x number, may be outside of the valid range when wrapping
+         * @param top the top most tile y number
+         * @param right the right most tile x number
+         * @param bottom the bottom most tile y number
+         */
+        Viewport(int zoom, int left, int top, int right, int bottom) {
+            this.zoom = zoom;
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+            centreX = (left + right + 1) / 2d;
+            centreY = (top + bottom + 1) / 2d;
+            halfWidth = (right - left + 1) / 2d;
+            halfHeight = (bottom - top + 1) / 2d;
+        }
+
+        /**
+         * Check if this viewport has the same values as the arguments
+         *
+         * @param zoom the zoom level
+         * @param left the left most tile x number
+         * @param top the top most tile y number
+         * @param right the right most tile x number
+         * @param bottom the bottom most tile y number
+         * @return true if the same
+         */
+        boolean equals(int zoom, int left, int top, int right, int bottom) {
+            return this.zoom == zoom && this.left == left && this.top == top && this.right == right && this.bottom == bottom;
+        }
+    }
+
+    private final Map<String, Viewport> viewports = new HashMap<>();
+
+    /**
+     * Set the viewport for a tile source
+     *
+     * @param rendererId the id of the tile source
+     * @param zoom the zoom level
+     * @param left the left most tile x number, may be outside of the valid range when wrapping
+     * @param top the top most tile y number
+     * @param right the right most tile x number
+     * @param bottom the bottom most tile y number
+     * @return true if the viewport has changed
+     */
+    synchronized boolean set(@NonNull String rendererId, int zoom, int left, int top, int right, int bottom) {
+        Viewport current = viewports.get(rendererId);
+        if (current != null && current.equals(zoom, left, top, right, bottom)) {
+            return false;
+        }
+        viewports.put(rendererId, new Viewport(zoom, left, top, right, bottom));
+        return true;
+    }
+
+    /**
+     * Get the priority for a tile, lower values should be loaded first
+     *
+     * @param tile the tile
+     * @return the priority or STALE if the tile is no longer needed
+     */
+    double get(@NonNull MapTile tile) {
+        Viewport viewport;
+        synchronized (this) {
+            viewport = viewports.get(tile.rendererID);
+        }
+        if (viewport == null) {
+            return UNKNOWN;
+        }
+        final int zoomDiff = viewport.zoom - tile.zoomLevel;
+        // size of the tile in tiles of the viewport zoom
+        final double scale = Math.scalb(1d, zoomDiff);
+        final double n = Math.scalb(1d, viewport.zoom);
+        double dx = Math.abs((tile.x + 0.5d) * scale - viewport.centreX) % n;
+        dx = Math.min(dx, n - dx); // wrap around the antimeridian
+        final double dy = Math.abs((tile.y + 0.5d) * scale - viewport.centreY);
+        final double halfTile = scale / 2;
+        final double gap = Math.max(dx - viewport.halfWidth - halfTile, dy - viewport.halfHeight - halfTile);
+        if (gap >= STALE_MARGIN) { // gap is 0 for adjacent tiles
+            return STALE;
+        }
+        final double priority = Math.sqrt(dx * dx + dy * dy) + ZOOM_WEIGHT * Math.abs(zoomDiff);
+        return gap >= 0 ? priority + OUTSIDE_PENALTY : priority;
+    }
+}
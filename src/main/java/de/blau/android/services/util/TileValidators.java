@@ -0,0 +1,93 @@
+package de.blau.android.services.util;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * HTTP cache validators and expiry time for a tile in the on device cache
+ *
+ * @author simon
+ *
+ */
+public final class TileValidators {
+
+    /**
+     * Value for expires if the tile never needs to be revalidated
+     */
+    public static final long NEVER = 0;
+
+    private final String etag;
+    private final String lastModified;
+    private final long   expires;
+
+    /**
+     * Construct a new instance
+     *
+     * @param etag the value of the ETag header or null
+     * @param lastModified the value of the Last-Modified header or null
+     * @param expires time in ms since the epoch after which the tile should be revalidated, or NEVER
+     */
+    public TileValidators(@Nullable String etag, @Nullable String lastModified, long expires) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.expires = expires;
+    }
+
+    /**
+     * @return the ETag or null
+     */
+    @Nullable
+    public String getEtag() {
+        return etag;
+    }
+
+    /**
+     * @return the Last-Modified value or null
+     */
+    @Nullable
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return the expiry time in ms since the epoch or NEVER
+     */
+    public long getExpires() {
+        return expires;
+    }
+
+    /**
+     * Check if a conditional request can be made with these validators
+     *
+     * @return true if there is an ETag or a Last-Modified value
+     */
+    public boolean canRevalidate() {
+        return etag != null || lastModified != null;
+    }
+
+    /**
+     * Check if the tile should be revalidated
+     *
+     * @param now the current time in ms since the epoch
+     * @return true if the tile has expired
+     */
+    public boolean isExpired(long now) {
+        return expires != NEVER && expires <= now;
+    }
+
+    /**
+     * Combine with the validators from a 304 response, values that are missing in the response are retained
+     *
+     * @param update the validators from the response
+     * @return a new TileValidators instance
+     */
+    @NonNull
+    public TileValidators update(@NonNull TileValidators update) {
+        return new TileValidators(update.etag != null ? update.etag : etag, update.lastModified != null ? update.lastModified : lastModified, update.expires);
+    }
+
+    @Override
+    public String toString() {
+        return "etag " + etag + " last modified " + lastModified + " expires " + expires;
+    }
+}
@@ -131,7 +131,7 @@ public class Coordinates implements IPoint {
      */
     @NonNull
     public static Coordinates nodeToCoordinates(int width, int height, @NonNull ViewBox box, @NonNull Node node) {
-        return new Coordinates(GeoMath.lonE7ToX(width, box, node.getLon()), GeoMath.latE7ToY(height, width, box, node.getLat()));
+        return new Coordinates(GeoMath.lonE7ToX(width, box, node.getLon()), GeoMath.pointToY(height, width, box, node));
     }
 
     /**
@@ -225,6 +225,78 @@ public final class GeoJson {
         }
     }
 
+    /**
+     * Converts a line stored as WGS84*1E7 coordinate pairs to a list of screen-coordinate points for drawing.
+     * 
+     * Only segments that are inside the ViewBox are included, this is the same logic as in
+     * {@link #pointListToLinePointsArray(ViewBox, int, int, FloatPrimitiveList, List)}
+     * 
+     * @param box the current ViewBox
+     * @param w screen width
+     * @param h screen height
+     * @param points list to (re-)use for projected points in the format expected by
+     *            {@link Canvas#drawLines(float[], Paint)}
+     * @param coordinates array of lon/lat pairs
+     * @param start index of the first point
+     * @param end index after the last point
+     */
+    public static void coordinatesToLinePointsArray(@NonNull ViewBox box, int w, int h, @NonNull final FloatPrimitiveList points,
+            @NonNull final int[] coordinates, int start, int end) {
+        points.clear(); // reset
+        if (end <= start) {
+            return;
+        }
+        boolean hasPrev = false;
+        boolean hasLastDrawn = false;
+        int prevLon = 0;
+        int prevLat = 0;
+        int lastDrawnLon = 0;
+        int lastDrawnLat = 0;
+        float prevX = 0f;
+        float prevY = 0f;
+        boolean thisIntersects = false;
+        boolean nextIntersects = false;
+        int nextLon = coordinates[start * 2];
+        int nextLat = coordinates[start * 2 + 1];
+        float x;
+        float y = -Float.MAX_VALUE;
+        for (int i = start; i < end; i++) {
+            int lon = nextLon;
+            int lat = nextLat;
+            boolean hasNext = i < end - 1;
+            nextIntersects = true;
+            if (hasNext) {
+                nextLon = coordinates[(i + 1) * 2];
+                nextLat = coordinates[(i + 1) * 2 + 1];
+                nextIntersects = box.isIntersectionPossible(nextLon, nextLat, lon, lat);
+            }
+            x = -Float.MAX_VALUE; // misuse this as a flag
+            if (hasPrev && (thisIntersects || nextIntersects
+                    || (!(hasNext && hasLastDrawn) || box.isIntersectionPossible(nextLon, nextLat, lastDrawnLon, lastDrawnLat)))) {
+                x = GeoMath.lonE7ToX(w, box, lon);
+                y = GeoMath.latE7ToY(h, w, box, lat);
+                if (prevX == -Float.MAX_VALUE) { // last segment didn't intersect
+                    prevX = GeoMath.lonE7ToX(w, box, prevLon);
+                    prevY = GeoMath.latE7ToY(h, w, box, prevLat);
+                }
+                // Line segment needs to be drawn
+                points.add(prevX);
+                points.add(prevY);
+                points.add(x);
+                points.add(y);
+                hasLastDrawn = true;
+                lastDrawnLon = lon;
+                lastDrawnLat = lat;
+            }
+            hasPrev = true;
+            prevLon = lon;
+            prevLat = lat;
+            prevX = x;
+            prevY = y;
+            thisIntersects = nextIntersects;
+        }
+    }
+
     /**
      * Parse geojson just containing the geometry
      * 
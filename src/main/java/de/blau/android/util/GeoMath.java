@@ -300,6 +300,21 @@ public final class GeoMath {
         return (float) (screenHeight - (latE7ToMercator(latE7) - viewBox.getBottomMercator()) * viewBox.getPixelRadius(screenWidth));
     }
 
+    /**
+     * Calculates the screen-coordinate for the latitude of a GeoPoint
+     * 
+     * This uses the mercator projected latitude of the point which may be cached
+     * 
+     * @param screenHeight the height of the screen in px
+     * @param screenWidth the width of the screen in px
+     * @param viewBox the current ViewBox
+     * @param point the GeoPoint
+     * @return the y screen-coordinate for the point
+     */
+    public static float pointToY(final int screenHeight, int screenWidth, @NonNull final ViewBox viewBox, @NonNull final GeoPoint point) {
+        return latMercatorE7ToY(screenHeight, screenWidth, viewBox, point.getMercatorLatE7());
+    }
+
     /**
      * Non scaled version. Calculates the screen-coordinate to the given latitude.
      * 
@@ -675,7 +690,7 @@ public final class GeoMath {
      */
     public static <P extends GeoPoint> void sortGeoPoint(@NonNull P point, @NonNull List<P> list, @NonNull ViewBox viewBox, int w, int h) {
         float pX = GeoMath.lonE7ToX(w, viewBox, point.getLon());
-        float pY = GeoMath.latE7ToY(h, w, viewBox, point.getLat());
+        float pY = GeoMath.pointToY(h, w, viewBox, point);
 
         Collections.sort(list, (p1, p2) -> {
             double d1 = distance(p1, viewBox, pX, pY, w, h);
@@ -702,6 +717,6 @@ public final class GeoMath {
      * @return distance in screen pixel units
      */
     private static double distance(@NonNull GeoPoint p, @NonNull ViewBox bb, float x, float y, int w, int h) {
-        return Math.hypot(GeoMath.lonE7ToX(w, bb, p.getLon()) - x, GeoMath.latE7ToY(h, w, bb, p.getLat()) - y);
+        return Math.hypot(GeoMath.lonE7ToX(w, bb, p.getLon()) - x, GeoMath.pointToY(h, w, bb, p) - y);
     }
 }
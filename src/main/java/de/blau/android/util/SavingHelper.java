@@ -326,7 +326,7 @@ public class SavingHelper<T extends Serializable> {
      * @param originalFileName the original filename
      * @param newFileName the new filename
      */
-    private static void rename(@NonNull Context context, @NonNull String originalFileName, @NonNull String newFileName) {
+    public static void rename(@NonNull Context context, @NonNull String originalFileName, @NonNull String newFileName) {
         File originalFile = context.getFileStreamPath(originalFileName);
         if (originalFile.exists()) {
             Log.d(DEBUG_TAG, "renaming " + originalFileName + " size " + originalFile.length() + " to " + newFileName);
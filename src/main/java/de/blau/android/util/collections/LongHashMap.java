@@ -0,0 +1,398 @@
+package de.blau.android.util.collections;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.annotation.SuppressLint;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * long to Object HashMap
+ *
+ * Fast mapping of primitive long keys to arbitrary values without boxing, based on public domain code see
+ * http://unlicense.org from Mikhail Vorontsov, see https://github.com/mikvor
+ *
+ * Keys and values are held in two parallel arrays, removal shifts the following entries of the chain so that no
+ * removed marker is necessary.
+ *
+ * This code is not thread safe and requires external synchronization if inserts and removals need to be made in a
+ * consistent fashion.
+ *
+ * @version 0.1
+ * @author simon
+ */
+@SuppressLint("UseSparseArrays")
+public class LongHashMap<V> implements Serializable {
+    /**
+     *
+     */
+    private static final long serialVersionUID = 1L; // NOTE if you change the
+                                                     // hashing algorithm you
+                                                     // need to increment
+                                                     // this
+
+    private static final long  FREE_KEY           = 0;
+    /**
+     * Default fill factor
+     */
+    private static final float DEFAULT_FILLFACTOR = 0.75f;
+    /**
+     * Default capacity
+     */
+    private static final int   DEFAULT_CAPACITY   = 16;
+
+    /** Keys */
+    private long[]   keys;
+    /** Values */
+    private Object[] values;
+
+    /** Fill factor, must be between (0 and 1) */
+    private final float fillFactor;
+    /** We will resize a map once it reaches this size */
+    private int         threshold;
+    /** Current map size */
+    private int         size;
+    /** Mask to calculate the original position */
+    private long        mask;
+    /** Do we have 'free' key in the map? */
+    private boolean     hasFreeKey;
+    /** Value for the 'free' key */
+    private Object      freeValue;
+
+    /**
+     * Create a new map with default values for capacity and fill factor
+     */
+    public LongHashMap() {
+        this(DEFAULT_CAPACITY, DEFAULT_FILLFACTOR);
+    }
+
+    /**
+     * Create a new map with the specified size and the default fill factor
+     *
+     * @param size initial capacity of the map
+     */
+    public LongHashMap(final int size) {
+        this(size, DEFAULT_FILLFACTOR);
+    }
+
+    /**
+     * Create a new map with the specified size and fill factor
+     *
+     * @param size initial capacity of the map
+     * @param fillFactor fillfactor to us instead of the default
+     */
+    private LongHashMap(final int size, final float fillFactor) {
+        if (fillFactor <= 0 || fillFactor >= 1) {
+            throw new IllegalArgumentException("FillFactor must be in (0, 1)");
+        }
+        if (size <= 0) {
+            throw new IllegalArgumentException("Size must be positive!");
+        }
+        final int capacity = Tools.arraySize(size, fillFactor);
+        this.mask = capacity - 1L;
+        this.fillFactor = fillFactor;
+
+        keys = new long[capacity];
+        values = new Object[capacity];
+
+        threshold = (int) (capacity * fillFactor);
+    }
+
+    /**
+     * Create a shallow copy of the specified map
+     *
+     * @param map the map to copy
+     */
+    public LongHashMap(@NonNull LongHashMap<? extends V> map) {
+        mask = map.mask;
+        fillFactor = map.fillFactor;
+        threshold = map.threshold;
+        size = map.size;
+        hasFreeKey = map.hasFreeKey;
+        freeValue = map.freeValue;
+        keys = Arrays.copyOf(map.keys, map.keys.length);
+        values = Arrays.copyOf(map.values, map.values.length);
+    }
+
+    /**
+     * Get the value for a key
+     *
+     * @param key the key
+     * @return the value or null if not found
+     */
+    @SuppressWarnings("unchecked")
+    @Nullable
+    public V get(final long key) {
+        if (key == FREE_KEY) {
+            return hasFreeKey ? (V) freeValue : null;
+        }
+        int ptr = (int) (Tools.phiMix(key) & mask);
+        while (true) {
+            final long k = keys[ptr];
+            if (k == FREE_KEY) {
+                return null;
+            }
+            if (k == key) {
+                return (V) values[ptr];
+            }
+            ptr = (int) ((ptr + 1) & mask); // the next index
+        }
+    }
+
+    /**
+     * Add or replace a mapping
+     *
+     * @param key the key
+     * @param value the value
+     * @return the previous value if one existed
+     */
+    @SuppressWarnings("unchecked")
+    @Nullable
+    public V put(final long key, @Nullable final V value) {
+        if (key == FREE_KEY) {
+            final Object old = freeValue;
+            if (!hasFreeKey) {
+                hasFreeKey = true;
+                ++size;
+            }
+            freeValue = value;
+            return (V) old;
+        }
+        int ptr = (int) (Tools.phiMix(key) & mask);
+        while (true) {
+            final long k = keys[ptr];
+            if (k == FREE_KEY) { // end of chain
+                keys[ptr] = key;
+                values[ptr] = value;
+                if (size >= threshold) {
+                    rehash(keys.length * 2); // size is set inside
+                } else {
+                    ++size;
+                }
+                return null;
+            }
+            if (k == key) {
+                final Object old = values[ptr];
+                values[ptr] = value;
+                return (V) old;
+            }
+            ptr = (int) ((ptr + 1) & mask); // the next index calculation
+        }
+    }
+
+    /**
+     * Remove the mapping for key, does not shrink the underlying arrays
+     *
+     * @param key the key to remove
+     * @return the removed value or null if not found
+     */
+    @SuppressWarnings("unchecked")
+    @Nullable
+    public V remove(final long key) {
+        if (key == FREE_KEY) {
+            if (!hasFreeKey) {
+                return null;
+            }
+            final Object old = freeValue;
+            hasFreeKey = false;
+            freeValue = null;
+            --size;
+            return (V) old;
+        }
+        int ptr = (int) (Tools.phiMix(key) & mask);
+        while (true) {
+            final long k = keys[ptr];
+            if (k == FREE_KEY) {
+                return null; // end of chain already
+            }
+            if (k == key) {
+                final Object old = values[ptr];
+                --size;
+                shiftKeys(ptr);
+                return (V) old;
+            }
+            ptr = (int) ((ptr + 1) & mask); // that's next index calculation
+        }
+    }
+
+    /**
+     * Shift entries with the same hash.
+     *
+     * @param pos starting pos
+     * @return free slot
+     */
+    private int shiftKeys(int pos) {
+        int last;
+        int slot;
+        long k;
+        final long[] tempKeys = this.keys;
+        final Object[] tempValues = this.values;
+        while (true) {
+            last = pos;
+            pos = (int) ((pos + 1) & mask);
+            while (true) {
+                if ((k = tempKeys[pos]) == FREE_KEY) {
+                    tempKeys[last] = FREE_KEY;
+                    tempValues[last] = null;
+                    return last;
+                }
+                slot = (int) (Tools.phiMix(k) & mask);// calculate the starting slot for the current key
+                if (last <= pos ? last >= slot || slot > pos : last >= slot && slot > pos) {
+                    break;
+                }
+                pos = (int) ((pos + 1) & mask); // go to the next entry
+            }
+            tempKeys[last] = k;
+            tempValues[last] = tempValues[pos];
+        }
+    }
+
+    /**
+     * Check if the map contains a mapping for key
+     *
+     * @param key the key to check for
+     * @return true if a mapping was found
+     */
+    public boolean containsKey(final long key) {
+        if (key == FREE_KEY) {
+            return hasFreeKey;
+        }
+        int ptr = (int) (Tools.phiMix(key) & mask);
+        while (true) {
+            final long k = keys[ptr];
+            if (k == FREE_KEY) {
+                return false;
+            }
+            if (k == key) {
+                return true;
+            }
+            ptr = (int) ((ptr + 1) & mask); // the next index
+        }
+    }
+
+    /**
+     * Return all values in the map. Note: they are returned unordered
+     *
+     * @return a List of the values
+     */
+    @NonNull
+    public List<V> values() {
+        return values(new ArrayList<>(size));
+    }
+
+    /**
+     * Add all values in the map to a List. Note: they are returned unordered
+     *
+     * @param result pre-allocated List
+     * @return the List of the values
+     */
+    @SuppressWarnings("unchecked")
+    @NonNull
+    public List<V> values(@NonNull List<V> result) {
+        int found = 0;
+        if (hasFreeKey) {
+            result.add((V) freeValue);
+            found++;
+        }
+        final int length = keys.length;
+        for (int i = 0; i < length && found < size; i++) {
+            if (keys[i] != FREE_KEY) {
+                result.add((V) values[i]);
+                found++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return all keys in the map. Note: they are returned unordered
+     *
+     * @return array containing the keys
+     */
+    @NonNull
+    public long[] keys() {
+        int found = 0;
+        long[] result = new long[size];
+        if (hasFreeKey) {
+            result[found++] = FREE_KEY;
+        }
+        final int length = keys.length;
+        for (int i = 0; i < length && found < size; i++) {
+            if (keys[i] != FREE_KEY) {
+                result[found++] = keys[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return the number of mappings in the map
+     *
+     * @return the mapping count
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Return if the map is empty
+     *
+     * @return true if the map is empty
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Remove all mappings from the map
+     */
+    public void clear() {
+        Arrays.fill(keys, FREE_KEY);
+        Arrays.fill(values, null);
+        size = 0;
+        hasFreeKey = false;
+        freeValue = null;
+    }
+
+    /**
+     * Provide capacity for minimumCapacity mappings without need for growing the underlying arrays and rehashing.
+     *
+     * @param minimumCapacity minimum capacity
+     */
+    public void ensureCapacity(int minimumCapacity) {
+        int newCapacity = Tools.arraySize(minimumCapacity, fillFactor);
+        if (newCapacity > keys.length) {
+            rehash(newCapacity);
+        }
+    }
+
+    /**
+     * Recalculate the hashes for the whole map
+     *
+     * @param newCapacity new capacity
+     */
+    @SuppressWarnings("unchecked")
+    private void rehash(final int newCapacity) {
+        threshold = (int) (newCapacity * fillFactor);
+        mask = newCapacity - 1L;
+
+        final int oldCapacity = keys.length;
+        final long[] oldKeys = keys;
+        final Object[] oldValues = values;
+
+        keys = new long[newCapacity];
+        values = new Object[newCapacity];
+
+        size = hasFreeKey ? 1 : 0;
+
+        for (int i = 0; i < oldCapacity; i++) {
+            final long k = oldKeys[i];
+            if (k != FREE_KEY) {
+                put(k, (V) oldValues[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package de.blau.android.util.mvt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.mapbox.geojson.Geometry;
+import com.mapbox.geojson.GeometryCollection;
+import com.mapbox.geojson.LineString;
+import com.mapbox.geojson.MultiLineString;
+import com.mapbox.geojson.MultiPoint;
+import com.mapbox.geojson.MultiPolygon;
+import com.mapbox.geojson.Point;
+import com.mapbox.geojson.Polygon;
+
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import de.blau.android.util.GeoJSONConstants;
+
+/**
+ * Decoded geometries and attribute tables of one MVT layer, shared by all features of the layer
+ *
+ * Coordinates are stored as alternating x and y values in a single float array, the geometry of a feature consists of
+ * one or more consecutive parts (the points of a (multi)point, the lines of a (multi)linestring or the rings of a
+ * (multi)polygon), part i extends from point partOffsets[i] to partOffsets[i + 1] (exclusive). For polygons
+ * polygonStarts indicates if a ring is the exterior ring of a new polygon.
+ *
+ * Attributes are stored as indices in to the key and value tables of the layer in the same way as in the MVT encoding.
+ *
+ * @author simon
+ *
+ */
+final class LayerData {
+
+    private static final String DEBUG_TAG = LayerData.class.getSimpleName();
+
+    final String       name;
+    final int          extent;
+    final List<String> keys;
+    final Object[]     values;
+
+    float[]   coordinates;
+    int[]     partOffsets;
+    boolean[] polygonStarts;
+    int[]     tags;
+
+    /**
+     * Construct a new instance, the geometry and tag arrays are set once all features have been decoded
+     *
+     * @param name the layer name
+     * @param extent the tile extent
+     * @param keys the attribute keys
+     * @param values the attribute values
+     */
+    LayerData(@NonNull String name, int extent, @NonNull List<String> keys, @NonNull Object[] values) {
+        this.name = name;
+        this.extent = extent;
+        this.keys = keys;
+        this.values = values;
+    }
+
+    /**
+     * Convert a GeoJSON geometry to the flat representation
+     *
+     * @param name the layer name
+     * @param extent the tile extent
+     * @param geometry the Geometry
+     * @return a LayerData instance holding only the geometry
+     */
+    @NonNull
+    static LayerData fromGeometry(@NonNull String name, int extent, @NonNull Geometry geometry) {
+        List<List<Point>> parts = new ArrayList<>();
+        List<Boolean> starts = new ArrayList<>();
+        switch (geometry.type()) {
+        case GeoJSONConstants.POINT:
+            parts.add(Collections.singletonList((Point) geometry));
+            break;
+        case GeoJSONConstants.MULTIPOINT:
+            parts.add(((MultiPoint) geometry).coordinates());
+            break;
+        case GeoJSONConstants.LINESTRING:
+            parts.add(((LineString) geometry).coordinates());
+            break;
+        case GeoJSONConstants.MULTILINESTRING:
+            parts.addAll(((MultiLineString) geometry).coordinates());
+            break;
+        case GeoJSONConstants.POLYGON:
+            addRings(parts, starts, ((Polygon) geometry).coordinates());
+            break;
+        case GeoJSONConstants.MULTIPOLYGON:
+            for (List<List<Point>> polygon : ((MultiPolygon) geometry).coordinates()) {
+                addRings(parts, starts, polygon);
+            }
+            break;
+        case GeoJSONConstants.GEOMETRYCOLLECTION:
+            if (!((GeometryCollection) geometry).geometries().isEmpty()) {
+                Log.e(DEBUG_TAG, "Non-empty geometry collections are not supported");
+            }
+            break;
+        default:
+            Log.e(DEBUG_TAG, "Unsupported geometry " + geometry.type());
+        }
+        LayerData data = new LayerData(name, extent, Collections.<String>emptyList(), new Object[0]);
+        int pointCount = 0;
+        for (List<Point> part : parts) {
+            pointCount += part.size();
+        }
+        data.coordinates = new float[2 * pointCount];
+        data.partOffsets = new int[parts.size() + 1];
+        data.polygonStarts = new boolean[parts.size()];
+        data.tags = new int[0];
+        int point = 0;
+        for (int i = 0; i < parts.size(); i++) {
+            data.partOffsets[i] = point;
+            data.polygonStarts[i] = !starts.isEmpty() && starts.get(i);
+            for (Point p : parts.get(i)) {
+                data.coordinates[2 * point] = (float) p.longitude();
+                data.coordinates[2 * point + 1] = (float) p.latitude();
+                point++;
+            }
+        }
+        data.partOffsets[parts.size()] = point;
+        return data;
+    }
+
+    /**
+     * Add the rings of a polygon
+     *
+     * @param parts the List of parts
+     * @param starts the List of polygon start flags
+     * @param rings the rings, the first one being the exterior
+     */
+    private static void addRings(@NonNull List<List<Point>> parts, @NonNull List<Boolean> starts, @NonNull List<List<Point>> rings) {
+        for (int i = 0; i < rings.size(); i++) {
+            parts.add(rings.get(i));
+            starts.add(i == 0);
+        }
+    }
+
+    /**
+     * Create a GeoJSON geometry for a range of parts
+     *
+     * @param type the GeoJSON geometry type
+     * @param firstPart the first part
+     * @param partCount the number of parts
+     * @return a Geometry
+     */
+    @NonNull
+    Geometry toGeometry(@NonNull String type, int firstPart, int partCount) {
+        switch (type) {
+        case GeoJSONConstants.POINT:
+            int offset = 2 * partOffsets[firstPart];
+            return Point.fromLngLat(coordinates[offset], coordinates[offset + 1]);
+        case GeoJSONConstants.MULTIPOINT:
+            return MultiPoint.fromLngLats(points(firstPart));
+        case GeoJSONConstants.LINESTRING:
+            return LineString.fromLngLats(points(firstPart));
+        case GeoJSONConstants.MULTILINESTRING:
+            List<LineString> lineStrings = new ArrayList<>(partCount);
+            for (int i = firstPart; i < firstPart + partCount; i++) {
+                lineStrings.add(LineString.fromLngLats(points(i)));
+            }
+            return MultiLineString.fromLineStrings(lineStrings);
+        case GeoJSONConstants.POLYGON:
+        case GeoJSONConstants.MULTIPOLYGON:
+            List<Polygon> polygons = new ArrayList<>();
+            LineString shell = null;
+            List<LineString> holes = new ArrayList<>();
+            for (int i = firstPart; i < firstPart + partCount; i++) {
+                LineString ring = LineString.fromLngLats(points(i));
+                if (polygonStarts[i]) {
+                    addPolygon(polygons, shell, holes);
+                    shell = ring;
+                    holes = new ArrayList<>();
+                } else {
+                    holes.add(ring);
+                }
+            }
+            addPolygon(polygons, shell, holes);
+            return GeoJSONConstants.POLYGON.equals(type) ? polygons.get(0) : MultiPolygon.fromPolygons(polygons);
+        default:
+            return GeometryCollection.fromGeometries(new ArrayList<>());
+        }
+    }
+
+    /**
+     * Add a Polygon to a List if a shell is present
+     *
+     * @param polygons the List of Polygons
+     * @param shell the exterior ring or null
+     * @param holes the interior rings
+     */
+    private static void addPolygon(@NonNull List<Polygon> polygons, @Nullable LineString shell, @NonNull List<LineString> holes) {
+        if (shell != null) {
+            polygons.add(Polygon.fromOuterInner(shell, holes));
+        }
+    }
+
+    /**
+     * Get the points of a part as a List
+     *
+     * @param part the part
+     * @return a List of Point
+     */
+    @NonNull
+    private List<Point> points(int part) {
+        int end = partOffsets[part + 1];
+        List<Point> result = new ArrayList<>(end - partOffsets[part]);
+        for (int i = partOffsets[part]; i < end; i++) {
+            result.add(Point.fromLngLat(coordinates[2 * i], coordinates[2 * i + 1]));
+        }
+        return result;
+    }
+}
@@ -14,6 +14,7 @@ package de.blau.android.util.mvt;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -38,6 +39,7 @@ import android.graphics.Rect;
 import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import de.blau.android.util.GeoJSONConstants;
 import vector_tile.VectorTile;
 import vector_tile.VectorTile.Tile.GeomType;
 import vector_tile.VectorTile.Tile.Layer;
@@ -46,7 +48,8 @@ public class VectorTileDecoder {
 
     private static final String DEBUG_TAG = VectorTileDecoder.class.getSimpleName();
 
-    private boolean autoScale = true;
+    private boolean autoScale    = true;
+    private boolean flatGeometry = false;
 
     /**
      * Get the autoScale setting.
@@ -68,6 +71,26 @@ public class VectorTileDecoder {
         this.autoScale = autoScale;
     }
 
+    /**
+     * Get the flatGeometry setting.
+     *
+     * @return flatGeometry
+     */
+    public boolean isFlatGeometry() {
+        return flatGeometry;
+    }
+
+    /**
+     * Set the flatGeometry setting.
+     *
+     * @param flatGeometry when true, the geometries of all features of a layer are decoded in to shared primitive
+     *            arrays and attributes are only decoded when accessed, GeoJSON geometries are only created on demand.
+     *            when false, a GeoJSON geometry and an attribute Map is created for every feature.
+     */
+    public void setFlatGeometry(boolean flatGeometry) {
+        this.flatGeometry = flatGeometry;
+    }
+
     /**
      * Decode all layers in data to a FeatureIterable
      * 
@@ -113,7 +136,7 @@ public class VectorTileDecoder {
      */
     public FeatureIterable decode(@NonNull byte[] data, Filter filter) throws IOException {
         VectorTile.Tile tile = VectorTile.Tile.parseFrom(data);
-        return new FeatureIterable(tile, filter, autoScale);
+        return new FeatureIterable(tile, filter, autoScale, flatGeometry);
     }
 
     /**
@@ -291,6 +314,66 @@ public class VectorTileDecoder {
         return area < 0 ? CLOCKWISE : area > 0 ? COUNTERCLOCKWISE : COLINEAR;
     }
 
+    /**
+     * Grow an array if necessary
+     * 
+     * @param array the array
+     * @param capacity the required capacity
+     * @return the array or a larger copy
+     */
+    @NonNull
+    private static float[] ensureCapacity(@NonNull float[] array, int capacity) {
+        return capacity <= array.length ? array : Arrays.copyOf(array, Math.max(capacity, 2 * array.length));
+    }
+
+    /**
+     * Grow an array if necessary
+     * 
+     * @param array the array
+     * @param capacity the required capacity
+     * @return the array or a larger copy
+     */
+    @NonNull
+    private static int[] ensureCapacity(@NonNull int[] array, int capacity) {
+        return capacity <= array.length ? array : Arrays.copyOf(array, Math.max(capacity, 2 * array.length));
+    }
+
+    /**
+     * Grow an array if necessary
+     * 
+     * @param array the array
+     * @param capacity the required capacity
+     * @return the array or a larger copy
+     */
+    @NonNull
+    private static boolean[] ensureCapacity(@NonNull boolean[] array, int capacity) {
+        return capacity <= array.length ? array : Arrays.copyOf(array, Math.max(capacity, 2 * array.length));
+    }
+
+    /**
+     * Determine winding of a ring in a flat coordinate array
+     * 
+     * @param coordinates alternating x and y coordinates
+     * @param start index of the first point
+     * @param end index of the point after the last one (must be larger than start)
+     * @return an int indicating winding direction
+     */
+    private static int winding(@NonNull float[] coordinates, int start, int end) {
+        double area = 0;
+        int size = end - start;
+        double lat1 = coordinates[2 * start + 1];
+        double lon1 = coordinates[2 * start];
+        for (int i = 0; i < size; i++) {
+            int p = start + (i + 1) % size;
+            double lat2 = coordinates[2 * p + 1];
+            double lon2 = coordinates[2 * p];
+            area = area + (lat2 - lat1) * (lon2 + lon1);
+            lat1 = lat2;
+            lon1 = lon2;
+        }
+        return area < 0 ? CLOCKWISE : area > 0 ? COUNTERCLOCKWISE : COLINEAR;
+    }
+
     /**
      * 
      *
@@ -300,6 +383,7 @@ public class VectorTileDecoder {
         private final VectorTile.Tile tile;
         private final Filter          filter;
         private boolean               autoScale;
+        private boolean               flatGeometry;
 
         /**
          * Construct a new FeatureIterable for a tile
@@ -309,9 +393,22 @@ public class VectorTileDecoder {
          * @param autoScale if true autoscale
          */
         public FeatureIterable(@NonNull VectorTile.Tile tile, @NonNull Filter filter, boolean autoScale) {
+            this(tile, filter, autoScale, false);
+        }
+
+        /**
+         * Construct a new FeatureIterable for a tile
+         * 
+         * @param tile the tile
+         * @param filter a filter
+         * @param autoScale if true autoscale
+         * @param flatGeometry if true decode to flat geometry arrays
+         */
+        public FeatureIterable(@NonNull VectorTile.Tile tile, @NonNull Filter filter, boolean autoScale, boolean flatGeometry) {
             this.tile = tile;
             this.filter = filter;
             this.autoScale = autoScale;
+            this.flatGeometry = flatGeometry;
         }
 
         /**
@@ -320,7 +417,7 @@ public class VectorTileDecoder {
          * @return an Iterator returning Features
          */
         public Iterator<Feature> iterator() {
-            return new FeatureIterator(tile, filter, autoScale);
+            return new FeatureIterator(tile, filter, autoScale, flatGeometry);
         }
 
         /**
@@ -377,28 +474,41 @@ public class VectorTileDecoder {
         private final Iterator<VectorTile.Tile.Layer> layerIterator;
 
         private Iterator<VectorTile.Tile.Feature> featureIterator;
+        private Iterator<Feature>                 decodedIterator;
 
         private int     extent;
         private String  layerName;
         private double  scale;
         private boolean autoScale;
+        private boolean flatGeometry;
 
-        private final List<String> keys   = new ArrayList<>();
-        private final List<Object> values = new ArrayList<>();
+        private List<String> keys;
+        private Object[]     values;
 
         private Feature next;
 
+        // scratch buffers for flat decoding, reused for all layers
+        private float[]   coordinates   = new float[1024];
+        private int[]     partOffsets   = new int[64];
+        private boolean[] polygonStarts = new boolean[64];
+        private int[]     tags          = new int[256];
+        private int       pointCount;
+        private int       partCount;
+        private int       tagCount;
+
         /**
          * Construct a new FeatureIterator for a tile
          * 
          * @param tile the tile
          * @param filter a filter
          * @param autoScale if true autoscale
+         * @param flatGeometry if true decode to flat geometry arrays
          */
-        public FeatureIterator(@NonNull VectorTile.Tile tile, @NonNull Filter filter, boolean autoScale) {
+        public FeatureIterator(@NonNull VectorTile.Tile tile, @NonNull Filter filter, boolean autoScale, boolean flatGeometry) {
             layerIterator = tile.getLayersList().iterator();
             this.filter = filter;
             this.autoScale = autoScale;
+            this.flatGeometry = flatGeometry;
         }
 
         /**
@@ -436,21 +546,22 @@ public class VectorTileDecoder {
             }
 
             while (true) {
-                if (featureIterator == null || !featureIterator.hasNext()) {
-                    if (!layerIterator.hasNext()) {
-                        next = null;
-                        break;
-                    }
-
-                    Layer layer = layerIterator.next();
-                    if (filter.include(layer.getName())) {
-                        parseLayer(layer);
-                    }
-                    continue;
+                if (decodedIterator != null && decodedIterator.hasNext()) {
+                    next = decodedIterator.next();
+                    break;
+                }
+                if (featureIterator != null && featureIterator.hasNext()) {
+                    next = parseFeature(featureIterator.next());
+                    break;
+                }
+                if (!layerIterator.hasNext()) {
+                    next = null;
+                    break;
+                }
+                Layer layer = layerIterator.next();
+                if (filter.include(layer.getName())) {
+                    parseLayer(layer);
                 }
-
-                next = parseFeature(featureIterator.next());
-                break;
             }
         }
 
@@ -465,31 +576,265 @@ public class VectorTileDecoder {
             extent = layer.getExtent();
             scale = autoScale ? extent / 256.0 : 1.0;
 
-            keys.clear();
-            keys.addAll(layer.getKeysList());
-            values.clear();
-
-            for (VectorTile.Tile.Value value : layer.getValuesList()) {
+            keys = layer.getKeysList();
+            int valueCount = layer.getValuesCount();
+            values = new Object[valueCount];
+            for (int i = 0; i < valueCount; i++) {
+                VectorTile.Tile.Value value = layer.getValues(i);
                 if (value.hasBoolValue()) {
-                    values.add(value.getBoolValue());
+                    values[i] = value.getBoolValue();
                 } else if (value.hasDoubleValue()) {
-                    values.add(value.getDoubleValue());
+                    values[i] = value.getDoubleValue();
                 } else if (value.hasFloatValue()) {
-                    values.add(value.getFloatValue());
+                    values[i] = value.getFloatValue();
                 } else if (value.hasIntValue()) {
-                    values.add(value.getIntValue());
+                    values[i] = value.getIntValue();
                 } else if (value.hasSintValue()) {
-                    values.add(value.getSintValue());
+                    values[i] = value.getSintValue();
                 } else if (value.hasUintValue()) {
-                    values.add(value.getUintValue());
+                    values[i] = value.getUintValue();
                 } else if (value.hasStringValue()) {
-                    values.add(value.getStringValue());
-                } else {
-                    values.add(null);
+                    values[i] = value.getStringValue();
+                }
+            }
+
+            if (flatGeometry) {
+                featureIterator = null;
+                decodedIterator = decodeLayer(layer).iterator();
+            } else {
+                decodedIterator = null;
+                featureIterator = layer.getFeaturesList().iterator();
+            }
+        }
+
+        /**
+         * Decode all features of a MVT layer in to shared flat arrays
+         * 
+         * @param layer the layer
+         * @return a List of Features
+         */
+        @NonNull
+        private List<Feature> decodeLayer(@NonNull VectorTile.Tile.Layer layer) {
+            LayerData data = new LayerData(layerName, extent, keys, values);
+            int featureCount = layer.getFeaturesCount();
+            List<Feature> features = new ArrayList<>(featureCount);
+            pointCount = 0;
+            partCount = 0;
+            tagCount = 0;
+            for (int i = 0; i < featureCount; i++) {
+                VectorTile.Tile.Feature feature = layer.getFeatures(i);
+                int tagStart = tagCount;
+                int featureTagCount = feature.getTagsCount();
+                tags = ensureCapacity(tags, tagCount + featureTagCount);
+                for (int j = 0; j < featureTagCount; j++) {
+                    tags[tagCount++] = feature.getTags(j);
+                }
+                int firstPart = partCount;
+                String type = decodeFlatGeometry(feature);
+                features.add(new Feature(data, type, firstPart, partCount - firstPart, tagStart, tagCount - tagStart, feature.getId()));
+            }
+            partOffsets = ensureCapacity(partOffsets, partCount + 1);
+            partOffsets[partCount] = pointCount;
+            data.coordinates = Arrays.copyOf(coordinates, 2 * pointCount);
+            data.partOffsets = Arrays.copyOf(partOffsets, partCount + 1);
+            data.polygonStarts = Arrays.copyOf(polygonStarts, partCount);
+            data.tags = Arrays.copyOf(tags, tagCount);
+            return features;
+        }
+
+        /**
+         * Decode the geometry of a feature appending it to the scratch buffers
+         * 
+         * This produces the same geometries as decodeGeometry
+         * 
+         * @param feature the feature
+         * @return the GeoJSON geometry type
+         */
+        @NonNull
+        private String decodeFlatGeometry(@NonNull VectorTile.Tile.Feature feature) {
+            final GeomType geomType = feature.getType();
+            final int firstPart = partCount;
+            final int firstPoint = pointCount;
+            int x = 0;
+            int y = 0;
+
+            int geometryCount = feature.getGeometryCount();
+            int length = 0;
+            int command = 0;
+            int i = 0;
+            while (i < geometryCount) {
+
+                if (length <= 0) {
+                    length = feature.getGeometry(i++);
+                    command = length & ((1 << 3) - 1);
+                    length = length >> 3;
+                }
+
+                if (length > 0) {
+                    if (command == Command.MOVE_TO) {
+                        startPart();
+                    }
+                    length--;
+
+                    if (partCount == firstPart) {
+                        Log.e(DEBUG_TAG, "Command " + command + " without preceeding MOVE_TO");
+                        continue;
+                    }
+                    if (command == Command.CLOSE_PATH) {
+                        int start = partOffsets[partCount - 1];
+                        if (geomType != VectorTile.Tile.GeomType.POINT && pointCount > start) {
+                            addPoint(coordinates[2 * start], coordinates[2 * start + 1]);
+                        }
+                    } else {
+                        // Command.LINE_TO must have been proceeded by a MOVE_TO
+                        x = x + zigZagDecode(feature.getGeometry(i++));
+                        y = y + zigZagDecode(feature.getGeometry(i++));
+                        addPoint((float) (x / scale), (float) (y / scale));
+                    }
+                }
+            }
+
+            String type = GeoJSONConstants.GEOMETRYCOLLECTION;
+            switch (geomType) {
+            case LINESTRING:
+                type = keepLines(firstPart, firstPoint);
+                break;
+            case POINT:
+                type = keepPoints(firstPart, firstPoint);
+                break;
+            case POLYGON:
+                type = keepPolygons(firstPart, firstPoint);
+                break;
+            default:
+                partCount = firstPart;
+                pointCount = firstPoint;
+            }
+            if (GeoJSONConstants.GEOMETRYCOLLECTION.equals(type)) {
+                Log.e(DEBUG_TAG, "Empty geometry for " + geomType);
+            }
+            return type;
+        }
+
+        /**
+         * Merge all parts of a point feature in to one
+         * 
+         * @param firstPart the first part of the feature
+         * @param firstPoint the first point of the feature
+         * @return the GeoJSON geometry type
+         */
+        @NonNull
+        private String keepPoints(int firstPart, int firstPoint) {
+            int count = pointCount - firstPoint;
+            if (count == 0) {
+                partCount = firstPart;
+                return GeoJSONConstants.GEOMETRYCOLLECTION;
+            }
+            partCount = firstPart + 1;
+            return count == 1 ? GeoJSONConstants.POINT : GeoJSONConstants.MULTIPOINT;
+        }
+
+        /**
+         * Remove lines with less than two points
+         * 
+         * @param firstPart the first part of the feature
+         * @param firstPoint the first point of the feature
+         * @return the GeoJSON geometry type
+         */
+        @NonNull
+        private String keepLines(int firstPart, int firstPoint) {
+            int end = partCount;
+            int write = firstPart;
+            int writePoint = firstPoint;
+            for (int part = firstPart; part < end; part++) {
+                int start = partOffsets[part];
+                int stop = part + 1 < end ? partOffsets[part + 1] : pointCount;
+                if (stop - start > 1) {
+                    writePoint = keepPart(write++, writePoint, start, stop, false);
+                }
+            }
+            partCount = write;
+            pointCount = writePoint;
+            int lines = write - firstPart;
+            return lines == 0 ? GeoJSONConstants.GEOMETRYCOLLECTION : lines == 1 ? GeoJSONConstants.LINESTRING : GeoJSONConstants.MULTILINESTRING;
+        }
+
+        /**
+         * Group rings in to polygons, removing rings with less than four points and holes without an exterior ring
+         * 
+         * @param firstPart the first part of the feature
+         * @param firstPoint the first point of the feature
+         * @return the GeoJSON geometry type
+         */
+        @NonNull
+        private String keepPolygons(int firstPart, int firstPoint) {
+            int end = partCount;
+            int write = firstPart;
+            int writePoint = firstPoint;
+            int polygons = 0;
+            boolean anyRing = false;
+            for (int part = firstPart; part < end; part++) {
+                int start = partOffsets[part];
+                int stop = part + 1 < end ? partOffsets[part + 1] : pointCount;
+                if (stop - start < 4) {
+                    if (!anyRing) {
+                        break; // skip exterior with too few coordinates
+                    }
+                    continue; // skip hole with too few coordinates
                 }
+                anyRing = true;
+                if (winding(coordinates, start, stop) == COUNTERCLOCKWISE) {
+                    polygons++;
+                    writePoint = keepPart(write++, writePoint, start, stop, true);
+                } else if (polygons > 0) {
+                    writePoint = keepPart(write++, writePoint, start, stop, false);
+                }
+            }
+            partCount = write;
+            pointCount = writePoint;
+            return polygons == 0 ? GeoJSONConstants.GEOMETRYCOLLECTION : polygons == 1 ? GeoJSONConstants.POLYGON : GeoJSONConstants.MULTIPOLYGON;
+        }
+
+        /**
+         * Move a part that is being kept down to close any gaps left by removed parts
+         * 
+         * @param part the new index of the part
+         * @param writePoint the new index of the first point
+         * @param start the current index of the first point
+         * @param stop the current index of the point after the last one
+         * @param polygonStart true if the part is the exterior ring of a polygon
+         * @return the index of the point after the moved part
+         */
+        private int keepPart(int part, int writePoint, int start, int stop, boolean polygonStart) {
+            if (writePoint != start) {
+                System.arraycopy(coordinates, 2 * start, coordinates, 2 * writePoint, 2 * (stop - start));
             }
+            partOffsets[part] = writePoint;
+            polygonStarts[part] = polygonStart;
+            return writePoint + stop - start;
+        }
 
-            featureIterator = layer.getFeaturesList().iterator();
+        /**
+         * Start a new part at the current point
+         */
+        private void startPart() {
+            partOffsets = ensureCapacity(partOffsets, partCount + 2);
+            polygonStarts = ensureCapacity(polygonStarts, partCount + 1);
+            partOffsets[partCount] = pointCount;
+            polygonStarts[partCount] = false;
+            partCount++;
+        }
+
+        /**
+         * Append a point
+         * 
+         * @param px x coordinate
+         * @param py y coordinate
+         */
+        private void addPoint(float px, float py) {
+            coordinates = ensureCapacity(coordinates, 2 * pointCount + 2);
+            coordinates[2 * pointCount] = px;
+            coordinates[2 * pointCount + 1] = py;
+            pointCount++;
         }
 
         /**
@@ -505,7 +850,7 @@ public class VectorTileDecoder {
             int tagIdx = 0;
             while (tagIdx < feature.getTagsCount()) {
                 String key = keys.get(feature.getTags(tagIdx++));
-                Object value = values.get(feature.getTags(tagIdx++));
+                Object value = values[feature.getTags(tagIdx++)];
                 attributes.put(key, value);
             }
 
@@ -523,19 +868,30 @@ public class VectorTileDecoder {
     /**
      * Class holding MVT features
      * 
-     * Uses a GeoJSON Geometry object, note that this does not actually contain valid GeoJSON coordinates
+     * The geometry is available both as a GeoJSON Geometry object, note that this does not actually contain valid
+     * GeoJSON coordinates, and in a flat representation. Features decoded with flatGeometry set create the GeoJSON
+     * Geometry and the attribute Map only when requested, for features constructed from a Geometry the flat
+     * representation is created when it is first accessed.
      *
      */
     public static final class Feature {
 
-        private final String              layerName;
-        private final int                 extent;
-        private final long                id;
-        private final Geometry            geometry;
-        private final Map<String, Object> attributes;
-        private Rect                      box;
-        private Object                    cachedLabel;
-        private Bitmap                    cachedBitmap;
+        private final String       layerName;
+        private final int          extent;
+        private final long         id;
+        private final String       geometryType;
+        private final LayerData    data;
+        private volatile LayerData converted;
+        private int                firstPart;
+        private int                partCount;
+        private final int          tagStart;
+        private final int          tagCount;
+
+        private Geometry            geometry;
+        private Map<String, Object> attributes;
+        private Rect                box;
+        private Object              cachedLabel;
+        private Bitmap              cachedBitmap;
 
         /**
          * Construct a new MVT Feature
@@ -552,6 +908,33 @@ public class VectorTileDecoder {
             this.geometry = geometry;
             this.attributes = attributes;
             this.id = id;
+            geometryType = geometry.type();
+            data = null;
+            tagStart = 0;
+            tagCount = 0;
+        }
+
+        /**
+         * Construct a new MVT Feature referring to flat decoded data
+         * 
+         * @param data the decoded layer
+         * @param geometryType the GeoJSON geometry type
+         * @param firstPart the first geometry part of the feature
+         * @param partCount the number of geometry parts
+         * @param tagStart the index of the first tag of the feature
+         * @param tagCount the number of key and value indices of the feature
+         * @param id optional id
+         */
+        Feature(@NonNull LayerData data, @NonNull String geometryType, int firstPart, int partCount, int tagStart, int tagCount, long id) {
+            this.data = data;
+            layerName = data.name;
+            extent = data.extent;
+            this.geometryType = geometryType;
+            this.firstPart = firstPart;
+            this.partCount = partCount;
+            this.tagStart = tagStart;
+            this.tagCount = tagCount;
+            this.id = id;
         }
 
         /**
@@ -589,7 +972,98 @@ public class VectorTileDecoder {
          */
         @NonNull
         public Geometry getGeometry() {
-            return geometry;
+            Geometry result = geometry;
+            if (result == null) {
+                result = data.toGeometry(geometryType, firstPart, partCount);
+                geometry = result;
+            }
+            return result;
+        }
+
+        /**
+         * Get the GeoJSON type of the geometry without creating it
+         * 
+         * @return one of the GeoJSON geometry type names
+         */
+        @NonNull
+        public String getGeometryType() {
+            return geometryType;
+        }
+
+        /**
+         * Get the flat geometry data, converting the GeoJSON geometry if necessary
+         * 
+         * @return the LayerData holding the geometry
+         */
+        @NonNull
+        private LayerData flat() {
+            if (data != null) {
+                return data;
+            }
+            LayerData result = converted;
+            if (result == null) {
+                result = LayerData.fromGeometry(layerName, extent, geometry);
+                partCount = result.partOffsets.length - 1;
+                converted = result;
+            }
+            return result;
+        }
+
+        /**
+         * Get the coordinates array the geometry of this feature is stored in
+         * 
+         * The array contains alternating x and y values and is shared with other features, only the points of the
+         * parts of this feature may be accessed, point i has the coordinates [2 * i] and [2 * i + 1]. The array must
+         * not be modified.
+         * 
+         * @return an array of coordinates
+         */
+        @NonNull
+        public float[] getCoordinates() {
+            return flat().coordinates;
+        }
+
+        /**
+         * Get the number of geometry parts
+         * 
+         * Point geometries have one part containing all points, line geometries one part per line and polygon
+         * geometries one part per ring
+         * 
+         * @return the number of parts
+         */
+        public int getPartCount() {
+            flat();
+            return partCount;
+        }
+
+        /**
+         * Get the index of the first point of a part
+         * 
+         * @param part the part
+         * @return the point index
+         */
+        public int getPartStart(int part) {
+            return flat().partOffsets[firstPart + part];
+        }
+
+        /**
+         * Get the index of the point after the last point of a part
+         * 
+         * @param part the part
+         * @return the point index
+         */
+        public int getPartEnd(int part) {
+            return flat().partOffsets[firstPart + part + 1];
+        }
+
+        /**
+         * Check if a part is the exterior ring of a polygon
+         * 
+         * @param part the part
+         * @return true if the part starts a new polygon
+         */
+        public boolean isPolygonStart(int part) {
+            return flat().polygonStarts[firstPart + part];
         }
 
         /**
@@ -599,7 +1073,49 @@ public class VectorTileDecoder {
          */
         @NonNull
         public Map<String, Object> getAttributes() {
-            return attributes;
+            Map<String, Object> result = attributes;
+            if (result == null) {
+                Map<String, Object> temp = new HashMap<>(tagCount / 2);
+                for (int i = tagStart; i < tagStart + tagCount; i += 2) {
+                    temp.put(data.keys.get(data.tags[i]), data.values[data.tags[i + 1]]);
+                }
+                result = Collections.unmodifiableMap(temp);
+                attributes = result;
+            }
+            return result;
+        }
+
+        /**
+         * Get the value of a single attribute without decoding all attributes
+         * 
+         * @param key the attribute key
+         * @return the value or null if not present
+         */
+        @Nullable
+        public Object getAttribute(@NonNull String key) {
+            Map<String, Object> map = attributes;
+            if (map != null) {
+                return map.get(key);
+            }
+            Object result = null;
+            for (int i = tagStart; i < tagStart + tagCount; i += 2) {
+                if (key.equals(data.keys.get(data.tags[i]))) {
+                    result = data.values[data.tags[i + 1]];
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Get the attribute keys that may be present on this feature
+         * 
+         * For decoded features this is the same instance for all features of the layer
+         * 
+         * @return a Collection of keys
+         */
+        @NonNull
+        Collection<String> getAttributeKeys() {
+            return data != null ? data.keys : attributes.keySet();
         }
 
         /**
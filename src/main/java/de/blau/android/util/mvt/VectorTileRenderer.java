@@ -2,18 +2,13 @@ package de.blau.android.util.mvt;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import com.google.gson.JsonArray;
-import com.mapbox.geojson.CoordinateContainer;
-import com.mapbox.geojson.Geometry;
-import com.mapbox.geojson.GeometryCollection;
-import com.mapbox.geojson.Point;
-
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Picture;
@@ -64,6 +59,7 @@ public class VectorTileRenderer implements MapTilesLayer.TileRenderer<Map<String
      * Create a new instance
      */
     public VectorTileRenderer() {
+        decoder.setFlatGeometry(true);
         resetStyle();
     }
 
@@ -175,10 +171,9 @@ public class VectorTileRenderer implements MapTilesLayer.TileRenderer<Map<String
                 // feature rendering
                 List<VectorTileDecoder.Feature> list = features.get(layer.getSourceLayer());
                 if (list != null) {
-                    JsonArray filter = layer.getFilter();
                     featuresToRender.clear();
                     for (VectorTileDecoder.Feature feature : list) {
-                        if (intersectsScreen(feature) && (filter == null || layer.evaluateFilter(filter, feature))) {
+                        if (intersectsScreen(feature) && layer.evaluateFilter(feature)) {
                             featuresToRender.add(feature);
                         }
                     }
@@ -237,6 +232,7 @@ public class VectorTileRenderer implements MapTilesLayer.TileRenderer<Map<String
             try {
                 Map<String, List<VectorTileDecoder.Feature>> features = decoder.decode(data).asMap();
                 for (List<VectorTileDecoder.Feature> values : features.values()) {
+                    Collection<String> previousKeys = null;
                     for (VectorTileDecoder.Feature feature : values) {
                         final String sourceLayer = feature.getLayerName();
                         layerNames.add(sourceLayer);
@@ -248,7 +244,12 @@ public class VectorTileRenderer implements MapTilesLayer.TileRenderer<Map<String
                             keys = new HashSet<>();
                             attributeKeys.put(sourceLayer, keys);
                         }
-                        keys.addAll(feature.getAttributes().keySet());
+                        // features of a layer share the keys, no need to decode the attributes
+                        Collection<String> featureKeys = feature.getAttributeKeys();
+                        if (featureKeys != previousKeys) {
+                            keys.addAll(featureKeys);
+                            previousKeys = featureKeys;
+                        }
                     }
                 }
                 return features;
@@ -281,25 +282,6 @@ public class VectorTileRenderer implements MapTilesLayer.TileRenderer<Map<String
         return keys == null ? new ArrayList<>() : new ArrayList<>(keys);
     }
 
-    /**
-     * Calculate the bounding box of a List of Points and sets an existing rect to the values
-     * 
-     * @param rect the Rect for the result
-     * @param points the List of Points
-     */
-    private void rectFromPoints(Rect rect, List<Point> points) {
-        Point first = points.get(0);
-        int start = 0;
-        if (rect.isEmpty()) {
-            rect.set((int) first.longitude(), (int) first.latitude(), (int) first.longitude(), (int) first.latitude());
-            start = 1;
-        }
-        for (int i = start; i < points.size(); i++) {
-            Point p = points.get(i);
-            rect.union((int) p.longitude(), (int) p.latitude());
-        }
-    }
-
     /**
      * Check if the feature intersects the screen
      * 
@@ -309,14 +291,18 @@ public class VectorTileRenderer implements MapTilesLayer.TileRenderer<Map<String
      * @return true if intersects the screen
      */
     private boolean intersectsScreen(@NonNull VectorTileDecoder.Feature f) {
-        Geometry g = f.getGeometry();
-        if (GeoJSONConstants.POINT.equals(g.type())) {
-            return screenRect.contains(destinationRect.left + (int) (((Point) g).longitude() * scaleX),
-                    destinationRect.top + (int) (((Point) g).latitude() * scaleY));
+        if (f.getPartCount() == 0) {
+            return false;
+        }
+        float[] coordinates = f.getCoordinates();
+        if (GeoJSONConstants.POINT.equals(f.getGeometryType())) {
+            int point = f.getPartStart(0);
+            return screenRect.contains(destinationRect.left + (int) (coordinates[2 * point] * scaleX),
+                    destinationRect.top + (int) (coordinates[2 * point + 1] * scaleY));
         }
         Rect rect = f.getBox();
         if (rect == null) {
-            rect = getBoundingBox(new Rect(), g);
+            rect = getBoundingBox(new Rect(), f);
             f.setBox(rect);
         }
         tempRect.set(rect);
@@ -328,63 +314,23 @@ public class VectorTileRenderer implements MapTilesLayer.TileRenderer<Map<String
     }
 
     /**
-     * Get a bounding box for a Geometry
+     * Get a bounding box for the geometry of a Feature
      * 
      * @param rect pre-allocated Rect
-     * @param g the Geometry
-     * @return the REct set to the bounding box
+     * @param f the Feature, must have at least one part
+     * @return the Rect set to the bounding box
      */
     @NonNull
-    private Rect getBoundingBox(@NonNull Rect rect, @NonNull Geometry g) {
-        switch (g.type()) {
-        case GeoJSONConstants.POINT:
-            rect.union((int) ((Point) g).longitude(), (int) ((Point) g).latitude());
-            break;
-        case GeoJSONConstants.MULTIPOINT:
-            @SuppressWarnings("unchecked")
-            List<Point> pointList = ((CoordinateContainer<List<Point>>) g).coordinates();
-            rectFromPoints(rect, pointList);
-            break;
-        case GeoJSONConstants.LINESTRING:
-            @SuppressWarnings("unchecked")
-            List<Point> line = ((CoordinateContainer<List<Point>>) g).coordinates();
-            rect = new Rect();
-            rectFromPoints(rect, line);
-            break;
-        case GeoJSONConstants.MULTILINESTRING:
-            @SuppressWarnings("unchecked")
-            List<List<Point>> lines = ((CoordinateContainer<List<List<Point>>>) g).coordinates();
-            rect = new Rect();
-            for (List<Point> l : lines) {
-                rectFromPoints(rect, l);
-            }
-            break;
-        case GeoJSONConstants.POLYGON:
-            @SuppressWarnings("unchecked")
-            List<List<Point>> rings = ((CoordinateContainer<List<List<Point>>>) g).coordinates();
-            rect = new Rect();
-            for (List<Point> ring : rings) {
-                rectFromPoints(rect, ring);
-            }
-            break;
-        case GeoJSONConstants.MULTIPOLYGON:
-            @SuppressWarnings("unchecked")
-            List<List<List<Point>>> polygons = ((CoordinateContainer<List<List<List<Point>>>>) g).coordinates();
-            rect = new Rect();
-            for (List<List<Point>> polygon : polygons) {
-                for (List<Point> ring : polygon) {
-                    rectFromPoints(rect, ring);
-                }
-            }
-            break;
-        case GeoJSONConstants.GEOMETRYCOLLECTION:
-            List<Geometry> geometries = ((GeometryCollection) g).geometries();
-            for (Geometry geometry : geometries) {
-                getBoundingBox(rect, geometry);
+    private Rect getBoundingBox(@NonNull Rect rect, @NonNull VectorTileDecoder.Feature f) {
+        float[] coordinates = f.getCoordinates();
+        // the parts of a feature are stored consecutively
+        int start = f.getPartStart(0);
+        int end = f.getPartEnd(f.getPartCount() - 1);
+        if (end > start) {
+            rect.set((int) coordinates[2 * start], (int) coordinates[2 * start + 1], (int) coordinates[2 * start], (int) coordinates[2 * start + 1]);
+            for (int i = start + 1; i < end; i++) {
+                rect.union((int) coordinates[2 * i], (int) coordinates[2 * i + 1]);
             }
-            break;
-        default:
-            Log.e(DEBUG_TAG, "drawGeometry unknown GeoJSON geometry " + g.type());
         }
         return rect;
     }
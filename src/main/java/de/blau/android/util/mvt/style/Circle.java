@@ -1,11 +1,5 @@
 package de.blau.android.util.mvt.style;
 
-import java.util.List;
-
-import com.mapbox.geojson.CoordinateContainer;
-import com.mapbox.geojson.Geometry;
-import com.mapbox.geojson.Point;
-
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Rect;
@@ -114,22 +108,13 @@ public class Circle extends Layer {
         this.destinationRect = destinationRect;
         this.scaleX = scaleX;
         this.scaleY = scaleY;
-        Geometry g = feature.getGeometry();
-        switch (g.type()) {
+        switch (feature.getGeometryType()) {
         case GeoJSONConstants.POINT:
-            float x = (float) (destinationRect.left + ((Point) g).longitude() * scaleX);
-            float y = (float) (destinationRect.top + ((Point) g).latitude() * scaleY);
-            if (!destinationRect.contains((int) x, (int) y)) {
-                return; // don't render stuff in the buffer around the tile
-            }
-            drawCircle(c, x, y);
-            break;
         case GeoJSONConstants.MULTIPOINT:
-            @SuppressWarnings("unchecked")
-            List<Point> pointList = ((CoordinateContainer<List<Point>>) g).coordinates();
-            for (Point p : pointList) {
-                x = (float) (destinationRect.left + p.longitude() * scaleX);
-                y = (float) (destinationRect.top + p.latitude() * scaleY);
+            float[] coordinates = feature.getCoordinates();
+            for (int i = feature.getPartStart(0); i < feature.getPartEnd(0); i++) {
+                float x = destinationRect.left + coordinates[2 * i] * scaleX;
+                float y = destinationRect.top + coordinates[2 * i + 1] * scaleY;
                 if (!destinationRect.contains((int) x, (int) y)) {
                     return; // don't render stuff in the buffer around the tile
                 }
@@ -0,0 +1,400 @@
+package de.blau.android.util.mvt.style;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import de.blau.android.util.GeoJSONConstants;
+import de.blau.android.util.Util;
+import de.blau.android.util.mvt.VectorTileDecoder.Feature;
+
+/**
+ * Executable form of a style layer filter expression
+ *
+ * The expression is parsed once, operators are resolved to node types, the special keys $type and $id to dedicated
+ * accessors and the constants are converted up front to all types a feature value can be compared with. The result of
+ * evaluating a compiled filter is the same as that of {@link Layer#evaluateFilter(JsonArray, Feature)} with the
+ * exception that constants that can't be converted to the type of a feature value simply don't match instead of
+ * causing an exception, and that invalid expressions evaluate to false.
+ *
+ * @author simon
+ *
+ */
+abstract class CompiledFilter {
+
+    private static final String DEBUG_TAG = CompiledFilter.class.getSimpleName();
+
+    private static final String KEY_ID        = "$id";
+    private static final String KEY_TYPE      = "$type";
+    private static final String FILTER_ANY    = "any";
+    private static final String FILTER_ALL    = "all";
+    private static final String FILTER_NOT_IN = "!in";
+    private static final String FILTER_IN     = "in";
+    private static final String FILTER_GT_EQ  = ">=";
+    private static final String FILTER_GT     = ">";
+    private static final String FILTER_LT_EQ  = "<=";
+    private static final String FILTER_LT     = "<";
+    private static final String FILTER_NOT_EQ = "!=";
+    private static final String FILTER_EQ     = "==";
+
+    private static final int OP_EQ     = 0;
+    private static final int OP_NOT_EQ = 1;
+    private static final int OP_LT     = 2;
+    private static final int OP_LT_EQ  = 3;
+    private static final int OP_GT     = 4;
+    private static final int OP_GT_EQ  = 5;
+
+    /**
+     * Evaluate the filter
+     *
+     * @param feature the Feature
+     * @return true if the filter accepts the feature
+     */
+    abstract boolean evaluate(@NonNull Feature feature);
+
+    /**
+     * Compile a filter expression
+     *
+     * @param expression the expression
+     * @return a CompiledFilter
+     */
+    @NonNull
+    static CompiledFilter compile(@NonNull JsonArray expression) {
+        try {
+            String function = expression.get(0).getAsString();
+            switch (function) {
+            case FILTER_EQ:
+                return new Comparison(key(expression), OP_EQ, new Constant(expression.get(2)));
+            case FILTER_NOT_EQ:
+                return new Comparison(key(expression), OP_NOT_EQ, new Constant(expression.get(2)));
+            case FILTER_LT:
+                return new Comparison(key(expression), OP_LT, new Constant(expression.get(2)));
+            case FILTER_LT_EQ:
+                return new Comparison(key(expression), OP_LT_EQ, new Constant(expression.get(2)));
+            case FILTER_GT:
+                return new Comparison(key(expression), OP_GT, new Constant(expression.get(2)));
+            case FILTER_GT_EQ:
+                return new Comparison(key(expression), OP_GT_EQ, new Constant(expression.get(2)));
+            case FILTER_IN:
+                return new In(key(expression), expression, false);
+            case FILTER_NOT_IN:
+                return new In(key(expression), expression, true);
+            case FILTER_ALL:
+                return new All(children(expression));
+            case FILTER_ANY:
+                return new Any(children(expression));
+            default:
+                Log.e(DEBUG_TAG, "Unknown filter type " + function);
+            }
+        } catch (RuntimeException e) { // NOSONAR anything gson throws on malformed input
+            Log.e(DEBUG_TAG, "Invalid filter " + expression + " " + e.getMessage());
+        }
+        return FALSE;
+    }
+
+    /**
+     * Compile the sub-expressions of an all or any expression
+     *
+     * @param expression the expression
+     * @return an array of CompiledFilter
+     */
+    @NonNull
+    private static CompiledFilter[] children(@NonNull JsonArray expression) {
+        CompiledFilter[] result = new CompiledFilter[expression.size() - 1];
+        for (int i = 1; i < expression.size(); i++) {
+            result[i - 1] = compile((JsonArray) expression.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Resolve the key of a comparison expression
+     *
+     * @param expression the expression
+     * @return a Key
+     */
+    @NonNull
+    private static Key key(@NonNull JsonArray expression) {
+        String key = expression.get(1).getAsString();
+        switch (key) {
+        case KEY_TYPE:
+            return TYPE;
+        case KEY_ID:
+            return ID;
+        default:
+            return new Attribute(key);
+        }
+    }
+
+    /**
+     * Filter that doesn't accept anything, used for unknown and invalid expressions
+     */
+    private static final CompiledFilter FALSE = new CompiledFilter() {
+        @Override
+        boolean evaluate(@NonNull Feature feature) {
+            return false;
+        }
+    };
+
+    /**
+     * Access to the value a comparison is made against
+     */
+    private interface Key {
+        /**
+         * Get the value from a Feature
+         *
+         * @param feature the Feature
+         * @return the value or null if not present
+         */
+        @Nullable
+        Object get(@NonNull Feature feature);
+    }
+
+    private static final Key TYPE = feature -> {
+        String type = feature.getGeometryType();
+        return GeoJSONConstants.MULTILINESTRING.equals(type) ? GeoJSONConstants.LINESTRING : type;
+    };
+
+    private static final Key ID = Feature::getId;
+
+    private static final class Attribute implements Key {
+        private final String key;
+
+        /**
+         * Construct a new accessor for an attribute
+         *
+         * @param key the attribute key
+         */
+        Attribute(@NonNull String key) {
+            this.key = key;
+        }
+
+        @Override
+        public Object get(@NonNull Feature feature) {
+            return feature.getAttribute(key);
+        }
+    }
+
+    /**
+     * A constant converted to all types feature values can have
+     */
+    private static final class Constant {
+        private static final int INT    = 1;
+        private static final int LONG   = 2;
+        private static final int FLOAT  = 4;
+        private static final int DOUBLE = 8;
+
+        final String stringValue;
+        int          intValue;
+        long         longValue;
+        float        floatValue;
+        double       doubleValue;
+        int          valid;
+
+        /**
+         * Convert a JsonElement
+         *
+         * @param element the JsonElement
+         */
+        Constant(@NonNull JsonElement element) {
+            stringValue = element.getAsString();
+            try {
+                intValue = element.getAsInt();
+                valid |= INT;
+            } catch (NumberFormatException e) {
+                // not usable for int comparisons
+            }
+            try {
+                longValue = element.getAsLong();
+                valid |= LONG;
+            } catch (NumberFormatException e) {
+                // not usable for long comparisons
+            }
+            try {
+                floatValue = element.getAsFloat();
+                valid |= FLOAT;
+            } catch (NumberFormatException e) {
+                // not usable for float comparisons
+            }
+            try {
+                doubleValue = element.getAsDouble();
+                valid |= DOUBLE;
+            } catch (NumberFormatException e) {
+                // not usable for double comparisons
+            }
+        }
+
+        /**
+         * Compare a feature value with this constant
+         *
+         * As in the interpreted filter the type of the value determines how the comparison is made
+         *
+         * @param left the feature value
+         * @param op the operator
+         * @return true if the condition is met
+         */
+        boolean compare(@NonNull Object left, int op) {
+            int result;
+            if (left instanceof String) {
+                result = ((String) left).compareTo(stringValue);
+            } else if (left instanceof Integer) {
+                if ((valid & INT) == 0) {
+                    return false;
+                }
+                result = Integer.compare((int) left, intValue);
+            } else if (left instanceof Long) {
+                if ((valid & LONG) == 0) {
+                    return false;
+                }
+                result = Util.longCompare((long) left, longValue);
+            } else if (left instanceof Float) {
+                if ((valid & FLOAT) == 0) {
+                    return false;
+                }
+                result = Float.compare((float) left, floatValue);
+            } else if (left instanceof Double) {
+                if ((valid & DOUBLE) == 0) {
+                    return false;
+                }
+                result = Double.compare((double) left, doubleValue);
+            } else {
+                Log.e(DEBUG_TAG, "compare unsupported object " + left.getClass().getCanonicalName());
+                return false;
+            }
+            switch (op) {
+            case OP_EQ:
+                return result == 0;
+            case OP_NOT_EQ:
+                return result != 0;
+            case OP_LT:
+                return result < 0;
+            case OP_LT_EQ:
+                return result <= 0;
+            case OP_GT:
+                return result > 0;
+            default: // OP_GT_EQ
+                return result >= 0;
+            }
+        }
+    }
+
+    private static final class Comparison extends CompiledFilter {
+        private final Key      key;
+        private final int      op;
+        private final Constant right;
+
+        /**
+         * Construct a new comparison node
+         *
+         * @param key the key accessor
+         * @param op the operator
+         * @param right the constant
+         */
+        Comparison(@NonNull Key key, int op, @NonNull Constant right) {
+            this.key = key;
+            this.op = op;
+            this.right = right;
+        }
+
+        @Override
+        boolean evaluate(@NonNull Feature feature) {
+            Object left = key.get(feature);
+            if (left == null) {
+                return op == OP_NOT_EQ; // val doesn't exist is true
+            }
+            return right.compare(left, op);
+        }
+    }
+
+    private static final class In extends CompiledFilter {
+        private final Key         key;
+        private final boolean     negate;
+        private final Set<String> strings = new HashSet<>();
+        private final Constant[]  values;
+
+        /**
+         * Construct a new membership test node
+         *
+         * @param key the key accessor
+         * @param expression the expression, values start at position 2
+         * @param negate if true this is a !in node
+         */
+        In(@NonNull Key key, @NonNull JsonArray expression, boolean negate) {
+            this.key = key;
+            this.negate = negate;
+            values = new Constant[expression.size() - 2];
+            for (int i = 2; i < expression.size(); i++) {
+                values[i - 2] = new Constant(expression.get(i));
+                strings.add(values[i - 2].stringValue);
+            }
+        }
+
+        @Override
+        boolean evaluate(@NonNull Feature feature) {
+            Object left = key.get(feature);
+            if (left == null) {
+                return negate;
+            }
+            if (left instanceof String) {
+                return strings.contains(left) != negate;
+            }
+            for (Constant value : values) {
+                if (value.compare(left, OP_EQ)) {
+                    return !negate;
+                }
+            }
+            return negate;
+        }
+    }
+
+    private static final class All extends CompiledFilter {
+        private final CompiledFilter[] children;
+
+        /**
+         * Construct a new conjunction node
+         *
+         * @param children the sub-expressions
+         */
+        All(@NonNull CompiledFilter[] children) {
+            this.children = children;
+        }
+
+        @Override
+        boolean evaluate(@NonNull Feature feature) {
+            for (CompiledFilter child : children) {
+                if (!child.evaluate(feature)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class Any extends CompiledFilter {
+        private final CompiledFilter[] children;
+
+        /**
+         * Construct a new disjunction node
+         *
+         * @param children the sub-expressions
+         */
+        Any(@NonNull CompiledFilter[] children) {
+            this.children = children;
+        }
+
+        @Override
+        boolean evaluate(@NonNull Feature feature) {
+            for (CompiledFilter child : children) {
+                if (child.evaluate(feature)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
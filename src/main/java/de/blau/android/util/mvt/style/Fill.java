@@ -1,11 +1,5 @@
 package de.blau.android.util.mvt.style;
 
-import java.util.List;
-
-import com.mapbox.geojson.CoordinateContainer;
-import com.mapbox.geojson.Geometry;
-import com.mapbox.geojson.Point;
-
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Path;
@@ -89,18 +83,16 @@ public class Fill extends Layer {
         this.destinationRect = destinationRect;
         this.scaleX = scaleX;
         this.scaleY = scaleY;
-        Geometry g = feature.getGeometry();
-        switch (g.type()) {
+        switch (feature.getGeometryType()) {
         case GeoJSONConstants.POLYGON:
-            @SuppressWarnings("unchecked")
-            List<List<Point>> rings = ((CoordinateContainer<List<List<Point>>>) g).coordinates();
-            drawPolygon(c, rings);
-            break;
         case GeoJSONConstants.MULTIPOLYGON:
-            @SuppressWarnings("unchecked")
-            List<List<List<Point>>> polygons = ((CoordinateContainer<List<List<List<Point>>>>) g).coordinates();
-            for (List<List<Point>> polygon : polygons) {
-                drawPolygon(c, polygon);
+            int partCount = feature.getPartCount();
+            int first = 0;
+            for (int i = 1; i <= partCount; i++) {
+                if (i == partCount || feature.isPolygonStart(i)) {
+                    drawPolygon(c, feature, first, i);
+                    first = i;
+                }
             }
             break;
         default:
@@ -112,18 +104,22 @@ public class Fill extends Layer {
      * Draw a polygon
      * 
      * @param canvas Canvas object we are drawing on
-     * @param polygon List of List of Point objects defining the polygon rings
+     * @param feature the Feature holding the polygon rings
+     * @param firstRing the part index of the exterior ring
+     * @param endRing the part index after the last interior ring
      */
-    private void drawPolygon(@NonNull Canvas canvas, @NonNull List<List<Point>> polygon) {
+    private void drawPolygon(@NonNull Canvas canvas, @NonNull Feature feature, int firstRing, int endRing) {
         path.reset();
-        for (List<Point> ring : polygon) {
-            int ringSize = ring.size();
-            if (ringSize > 2) {
+        float[] coordinates = feature.getCoordinates();
+        for (int ring = firstRing; ring < endRing; ring++) {
+            int start = feature.getPartStart(ring);
+            int end = feature.getPartEnd(ring);
+            if (end - start > 2) {
                 float left = destinationRect.left + fillTranslate.literal[0];
                 float top = destinationRect.top + fillTranslate.literal[1];
-                path.moveTo((float) (left + ring.get(0).longitude() * scaleX), (float) (top + ring.get(0).latitude() * scaleY));
-                for (int i = 1; i < ringSize; i++) {
-                    path.lineTo((float) (left + ring.get(i).longitude() * scaleX), (float) (top + ring.get(i).latitude() * scaleY));
+                path.moveTo(left + coordinates[2 * start] * scaleX, top + coordinates[2 * start + 1] * scaleY);
+                for (int i = start + 1; i < end; i++) {
+                    path.lineTo(left + coordinates[2 * i] * scaleX, top + coordinates[2 * i + 1] * scaleY);
                 }
                 path.close();
             }
@@ -0,0 +1,303 @@
+package de.blau.android.util.mvt.style;
+
+import java.util.Arrays;
+
+import android.graphics.Rect;
+import androidx.annotation.NonNull;
+
+/**
+ * Collision detection using a spatial hash
+ *
+ * The screen is divided in to square cells, every box is registered in all cells its bounding rectangle covers, a new
+ * box only has to be tested against the boxes registered in the cells it covers. Cells are mapped to a fixed number of
+ * hash buckets so that coordinates outside of the screen don't need special handling. Boxes are stored as four
+ * vertices in a flat array and tested for intersection with the separating axis theorem, all storage is reused after a
+ * reset, which itself only increments a generation counter.
+ *
+ * Contrary to {@link SimpleCollisionDetector} there is no limit on the number of boxes.
+ *
+ * @author simon
+ *
+ */
+public class GridCollisionDetector implements CollisionDetector {
+
+    private static final int DEFAULT_CELL_SIZE = 64;
+    private static final int BUCKET_COUNT      = 1024; // must be a power of 2
+    private static final int BUCKET_MASK       = BUCKET_COUNT - 1;
+    private static final int INITIAL_CAPACITY  = 256;
+    private static final int NONE              = -1;
+
+    private final int cellSize;
+
+    // per bucket: first entry and generation it was last written in
+    private final int[] bucketHead       = new int[BUCKET_COUNT];
+    private final int[] bucketGeneration = new int[BUCKET_COUNT];
+    private int         generation       = 1;
+
+    // entries, linked lists of boxes per bucket
+    private int[] entryBox   = new int[INITIAL_CAPACITY];
+    private int[] entryNext  = new int[INITIAL_CAPACITY];
+    private int   entryCount = 0;
+
+    // boxes, 8 coordinates and 4 bounding box values each
+    private float[] vertices   = new float[INITIAL_CAPACITY * 8];
+    private float[] bounds     = new float[INITIAL_CAPACITY * 4];
+    private int[]   lastTested = new int[INITIAL_CAPACITY];
+    private int     boxCount   = 0;
+    private int     testCount  = 0;
+
+    /**
+     * Construct a new instance with the default cell size
+     */
+    public GridCollisionDetector() {
+        this(DEFAULT_CELL_SIZE);
+    }
+
+    /**
+     * Construct a new instance
+     *
+     * @param cellSize the size of the cells in screen pixels, should be roughly the size of a typical label
+     */
+    public GridCollisionDetector(int cellSize) {
+        if (cellSize <= 0) {
+            throw new IllegalArgumentException("Cell size must be positive");
+        }
+        this.cellSize = cellSize;
+    }
+
+    @Override
+    public void reset() {
+        generation++;
+        if (generation == Integer.MAX_VALUE) {
+            Arrays.fill(bucketGeneration, 0);
+            generation = 1;
+        }
+        entryCount = 0;
+        boxCount = 0;
+    }
+
+    @Override
+    public boolean collides(@NonNull Rect rect) {
+        int box = newBox();
+        int v = box * 8;
+        vertices[v] = rect.left;
+        vertices[v + 1] = rect.top;
+        vertices[v + 2] = rect.right;
+        vertices[v + 3] = rect.top;
+        vertices[v + 4] = rect.right;
+        vertices[v + 5] = rect.bottom;
+        vertices[v + 6] = rect.left;
+        vertices[v + 7] = rect.bottom;
+        return testAndInsert(box);
+    }
+
+    @Override
+    public boolean collides(@NonNull float[] start, @NonNull float[] end, float height) {
+        int box = newBox();
+        float dX = end[0] - start[0];
+        float dY = end[1] - start[1];
+        float r = (float) Math.sqrt(dX * dX + dY * dY);
+        // offset perpendicular to the line
+        float xDiff = r > 0 ? -height / r * dY : 0;
+        float yDiff = r > 0 ? height / r * dX : height;
+        int v = box * 8;
+        vertices[v] = start[0] + xDiff;
+        vertices[v + 1] = start[1] + yDiff;
+        vertices[v + 2] = end[0] + xDiff;
+        vertices[v + 3] = end[1] + yDiff;
+        vertices[v + 4] = end[0] - xDiff;
+        vertices[v + 5] = end[1] - yDiff;
+        vertices[v + 6] = start[0] - xDiff;
+        vertices[v + 7] = start[1] - yDiff;
+        return testAndInsert(box);
+    }
+
+    /**
+     * Get the number of boxes currently registered
+     *
+     * @return the number of boxes
+     */
+    public int size() {
+        return boxCount;
+    }
+
+    /**
+     * Allocate storage for a new box, the box only counts as added once it has been inserted
+     *
+     * @return the index of the box
+     */
+    private int newBox() {
+        if (boxCount == lastTested.length) {
+            int capacity = boxCount * 2;
+            vertices = Arrays.copyOf(vertices, capacity * 8);
+            bounds = Arrays.copyOf(bounds, capacity * 4);
+            lastTested = Arrays.copyOf(lastTested, capacity);
+        }
+        return boxCount;
+    }
+
+    /**
+     * Test a box against the boxes in the cells it covers and register it if there is no collision
+     *
+     * @param box the index of the box
+     * @return true if there is a collision
+     */
+    private boolean testAndInsert(int box) {
+        int v = box * 8;
+        float minX = Math.min(Math.min(vertices[v], vertices[v + 2]), Math.min(vertices[v + 4], vertices[v + 6]));
+        float minY = Math.min(Math.min(vertices[v + 1], vertices[v + 3]), Math.min(vertices[v + 5], vertices[v + 7]));
+        float maxX = Math.max(Math.max(vertices[v], vertices[v + 2]), Math.max(vertices[v + 4], vertices[v + 6]));
+        float maxY = Math.max(Math.max(vertices[v + 1], vertices[v + 3]), Math.max(vertices[v + 5], vertices[v + 7]));
+        if (Float.isNaN(minX) || Float.isNaN(minY) || Float.isNaN(maxX) || Float.isNaN(maxY)) {
+            return true;
+        }
+        int b = box * 4;
+        bounds[b] = minX;
+        bounds[b + 1] = minY;
+        bounds[b + 2] = maxX;
+        bounds[b + 3] = maxY;
+        int left = cell(minX);
+        int top = cell(minY);
+        int right = cell(maxX);
+        int bottom = cell(maxY);
+        testCount++;
+        if (testCount == Integer.MAX_VALUE) {
+            Arrays.fill(lastTested, 0);
+            testCount = 1;
+        }
+        if (((long) right - left + 1) * ((long) bottom - top + 1) > BUCKET_COUNT) {
+            // covers more cells than there are buckets, test everything and register in all buckets
+            for (int other = 0; other < boxCount; other++) {
+                if (intersects(box, other)) {
+                    return true;
+                }
+            }
+            for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+                addEntry(bucket, box);
+            }
+            boxCount++;
+            return false;
+        }
+        for (int x = left; x <= right; x++) {
+            for (int y = top; y <= bottom; y++) {
+                int bucket = bucket(x, y);
+                if (bucketGeneration[bucket] != generation) {
+                    continue;
+                }
+                for (int e = bucketHead[bucket]; e != NONE; e = entryNext[e]) {
+                    int other = entryBox[e];
+                    if (lastTested[other] != testCount) {
+                        lastTested[other] = testCount;
+                        if (intersects(box, other)) {
+                            return true;
+                        }
+                    }
+                }
+            }
+        }
+        for (int x = left; x <= right; x++) {
+            for (int y = top; y <= bottom; y++) {
+                addEntry(bucket(x, y), box);
+            }
+        }
+        boxCount++;
+        return false;
+    }
+
+    /**
+     * Get the cell for a coordinate
+     *
+     * @param coordinate the screen coordinate
+     * @return the cell index
+     */
+    private int cell(float coordinate) {
+        return (int) Math.floor(coordinate / cellSize);
+    }
+
+    /**
+     * Get the hash bucket for a cell
+     *
+     * @param x cell x index
+     * @param y cell y index
+     * @return the bucket
+     */
+    private static int bucket(int x, int y) {
+        return (x * 73856093 ^ y * 19349663) & BUCKET_MASK;
+    }
+
+    /**
+     * Register a box in a bucket
+     *
+     * @param bucket the bucket
+     * @param box the index of the box
+     */
+    private void addEntry(int bucket, int box) {
+        if (entryCount == entryBox.length) {
+            entryBox = Arrays.copyOf(entryBox, entryCount * 2);
+            entryNext = Arrays.copyOf(entryNext, entryCount * 2);
+        }
+        if (bucketGeneration[bucket] != generation) {
+            bucketGeneration[bucket] = generation;
+            bucketHead[bucket] = NONE;
+        }
+        entryBox[entryCount] = box;
+        entryNext[entryCount] = bucketHead[bucket];
+        bucketHead[bucket] = entryCount;
+        entryCount++;
+    }
+
+    /**
+     * Check if two boxes intersect, touching counts as intersection
+     *
+     * @param a index of the first box
+     * @param b index of the second box
+     * @return true if they intersect
+     */
+    private boolean intersects(int a, int b) {
+        int ba = a * 4;
+        int bb = b * 4;
+        if (bounds[ba + 2] < bounds[bb] || bounds[bb + 2] < bounds[ba] || bounds[ba + 3] < bounds[bb + 1] || bounds[bb + 3] < bounds[ba + 1]) {
+            return false;
+        }
+        return !separated(a, b) && !separated(b, a);
+    }
+
+    /**
+     * Check if one of the edge normals of the first box is a separating axis
+     *
+     * As the boxes are rectangles the normals of two adjacent edges are sufficient
+     *
+     * @param a index of the box providing the axes
+     * @param b index of the other box
+     * @return true if the boxes are separated
+     */
+    private boolean separated(int a, int b) {
+        int va = a * 8;
+        for (int i = 0; i < 2; i++) {
+            int p = va + i * 2;
+            // normal of the edge from vertex i to vertex i + 1
+            float axisX = vertices[p + 1] - vertices[p + 3];
+            float axisY = vertices[p + 2] - vertices[p];
+            if (axisX == 0 && axisY == 0) {
+                continue; // degenerate edge
+            }
+            float minA = Float.MAX_VALUE;
+            float maxA = -Float.MAX_VALUE;
+            float minB = Float.MAX_VALUE;
+            float maxB = -Float.MAX_VALUE;
+            int vb = b * 8;
+            for (int j = 0; j < 8; j += 2) {
+                float projection = vertices[va + j] * axisX + vertices[va + j + 1] * axisY;
+                minA = Math.min(minA, projection);
+                maxA = Math.max(maxA, projection);
+                projection = vertices[vb + j] * axisX + vertices[vb + j + 1] * axisY;
+                minB = Math.min(minB, projection);
+                maxB = Math.max(maxB, projection);
+            }
+            if (maxA < minB || maxB < minA) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
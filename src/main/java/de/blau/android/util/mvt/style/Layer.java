@@ -148,7 +148,8 @@ public abstract class Layer implements Serializable {
 
     protected SerializableTextPaint paint = new SerializableTextPaint();
 
-    private transient JsonArray filter = null;
+    private transient JsonArray      filter         = null;
+    private transient CompiledFilter compiledFilter = null;
 
     protected transient Path  path           = new Path();
     protected transient Rect  destinationRect;
@@ -330,6 +331,19 @@ public abstract class Layer implements Serializable {
      */
     public void setFilter(@Nullable JsonArray filter) {
         this.filter = filter;
+        compiledFilter = filter != null ? CompiledFilter.compile(filter) : null;
+    }
+
+    /**
+     * Evaluate the filter of this layer
+     * 
+     * This uses the compiled form of the filter and should be used in preference to interpreting the JsonArray
+     * 
+     * @param feature the feature we need to filter
+     * @return true if there is no filter or the filter accepts the feature
+     */
+    public boolean evaluateFilter(@NonNull VectorTileDecoder.Feature feature) {
+        return compiledFilter == null || compiledFilter.evaluate(feature);
     }
 
     /**
@@ -453,12 +467,12 @@ public abstract class Layer implements Serializable {
     private Object getKeyValue(VectorTileDecoder.Feature feature, String key) {
         switch (key) {
         case LAYER_KEY_TYPE:
-            String type = feature.getGeometry().type();
+            String type = feature.getGeometryType();
             return GeoJSONConstants.MULTILINESTRING.equals(type) ? GeoJSONConstants.LINESTRING : type;
         case LAYER_KEY_ID:
             return feature.getId();
         default:
-            return feature.getAttributes().get(key);
+            return feature.getAttribute(key);
         }
     }
 
@@ -524,7 +538,7 @@ public abstract class Layer implements Serializable {
         JsonElement defaultValue = function.get(INTERPOLATION_DEFAULT);
         if (Style.isString(property)) {
             if (feature != null) {
-                Object o = feature.getAttributes().get(property.getAsString());
+                Object o = feature.getAttribute(property.getAsString());
                 if (o instanceof Number) {
                     x = ((Number) o).doubleValue();
                 } else if (Style.isNumber(defaultValue)) {
@@ -764,7 +778,7 @@ public abstract class Layer implements Serializable {
     private void readObject(@NonNull ObjectInputStream in) throws IOException, ClassNotFoundException {
         in.defaultReadObject();
         Object temp = in.readObject();
-        filter = temp != null ? (JsonArray) JsonParser.parseString(temp.toString()) : null;
+        setFilter(temp != null ? (JsonArray) JsonParser.parseString(temp.toString()) : null);
         this.path = new Path();
         patternChecked = false;
     }
@@ -2,10 +2,6 @@ package de.blau.android.util.mvt.style;
 
 import java.util.List;
 
-import com.mapbox.geojson.CoordinateContainer;
-import com.mapbox.geojson.Geometry;
-import com.mapbox.geojson.Point;
-
 import android.graphics.Canvas;
 import android.graphics.DashPathEffect;
 import android.graphics.Paint;
@@ -83,18 +79,12 @@ public class Line extends Layer {
         this.destinationRect = destinationRect;
         this.scaleX = scaleX;
         this.scaleY = scaleY;
-        Geometry g = feature.getGeometry();
-        switch (g.type()) {
+        switch (feature.getGeometryType()) {
         case GeoJSONConstants.LINESTRING:
-            @SuppressWarnings("unchecked")
-            List<Point> line = ((CoordinateContainer<List<Point>>) g).coordinates();
-            drawLine(c, line);
-            break;
         case GeoJSONConstants.MULTILINESTRING:
-            @SuppressWarnings("unchecked")
-            List<List<Point>> lines = ((CoordinateContainer<List<List<Point>>>) g).coordinates();
-            for (List<Point> l : lines) {
-                drawLine(c, l);
+            float[] coordinates = feature.getCoordinates();
+            for (int i = 0; i < feature.getPartCount(); i++) {
+                drawLine(c, coordinates, feature.getPartStart(i), feature.getPartEnd(i));
             }
             break;
         default:
@@ -106,15 +96,16 @@ public class Line extends Layer {
      * Draw a line
      * 
      * @param canvas Canvas object we are drawing on
-     * @param line a List of Points making up the line
+     * @param coordinates array of alternating x and y coordinates
+     * @param start index of the first point of the line
+     * @param end index of the point after the last point of the line
      */
-    public void drawLine(@NonNull Canvas canvas, @NonNull List<Point> line) {
-        int lineSize = line.size();
-        if (lineSize > 1) {
+    public void drawLine(@NonNull Canvas canvas, @NonNull float[] coordinates, int start, int end) {
+        if (end - start > 1) {
             path.rewind();
-            path.moveTo((float) (destinationRect.left + line.get(0).longitude() * scaleX), (float) (destinationRect.top + line.get(0).latitude() * scaleY));
-            for (int i = 1; i < lineSize; i++) {
-                path.lineTo((float) (destinationRect.left + line.get(i).longitude() * scaleX), (float) (destinationRect.top + line.get(i).latitude() * scaleY));
+            path.moveTo(destinationRect.left + coordinates[2 * start] * scaleX, destinationRect.top + coordinates[2 * start + 1] * scaleY);
+            for (int i = start + 1; i < end; i++) {
+                path.lineTo(destinationRect.left + coordinates[2 * i] * scaleX, destinationRect.top + coordinates[2 * i + 1] * scaleY);
             }
             canvas.drawPath(path, paint);
         }
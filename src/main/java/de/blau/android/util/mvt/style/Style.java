@@ -150,7 +150,7 @@ public class Style implements Serializable {
     private Sprites                           sprites;
     private Map<String, Source>               sources    = new HashMap<>();
 
-    private transient CollisionDetector detector = new SimpleCollisionDetector();
+    private transient CollisionDetector detector = new GridCollisionDetector();
 
     /**
      * Add a layer for a specific source layer
@@ -779,6 +779,20 @@ public class Style implements Serializable {
         return 0; // throw an exception?
     };
 
+    /**
+     * Set the collision detector used by all Symbol layers of this style
+     * 
+     * @param detector the CollisionDetector to use
+     */
+    public void setCollisionDetector(@NonNull CollisionDetector detector) {
+        this.detector = detector;
+        for (Layer layer : layers) {
+            if (layer instanceof Symbol) {
+                ((Symbol) layer).setCollisionDetector(detector);
+            }
+        }
+    }
+
     /**
      * Reset the container for label bounds
      */
@@ -795,11 +809,6 @@ public class Style implements Serializable {
      */
     private void readObject(@NonNull ObjectInputStream stream) throws IOException, ClassNotFoundException {
         stream.defaultReadObject();
-        detector = new SimpleCollisionDetector();
-        for (Layer layer : layers) {
-            if (layer instanceof Symbol) {
-                ((Symbol) layer).setCollisionDetector(detector);
-            }
-        }
+        setCollisionDetector(new GridCollisionDetector());
     }
 }
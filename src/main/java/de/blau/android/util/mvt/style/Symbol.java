@@ -2,13 +2,8 @@ package de.blau.android.util.mvt.style;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.util.List;
 import java.util.Map;
 
-import com.mapbox.geojson.CoordinateContainer;
-import com.mapbox.geojson.Geometry;
-import com.mapbox.geojson.Point;
-
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
@@ -371,15 +366,17 @@ public class Symbol extends Layer {
         this.scaleX = scaleX;
         this.scaleY = scaleY;
         Sprites sprites = style.getSprites();
-        Geometry g = feature.getGeometry();
         final boolean hasLabel = (label.literal != null && !"".equals(label.literal)) || labelKey != null;
-        switch (g.type()) {
+        float[] coordinates;
+        switch (feature.getGeometryType()) {
         case GeoJSONConstants.POINT:
             if (symbolPlacement.literal != null) {
                 return;
             }
-            float x = (float) (destinationRect.left + ((Point) g).longitude() * scaleX);
-            float y = (float) (destinationRect.top + ((Point) g).latitude() * scaleY);
+            coordinates = feature.getCoordinates();
+            int point = feature.getPartStart(0);
+            float x = destinationRect.left + coordinates[2 * point] * scaleX;
+            float y = destinationRect.top + coordinates[2 * point + 1] * scaleY;
             // non-visible points have already been removed
             if (iconImage.literal != null || symbolPath != null) {
                 drawIcon(c, sprites, screenRect, x, y, feature);
@@ -392,11 +389,10 @@ public class Symbol extends Layer {
             if (symbolPlacement.literal != null) {
                 return;
             }
-            @SuppressWarnings("unchecked")
-            List<Point> pointList = ((CoordinateContainer<List<Point>>) g).coordinates();
-            for (Point p : pointList) {
-                x = (float) (destinationRect.left + p.longitude() * scaleX);
-                y = (float) (destinationRect.top + p.latitude() * scaleY);
+            coordinates = feature.getCoordinates();
+            for (int i = feature.getPartStart(0); i < feature.getPartEnd(0); i++) {
+                x = destinationRect.left + coordinates[2 * i] * scaleX;
+                y = destinationRect.top + coordinates[2 * i + 1] * scaleY;
                 if (!destinationRect.contains((int) x, (int) y)) {
                     continue; // don't render stuff in the buffer around the tile
                 }
@@ -409,18 +405,11 @@ public class Symbol extends Layer {
             }
             break;
         case GeoJSONConstants.LINESTRING:
-            if (hasLabel && (SYMBOL_PLACEMENT_LINE.equals(symbolPlacement.literal) || SYMBOL_PLACEMENT_LINE_CENTER.equals(symbolPlacement.literal))) {
-                @SuppressWarnings("unchecked")
-                List<Point> line = ((CoordinateContainer<List<Point>>) g).coordinates();
-                drawLineLabel(c, destinationRect, line, feature);
-            }
-            break;
         case GeoJSONConstants.MULTILINESTRING:
             if (hasLabel && (SYMBOL_PLACEMENT_LINE.equals(symbolPlacement.literal) || SYMBOL_PLACEMENT_LINE_CENTER.equals(symbolPlacement.literal))) {
-                @SuppressWarnings("unchecked")
-                List<List<Point>> lines = ((CoordinateContainer<List<List<Point>>>) g).coordinates();
-                for (List<Point> l : lines) {
-                    drawLineLabel(c, destinationRect, l, feature);
+                coordinates = feature.getCoordinates();
+                for (int i = 0; i < feature.getPartCount(); i++) {
+                    drawLineLabel(c, destinationRect, coordinates, feature.getPartStart(i), feature.getPartEnd(i), feature);
                 }
             }
             break;
@@ -694,32 +683,30 @@ public class Symbol extends Layer {
      * 
      * @param canvas Canvas object we are drawing on
      * @param destinationRect where we are drawing to
-     * @param line a List of Points making up the line
+     * @param coordinates array of alternating x and y coordinates
+     * @param start index of the first point of the line
+     * @param end index of the point after the last point of the line
      * @param feature the Feature we are displaying
      */
-    public void drawLineLabel(@NonNull Canvas canvas, @NonNull Rect destinationRect, @NonNull List<Point> line, @NonNull Feature feature) {
-        int lineSize = line.size();
-        if (lineSize > 1) {
+    public void drawLineLabel(@NonNull Canvas canvas, @NonNull Rect destinationRect, @NonNull float[] coordinates, int start, int end,
+            @NonNull Feature feature) {
+        if (end - start > 1) {
             Object evaluatedLabel = feature.getCachedLabel();
             if (!(evaluatedLabel instanceof String)) {
                 evaluatedLabel = evaluateLabel(feature.getAttributes());
             }
             if (!"".equals(evaluatedLabel)) {
                 path.rewind();
-                int last = lineSize - 1;
-                if (line.get(0).longitude() > line.get(last).longitude()) {
-                    path.moveTo((float) (destinationRect.left + line.get(last).longitude() * scaleX),
-                            (float) (destinationRect.top + line.get(last).latitude() * scaleY));
-                    for (int i = (last - 1); i >= 0; i--) {
-                        path.lineTo((float) (destinationRect.left + line.get(i).longitude() * scaleX),
-                                (float) (destinationRect.top + line.get(i).latitude() * scaleY));
+                int last = end - 1;
+                if (coordinates[2 * start] > coordinates[2 * last]) {
+                    path.moveTo(destinationRect.left + coordinates[2 * last] * scaleX, destinationRect.top + coordinates[2 * last + 1] * scaleY);
+                    for (int i = (last - 1); i >= start; i--) {
+                        path.lineTo(destinationRect.left + coordinates[2 * i] * scaleX, destinationRect.top + coordinates[2 * i + 1] * scaleY);
                     }
                 } else {
-                    path.moveTo((float) (destinationRect.left + line.get(0).longitude() * scaleX),
-                            (float) (destinationRect.top + line.get(0).latitude() * scaleY));
-                    for (int i = 1; i < lineSize; i++) {
-                        path.lineTo((float) (destinationRect.left + line.get(i).longitude() * scaleX),
-                                (float) (destinationRect.top + line.get(i).latitude() * scaleY));
+                    path.moveTo(destinationRect.left + coordinates[2 * start] * scaleX, destinationRect.top + coordinates[2 * start + 1] * scaleY);
+                    for (int i = start + 1; i < end; i++) {
+                        path.lineTo(destinationRect.left + coordinates[2 * i] * scaleX, destinationRect.top + coordinates[2 * i + 1] * scaleY);
                     }
                 }
                 pathMeasure.setPath(path, false);
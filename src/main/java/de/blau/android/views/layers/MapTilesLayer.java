@@ -109,6 +109,8 @@ public class MapTilesLayer<T> extends MapViewLayer implements ExtentInterface, L
 
     private int prevZoomLevel = -1; // zoom level from previous draw
 
+    private static final int PREFETCH_MARGIN = 1; // tiles around the viewport to load in advance
+
     private static final long TILE_ERROR_LIMIT = 50;
     private boolean           tileErrorShown   = false;
     private long              tileErrorCount   = 0;
@@ -438,6 +440,10 @@ public class MapTilesLayer<T> extends MapViewLayer implements ExtentInterface, L
 
         final int mapTileMask = (n) - 1;
 
+        // before requesting any tiles so that the requests are prioritised with the current viewport
+        final boolean viewportChanged = mTileProvider.setViewport(myRendererInfo.getId(), zoomLevel, tileNeededLeft, tileNeededTop, tileNeededRight,
+                tileNeededBottom);
+
         boolean firstIteration = true;
         int destIncX = 0;
         int destIncY = 0;
@@ -543,10 +549,41 @@ public class MapTilesLayer<T> extends MapViewLayer implements ExtentInterface, L
             xPos = 0;
             yPos += destIncY;
         }
+        if (viewportChanged && zoomLevel >= minZoom && zoomLevel <= maxZoom) {
+            prefetch(zoomLevel, tileNeededLeft, tileNeededTop, tileNeededRight, tileNeededBottom);
+        }
         // any post render pass finalisation
         mTileRenderer.postRender(c, actualZoomLevel);
     }
 
+    /**
+     * Request the ring of tiles around the viewport so that they are available when the map is panned
+     * 
+     * @param zoomLevel the zoom level
+     * @param left the left most visible tile x number
+     * @param top the top most visible tile y number
+     * @param right the right most visible tile x number
+     * @param bottom the bottom most visible tile y number
+     */
+    private void prefetch(int zoomLevel, int left, int top, int right, int bottom) {
+        final int n = 1 << zoomLevel;
+        final MapTile tile = new MapTile(myRendererInfo.getId(), zoomLevel, 0, 0);
+        for (int y = top - PREFETCH_MARGIN; y <= bottom + PREFETCH_MARGIN; y++) {
+            if (y < 0 || y >= n) {
+                continue;
+            }
+            final boolean outsideRow = y < top || y > bottom;
+            for (int x = left - PREFETCH_MARGIN; x <= right + PREFETCH_MARGIN; x++) {
+                if (outsideRow || x < left || x > right) {
+                    tile.reinit();
+                    tile.x = x & (n - 1);
+                    tile.y = y;
+                    mTileProvider.prefetchMapTile(tile);
+                }
+            }
+        }
+    }
+
     /**
      * Get the bottom most tile y coordinate
      * 
@@ -875,6 +912,7 @@ public class MapTilesLayer<T> extends MapViewLayer implements ExtentInterface, L
                     return;
                 case MapAsyncTileProvider.NONETWORK:
                 case MapAsyncTileProvider.DOESNOTEXIST:
+                case MapAsyncTileProvider.CANCELLED:
                     return; // ignore
                 default: // fall though to log
                 }
@@ -2,9 +2,12 @@
 package de.blau.android.views.util;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import android.graphics.Bitmap;
 import android.util.Log;
@@ -13,8 +16,13 @@ import androidx.annotation.Nullable;
 import de.blau.android.exception.StorageException;
 
 /**
- * Simple LRU cache for any type of object. Implemented as an extended <code>HashMap</code> with a maximum size and an
- * aggregated <code>List</code> as LRU queue.
+ * Simple LRU cache for any type of object. Implemented as an access ordered <code>LinkedHashMap</code> with a maximum
+ * size, so that both lookups and LRU updates are constant time.
+ * 
+ * All access is guarded by a lock that counts how often it had to be waited for, instances are used as segments of
+ * {@link MapTileCache}. The maximum size, the total size and the decision to expand the cache are shared by all segments
+ * of a cache via a {@link Budget}, when space is needed the segments are evicted from one after the other, so a segment
+ * can hold as much of the total as it needs.
  * 
  * This class was taken from OpenStreetMapViewer (original package org.andnav.osm) in 2010-06 by Marcus Wolschon to be
  * integrated into the de.blau.androin OSMEditor.
@@ -36,53 +44,121 @@ public class LRUMapTileCache<T> {
     // Fields
     // ===========================================================
 
-    Map<String, CacheElement<T>> cache;
+    /** Entries in LRU order, least recently used first */
+    final Map<String, CacheElement<T>> cache;
+
+    /** Size limit and total size shared with the other segments */
+    private final Budget budget;
+    /** Current size of this segment, only modified while holding the lock **/
+    private volatile long cacheSize = 0;
 
-    /** Maximum cache size. */
-    private long                        maxCacheSize;
-    /** Current cache size **/
-    private long                        cacheSize = 0;
-    /** LRU list. */
-    private final List<CacheElement<T>> list;
-    private final List<CacheElement<T>> reuseList;
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Lock statistics, only modified while holding the lock */
+    private volatile long lockCount      = 0;
+    private volatile long contendedCount = 0;
 
     private static class CacheElement<B> {
-        boolean recycleable = true;
-        String  key;
-        B       blob;
-        long    owner;
+        final boolean recycleable;
+        final B       blob;
+        final long    owner;
+        final long    size;
 
         /**
          * Container for a cached Bitmap
          * 
-         * @param key the key in to the cache
          * @param blob the bytes to cache
          * @param recycleable if true the Bitmap can be recycled
          * @param owner owner reference
+         * @param size the size accounted for the element
          */
-        public CacheElement(@NonNull String key, @NonNull B blob, boolean recycleable, long owner) {
-            init(key, blob, recycleable, owner);
+        public CacheElement(@Nullable B blob, boolean recycleable, long owner, long size) {
+            if (blob == null) {
+                throw new IllegalArgumentException("bitmap cannot be null");
+            }
+            this.recycleable = recycleable;
+            this.blob = blob;
+            this.owner = owner;
+            this.size = size;
         }
+    }
+
+    /**
+     * Maximum and current size of all segments of a cache
+     */
+    static final class Budget {
+        private final AtomicLong               maxCacheSize;
+        private final AtomicLong               cacheSize = new AtomicLong();
+        private final List<LRUMapTileCache<?>> segments  = new ArrayList<>();
 
         /**
-         * Initialize the container
+         * Construct a new Budget
          * 
-         * @param key the key in to the cache
-         * @param blob the bytes to cache
-         * @param recycleable if true the Bitmap can be recycled
-         * @param owner owner reference
+         * @param maxCacheSize the maximum size of all segments together
+         */
+        Budget(long maxCacheSize) {
+            this.maxCacheSize = new AtomicLong(maxCacheSize);
+        }
+
+        /**
+         * Evict elements until the total size is less than the limit minus some extra
+         * 
+         * Starts with the segment the new element is going to be added to, the segment locks are acquired one after
+         * the other and never held at the same time.
+         * 
+         * @param first the segment to start with
+         * @param extra extra space to take away from the limit
+         * @param owner a long indicating who is adding an element
+         * @return false if the limit couldn't be applied without evicting elements of the same owner
          */
-        void init(@Nullable String key, @Nullable B blob, boolean recycleable, long owner) {
-            if (key == null) {
-                throw new IllegalArgumentException("key cannot be null");
+        boolean applyCacheLimit(@NonNull LRUMapTileCache<?> first, long extra, long owner) {
+            final long limit = Math.max(0, maxCacheSize.get() - extra);
+            final int count = segments.size();
+            final int start = Math.max(0, segments.indexOf(first));
+            boolean thrashing = false;
+            for (int i = 0; i < count && cacheSize.get() > limit; i++) {
+                thrashing |= !segments.get((start + i) % count).applyCacheLimit(limit, owner);
             }
-            if (blob == null) {
-                throw new IllegalArgumentException("bitmap cannot be null");
+            return !thrashing || cacheSize.get() <= limit;
+        }
+
+        /**
+         * Expand the maximum size by 50% if there is enough free memory
+         * 
+         * @param sizeInc the size of the element that needs to be added
+         * @return true if the maximum size was expanded
+         */
+        synchronized boolean expand(long sizeInc) {
+            final long max = maxCacheSize.get();
+            if (max < (Runtime.getRuntime().maxMemory() - Runtime.getRuntime().totalMemory()) && (max / 2 > sizeInc)) {
+                Log.w(DEBUG_TAG, "expanding memory tile cache from " + max + " to " + (max + max / 2));
+                maxCacheSize.set(max + max / 2);
+                return true;
             }
-            this.recycleable = recycleable;
-            this.key = key;
-            this.blob = blob;
-            this.owner = owner;
+            return false;
+        }
+
+        /**
+         * Halve the maximum size and evict elements accordingly
+         */
+        void onLowMemory() {
+            maxCacheSize.set(maxCacheSize.get() / 2);
+            if (!segments.isEmpty()) {
+                applyCacheLimit(segments.get(0), 0, 0);
+            }
+        }
+
+        /**
+         * @return the current size of all segments
+         */
+        long cacheSizeBytes() {
+            return cacheSize.get();
+        }
+
+        /**
+         * @return the maximum size of all segments
+         */
+        long getMaxCacheSize() {
+            return maxCacheSize.get();
         }
     }
 
@@ -96,72 +172,109 @@ public class LRUMapTileCache<T> {
      * @param maxCacheSize the maximum number of entries in this cache before entries are aged off.
      */
     public LRUMapTileCache(final long maxCacheSize) {
+        this(new Budget(maxCacheSize));
+    }
+
+    /**
+     * Constructs a new LRU cache instance that is a segment of a larger cache
+     * 
+     * Segments must be constructed before the cache is used.
+     * 
+     * @param budget the Budget shared by all segments
+     */
+    LRUMapTileCache(@NonNull final Budget budget) {
         super();
-        this.maxCacheSize = maxCacheSize;
-        cache = new HashMap<>();
-        list = new ArrayList<>(); // using a LinkedList doesn't have any real advantages
-        reuseList = new ArrayList<>();
+        this.budget = budget;
+        budget.segments.add(this);
+        cache = new LinkedHashMap<>(16, 0.75f, true);
     }
 
     // ===========================================================
     // Getter & Setter
     // ===========================================================
 
+    /**
+     * Get the number of times the lock has been acquired
+     * 
+     * @return the count
+     */
+    public long getLockCount() {
+        return lockCount;
+    }
+
+    /**
+     * Get the number of times a thread had to wait for the lock
+     * 
+     * @return the count
+     */
+    public long getContendedCount() {
+        return contendedCount;
+    }
+
     // ===========================================================
     // Methods from SuperClass/Interfaces
     // ===========================================================
 
+    /**
+     * Acquire the lock, counting if we had to wait for it
+     */
+    private void lock() {
+        if (!lock.tryLock()) {
+            lock.lock();
+            contendedCount++; // NOSONAR only modified while holding the lock
+        }
+        lockCount++; // NOSONAR
+    }
+
     /**
      * Empty all data structures
      */
-    public synchronized void clear() {
-        for (CacheElement<T> ce : cache.values()) {
-            T b = ce.blob;
-            if (b instanceof Bitmap && ce.recycleable) {
-                ((Bitmap) b).recycle();
+    public void clear() {
+        lock();
+        try {
+            for (CacheElement<T> ce : cache.values()) {
+                T b = ce.blob;
+                if (b instanceof Bitmap && ce.recycleable) {
+                    ((Bitmap) b).recycle();
+                }
             }
+            cache.clear();
+            budget.cacheSize.addAndGet(-cacheSize);
+            cacheSize = 0;
+        } finally {
+            lock.unlock();
         }
-        cache.clear();
-        list.clear();
-        cacheSize = 0;
     }
 
     /**
-     * Ensure the cache is less than its limit, less some extra.
+     * Evict elements from this segment until the total size of all segments is less than a limit
      * 
-     * @param extra Extra space to take away from the cache size. Used to make room for new items before adding them so
-     *            that the total cache never exceeds the limit.
-     * @param owner a long indicating who added the element to the cache
-     * @return true if the limit was successfully applied
+     * @param limit the limit for the total size
+     * @param owner a long indicating who is adding an element to the cache
+     * @return false if an element added by the same owner would have had to be evicted
      */
-    private synchronized boolean applyCacheLimit(long extra, long owner) {
-        long limit = maxCacheSize - extra;
-        if (limit < 0) {
-            limit = 0;
-        }
-        while (cacheSize > limit && !list.isEmpty()) {
-            CacheElement<T> ce = list.remove(list.size() - 1);
-            if (ce.owner == owner && owner != 0) {
-                // cache is being thrashed because it is too small, fail
-                Log.e(DEBUG_TAG, "cache too small, failing");
-                return false;
-            }
-            if (cache.remove(ce.key) == null) {
-                throw new IllegalStateException("can't remove " + ce.key + " from cache");
-            }
-            reuseList.add(ce);
-            T b = ce.blob;
-            if (b instanceof Bitmap && !((Bitmap) b).isRecycled()) {
-                Bitmap bitmap = (Bitmap) b;
-                cacheSize -= (long) bitmap.getRowBytes() * bitmap.getHeight();
-                if (ce.recycleable) {
-                    bitmap.recycle();
+    private boolean applyCacheLimit(long limit, long owner) {
+        lock();
+        try {
+            Iterator<CacheElement<T>> it = cache.values().iterator();
+            while (budget.cacheSize.get() > limit && it.hasNext()) {
+                CacheElement<T> ce = it.next();
+                if (ce.owner == owner && owner != 0) {
+                    // cache is being thrashed because it is too small, fail
+                    return false;
+                }
+                it.remove();
+                cacheSize -= ce.size;
+                budget.cacheSize.addAndGet(-ce.size);
+                T b = ce.blob;
+                if (b instanceof Bitmap && ce.recycleable && !((Bitmap) b).isRecycled()) {
+                    ((Bitmap) b).recycle();
                 }
-            } else {
-                cacheSize -= 1;
             }
+            return true;
+        } finally {
+            lock.unlock();
         }
-        return true; // success
     }
 
     /**
@@ -170,15 +283,19 @@ public class LRUMapTileCache<T> {
      * @return count
      */
     public int size() {
-        return cache.size();
+        lock();
+        try {
+            return cache.size();
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
-     * Reduces memory use by halving the cache size.
+     * Reduces memory use by halving the cache size, this applies to all segments sharing the Budget
      */
     public void onLowMemory() {
-        maxCacheSize /= 2;
-        applyCacheLimit(0, 0);
+        budget.onLowMemory();
     }
 
     /**
@@ -187,26 +304,31 @@ public class LRUMapTileCache<T> {
      * @param key the key
      * @return true if present
      */
-    public synchronized boolean containsKey(@NonNull String key) {
-        return cache.containsKey(key);
+    public boolean containsKey(@NonNull String key) {
+        lock();
+        try {
+            return cache.containsKey(key);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
-     * Calculate the amount of memory used by the cache.
+     * Calculate the amount of memory used by this segment.
      * 
-     * @return The number of bytes used by the cache.
+     * @return The number of bytes used by the segment.
      */
     public long cacheSizeBytes() {
         return cacheSize;
     }
 
     /**
-     * Get the current maximum cache size
+     * Get the current maximum cache size, this is shared with the other segments
      * 
      * @return a long indicating the current maximum cache size in bytes
      */
     public long getMaxCacheSize() {
-        return maxCacheSize;
+        return budget.getMaxCacheSize();
     }
 
     /**
@@ -222,73 +344,83 @@ public class LRUMapTileCache<T> {
      *         the specified key
      * @throws StorageException if we can't expand the cache anymore
      */
-    public synchronized T put(@NonNull final String key, @NonNull final T value, boolean recycleable, long owner) throws StorageException {
-        if (maxCacheSize == 0) {
+    public T put(@NonNull final String key, @NonNull final T value, boolean recycleable, long owner) throws StorageException {
+        if (budget.getMaxCacheSize() == 0) {
             return null;
         }
-
-        CacheElement<T> prev = cache.get(key);
-        // if the key isn't in the cache and the cache is full...
-        if (prev != null) {
-            update(prev);
-            return value;
-        }
         long sizeInc = 1;
         if (value instanceof Bitmap) {
             Bitmap bitmap = (Bitmap) value;
             sizeInc = (long) bitmap.getRowBytes() * bitmap.getHeight();
-            if (!applyCacheLimit(sizeInc * 2, owner)) {
-                // failed: cache is to small to handle all tiles necessary for one draw cycle
-                // see if we can expand by 50%
-                if (maxCacheSize < (Runtime.getRuntime().maxMemory() - Runtime.getRuntime().totalMemory()) && (maxCacheSize / 2 > sizeInc)) {
-                    Log.w(DEBUG_TAG, "expanding memory tile cache from " + maxCacheSize + " to " + (maxCacheSize + maxCacheSize / 2));
-                    maxCacheSize = maxCacheSize + maxCacheSize / 2;
-                } else {
-                    throw new StorageException(StorageException.OOM); // can't expand any more
-                }
+        }
+        // if the key is already in the cache, just move it to the front
+        if (get(key) != null) {
+            return value;
+        }
+        // the lock of this segment is not held while making room as that may evict from other segments
+        if (value instanceof Bitmap) {
+            if (!budget.applyCacheLimit(this, sizeInc * 2, owner) && !budget.expand(sizeInc)) {
+                // failed: cache is to small to handle all tiles necessary for one draw cycle and can't expand any more
+                Log.e(DEBUG_TAG, "cache too small, failing");
+                throw new StorageException(StorageException.OOM);
             }
         } else {
-            applyCacheLimit(2, owner);
+            budget.applyCacheLimit(this, 2, 0); // nothing we can do if this is thrashing, so don't check the owner
         }
-        // avoid creating new objects
-        CacheElement<T> ce = null;
-        if (!reuseList.isEmpty()) {
-            ce = reuseList.remove(0);
-            ce.init(key, value, recycleable, owner);
-        } else {
-            ce = new CacheElement<>(key, value, recycleable, owner);
+        lock();
+        try {
+            if (cache.get(key) != null) { // added concurrently
+                return value;
+            }
+            cache.put(key, new CacheElement<>(value, recycleable, owner, sizeInc));
+            cacheSize += sizeInc;
+            budget.cacheSize.addAndGet(sizeInc);
+            return value;
+        } finally {
+            lock.unlock();
         }
-        list.add(0, ce);
-        cache.put(key, ce);
-        cacheSize += sizeInc;
-        return value;
     }
 
     /**
-     * Overrides <code>get()</code> so that it also updates the LRU list.
+     * Remove an element from the cache
      * 
-     * @param key key with which the expected value is associated
-     * @return the value to which the cache maps the specified key, or <code>null</code> if the map contains no mapping
-     *         for this key
+     * The element is not recycled as it may still be being drawn
+     * 
+     * @param key the key
+     * @return the owner of the removed element or null if it wasn't present
      */
-    public synchronized T get(final String key) {
-        final CacheElement<T> value = cache.get(key);
-        if (value != null) {
-            update(value);
-            return value.blob;
+    @Nullable
+    public Long remove(@NonNull final String key) {
+        lock();
+        try {
+            CacheElement<T> ce = cache.remove(key);
+            if (ce != null) {
+                cacheSize -= ce.size;
+                budget.cacheSize.addAndGet(-ce.size);
+                return ce.owner;
+            }
+            return null;
+        } finally {
+            lock.unlock();
         }
-        return null;
     }
 
     /**
-     * Moves the specified value to the top of the LRU list (the bottom of the list is where least recently used items
-     * live).
+     * Overrides <code>get()</code> so that it also updates the LRU list.
      * 
-     * @param value to move to the top of the list
+     * @param key key with which the expected value is associated
+     * @return the value to which the cache maps the specified key, or <code>null</code> if the map contains no mapping
+     *         for this key
      */
-    private synchronized void update(final CacheElement<T> value) {
-        list.remove(value);
-        list.add(0, value);
+    @Nullable
+    public T get(final String key) {
+        lock();
+        try {
+            final CacheElement<T> value = cache.get(key);
+            return value != null ? value.blob : null;
+        } finally {
+            lock.unlock();
+        }
     }
 
     // ===========================================================
@@ -8,6 +8,13 @@ import de.blau.android.exception.StorageException;
 import de.blau.android.services.util.MapTile;
 
 /**
+ * In memory tile cache
+ * 
+ * The cache is split in to a power of two number of independently locked LRU segments selected by the hash of the
+ * tile id, so that the render thread and the decoding threads rarely wait for each other. The maximum size and the
+ * current total size are shared by all segments, so eviction, owner tracking and expansion of the cache work on the
+ * whole cache as if it wasn't segmented.
+ * 
  * This class was taken from OpenStreetMapViewer (original package org.andnav.osm) in 2010 by Marcus Wolschon to be
  * integrated into the de.blau.android.OSMEditor.
  * 
@@ -21,12 +28,16 @@ public class MapTileCache<T> {
     // Constants
     // ===========================================================
 
+    static final int DEFAULT_SEGMENTS = 8;
+
     // ===========================================================
     // Fields
     // ===========================================================
 
-    private static final String DEBUG_TAG = "MapTileCache";
-    private final LRUMapTileCache<T>  mCachedTiles;
+    private static final String          DEBUG_TAG = "MapTileCache";
+    private final LRUMapTileCache<T>[]   mSegments;
+    private final int                    mSegmentMask;
+    private final LRUMapTileCache.Budget mBudget;
 
     // ===========================================================
     // Constructors
@@ -45,8 +56,25 @@ public class MapTileCache<T> {
      * @param aMaximumCacheBytes Maximum cache size in bytes.
      */
     public MapTileCache(final long aMaximumCacheBytes) {
-        Log.d(DEBUG_TAG, "Created new in memory tile cache with " + aMaximumCacheBytes + " bytes");
-        mCachedTiles = new LRUMapTileCache<>(aMaximumCacheBytes);
+        this(aMaximumCacheBytes, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * Construct a new cache
+     * 
+     * @param aMaximumCacheBytes Maximum cache size in bytes.
+     * @param segments the number of segments, rounded down to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public MapTileCache(final long aMaximumCacheBytes, final int segments) {
+        final int count = Integer.highestOneBit(Math.max(1, segments));
+        Log.d(DEBUG_TAG, "Created new in memory tile cache with " + aMaximumCacheBytes + " bytes in " + count + " segments");
+        mBudget = new LRUMapTileCache.Budget(aMaximumCacheBytes);
+        mSegments = new LRUMapTileCache[count];
+        for (int i = 0; i < count; i++) {
+            mSegments[i] = new LRUMapTileCache<>(mBudget);
+        }
+        mSegmentMask = count - 1;
     }
 
     // ===========================================================
@@ -60,8 +88,9 @@ public class MapTileCache<T> {
      * @return the tile or null if not found
      */
     @Nullable
-    public synchronized T getMapTile(@NonNull final MapTile aTile) {
-        return mCachedTiles.get(aTile.toId());
+    public T getMapTile(@NonNull final MapTile aTile) {
+        final String id = aTile.toId();
+        return segmentFor(id).get(id);
     }
 
     /**
@@ -73,8 +102,8 @@ public class MapTileCache<T> {
      * @return true if there was no previous mapping for this tile
      * @throws StorageException if we coudn't store the tile
      */
-    public synchronized boolean putTile(@NonNull final MapTile aTile, @NonNull final T aImage, final long owner) throws StorageException {
-        return mCachedTiles.put(aTile.toId(), aImage, true, owner) != null;
+    public boolean putTile(@NonNull final MapTile aTile, @NonNull final T aImage, final long owner) throws StorageException {
+        return putTile(aTile, aImage, true, owner);
     }
 
     /**
@@ -87,9 +116,21 @@ public class MapTileCache<T> {
      * @return true if there was no previous mapping for this tile
      * @throws StorageException if we coudn't store the tile
      */
-    public synchronized boolean putTile(@NonNull final MapTile aTile, @NonNull final T aImage, final boolean recycleable, final long owner)
-            throws StorageException {
-        return mCachedTiles.put(aTile.toId(), aImage, recycleable, owner) != null;
+    public boolean putTile(@NonNull final MapTile aTile, @NonNull final T aImage, final boolean recycleable, final long owner) throws StorageException {
+        final String id = aTile.toId();
+        return segmentFor(id).put(id, aImage, recycleable, owner) != null;
+    }
+
+    /**
+     * Remove a tile from the cache
+     * 
+     * @param aTile the tile spec
+     * @return the owner of the removed tile or null if it wasn't present
+     */
+    @Nullable
+    public Long removeTile(@NonNull final MapTile aTile) {
+        final String id = aTile.toId();
+        return segmentFor(id).remove(id);
     }
 
     // ===========================================================
@@ -100,6 +141,19 @@ public class MapTileCache<T> {
     // Methods
     // ===========================================================
 
+    /**
+     * Get the segment responsible for a tile id
+     * 
+     * @param id the tile id
+     * @return the segment
+     */
+    @NonNull
+    private LRUMapTileCache<T> segmentFor(@NonNull String id) {
+        int h = id.hashCode();
+        h ^= h >>> 16; // ids of neighbouring tiles differ mainly in the low bits of the characters
+        return mSegments[h & mSegmentMask];
+    }
+
     /**
      * Returns a suitable default for the cache size.
      * 
@@ -114,7 +168,9 @@ public class MapTileCache<T> {
      * Clear the tile cache.
      */
     public void clear() {
-        mCachedTiles.clear();
+        for (LRUMapTileCache<T> segment : mSegments) {
+            segment.clear();
+        }
     }
 
     /**
@@ -124,14 +180,15 @@ public class MapTileCache<T> {
      * @return true if the tile is in the cache.
      */
     public boolean containsTile(@NonNull final MapTile aTile) {
-        return mCachedTiles.containsKey(aTile.toId());
+        final String id = aTile.toId();
+        return segmentFor(id).containsKey(id);
     }
 
     /**
      * Try to reduce memory use.
      */
     public void onLowMemory() {
-        mCachedTiles.onLowMemory();
+        mBudget.onLowMemory();
     }
 
     /**
@@ -141,7 +198,38 @@ public class MapTileCache<T> {
      */
     @NonNull
     public String getCacheUsageInfo() {
-        return "Size " + mCachedTiles.cacheSizeBytes() + " of maximum " + mCachedTiles.getMaxCacheSize() + " #entries " + mCachedTiles.size();
+        int entries = 0;
+        for (LRUMapTileCache<T> segment : mSegments) {
+            entries += segment.size();
+        }
+        return "Size " + mBudget.cacheSizeBytes() + " of maximum " + mBudget.getMaxCacheSize() + " #entries " + entries + " #segments " + mSegments.length + " lock contention "
+                + getContendedCount() + " of " + getLockCount();
+    }
+
+    /**
+     * Get the number of times a segment lock has been acquired
+     * 
+     * @return the count summed over all segments
+     */
+    public long getLockCount() {
+        long count = 0;
+        for (LRUMapTileCache<T> segment : mSegments) {
+            count += segment.getLockCount();
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of times a thread had to wait for a segment lock
+     * 
+     * @return the count summed over all segments
+     */
+    public long getContendedCount() {
+        long count = 0;
+        for (LRUMapTileCache<T> segment : mSegments) {
+            count += segment.getContendedCount();
+        }
+        return count;
     }
 
     // ===========================================================
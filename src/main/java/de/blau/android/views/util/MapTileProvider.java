@@ -1,7 +1,6 @@
 package de.blau.android.views.util;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -20,11 +19,13 @@ import android.os.Message;
 import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.core.util.Pools;
 import de.blau.android.App;
 import de.blau.android.exception.StorageException;
 import de.blau.android.services.util.MapAsyncTileProvider;
 import de.blau.android.services.util.MapTile;
 import de.blau.android.services.util.MapTileFilesystemProvider;
+import de.blau.android.services.util.ReadBuffer;
 import de.blau.android.util.Util;
 
 /**
@@ -50,6 +51,8 @@ public class MapTileProvider<T> {
 
     private static final int MVT_CACHE_SIZE = 128;
 
+    private static final int MAX_GZIP_RATIO = 1032; // maximum possible deflate compression ratio
+
     // ===========================================================
     // Fields
     // ===========================================================
@@ -83,16 +86,29 @@ public class MapTileProvider<T> {
     }
 
     public static class BitmapDecoder implements TileDecoder<Bitmap> {
-        private BitmapFactory.Options options = new BitmapFactory.Options();
+        private static final int POOL_SIZE         = 8;
+        private static final int TEMP_STORAGE_SIZE = 16 * 1024;
+
+        // decode is called concurrently from the loader threads, each decode needs its own options
+        private final Pools.SynchronizedPool<BitmapFactory.Options> options = new Pools.SynchronizedPool<>(POOL_SIZE);
 
         @Override
         public Bitmap decode(@NonNull byte[] data, boolean small) {
-            if (small) {
-                options.inPreferredConfig = Bitmap.Config.RGB_565;
-            } else {
-                options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            BitmapFactory.Options decodeOptions = options.acquire();
+            if (decodeOptions == null) {
+                decodeOptions = new BitmapFactory.Options();
+                decodeOptions.inTempStorage = new byte[TEMP_STORAGE_SIZE]; // reused instead of allocated per decode
+            }
+            try {
+                if (small) {
+                    decodeOptions.inPreferredConfig = Bitmap.Config.RGB_565;
+                } else {
+                    decodeOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
+                }
+                return BitmapFactory.decodeByteArray(data, 0, data.length, decodeOptions);
+            } finally {
+                options.release(decodeOptions);
             }
-            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
         }
 
     }
@@ -168,6 +184,48 @@ public class MapTileProvider<T> {
         return mTileCache.getMapTile(aTile);
     }
 
+    /**
+     * Request a tile that isn't visible yet, if it isn't already in the in memory cache
+     * 
+     * The tile service loads such tiles after all tiles in the viewport. Prefetched tiles don't belong to a draw
+     * cycle, so they never cause the in memory cache to expand.
+     * 
+     * @param aTile tile spec
+     */
+    public void prefetchMapTile(@NonNull final MapTile aTile) {
+        if (!mTileCache.containsTile(aTile)) {
+            preCacheTile(aTile, 0);
+        }
+    }
+
+    /**
+     * Tell the tile service which tiles are currently visible so that it can load them first and drop requests for
+     * tiles that are no longer needed
+     * 
+     * Should be called before the visible tiles are requested, so that new requests are prioritised with the new
+     * viewport immediately.
+     * 
+     * @param rendererId the id of the tile source
+     * @param zoom the zoom level
+     * @param left the left most tile x number
+     * @param top the top most tile y number
+     * @param right the right most tile x number
+     * @param bottom the bottom most tile y number
+     * @return true if the viewport has changed
+     */
+    public boolean setViewport(@NonNull String rendererId, int zoom, int left, int top, int right, int bottom) {
+        if (mapTileFilesystemProvider == null || !mapTileFilesystemProvider.updateViewport(rendererId, zoom, left, top, right, bottom)) {
+            return false;
+        }
+        try {
+            // re-ordering the queues calls back for cancelled requests, don't do that on the UI thread
+            mThreadPool.execute(mapTileFilesystemProvider::reorderQueue);
+        } catch (RejectedExecutionException rjee) {
+            Log.e(DEBUG_TAG, "Execution rejected " + rjee.getMessage());
+        }
+        return true;
+    }
+
     /**
      * Request a tile from the tile service
      * 
@@ -277,6 +335,10 @@ public class MapTileProvider<T> {
                 }
                 synchronized (pending) {
                     Long l = pending.get(id);
+                    if (l == null) {
+                        // new contents for a tile that was revalidated after it had been displayed, keep its owner
+                        l = mTileCache.removeTile(t);
+                    }
                     if (l != null) {
                         mTileCache.putTile(t, tileBlob, l);
                     } // else wasn't in pending queue just ignore
@@ -333,16 +395,13 @@ public class MapTileProvider<T> {
     public static byte[] unGZip(@NonNull byte[] data) {
         // check magic number
         if (data.length > 3 && data[0] == (byte) 0x1F && data[1] == (byte) 0x8B && data[2] == (byte) 0x08) {
-            // nearly all the objects allocated here could be reused
-            try (ByteArrayInputStream in = new ByteArrayInputStream(data);
-                    GZIPInputStream gis = new GZIPInputStream(in);
-                    ByteArrayOutputStream os = new ByteArrayOutputStream()) {
-                byte[] buffer = new byte[4096];
-                int len;
-                while ((len = gis.read(buffer)) != -1) {
-                    os.write(buffer, 0, len);
-                }
-                return os.toByteArray();
+            // the trailer contains the uncompressed size which allows us to decompress directly in to the result
+            long size = ReadBuffer.gzipSize(data);
+            if (size > (long) data.length * MAX_GZIP_RATIO) {
+                size = -1; // not plausible
+            }
+            try (ByteArrayInputStream in = new ByteArrayInputStream(data); GZIPInputStream gis = new GZIPInputStream(in, 4096)) {
+                return new ReadBuffer().read(gis, size);
             } catch (IOException e) {
                 Log.d(DEBUG_TAG, "Exception in unGZip " + e.getMessage());
             }
@@ -0,0 +1,83 @@
+package de.blau.android;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import android.util.Log;
+import androidx.test.filters.LargeTest;
+import de.blau.android.osm.BoundingBox;
+import de.blau.android.osm.Node;
+import de.blau.android.osm.PbfTest;
+import de.blau.android.osm.Storage;
+import de.blau.android.osm.Way;
+
+@RunWith(RobolectricTestRunner.class)
+@LargeTest
+public class WaySegmentIndexTest {
+
+    private static final String DEBUG_TAG = "WaySegmentIndexTest";
+
+    private Storage storage;
+
+    /**
+     * Pre-test setup
+     */
+    @Before
+    public void setup() {
+        storage = PbfTest.read();
+    }
+
+    /**
+     * Check that all segments intersecting a click box are returned
+     */
+    @Test
+    public void segments() {
+        Way longWay = null;
+        for (Way w : storage.getWays()) {
+            if (w.nodeCount() > WaySegmentIndex.MIN_SEGMENTS + 1 && (longWay == null || w.nodeCount() > longWay.nodeCount())) {
+                longWay = w;
+            }
+        }
+        assertNotNull(longWay);
+        List<Node> nodes = longWay.getNodes();
+        Log.d(DEBUG_TAG, "Using way " + longWay.getOsmId() + " with " + nodes.size() + " nodes");
+        WaySegmentIndex index = new WaySegmentIndex();
+        final int size = 2000;
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < nodes.size(); i++) {
+            Node n = nodes.get(i);
+            BoundingBox clickBox = new BoundingBox(n.getLon() - size / 2, n.getLat() - size / 2, n.getLon() + size / 2, n.getLat() + size / 2);
+            index.validate(storage, 18, clickBox);
+            BitSet segments = index.getSegments(longWay, clickBox);
+            assertNotNull(segments);
+            for (int k = 0; k < nodes.size() - 1; k++) {
+                Node node1 = nodes.get(k);
+                Node node2 = nodes.get(k + 1);
+                if (clickBox.intersects(Math.min(node1.getLon(), node2.getLon()), Math.min(node1.getLat(), node2.getLat()),
+                        Math.max(node1.getLon(), node2.getLon()), Math.max(node1.getLat(), node2.getLat()))) {
+                    assertTrue(segments.get(k));
+                }
+            }
+        }
+        Log.d(DEBUG_TAG, "Queries took " + (System.currentTimeMillis() - start) + " ms");
+
+        Way shortWay = null;
+        for (Way w : storage.getWays()) {
+            if (w.nodeCount() < WaySegmentIndex.MIN_SEGMENTS) {
+                shortWay = w;
+                break;
+            }
+        }
+        assertNotNull(shortWay);
+        assertNull(index.getSegments(shortWay, shortWay.getBounds()));
+    }
+}
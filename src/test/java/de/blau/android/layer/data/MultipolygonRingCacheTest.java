@@ -0,0 +1,121 @@
+package de.blau.android.layer.data;
+
+import static de.blau.android.util.Winding.CLOCKWISE;
+import static de.blau.android.util.Winding.winding;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import androidx.test.filters.LargeTest;
+import de.blau.android.osm.Node;
+import de.blau.android.osm.PbfTest;
+import de.blau.android.osm.Relation;
+import de.blau.android.osm.RelationMember;
+import de.blau.android.osm.Storage;
+import de.blau.android.osm.StorageDelegator;
+import de.blau.android.osm.Tags;
+import de.blau.android.osm.Way;
+
+@RunWith(RobolectricTestRunner.class)
+@LargeTest
+public class MultipolygonRingCacheTest {
+
+    /**
+     * Assemble the rings of all multipolygons of a country extract and then draw a number of frames
+     */
+    @Test
+    public void assemble() {
+        StorageDelegator d = new StorageDelegator();
+        d.setCurrentStorage(PbfTest.read());
+        Storage storage = d.getCurrentStorage();
+        List<Relation> multipolygons = new ArrayList<>();
+        for (Relation r : storage.getRelations()) {
+            if (r.hasTag(Tags.KEY_TYPE, Tags.VALUE_MULTIPOLYGON)) {
+                multipolygons.add(r);
+            }
+        }
+        assertTrue(multipolygons.size() > 1 && multipolygons.size() < MultipolygonRingCache.MAX_CACHED_RELATIONS);
+        MultipolygonRingCache cache = new MultipolygonRingCache();
+        long start = System.nanoTime();
+        cache.validate(storage);
+        int count = 0;
+        for (Relation r : multipolygons) {
+            MultipolygonRingCache.Rings rings = cache.get(r);
+            if (rings != null) {
+                count++;
+            }
+        }
+        long build = System.nanoTime() - start;
+        assertEquals(count, cache.getAssembledCount());
+        final int frames = 20;
+        start = System.nanoTime();
+        for (int f = 0; f < frames; f++) {
+            cache.validate(storage);
+            for (Relation r : multipolygons) {
+                cache.get(r);
+            }
+        }
+        long cached = System.nanoTime() - start;
+        assertEquals(count, cache.getAssembledCount());
+        assertEquals((long) frames * count, cache.getHitCount());
+        System.out.println(count + " multipolygons assembled in " + build / 1000000 + " ms, " + frames + " frames from the cache " + cached / 1000000 + " ms");
+
+        // outer rings come first and are clockwise
+        Relation changed = null;
+        Way outer = null;
+        for (Relation r : multipolygons) {
+            for (RelationMember m : r.getMembersWithRole(Tags.ROLE_OUTER)) {
+                if (m.getElement() instanceof Way && ((Way) m.getElement()).isClosed()) {
+                    changed = r;
+                    outer = (Way) m.getElement();
+                    break;
+                }
+            }
+            if (changed != null) {
+                break;
+            }
+        }
+        assertNotNull(changed);
+        MultipolygonRingCache.Rings before = cache.get(changed);
+        assertNotNull(before);
+        assertEquals(CLOCKWISE, winding(before.rings.get(0)));
+        final int ringCount = before.rings.size();
+
+        // only the changed multipolygon is assembled again
+        Relation unchanged = null;
+        for (Relation r : multipolygons) {
+            if (r != changed && !outer.hasParentRelation(r) && cache.get(r) != null) {
+                unchanged = r;
+                break;
+            }
+        }
+        assertNotNull(unchanged);
+        MultipolygonRingCache.Rings unchangedBefore = cache.get(unchanged);
+        Node n = outer.getNodes().get(1);
+        d.getUndo().createCheckpoint("move");
+        d.moveNode(n, n.getLat() + 1000, n.getLon());
+        cache.validate(storage);
+        MultipolygonRingCache.Rings after = cache.get(changed);
+        assertNotSame(before, after);
+        assertSame(unchangedBefore, cache.get(unchanged));
+        assertEquals(count + 1L, cache.getAssembledCount());
+
+        // removing a member
+        d.getUndo().createCheckpoint("remove");
+        d.removeRelationMembersFromRelation(changed, changed.getAllMembers(outer));
+        cache.validate(storage);
+        after = cache.get(changed);
+        assertNotNull(after);
+        assertEquals(ringCount - 1, after.rings.size());
+        assertEquals(count + 2L, cache.getAssembledCount());
+    }
+}
@@ -0,0 +1,105 @@
+package de.blau.android.layer.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import androidx.test.filters.LargeTest;
+import de.blau.android.osm.Node;
+import de.blau.android.osm.PbfTest;
+import de.blau.android.osm.Storage;
+import de.blau.android.osm.StorageDelegator;
+import de.blau.android.osm.Way;
+
+@RunWith(RobolectricTestRunner.class)
+@LargeTest
+public class SimplifiedWayCacheTest {
+
+    /**
+     * Simplify all long ways of a country extract at a low zoom level and then draw a number of frames
+     */
+    @Test
+    public void simplify() {
+        StorageDelegator d = new StorageDelegator();
+        d.setCurrentStorage(PbfTest.read());
+        Storage storage = d.getCurrentStorage();
+        List<Way> ways = new ArrayList<>();
+        for (Way w : storage.getWays()) {
+            if (w.nodeCount() >= SimplifiedWayCache.MIN_NODES) {
+                ways.add(w);
+            }
+        }
+        assertTrue(ways.size() > 1 && ways.size() < SimplifiedWayCache.MAX_CACHED_WAYS);
+        SimplifiedWayCache cache = new SimplifiedWayCache();
+        final int zoomLevel = 12;
+        long original = 0;
+        long simplified = 0;
+        long start = System.nanoTime();
+        cache.validate(storage, zoomLevel);
+        for (Way w : ways) {
+            List<Node> nodes = w.getNodes();
+            List<Node> result = cache.get(w);
+            original += nodes.size();
+            simplified += result.size();
+            // retains the end points and the order of the nodes
+            assertSame(nodes.get(0), result.get(0));
+            assertSame(nodes.get(nodes.size() - 1), result.get(result.size() - 1));
+            int index = 0;
+            for (Node n : result) {
+                int next = nodes.subList(index, nodes.size()).indexOf(n);
+                assertTrue(next >= 0);
+                index += next + 1;
+            }
+        }
+        long build = System.nanoTime() - start;
+        assertTrue(simplified < original);
+        final int frames = 20;
+        start = System.nanoTime();
+        for (int f = 0; f < frames; f++) {
+            cache.validate(storage, zoomLevel);
+            for (Way w : ways) {
+                cache.get(w);
+            }
+        }
+        long cached = System.nanoTime() - start;
+        assertEquals(ways.size(), cache.getSimplifiedCount());
+        assertEquals((long) frames * ways.size(), cache.getHitCount());
+        System.out.println(ways.size() + " ways with " + original + " nodes simplified to " + simplified + " nodes in " + build / 1000000 + " ms, " + frames
+                + " frames from the cache " + cached / 1000000 + " ms");
+
+        // only the changed way is simplified again
+        Way changed = ways.get(0);
+        Node n = changed.getNodes().get(changed.nodeCount() / 2);
+        Way unchanged = null;
+        for (Way w : ways) {
+            if (w != changed && !w.getNodes().contains(n)) {
+                unchanged = w;
+                break;
+            }
+        }
+        assertNotNull(unchanged);
+        List<Node> before = cache.get(changed);
+        List<Node> unchangedBefore = cache.get(unchanged);
+        d.getUndo().createCheckpoint("move");
+        d.moveNode(n, n.getLat() + 100000, n.getLon());
+        cache.validate(storage, zoomLevel);
+        List<Node> after = cache.get(changed);
+        assertNotSame(before, after);
+        assertTrue(after.contains(n));
+        assertSame(unchangedBefore, cache.get(unchanged));
+        assertEquals(ways.size() + 1L, cache.getSimplifiedCount());
+
+        // no simplification at high zoom levels
+        cache.validate(storage, SimplifiedWayCache.MAX_ZOOM);
+        assertSame(changed.getNodes(), cache.get(changed));
+    }
+}
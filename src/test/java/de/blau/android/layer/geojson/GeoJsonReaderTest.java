@@ -0,0 +1,198 @@
+package de.blau.android.layer.geojson;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import com.google.gson.JsonSyntaxException;
+import com.mapbox.geojson.Feature;
+import com.mapbox.geojson.FeatureCollection;
+import com.mapbox.geojson.Geometry;
+import com.mapbox.geojson.Point;
+import com.mapbox.geojson.Polygon;
+
+import androidx.annotation.NonNull;
+import androidx.test.filters.LargeTest;
+import de.blau.android.layer.geojson.MapOverlay.BoundedFeature;
+import de.blau.android.osm.OsmXml;
+import de.blau.android.util.FileUtil;
+import de.blau.android.util.GeoJSONConstants;
+import de.blau.android.util.GeoJson;
+
+@RunWith(RobolectricTestRunner.class)
+@LargeTest
+public class GeoJsonReaderTest {
+
+    /**
+     * Read all geometry types and compare with the result of the Mapbox parser
+     */
+    @Test
+    public void readFixtures() {
+        String[] geometries = { "point", "multiPoint", "lineString", "multiLineString", "polygon", "holeyPolygon", "multiPolygon",
+                "holeyMultiPolygon", "singleRingMultiPolygon", "geometryCollection" };
+        for (String name : geometries) {
+            List<BoundedFeature> features = read("/geojson/" + name + ".geojson");
+            assertEquals(1, features.size());
+            Geometry expected = GeoJson.geometryFromJson(readToString("/geojson/" + name + ".geojson"));
+            assertEquals(expected.toJson(), features.get(0).getFeature().geometry().toJson());
+        }
+        for (String name : new String[] { "pointFeature", "polygonFeature" }) {
+            List<BoundedFeature> features = read("/geojson/" + name + ".geojson");
+            assertEquals(1, features.size());
+            Feature expected = Feature.fromJson(readToString("/geojson/" + name + ".geojson"));
+            assertEquals(expected.toJson(), features.get(0).getFeature().toJson());
+        }
+        List<BoundedFeature> features = read("/geojson/featureCollection.geojson");
+        FeatureCollection expected = FeatureCollection.fromJson(readToString("/geojson/featureCollection.geojson"));
+        assertEquals(expected.features().size(), features.size());
+        for (int i = 0; i < features.size(); i++) {
+            assertEquals(expected.features().get(i).toJson(), features.get(i).getFeature().toJson());
+        }
+    }
+
+    /**
+     * Check bounding boxes and polygon containment
+     */
+    @Test
+    public void geometry() {
+        BoundedFeature polygon = read("/geojson/holeyPolygon.geojson").get(0);
+        assertEquals(100000000, polygon.getBounds().getLeft());
+        assertEquals(50000000, polygon.getBounds().getBottom());
+        assertEquals(450000000, polygon.getBounds().getRight());
+        assertEquals(350000000, polygon.getBounds().getTop());
+        CompactGeometry g = polygon.getGeometry();
+        assertEquals(2, g.lineCount());
+        assertEquals(1, g.polygonCount());
+        assertTrue(g.contains(250000000, 300000000));
+        assertFalse(g.contains(250000000, 200000000)); // in the hole
+        assertFalse(g.contains(0, 0));
+        BoundedFeature collection = read("/geojson/geometryCollection.geojson").get(0);
+        assertEquals(GeoJSONConstants.GEOMETRYCOLLECTION, collection.getGeometry().getType());
+        assertEquals(2, collection.getGeometry().getGeometries().length);
+        assertEquals(100000000, collection.getBounds().getLeft());
+        assertEquals(400000000, collection.getBounds().getTop());
+    }
+
+    /**
+     * Invalid input should result in a JsonSyntaxException
+     */
+    @Test
+    public void invalid() {
+        String[] inputs = { "{\"type\":\"Point\",\"coordinates\":[[1,2]]}", "{\"type\":\"Point\",\"coordinates\":[1,2", "{\"type\":\"LineString\"}",
+                "{\"type\":\"Point\",\"coordinates\":[1,\"a\"]}", "[1,2]" };
+        for (String input : inputs) {
+            try {
+                new GeoJsonReader(f -> {
+                }, null).read(new ByteArrayInputStream(input.getBytes()));
+                fail("Expected JsonSyntaxException for " + input);
+            } catch (JsonSyntaxException e) {
+                // expected
+            } catch (IOException e) {
+                fail(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Read a large generated FeatureCollection, compare with reading the whole file with the Mapbox parser
+     */
+    @Test
+    public void largeFeatureCollection() {
+        final int count = 20000;
+        StringBuilder builder = new StringBuilder("{\"type\":\"FeatureCollection\",\"features\":[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            double lon = 8.0 + (i % 100) * 0.001;
+            double lat = 47.0 + (i / 100) * 0.001;
+            builder.append("{\"type\":\"Feature\",\"id\":\"").append(i).append("\",\"properties\":{\"name\":\"feature ").append(i)
+                    .append("\"},\"geometry\":{\"type\":\"Polygon\",\"coordinates\":[[[").append(lon).append(',').append(lat).append("],[")
+                    .append(lon + 0.0005).append(',').append(lat).append("],[").append(lon + 0.0005).append(',').append(lat + 0.0005).append("],[")
+                    .append(lon).append(',').append(lat + 0.0005).append("],[").append(lon).append(',').append(lat).append("]]]}}");
+        }
+        builder.append("]}");
+        byte[] input = builder.toString().getBytes(Charset.forName(OsmXml.UTF_8));
+
+        long start = System.currentTimeMillis();
+        FeatureCollection fc = FeatureCollection.fromJson(new String(input, Charset.forName(OsmXml.UTF_8)));
+        System.out.println("Mapbox " + fc.features().size() + " features in " + (System.currentTimeMillis() - start) + " ms");
+
+        List<Long> progress = new ArrayList<>();
+        List<BoundedFeature> features = new ArrayList<>();
+        start = System.currentTimeMillis();
+        try {
+            int read = new GeoJsonReader(features::add, (featureCount, bytesRead) -> progress.add(bytesRead)).read(new ByteArrayInputStream(input));
+            assertEquals(count, read);
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+        System.out.println("Streaming " + features.size() + " features in " + (System.currentTimeMillis() - start) + " ms");
+        assertEquals(fc.features().size(), features.size());
+        assertEquals(count / 1000 + 1, progress.size());
+        assertEquals(input.length, (long) progress.get(progress.size() - 1));
+        for (int i = 1; i < progress.size(); i++) {
+            assertTrue(progress.get(i) >= progress.get(i - 1));
+        }
+        for (int i = 0; i < count; i += 997) {
+            Feature expected = fc.features().get(i);
+            Feature actual = features.get(i).getFeature();
+            assertEquals(expected.id(), actual.id());
+            assertEquals(expected.properties(), actual.properties());
+            assertEquals(expected.geometry().type(), actual.geometry().type());
+            Point expectedPoint = ((Polygon) expected.geometry()).coordinates().get(0).get(2);
+            Point actualPoint = ((Polygon) actual.geometry()).coordinates().get(0).get(2);
+            assertEquals(expectedPoint.longitude(), actualPoint.longitude(), 1E-7);
+            assertEquals(expectedPoint.latitude(), actualPoint.latitude(), 1E-7);
+        }
+    }
+
+    /**
+     * Read a resource with the streaming reader
+     *
+     * @param resource the resource name
+     * @return a List of the BoundedFeatures read
+     */
+    @NonNull
+    private List<BoundedFeature> read(@NonNull String resource) {
+        List<BoundedFeature> result = new ArrayList<>();
+        try (InputStream is = getClass().getResourceAsStream(resource)) {
+            assertNotNull(is);
+            new GeoJsonReader(result::add, null).read(is);
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+        return result;
+    }
+
+    /**
+     * Read a resource in to a String
+     *
+     * @param resource the resource name
+     * @return the contents
+     */
+    @NonNull
+    private String readToString(@NonNull String resource) {
+        try (InputStream is = getClass().getResourceAsStream(resource)) {
+            return FileUtil.readToString(new BufferedReader(new InputStreamReader(is, Charset.forName(OsmXml.UTF_8))));
+        } catch (IOException e) {
+            fail(e.getMessage());
+            return null;
+        }
+    }
+}
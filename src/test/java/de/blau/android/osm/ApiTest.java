@@ -25,6 +25,7 @@ import org.robolectric.annotation.Config;
 
 import com.orhanobut.mockwebserverplus.MockWebServerPlus;
 
+import android.content.Context;
 import android.os.Looper;
 import androidx.annotation.NonNull;
 import androidx.test.core.app.ApplicationProvider;
@@ -37,6 +38,7 @@ import de.blau.android.PostAsyncActionHandler;
 import de.blau.android.ShadowWorkManager;
 import de.blau.android.SignalUtils;
 import de.blau.android.exception.OsmIllegalOperationException;
+import de.blau.android.exception.OsmServerException;
 import de.blau.android.prefs.AdvancedPrefDatabase;
 import de.blau.android.prefs.Preferences;
 import de.blau.android.util.Util;
@@ -428,6 +430,81 @@ public class ApiTest {
         assertEquals(4L, r.getOsmVersion());
     }
 
+    /**
+     * Upload in batches, fail on the second batch and resume in the still open changeset
+     */
+    @Test
+    public void dataUploadResume() {
+        final CountDownLatch signal = new CountDownLatch(1);
+        Logic logic = App.getLogic();
+
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        InputStream is = loader.getResourceAsStream(TEST1_OSM_FIXTURE);
+        logic.readOsmFile(ApplicationProvider.getApplicationContext(), is, false, new FailOnErrorHandler(signal));
+        runLooper();
+        SignalUtils.signalAwait(signal, TIMEOUT);
+
+        StorageDelegator delegator = App.getDelegator();
+        assertEquals(33, delegator.getApiElementCount());
+        delegator.setUploadBatchSize(11);
+
+        mockServer.enqueue(CAPABILITIES1_FIXTURE);
+        mockServer.enqueue(CHANGESET1_FIXTURE);
+        mockServer.enqueue(UPLOAD2_FIXTURE);
+        mockServer.enqueue("500");
+
+        final Context context = ApplicationProvider.getApplicationContext();
+        final Server s = new Server(context, prefDB.getCurrentAPI(), GENERATOR_NAME);
+        try {
+            delegator.uploadToServer(context, s, "TEST", "none", false, true, null, null);
+            fail("Expected OsmServerException");
+        } catch (OsmServerException e) {
+            assertEquals(500, e.getErrorCode());
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+        assertEquals(22, delegator.getApiElementCount());
+        assertEquals(1234567, s.getOpenChangeset());
+
+        // the state was saved after the first batch
+        StorageDelegator saved = new StorageDelegator();
+        assertTrue(saved.readFromFile(context));
+        assertEquals(22, saved.getApiElementCount());
+
+        mockServer.enqueue(CAPABILITIES1_FIXTURE);
+        mockServer.enqueue(CHANGESET5_FIXTURE);
+        mockServer.enqueue(CHANGESET5_FIXTURE);
+        mockServer.enqueue(UPLOAD3_FIXTURE);
+        mockServer.enqueue(UPLOAD4_FIXTURE);
+        mockServer.enqueue(CLOSE_CHANGESET_FIXTURE);
+        try {
+            delegator.uploadToServer(context, s, "TEST", "none", false, true, null, null);
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+        assertEquals(0, delegator.getApiElementCount());
+        assertEquals(-1, s.getOpenChangeset());
+        saved = new StorageDelegator();
+        assertTrue(saved.readFromFile(context));
+        assertEquals(0, saved.getApiElementCount());
+
+        try {
+            for (int i = 0; i < 4; i++) {
+                mockServer.takeRequest();
+            }
+            mockServer.takeRequest(); // capabilities
+            assertEquals("/api/0.6/changeset/1234567", mockServer.takeRequest().getPath()); // still open
+            assertEquals("/api/0.6/changeset/1234567", mockServer.takeRequest().getPath()); // update
+            RecordedRequest request = mockServer.takeRequest();
+            assertEquals("/api/0.6/changeset/1234567/upload", request.getPath());
+            assertTrue(request.getBody().readUtf8().contains("changeset=\"1234567\""));
+            assertEquals("/api/0.6/changeset/1234567/upload", mockServer.takeRequest().getPath());
+            assertEquals("/api/0.6/changeset/1234567/close", mockServer.takeRequest().getPath());
+        } catch (InterruptedException e) {
+            fail(e.getMessage());
+        }
+    }
+
     /**
      * Retrieve a changeset by id
      */
@@ -0,0 +1,481 @@
+package de.blau.android.osm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openstreetmap.osmosis.osmbinary.Fileformat;
+import org.openstreetmap.osmosis.osmbinary.Osmformat;
+import org.openstreetmap.osmosis.osmbinary.file.BlockInputStream;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import com.google.protobuf.ByteString;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import androidx.annotation.NonNull;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.filters.LargeTest;
+import de.blau.android.resources.MBTileConstants;
+import de.blau.android.services.util.MBTileProviderDataBase;
+import de.blau.android.services.util.MapTile;
+import de.blau.android.services.util.ShadowSQLiteCloseable;
+import de.blau.android.services.util.ShadowSQLiteProgram;
+import de.blau.android.services.util.ShadowSQLiteStatement;
+import de.blau.android.util.GeoMath;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(shadows = { ShadowSQLiteStatement.class, ShadowSQLiteProgram.class, ShadowSQLiteCloseable.class })
+@LargeTest
+public class MapSplitSourceTest {
+
+    private static final int MIN_ZOOM = 13;
+    private static final int MAX_ZOOM = 14;
+
+    private Context                context;
+    private File                   mbtFile;
+    private MBTileProviderDataBase mbTiles;
+    private BoundingBox            box;
+
+    private final Map<String, byte[]> tiles = new LinkedHashMap<>();
+
+    /**
+     * Split the Liechtenstein extract in to tiles and write them to a MBTiles file
+     */
+    @Before
+    public void setup() {
+        context = ApplicationProvider.getApplicationContext();
+        Storage source = PbfTest.read();
+        BoundingBox extent = null;
+        try {
+            extent = source.calcBoundingBoxFromData();
+        } catch (OsmException e) {
+            fail(e.getMessage());
+        }
+        // a box in the middle of the data so that some trimming happens
+        int width = extent.getRight() - extent.getLeft();
+        int height = extent.getTop() - extent.getBottom();
+        box = new BoundingBox(extent.getLeft() + width / 5, extent.getBottom() + height / 5, extent.getRight() - width / 5, extent.getTop() - height / 5);
+
+        int left = lonToTileX(extent.getLeft(), MAX_ZOOM);
+        int right = lonToTileX(extent.getRight(), MAX_ZOOM);
+        int top = latToTileY(extent.getTop(), MAX_ZOOM);
+        int bottom = latToTileY(extent.getBottom(), MAX_ZOOM);
+        // replace the max zoom tiles of one block in the middle of the box with their parent to check the fallback
+        int parentX = lonToTileX(box.getLeft() + width / 2, MIN_ZOOM);
+        int parentY = latToTileY(box.getBottom() + height / 2, MIN_ZOOM);
+        for (int x = left; x <= right; x++) {
+            for (int y = top; y <= bottom; y++) {
+                if ((x >> 1) == parentX && (y >> 1) == parentY) {
+                    continue;
+                }
+                addTile(source, MAX_ZOOM, x, y);
+            }
+        }
+        addTile(source, MIN_ZOOM, parentX, parentY);
+
+        mbtFile = new File(context.getCacheDir(), "synthetic.msf");
+        mbtFile.delete(); // NOSONAR
+        try (SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(mbtFile, null)) {
+            db.execSQL("CREATE TABLE metadata (name text, value text)");
+            db.execSQL("CREATE TABLE tiles (zoom_level integer, tile_column integer, tile_row integer, tile_data blob)");
+            ContentValues values = new ContentValues();
+            values.put("name", MBTileConstants.MINZOOM);
+            values.put("value", Integer.toString(MIN_ZOOM));
+            db.insert("metadata", null, values);
+            values.put("name", MBTileConstants.MAXZOOM);
+            values.put("value", Integer.toString(MAX_ZOOM));
+            db.insert("metadata", null, values);
+            for (Entry<String, byte[]> tile : tiles.entrySet()) {
+                String[] zxy = tile.getKey().split("/");
+                int z = Integer.parseInt(zxy[0]);
+                values = new ContentValues();
+                values.put("zoom_level", z);
+                values.put("tile_column", Integer.parseInt(zxy[1]));
+                values.put("tile_row", (1 << z) - Integer.parseInt(zxy[2]) - 1); // TMS scheme
+                values.put("tile_data", tile.getValue());
+                db.insert("tiles", null, values);
+            }
+        }
+        mbTiles = new MBTileProviderDataBase(context, Uri.fromFile(mbtFile), 1);
+    }
+
+    /**
+     * Post-test teardown
+     */
+    @After
+    public void teardown() {
+        if (mbTiles != null) {
+            mbTiles.close();
+        }
+        if (mbtFile != null) {
+            mbtFile.delete(); // NOSONAR
+        }
+    }
+
+    /**
+     * Check that the concurrently read data is the same as reading the tiles one after the other in to one Storage and
+     * that all references point to the retained instances
+     */
+    @Test
+    public void readBox() {
+        try {
+            Storage reference = readSerially();
+            Storage storage = MapSplitSource.readBox(context, mbTiles, box);
+            assertTrue(storage.getWayCount() > 0);
+            assertTrue(storage.getRelationCount() > 0);
+            assertEquals(new HashSet<>(ids(reference.getNodes())), new HashSet<>(ids(storage.getNodes())));
+            assertEquals(new HashSet<>(ids(reference.getWays())), new HashSet<>(ids(storage.getWays())));
+            assertEquals(new HashSet<>(ids(reference.getRelations())), new HashSet<>(ids(storage.getRelations())));
+            for (Way w : storage.getWays()) {
+                assertEquals(ids(reference.getWay(w.getOsmId()).getNodes()), ids(w.getNodes()));
+                for (Node n : w.getNodes()) {
+                    assertSame(storage.getNode(n.getOsmId()), n);
+                }
+            }
+            for (Relation r : storage.getRelations()) {
+                assertEquals(reference.getRelation(r.getOsmId()).getMembers().size(), r.getMembers().size());
+                for (RelationMember rm : r.getMembers()) {
+                    OsmElement e = storage.getOsmElement(rm.getType(), rm.getRef());
+                    assertSame(e, rm.getElement());
+                    if (e != null) {
+                        assertTrue(e.hasParentRelation(r));
+                    }
+                }
+            }
+            for (OsmElement e : storage.getElements()) {
+                List<Relation> parents = e.getParentRelations();
+                if (parents != null) {
+                    for (Relation r : parents) {
+                        assertSame(storage.getRelation(r.getOsmId()), r);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Compare the time used for reading serially with the concurrent implementation
+     */
+    @Test
+    public void readBoxBenchmark() {
+        try {
+            final int runs = 5;
+            long serial = Long.MAX_VALUE;
+            long concurrent = Long.MAX_VALUE;
+            for (int i = 0; i < runs; i++) {
+                long start = System.nanoTime();
+                assertNotNull(readSerially());
+                serial = Math.min(serial, System.nanoTime() - start);
+                start = System.nanoTime();
+                assertNotNull(MapSplitSource.readBox(context, mbTiles, box));
+                concurrent = Math.min(concurrent, System.nanoTime() - start);
+            }
+            System.out.println("Reading " + tiles.size() + " tiles serially " + (serial / 1000000) + " ms, concurrently " + (concurrent / 1000000) + " ms"); // NOSONAR
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Read the tiles covering the box one after the other in to the same Storage, this is how MapSplitSource#readBox
+     * used to work
+     *
+     * @return a Storage instance
+     * @throws IOException if reading fails
+     */
+    @NonNull
+    private Storage readSerially() throws IOException {
+        Storage storage = new Storage();
+        Set<String> read = new LinkedHashSet<>();
+        for (int x = lonToTileX(box.getLeft(), MAX_ZOOM); x <= lonToTileX(box.getRight(), MAX_ZOOM); x++) {
+            for (int y = latToTileY(box.getBottom(), MAX_ZOOM); y >= latToTileY(box.getTop(), MAX_ZOOM); y--) {
+                MapTile tile = new MapTile(null, MAX_ZOOM, x, y);
+                if (!tiles.containsKey(key(MAX_ZOOM, x, y))) {
+                    tile = new MapTile(null, MIN_ZOOM, x >> 1, y >> 1);
+                }
+                if (read.add(key(tile.zoomLevel, tile.x, tile.y))) {
+                    try (InputStream is = mbTiles.getTileStream(tile)) {
+                        assertNotNull(is);
+                        new BlockInputStream(is, new OsmPbfParser(context, storage, box)).process();
+                    }
+                }
+            }
+        }
+        storage.removeUnreferencedNodes(box);
+        return storage;
+    }
+
+    /**
+     * Get the ids of a List of elements
+     *
+     * @param elements the elements
+     * @return a List of ids in the same order
+     */
+    @NonNull
+    private static List<Long> ids(@NonNull List<? extends OsmElement> elements) {
+        List<Long> result = new ArrayList<>();
+        for (OsmElement e : elements) {
+            result.add(e.getOsmId());
+        }
+        return result;
+    }
+
+    /**
+     * Get the x tile number for a longitude
+     *
+     * @param lonE7 the longitude in WGS84*1E7
+     * @param zoom the zoom level
+     * @return the tile number
+     */
+    private static int lonToTileX(int lonE7, int zoom) {
+        return (int) Math.floor((lonE7 / 1E7d + 180d) / 360d * (1 << zoom));
+    }
+
+    /**
+     * Get the y tile number for a latitude
+     *
+     * @param latE7 the latitude in WGS84*1E7
+     * @param zoom the zoom level
+     * @return the tile number
+     */
+    private static int latToTileY(int latE7, int zoom) {
+        double lat = Math.toRadians(latE7 / 1E7d);
+        return (int) Math.floor((1d - Math.log(Math.tan(lat) + 1d / Math.cos(lat)) / Math.PI) * (1 << zoom) / 2d);
+    }
+
+    /**
+     * Get the key for a tile
+     *
+     * @param zoom the zoom level
+     * @param x the x tile number
+     * @param y the y tile number
+     * @return a String key
+     */
+    @NonNull
+    private static String key(int zoom, int x, int y) {
+        return zoom + "/" + x + "/" + y;
+    }
+
+    /**
+     * Create a tile containing the elements in it in the same way as MapSplit does
+     *
+     * All nodes in the tile, all ways that intersect the tile with all their nodes and all relations with members in the
+     * tile are included.
+     *
+     * @param source the source data
+     * @param zoom the zoom level
+     * @param x the x tile number
+     * @param y the y tile number
+     */
+    private void addTile(@NonNull Storage source, int zoom, int x, int y) {
+        BoundingBox tileBox = new BoundingBox(GeoMath.tile2lon(x, zoom), GeoMath.tile2lat(y + 1, zoom), GeoMath.tile2lon(x + 1, zoom),
+                GeoMath.tile2lat(y, zoom));
+        Map<Long, Node> nodes = new LinkedHashMap<>();
+        for (Node n : source.getNodes(tileBox)) {
+            nodes.put(n.getOsmId(), n);
+        }
+        List<Way> ways = source.getWays(tileBox);
+        for (Way w : ways) {
+            for (Node n : w.getNodes()) {
+                nodes.put(n.getOsmId(), n);
+            }
+        }
+        Map<Long, Relation> relations = new LinkedHashMap<>();
+        for (OsmElement e : nodes.values()) {
+            addParents(relations, e);
+        }
+        for (Way w : ways) {
+            addParents(relations, w);
+        }
+        if (nodes.isEmpty()) {
+            return;
+        }
+        tiles.put(key(zoom, x, y), toPbf(tileBox, new ArrayList<>(nodes.values()), ways, new ArrayList<>(relations.values())));
+    }
+
+    /**
+     * Add the parent relations of an element
+     *
+     * @param relations map of relations by id
+     * @param e the element
+     */
+    private static void addParents(@NonNull Map<Long, Relation> relations, @NonNull OsmElement e) {
+        List<Relation> parents = e.getParentRelations();
+        if (parents != null) {
+            for (Relation r : parents) {
+                relations.put(r.getOsmId(), r);
+            }
+        }
+    }
+
+    /**
+     * Encode elements as an OSM PBF file with a header and a single data block
+     *
+     * @param bounds the bounds for the header
+     * @param nodes the Nodes
+     * @param ways the Ways
+     * @param relations the Relations
+     * @return the encoded data
+     */
+    @NonNull
+    private static byte[] toPbf(@NonNull BoundingBox bounds, @NonNull List<Node> nodes, @NonNull List<Way> ways, @NonNull List<Relation> relations) {
+        Map<String, Integer> strings = new HashMap<>();
+        Osmformat.StringTable.Builder stringTable = Osmformat.StringTable.newBuilder();
+        stringTable.addS(ByteString.EMPTY);
+
+        Osmformat.DenseInfo.Builder info = Osmformat.DenseInfo.newBuilder();
+        Osmformat.DenseNodes.Builder dense = Osmformat.DenseNodes.newBuilder();
+        long lastId = 0;
+        long lastLat = 0;
+        long lastLon = 0;
+        long lastTimestamp = 0;
+        for (Node n : nodes) {
+            dense.addId(n.getOsmId() - lastId);
+            dense.addLat(n.getLat() - lastLat);
+            dense.addLon(n.getLon() - lastLon);
+            info.addVersion((int) n.getOsmVersion());
+            info.addTimestamp(n.getTimestamp() - lastTimestamp);
+            lastId = n.getOsmId();
+            lastLat = n.getLat();
+            lastLon = n.getLon();
+            lastTimestamp = n.getTimestamp();
+            for (Entry<String, String> tag : n.getTags().entrySet()) {
+                dense.addKeysVals(string(strings, stringTable, tag.getKey()));
+                dense.addKeysVals(string(strings, stringTable, tag.getValue()));
+            }
+            dense.addKeysVals(0);
+        }
+        dense.setDenseinfo(info);
+        Osmformat.PrimitiveBlock.Builder block = Osmformat.PrimitiveBlock.newBuilder();
+        block.addPrimitivegroup(Osmformat.PrimitiveGroup.newBuilder().setDense(dense));
+
+        Osmformat.PrimitiveGroup.Builder wayGroup = Osmformat.PrimitiveGroup.newBuilder();
+        for (Way w : ways) {
+            Osmformat.Way.Builder way = Osmformat.Way.newBuilder().setId(w.getOsmId()).setInfo(info(w));
+            for (Entry<String, String> tag : w.getTags().entrySet()) {
+                way.addKeys(string(strings, stringTable, tag.getKey()));
+                way.addVals(string(strings, stringTable, tag.getValue()));
+            }
+            long lastRef = 0;
+            for (Node n : w.getNodes()) {
+                way.addRefs(n.getOsmId() - lastRef);
+                lastRef = n.getOsmId();
+            }
+            wayGroup.addWays(way);
+        }
+        block.addPrimitivegroup(wayGroup);
+
+        Osmformat.PrimitiveGroup.Builder relationGroup = Osmformat.PrimitiveGroup.newBuilder();
+        for (Relation r : relations) {
+            Osmformat.Relation.Builder relation = Osmformat.Relation.newBuilder().setId(r.getOsmId()).setInfo(info(r));
+            for (Entry<String, String> tag : r.getTags().entrySet()) {
+                relation.addKeys(string(strings, stringTable, tag.getKey()));
+                relation.addVals(string(strings, stringTable, tag.getValue()));
+            }
+            long lastRef = 0;
+            for (RelationMember rm : r.getMembers()) {
+                relation.addMemids(rm.getRef() - lastRef);
+                lastRef = rm.getRef();
+                relation.addRolesSid(string(strings, stringTable, rm.getRole()));
+                if (Node.NAME.equals(rm.getType())) {
+                    relation.addTypes(Osmformat.Relation.MemberType.NODE);
+                } else if (Way.NAME.equals(rm.getType())) {
+                    relation.addTypes(Osmformat.Relation.MemberType.WAY);
+                } else {
+                    relation.addTypes(Osmformat.Relation.MemberType.RELATION);
+                }
+            }
+            relationGroup.addRelations(relation);
+        }
+        block.addPrimitivegroup(relationGroup);
+        block.setStringtable(stringTable);
+
+        Osmformat.HeaderBlock header = Osmformat.HeaderBlock.newBuilder().addRequiredFeatures("OsmSchema-V0.6").addRequiredFeatures("DenseNodes")
+                .setBbox(Osmformat.HeaderBBox.newBuilder().setLeft(bounds.getLeft() * 100L).setRight(bounds.getRight() * 100L)
+                        .setTop(bounds.getTop() * 100L).setBottom(bounds.getBottom() * 100L))
+                .build();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(out);
+            writeBlob(data, "OSMHeader", header.toByteString());
+            writeBlob(data, "OSMData", block.build().toByteString());
+            data.flush();
+            return out.toByteArray();
+        } catch (IOException e) {
+            fail(e.getMessage());
+            return new byte[0];
+        }
+    }
+
+    /**
+     * Get the Info for an element
+     *
+     * @param e the element
+     * @return an Info builder
+     */
+    @NonNull
+    private static Osmformat.Info.Builder info(@NonNull OsmElement e) {
+        return Osmformat.Info.newBuilder().setVersion((int) e.getOsmVersion()).setTimestamp(e.getTimestamp());
+    }
+
+    /**
+     * Get the index of a String in the string table, adding it if necessary
+     *
+     * @param strings map of the Strings already in the table
+     * @param stringTable the string table
+     * @param s the String
+     * @return the index
+     */
+    private static int string(@NonNull Map<String, Integer> strings, @NonNull Osmformat.StringTable.Builder stringTable, @NonNull String s) {
+        Integer index = strings.get(s);
+        if (index == null) {
+            index = stringTable.getSCount();
+            stringTable.addS(ByteString.copyFromUtf8(s));
+            strings.put(s, index);
+        }
+        return index;
+    }
+
+    /**
+     * Write an uncompressed blob with its header
+     *
+     * @param data the output
+     * @param type the blob type
+     * @param content the blob content
+     * @throws IOException if writing fails
+     */
+    private static void writeBlob(@NonNull DataOutputStream data, @NonNull String type, @NonNull ByteString content) throws IOException {
+        Fileformat.Blob blob = Fileformat.Blob.newBuilder().setRaw(content).setRawSize(content.size()).build();
+        Fileformat.BlobHeader blobHeader = Fileformat.BlobHeader.newBuilder().setType(type).setDatasize(blob.getSerializedSize()).build();
+        data.writeInt(blobHeader.getSerializedSize());
+        blobHeader.writeTo(data);
+        blob.writeTo(data);
+    }
+}
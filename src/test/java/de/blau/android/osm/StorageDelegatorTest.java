@@ -6,6 +6,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -20,6 +21,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 
+import androidx.annotation.NonNull;
 import androidx.test.core.app.ApplicationProvider;
 import androidx.test.filters.LargeTest;
 import de.blau.android.App;
@@ -28,6 +30,7 @@ import de.blau.android.exception.OsmException;
 import de.blau.android.exception.OsmIllegalOperationException;
 import de.blau.android.prefs.Preferences;
 import de.blau.android.util.Coordinates;
+import de.blau.android.util.GeoMath;
 import de.blau.android.util.Geometry;
 import de.blau.android.util.Util;
 
@@ -268,6 +271,223 @@ public class StorageDelegatorTest {
         assertEquals(wayCount + 1L, d.getCurrentStorage().getWayCount());
     }
 
+    /**
+     * Merge many small boxes of data in to a large existing data set
+     */
+    @Test
+    public void mergeManyBoxes() {
+        StorageDelegator d = new StorageDelegator();
+        d.setCurrentStorage(PbfTest.read());
+        Storage current = d.getCurrentStorage();
+        final int nodeCount = current.getNodeCount();
+        final int wayCount = current.getWayCount();
+        final int relationCount = current.getRelationCount();
+        // build the indices
+        assertFalse(current.getWays(new BoundingBox(9.47, 47.05, 9.64, 47.27)).isEmpty());
+        Way existingWay = (Way) d.getOsmElement(Way.NAME, 571067343L);
+        assertNotNull(existingWay);
+        Node existingNode = existingWay.getFirstNode();
+        assertFalse(current.getWays(existingNode).isEmpty());
+
+        final int boxes = 100;
+        final int side = 10;
+        final long timestamp = System.currentTimeMillis() / 1000;
+        Relation firstRelation = null;
+        Way firstWay = null;
+        long merge = 0;
+        for (int b = 0; b < boxes; b++) {
+            Storage box = createBox(b, side, timestamp, existingWay);
+            if (b == 0) {
+                firstRelation = box.getRelations().get(0);
+                firstWay = (Way) firstRelation.getMembers().get(0).getElement();
+            }
+            // an unchanged copy of an existing node, this will be ignored
+            box.insertNodeUnsafe(OsmElementFactory.createNode(existingNode.getOsmId(), existingNode.getOsmVersion(), timestamp, OsmElement.STATE_UNCHANGED,
+                    existingNode.getLat(), existingNode.getLon()));
+            long start = System.nanoTime();
+            assertTrue(d.mergeData(box, null));
+            merge += System.nanoTime() - start;
+        }
+        assertEquals(nodeCount + boxes * side * side, current.getNodeCount());
+        assertEquals(wayCount + boxes * side, current.getWayCount());
+        assertEquals(relationCount + boxes, current.getRelationCount());
+        assertSame(current, d.getCurrentStorage());
+        assertSame(existingNode, current.getNode(existingNode.getOsmId()));
+
+        // what each merge used to cost at least
+        long start = System.nanoTime();
+        for (int b = 0; b < boxes; b++) {
+            assertEquals(current.getNodeCount(), new Storage(current).getNodeCount());
+        }
+        long copy = System.nanoTime() - start;
+        System.out.println("Merging " + boxes + " boxes " + merge / 1000000 + " ms, copying the storage " + boxes + " times " + copy / 1000000 + " ms");
+
+        // new elements are linked and indexed
+        assertNotNull(firstWay);
+        assertSame(firstWay, current.getWay(firstWay.getOsmId()));
+        for (Node n : firstWay.getNodes()) {
+            assertSame(n, current.getNode(n.getOsmId()));
+        }
+        assertTrue(current.getWays(firstWay.getBounds()).contains(firstWay));
+        assertTrue(current.getWays(firstWay.getFirstNode()).contains(firstWay));
+        assertTrue(firstWay.hasParentRelation(firstRelation));
+        assertTrue(existingWay.hasParentRelation(firstRelation));
+        for (RelationMember rm : firstRelation.getMembers()) {
+            assertNotNull(rm.getElement());
+        }
+
+        // a newer version of an existing way node
+        Storage box = new Storage();
+        Node newer = OsmElementFactory.createNode(existingNode.getOsmId(), existingNode.getOsmVersion() + 1, timestamp, OsmElement.STATE_UNCHANGED,
+                existingNode.getLat() + 100, existingNode.getLon() + 100);
+        box.insertNodeUnsafe(newer);
+        assertTrue(d.mergeData(box, null));
+        assertSame(newer, current.getNode(existingNode.getOsmId()));
+        assertSame(newer, existingWay.getFirstNode());
+        assertTrue(current.getWays(newer).contains(existingWay));
+        assertTrue(current.getWays(existingWay.getBounds()).contains(existingWay));
+
+        // a relation with a deleted member, nothing should be merged
+        Node deleted = (Node) d.getOsmElement(Node.NAME, 761534749L);
+        assertNotNull(deleted);
+        d.getUndo().createCheckpoint("merge");
+        d.removeNode(deleted);
+        box = createBox(boxes, side, timestamp, existingWay);
+        box.getRelations().get(0).addMember(new RelationMember(Node.NAME, deleted.getOsmId(), ""));
+        final int nodesBefore = current.getNodeCount();
+        assertFalse(d.mergeData(box, null));
+        assertEquals(nodesBefore, current.getNodeCount());
+        assertNull(current.getNode(box.getNodes().get(0).getOsmId()));
+        assertNull(current.getRelation(box.getRelations().get(0).getOsmId()));
+    }
+
+    /**
+     * Merge the members of an existing Relation without the Relation itself
+     */
+    @Test
+    public void mergeMissingMembers() {
+        StorageDelegator d = new StorageDelegator();
+        d.setCurrentStorage(PbfTest.read());
+        final long timestamp = System.currentTimeMillis() / 1000;
+        final long base = 200000000000L;
+        Storage box = new Storage();
+        Relation r = OsmElementFactory.createRelation(base, 1, timestamp, OsmElement.STATE_UNCHANGED);
+        r.addMember(new RelationMember(Way.NAME, base, "outer"));
+        r.addMember(new RelationMember(Node.NAME, base + 2, "label"));
+        box.insertRelationUnsafe(r);
+        assertTrue(d.mergeData(box, null));
+        Relation existing = d.getCurrentStorage().getRelation(base);
+        assertNotNull(existing);
+        for (RelationMember rm : existing.getMembers()) {
+            assertNull(rm.getElement());
+        }
+
+        // the members without the Relation, as for example in an Overpass result
+        box = new Storage();
+        Node n1 = OsmElementFactory.createNode(base, 1, timestamp, OsmElement.STATE_UNCHANGED, toE7(47.1), toE7(9.5));
+        Node n2 = OsmElementFactory.createNode(base + 1, 1, timestamp, OsmElement.STATE_UNCHANGED, toE7(47.1001), toE7(9.5001));
+        Node label = OsmElementFactory.createNode(base + 2, 1, timestamp, OsmElement.STATE_UNCHANGED, toE7(47.1002), toE7(9.5002));
+        Way w = OsmElementFactory.createWay(base, 1, timestamp, OsmElement.STATE_UNCHANGED);
+        w.addNode(n1);
+        w.addNode(n2);
+        box.insertNodeUnsafe(n1);
+        box.insertNodeUnsafe(n2);
+        box.insertNodeUnsafe(label);
+        box.insertWayUnsafe(w);
+        assertTrue(d.mergeData(box, null));
+        assertSame(existing, d.getCurrentStorage().getRelation(base));
+        assertSame(w, existing.getMember(Way.NAME, base).getElement());
+        assertSame(label, existing.getMember(Node.NAME, base + 2).getElement());
+        assertTrue(w.getParentRelations().contains(existing));
+        assertTrue(label.getParentRelations().contains(existing));
+        assertFalse(n1.hasParentRelations());
+    }
+
+    /**
+     * Create a small grid of new Nodes with a Way per row and a Relation containing the Ways and an existing Way
+     * 
+     * @param b the number of the box
+     * @param side the number of Nodes per row and column
+     * @param timestamp timestamp for the new elements
+     * @param existingWay an existing Way to add to the Relation
+     * @return a Storage with the data
+     */
+    private Storage createBox(int b, int side, long timestamp, @NonNull Way existingWay) {
+        final long base = 100000000000L + b * 1000L;
+        final double left = 9.48 + (b % 10) * 0.01;
+        final double bottom = 47.06 + (b / 10) * 0.01;
+        Storage box = new Storage();
+        Relation r = OsmElementFactory.createRelation(base, 1, timestamp, OsmElement.STATE_UNCHANGED);
+        for (int y = 0; y < side; y++) {
+            Way w = OsmElementFactory.createWay(base + y, 1, timestamp, OsmElement.STATE_UNCHANGED);
+            for (int x = 0; x < side; x++) {
+                Node n = OsmElementFactory.createNode(base + y * side + x, 1, timestamp, OsmElement.STATE_UNCHANGED, toE7(bottom + y * 0.0005),
+                        toE7(left + x * 0.0005));
+                box.insertNodeUnsafe(n);
+                w.addNode(n);
+            }
+            box.insertWayUnsafe(w);
+            r.addMember(new RelationMember("", w));
+        }
+        r.addMember(new RelationMember(Way.NAME, existingWay.getOsmId(), ""));
+        box.insertRelationUnsafe(r);
+        return box;
+    }
+
+    /**
+     * Project all way nodes of a dense area for a number of frames with and without the cached mercator latitude
+     */
+    @Test
+    public void projection() {
+        StorageDelegator d = new StorageDelegator();
+        d.setCurrentStorage(PbfTest.read());
+        List<Node> nodes = new ArrayList<>();
+        for (Way w : d.getCurrentStorage().getWays()) {
+            nodes.addAll(w.getNodes());
+        }
+        final int w = 1080;
+        final int h = 1920;
+        final int frames = 20;
+        long uncached = 0;
+        long cached = 0;
+        float checksum = 0;
+        try {
+            for (int f = 0; f < frames; f++) {
+                ViewBox box = new ViewBox(9.5 + f * 0.001, 47.1, 9.55 + f * 0.001, 47.15);
+                long start = System.nanoTime();
+                for (Node n : nodes) {
+                    checksum += GeoMath.lonE7ToX(w, box, n.getLon()) + GeoMath.latE7ToY(h, w, box, n.getLat());
+                }
+                uncached += System.nanoTime() - start;
+                start = System.nanoTime();
+                for (Node n : nodes) {
+                    checksum -= GeoMath.lonE7ToX(w, box, n.getLon()) + GeoMath.pointToY(h, w, box, n);
+                }
+                cached += System.nanoTime() - start;
+            }
+            System.out.println("Projecting " + nodes.size() + " way nodes " + frames + " times " + uncached / 1000000 + " ms, with cached mercator latitude "
+                    + cached / 1000000 + " ms (" + checksum + ")");
+
+            ViewBox box = new ViewBox(9.5, 47.1, 9.55, 47.15);
+            for (Node n : nodes) {
+                assertEquals(GeoMath.latE7ToY(h, w, box, n.getLat()), GeoMath.pointToY(h, w, box, n), 0.01f);
+            }
+            // moving and undoing must update the cached value
+            Node n = nodes.get(0);
+            final int originalLat = n.getLat();
+            assertEquals(GeoMath.latE7ToMercatorE7(originalLat), n.getMercatorLatE7());
+            d.getUndo().createCheckpoint("move");
+            d.moveNode(n, originalLat + 10000, n.getLon());
+            assertEquals(GeoMath.latE7ToMercatorE7(originalLat + 10000), n.getMercatorLatE7());
+            d.getUndo().undo();
+            Node restored = (Node) d.getOsmElement(Node.NAME, n.getOsmId());
+            assertEquals(originalLat, restored.getLat());
+            assertEquals(GeoMath.latE7ToMercatorE7(originalLat), restored.getMercatorLatE7());
+        } catch (OsmException e) {
+            fail(e.getMessage());
+        }
+    }
+
     /**
      * Split way then merge in various ways
      */
@@ -0,0 +1,338 @@
+package de.blau.android.osm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.content.Context;
+import android.util.Log;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.filters.LargeTest;
+
+@RunWith(RobolectricTestRunner.class)
+@LargeTest
+public class StorageJournalTest {
+
+    private static final String DEBUG_TAG = "StorageJournalTest";
+
+    private static final long NODE_ID = 300852915L;
+
+    private Context          context;
+    private StorageDelegator delegator;
+
+    /**
+     * Pre-test setup
+     */
+    @Before
+    public void setup() {
+        context = ApplicationProvider.getApplicationContext();
+        deleteFiles();
+        delegator = new StorageDelegator();
+        delegator.setCurrentStorage(PbfTest.read());
+    }
+
+    /**
+     * Post-test teardown
+     */
+    @After
+    public void teardown() {
+        deleteFiles();
+    }
+
+    /**
+     * Remove any state files
+     */
+    private void deleteFiles() {
+        context.deleteFile(StorageDelegator.FILENAME);
+        context.deleteFile(StorageDelegator.FILENAME + StorageDelegator.JOURNAL_EXT);
+        context.deleteFile(StorageDelegator.BACKUP_FILENAME);
+        context.deleteFile(StorageDelegator.BACKUP_FILENAME + StorageDelegator.JOURNAL_EXT);
+    }
+
+    /**
+     * Write storage to OSM XML
+     *
+     * @param storage the Storage
+     * @return the XML as a byte array
+     */
+    private static byte[] toXml(Storage storage) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            OsmXml.write(storage, null, out, "Vespucci Unit Tests");
+        } catch (IllegalArgumentException | IllegalStateException | XmlPullParserException | IOException e) {
+            fail(e.getMessage());
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Get the journal file
+     *
+     * @return a File
+     */
+    private File journalFile() {
+        return context.getFileStreamPath(StorageDelegator.FILENAME + StorageDelegator.JOURNAL_EXT);
+    }
+
+    /**
+     * Read the contents of a file
+     *
+     * @param file the File
+     * @return the contents
+     * @throws IOException if reading fails
+     */
+    private static byte[] read(File file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[8192];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Replace the journal with the first bytes of its original contents, as if the app was killed while writing
+     *
+     * @param journal the original contents
+     * @param length the number of bytes to retain
+     * @throws IOException if writing fails
+     */
+    private void truncateJournal(byte[] journal, int length) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(journalFile())) {
+            out.write(journal, 0, length);
+        }
+    }
+
+    /**
+     * Load the saved state in to a new StorageDelegator
+     *
+     * @return the StorageDelegator
+     */
+    private StorageDelegator load() {
+        StorageDelegator restored = new StorageDelegator();
+        assertTrue(restored.readFromFile(context));
+        return restored;
+    }
+
+    /**
+     * Check that edits are journaled and replayed, and that a journal cut off at any point recovers the last complete
+     * entry
+     */
+    @Test
+    public void journal() {
+        try {
+            long start = System.currentTimeMillis();
+            delegator.writeToFile(context);
+            long fullSave = System.currentTimeMillis() - start;
+            File snapshot = context.getFileStreamPath(StorageDelegator.FILENAME);
+            byte[] snapshotBytes = read(snapshot);
+            assertFalse(journalFile().exists());
+            byte[] xml0 = toXml(delegator.getCurrentStorage());
+
+            // first entry: tag change
+            Node node = delegator.getCurrentStorage().getNode(NODE_ID);
+            assertNotNull(node);
+            delegator.getUndo().createCheckpoint("tag");
+            Map<String, String> tags = new TreeMap<>();
+            tags.put("test", "journal");
+            delegator.setTags(node, tags);
+            start = System.currentTimeMillis();
+            delegator.writeToFile(context);
+            long journalSave = System.currentTimeMillis() - start;
+            assertArrayEquals(snapshotBytes, read(snapshot));
+            assertTrue(journalFile().exists());
+            final int entry1End = (int) journalFile().length();
+            byte[] xml1 = toXml(delegator.getCurrentStorage());
+            Log.d(DEBUG_TAG, "Full save " + fullSave + " ms " + snapshotBytes.length + " bytes, journal save " + journalSave + " ms "
+                    + (entry1End - StorageJournal.HEADER_SIZE) + " bytes");
+            assertTrue(entry1End < snapshotBytes.length);
+
+            // second entry: new way with a new node and a moved node
+            delegator.getUndo().createCheckpoint("way");
+            Node newNode = delegator.getFactory().createNodeWithNewId(node.getLat() + 1000, node.getLon() + 1000);
+            delegator.insertElementSafe(newNode);
+            Way newWay = delegator.createAndInsertWay(newNode);
+            delegator.addNodeToWay(node, newWay);
+            delegator.moveNode(node, node.getLat() - 1000, node.getLon() - 1000);
+            delegator.writeToFile(context);
+            assertArrayEquals(snapshotBytes, read(snapshot));
+            byte[] journal = read(journalFile());
+            byte[] xml2 = toXml(delegator.getCurrentStorage());
+            byte[] apiXml2 = toXml(delegator.getApiStorage());
+
+            // complete journal
+            StorageDelegator restored = load();
+            assertFalse(restored.isDirty());
+            assertArrayEquals(xml2, toXml(restored.getCurrentStorage()));
+            assertArrayEquals(apiXml2, toXml(restored.getApiStorage()));
+            Node restoredNode = restored.getCurrentStorage().getNode(NODE_ID);
+            Way restoredWay = restored.getCurrentStorage().getWay(newWay.getOsmId());
+            assertNotNull(restoredWay);
+            assertTrue(restored.getCurrentStorage().getWays(restoredNode).contains(restoredWay));
+            assertTrue(restored.getFactory().createNodeWithNewId(0, 0).getOsmId() < newNode.getOsmId());
+
+            // undo has to work on the replayed instances
+            restored.getUndo().undo();
+            assertNull(restored.getCurrentStorage().getWay(newWay.getOsmId()));
+            assertEquals(node.getLat() + 1000, restoredNode.getLat());
+            restored.getUndo().undo();
+            assertNull(restoredNode.getTagWithKey("test"));
+            assertFalse(restored.getUndo().canUndo());
+
+            // killed while writing the first entry
+            for (int length : new int[] { 0, StorageJournal.HEADER_SIZE / 2, StorageJournal.HEADER_SIZE, StorageJournal.HEADER_SIZE + 3, entry1End - 1 }) {
+                truncateJournal(journal, length);
+                restored = load();
+                assertArrayEquals(xml0, toXml(restored.getCurrentStorage()));
+            }
+
+            // killed while writing the second entry
+            for (int length : new int[] { entry1End + 2, (entry1End + journal.length) / 2, journal.length - 1 }) {
+                truncateJournal(journal, length);
+                restored = load();
+                assertArrayEquals(xml1, toXml(restored.getCurrentStorage()));
+                assertEquals("journal", restored.getCurrentStorage().getNode(NODE_ID).getTagWithKey("test"));
+                assertTrue(restored.isDirty()); // needs to be compacted
+            }
+
+            // corrupt second entry
+            byte[] corrupt = journal.clone();
+            corrupt[(entry1End + journal.length) / 2] ^= 0x55;
+            truncateJournal(corrupt, corrupt.length);
+            restored = load();
+            assertArrayEquals(xml1, toXml(restored.getCurrentStorage()));
+
+            // the next save after recovery writes a full snapshot
+            restored.writeToFile(context);
+            assertFalse(journalFile().exists());
+            assertArrayEquals(xml1, toXml(load().getCurrentStorage()));
+
+            // a stale journal is ignored
+            truncateJournal(journal, journal.length);
+            restored = load();
+            assertArrayEquals(xml1, toXml(restored.getCurrentStorage()));
+            assertTrue(restored.isDirty());
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Check that entries without state are replayed on to the state of the previous entry
+     */
+    @Test
+    public void entryWithoutState() {
+        try {
+            delegator.writeToFile(context);
+            Node node = delegator.getCurrentStorage().getNode(NODE_ID);
+            assertNotNull(node);
+            final long version = node.getOsmVersion();
+            delegator.getUndo().createCheckpoint("tag");
+            Map<String, String> tags = new TreeMap<>();
+            tags.put("test", "journal");
+            delegator.setTags(node, tags);
+            delegator.writeToFile(context);
+            final long entry1End = journalFile().length();
+
+            // what uploading the node does
+            delegator.getUndo().touch(node);
+            delegator.getApiStorage().removeElement(node);
+            node.setOsmVersion(version + 1);
+            node.setState(OsmElement.STATE_UNCHANGED);
+            delegator.dirty();
+            delegator.writeToFile(context, false);
+            assertTrue(journalFile().length() - entry1End < entry1End - StorageJournal.HEADER_SIZE);
+
+            StorageDelegator restored = load();
+            assertArrayEquals(toXml(delegator.getCurrentStorage()), toXml(restored.getCurrentStorage()));
+            assertEquals(0, restored.getApiElementCount());
+            Node restoredNode = restored.getCurrentStorage().getNode(NODE_ID);
+            assertEquals(version + 1, restoredNode.getOsmVersion());
+            assertEquals("journal", restoredNode.getTagWithKey("test"));
+            // the undo checkpoint from the previous entry refers to the replayed instance
+            assertTrue(restored.getUndo().canUndo());
+            restored.getUndo().undo();
+            assertNull(restoredNode.getTagWithKey("test"));
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Check that merged data is journaled and not written as a full snapshot
+     */
+    @Test
+    public void merge() {
+        try {
+            delegator.writeToFile(context);
+            File snapshot = context.getFileStreamPath(StorageDelegator.FILENAME);
+            byte[] snapshotBytes = read(snapshot);
+
+            Way existingWay = delegator.getCurrentStorage().getWay(571067343L);
+            assertNotNull(existingWay);
+            Node existingNode = existingWay.getFirstNode();
+            final long timestamp = System.currentTimeMillis() / 1000;
+            Storage box = new Storage();
+            Node newNode1 = OsmElementFactory.createNode(100000000001L, 1, timestamp, OsmElement.STATE_UNCHANGED, existingNode.getLat() + 100,
+                    existingNode.getLon());
+            Node newNode2 = OsmElementFactory.createNode(100000000002L, 1, timestamp, OsmElement.STATE_UNCHANGED, existingNode.getLat() + 200,
+                    existingNode.getLon());
+            box.insertNodeUnsafe(newNode1);
+            box.insertNodeUnsafe(newNode2);
+            Way newWay = OsmElementFactory.createWay(100000000001L, 1, timestamp, OsmElement.STATE_UNCHANGED);
+            newWay.addNode(newNode1);
+            newWay.addNode(newNode2);
+            box.insertWayUnsafe(newWay);
+            Relation newRelation = OsmElementFactory.createRelation(100000000001L, 1, timestamp, OsmElement.STATE_UNCHANGED);
+            newRelation.addMember(new RelationMember("", newWay));
+            newRelation.addMember(new RelationMember(Way.NAME, existingWay.getOsmId(), ""));
+            box.insertRelationUnsafe(newRelation);
+            // a newer version of an existing way node
+            box.insertNodeUnsafe(OsmElementFactory.createNode(existingNode.getOsmId(), existingNode.getOsmVersion() + 1, timestamp,
+                    OsmElement.STATE_UNCHANGED, existingNode.getLat() + 100, existingNode.getLon() + 100));
+            assertTrue(delegator.mergeData(box, null));
+
+            delegator.writeToFile(context);
+            assertArrayEquals(snapshotBytes, read(snapshot));
+            assertTrue(journalFile().exists());
+            assertTrue(journalFile().length() < snapshotBytes.length);
+
+            StorageDelegator restored = load();
+            assertArrayEquals(toXml(delegator.getCurrentStorage()), toXml(restored.getCurrentStorage()));
+            Way restoredWay = restored.getCurrentStorage().getWay(existingWay.getOsmId());
+            Relation restoredRelation = restored.getCurrentStorage().getRelation(newRelation.getOsmId());
+            assertNotNull(restoredRelation);
+            assertTrue(restoredWay.hasParentRelation(restoredRelation));
+            for (RelationMember rm : restoredRelation.getMembers()) {
+                assertNotNull(rm.getElement());
+            }
+            assertEquals(existingNode.getLat() + 100, restoredWay.getFirstNode().getLat());
+            assertTrue(restored.getCurrentStorage().getWays(restoredWay.getFirstNode()).contains(restoredWay));
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package de.blau.android.osm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nustaq.serialization.FSTObjectInput;
+import org.nustaq.serialization.FSTObjectOutput;
+import org.robolectric.RobolectricTestRunner;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.util.Log;
+import androidx.test.filters.LargeTest;
+import de.blau.android.App;
+
+@RunWith(RobolectricTestRunner.class)
+@LargeTest
+public class StorageSnapshotTest {
+
+    private static final String DEBUG_TAG = "StorageSnapshotTest";
+
+    private StorageDelegator delegator;
+
+    /**
+     * Pre-test setup
+     */
+    @Before
+    public void setup() {
+        delegator = new StorageDelegator();
+        delegator.setCurrentStorage(PbfTest.read());
+    }
+
+    /**
+     * Write the delegator to a snapshot and read it back
+     *
+     * @param d the StorageDelegator
+     * @return a new StorageDelegator
+     * @throws IOException if writing or reading fails
+     */
+    private static StorageDelegator roundTrip(StorageDelegator d) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        d.writeSnapshot(out);
+        InputStream in = new BufferedInputStream(new ByteArrayInputStream(out.toByteArray()));
+        assertTrue(StorageSnapshot.isSnapshot(in));
+        return StorageDelegator.readSnapshot(in);
+    }
+
+    /**
+     * Write storage to OSM XML
+     *
+     * @param storage the Storage
+     * @return the XML as a byte array
+     */
+    private static byte[] toXml(Storage storage) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            OsmXml.write(storage, null, out, "Vespucci Unit Tests");
+        } catch (IllegalArgumentException | IllegalStateException | XmlPullParserException | IOException e) {
+            fail(e.getMessage());
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Check that data and undo state survive a round trip
+     */
+    @Test
+    public void roundTrip() {
+        Node node = delegator.getCurrentStorage().getNode(300852915L);
+        assertNotNull(node);
+        List<Way> ways = delegator.getCurrentStorage().getWays(node);
+        assertEquals(2, ways.size());
+        delegator.getUndo().createCheckpoint("tag");
+        Map<String, String> tags = new TreeMap<>();
+        tags.put("test", "snapshot");
+        delegator.setTags(node, tags);
+        delegator.getUndo().createCheckpoint("move");
+        delegator.moveNode(node, node.getLat() + 1000, node.getLon() + 1000);
+        try {
+            StorageDelegator restored = roundTrip(delegator);
+            assertArrayEquals(toXml(delegator.getCurrentStorage()), toXml(restored.getCurrentStorage()));
+            assertEquals(delegator.getApiStorage().getNodeCount(), restored.getApiStorage().getNodeCount());
+
+            Node restoredNode = restored.getCurrentStorage().getNode(300852915L);
+            assertNotNull(restoredNode);
+            // modified elements are shared between the storages
+            assertSame(restoredNode, restored.getApiStorage().getNode(300852915L));
+            assertEquals("snapshot", restoredNode.getTagWithKey("test"));
+            List<Way> restoredWays = restored.getCurrentStorage().getWays(restoredNode);
+            assertEquals(2, restoredWays.size());
+            for (Way w : restoredWays) {
+                assertTrue(w.getNodes().contains(restoredNode));
+            }
+
+            // undo has to work on the restored instances
+            restored.getUndo().undo();
+            assertEquals(node.getLat() - 1000, restoredNode.getLat());
+            restored.getUndo().undo();
+            assertNull(restoredNode.getTagWithKey("test"));
+            assertFalse(restored.getUndo().canUndo());
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Compare save and load time and size with FST serialisation
+     */
+    @Test
+    public void benchmark() {
+        try {
+            long start = System.currentTimeMillis();
+            ByteArrayOutputStream fstOut = new ByteArrayOutputStream();
+            FSTObjectOutput outFST = App.getFSTInstance().getObjectOutput(fstOut);
+            outFST.writeObject(delegator);
+            outFST.flush();
+            long fstSave = System.currentTimeMillis() - start;
+            start = System.currentTimeMillis();
+            FSTObjectInput inFST = App.getFSTInstance().getObjectInput(new ByteArrayInputStream(fstOut.toByteArray()));
+            StorageDelegator fstDelegator = (StorageDelegator) inFST.readObject();
+            long fstLoad = System.currentTimeMillis() - start;
+            assertNotNull(fstDelegator);
+
+            start = System.currentTimeMillis();
+            ByteArrayOutputStream snapshotOut = new ByteArrayOutputStream();
+            delegator.writeSnapshot(snapshotOut);
+            long snapshotSave = System.currentTimeMillis() - start;
+            start = System.currentTimeMillis();
+            StorageDelegator snapshotDelegator = StorageDelegator.readSnapshot(new ByteArrayInputStream(snapshotOut.toByteArray()));
+            long snapshotLoad = System.currentTimeMillis() - start;
+            assertEquals(delegator.getCurrentStorage().getNodeCount(), snapshotDelegator.getCurrentStorage().getNodeCount());
+            assertEquals(delegator.getCurrentStorage().getWayCount(), snapshotDelegator.getCurrentStorage().getWayCount());
+            assertEquals(delegator.getCurrentStorage().getRelationCount(), snapshotDelegator.getCurrentStorage().getRelationCount());
+
+            Log.d(DEBUG_TAG, "FST save " + fstSave + " ms load " + fstLoad + " ms size " + fstOut.size());
+            Log.d(DEBUG_TAG, "Snapshot save " + snapshotSave + " ms load " + snapshotLoad + " ms size " + snapshotOut.size());
+            assertTrue(snapshotOut.size() < fstOut.size());
+        } catch (Exception e) {
+            fail(e.getMessage());
+        }
+    }
+}
@@ -1,11 +1,14 @@
 package de.blau.android.osm;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 
 import org.junit.Before;
@@ -172,4 +175,107 @@ public class StorageTest {
         assertNotNull(changed);
         assertEquals(node, changed);
     }
+
+    /**
+     * Compare spatial index queries with a sequential scan
+     */
+    @Test
+    public void spatialIndexQueries() {
+        BoundingBox[] boxes = new BoundingBox[] { new BoundingBox(9.51947D, 47.13638D, 9.52300D, 47.14066D), new BoundingBox(9.4D, 47.0D, 9.7D, 47.3D),
+                new BoundingBox(9.52D, 47.1D, 9.52D, 47.1D), ViewBox.getMaxMercatorExtent() };
+        for (BoundingBox box : boxes) {
+            List<Node> nodes = new ArrayList<>();
+            for (Node n : storage.getNodes()) {
+                if (box.isIn(n.getLon(), n.getLat())) {
+                    nodes.add(n);
+                }
+            }
+            assertEquals(new HashSet<>(nodes), new HashSet<>(storage.getNodes(box)));
+            assertEquals(nodes.size(), storage.getNodes(box).size());
+            List<Way> ways = new ArrayList<>();
+            for (Way w : storage.getWays()) {
+                if (w.getBounds().intersects(box)) {
+                    ways.add(w);
+                }
+            }
+            assertEquals(new HashSet<>(ways), new HashSet<>(storage.getWays(box)));
+            assertEquals(ways.size(), storage.getWays(box).size());
+        }
+    }
+
+    /**
+     * Check that the spatial index follows moves and removals
+     */
+    @Test
+    public void spatialIndexUpdate() {
+        Node node = storage.getNode(300852915L);
+        assertNotNull(node);
+        BoundingBox box = node.getBounds();
+        BoundingBox other = new BoundingBox(9.0D, 46.5D, 9.001D, 46.501D);
+        assertTrue(storage.getNodes(box).contains(node));
+        List<Way> ways = storage.getWays(node);
+        assertFalse(ways.isEmpty());
+        storage.invalidateIndices(node);
+        for (Way w : ways) {
+            storage.invalidateIndices(w);
+            w.invalidateBoundingBox();
+        }
+        node.setLat(465005000);
+        node.setLon(90005000);
+        assertFalse(storage.getNodes(box).contains(node));
+        assertTrue(storage.getNodes(other).contains(node));
+        assertTrue(storage.getWays(other).containsAll(ways));
+        storage.commitIndices();
+        assertFalse(storage.getNodes(box).contains(node));
+        assertTrue(storage.getNodes(other).contains(node));
+        assertTrue(storage.getWays(other).containsAll(ways));
+
+        Way way = ways.get(0);
+        storage.removeWay(way);
+        assertFalse(storage.getWays(other).contains(way));
+        storage.insertElementSafe(way);
+        assertTrue(storage.getWays(other).contains(way));
+        storage.removeNode(node);
+        assertFalse(storage.getNodes(other).contains(node));
+    }
+
+    /**
+     * Update the node to way index
+     */
+    @Test
+    public void nodeWayIndexUpdate() {
+        Node node = storage.getNode(300852915L);
+        assertNotNull(node);
+        List<Way> ways = storage.getWays(node);
+        assertEquals(2, ways.size());
+        Way way = ways.get(0);
+        Node other = null;
+        for (Node n : storage.getNodes()) {
+            if (storage.getWays(n).isEmpty()) {
+                other = n;
+                break;
+            }
+        }
+        assertNotNull(other);
+        assertFalse(storage.getWayNodes().contains(other));
+
+        storage.invalidateIndices(way);
+        way.addNode(other);
+        assertTrue(storage.getWays(other).contains(way));
+        storage.commitIndices();
+        assertTrue(storage.getWays(other).contains(way));
+        assertTrue(storage.getWayNodes().contains(other));
+
+        storage.invalidateIndices(way);
+        way.removeNode(node);
+        assertEquals(1, storage.getWays(node).size());
+        storage.commitIndices();
+        assertEquals(1, storage.getWays(node).size());
+        assertFalse(storage.getWays(node).contains(way));
+
+        storage.removeWay(way);
+        assertTrue(storage.getWays(other).isEmpty());
+        storage.insertElementSafe(way);
+        assertEquals(1, storage.getWays(other).size());
+    }
 }
@@ -0,0 +1,257 @@
+package de.blau.android.osm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import android.util.Log;
+import androidx.test.filters.LargeTest;
+
+@RunWith(RobolectricTestRunner.class)
+@LargeTest
+public class TagSetTest {
+
+    private static final String DEBUG_TAG = "TagSetTest";
+
+    /**
+     * Check that a TagSet behaves like a TreeMap with the same contents
+     */
+    @Test
+    public void map() {
+        Map<String, String> tags = new HashMap<>();
+        tags.put("name", "Test");
+        tags.put("highway", "residential");
+        tags.put("oneway", "yes");
+        TreeMap<String, String> sorted = new TreeMap<>(tags);
+        TagSet tagSet = TagSet.of(tags);
+        assertEquals(sorted, tagSet);
+        assertEquals(tagSet, sorted);
+        assertEquals(sorted.hashCode(), tagSet.hashCode());
+        assertEquals(new ArrayList<>(sorted.keySet()), new ArrayList<>(tagSet.keySet()));
+        assertEquals("residential", tagSet.get("highway"));
+        assertNull(tagSet.get("building"));
+        assertTrue(tagSet.containsKey("oneway"));
+        assertFalse(tagSet.containsKey("oneway2"));
+        assertEquals("highway", tagSet.firstKey());
+        assertEquals("oneway", tagSet.lastKey());
+        assertEquals(sorted.headMap("name"), tagSet.headMap("name"));
+        try {
+            tagSet.put("building", "yes");
+            fail("TagSet should be immutable");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        assertSame(TagSet.EMPTY, TagSet.of(null));
+        assertSame(TagSet.EMPTY, TagSet.of(new HashMap<>()));
+    }
+
+    /**
+     * Check that equal tags result in the same instance
+     */
+    @Test
+    public void intern() {
+        Map<String, String> tags1 = new HashMap<>();
+        tags1.put(new String("highway"), new String("residential"));
+        Map<String, String> tags2 = new TreeMap<>();
+        tags2.put(new String("highway"), new String("residential"));
+        assertSame(TagSet.of(tags1), TagSet.of(tags2));
+
+        Node n1 = OsmElementFactory.createNode(1L, 1L, -1L, OsmElement.STATE_UNCHANGED, 0, 0);
+        Node n2 = OsmElementFactory.createNode(2L, 1L, -1L, OsmElement.STATE_UNCHANGED, 0, 0);
+        assertTrue(n1.setTags(tags1));
+        assertTrue(n2.setTags(tags2));
+        assertSame(n1.getTags(), n2.getTags());
+        assertFalse(n1.setTags(tags2));
+        Map<String, String> more = new HashMap<>();
+        more.put("name", "Test");
+        n2.addTags(more);
+        assertEquals(2, n2.getTags().size());
+        assertEquals(1, n1.getTags().size());
+        assertTrue(n1.setTags(null));
+        assertFalse(n1.hasTags());
+    }
+
+    /**
+     * Check that tags are shared on a PBF import and compare the heap used with that of individual TreeMaps
+     */
+    @Test
+    public void heap() {
+        Storage storage = PbfTest.read();
+        List<OsmElement> elements = storage.getElements();
+        IdentityHashMap<SortedMap<String, String>, Boolean> distinct = new IdentityHashMap<>();
+        int tagged = 0;
+        long entries = 0;
+        long distinctEntries = 0;
+        for (OsmElement e : elements) {
+            if (e.hasTags()) {
+                tagged++;
+                entries += e.tags.size();
+                if (distinct.put(e.tags, Boolean.TRUE) == null) {
+                    distinctEntries += e.tags.size();
+                }
+            }
+        }
+        assertTrue(distinct.size() < tagged);
+
+        Runtime runtime = Runtime.getRuntime();
+        long before = usedHeap(runtime);
+        List<TreeMap<String, String>> copies = new ArrayList<>(tagged);
+        for (OsmElement e : elements) {
+            if (e.hasTags()) {
+                copies.add(new TreeMap<>(e.tags));
+            }
+        }
+        long treeMapHeap = usedHeap(runtime) - before;
+        assertEquals(tagged, copies.size());
+        copies = null; // NOSONAR
+        before = usedHeap(runtime);
+        // what the pooled TagSets hold, each additionally has a small fixed overhead
+        List<String[]> flat = new ArrayList<>(distinct.size());
+        for (SortedMap<String, String> tags : distinct.keySet()) {
+            flat.add(toArray(tags));
+        }
+        long tagSetHeap = usedHeap(runtime) - before;
+        assertEquals(distinct.size(), flat.size());
+        Log.d(DEBUG_TAG, "Tagged elements " + tagged + " tags " + entries + " distinct tag sets " + distinct.size() + " tags " + distinctEntries);
+        Log.d(DEBUG_TAG, "Heap used by individual TreeMaps " + treeMapHeap + " bytes, by shared flat arrays " + tagSetHeap + " bytes");
+        assertTrue(tagSetHeap < treeMapHeap);
+    }
+
+    /**
+     * Check that interning from several threads at the same time returns the same instances and compare the time
+     * used with interning on one thread
+     *
+     * @throws ExecutionException if a task fails
+     * @throws InterruptedException if interrupted
+     */
+    @Test
+    public void concurrentIntern() throws InterruptedException, ExecutionException {
+        Storage storage = PbfTest.read();
+        final List<SortedMap<String, String>> tags = new ArrayList<>();
+        for (OsmElement e : storage.getElements()) {
+            if (e.hasTags()) {
+                tags.add(e.tags);
+            }
+        }
+        final int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            // the extra tag makes sure that the sets are not in the pool yet
+            long start = System.nanoTime();
+            internAll(tags, "serial", 0, 1);
+            long serial = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            List<Future<TagSet[]>> slices = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                slices.add(executor.submit(internTask(tags, "concurrent", i, threads)));
+            }
+            for (Future<TagSet[]> slice : slices) {
+                slice.get();
+            }
+            long concurrent = System.nanoTime() - start;
+            System.out.println("Interning " + tags.size() + " tag sets on 1 thread " + (serial / 1000000) + " ms, on " + threads + " threads " // NOSONAR
+                    + (concurrent / 1000000) + " ms");
+
+            // all threads intern the same tags
+            List<Future<TagSet[]>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(internTask(tags, "shared", 0, 1)));
+            }
+            TagSet[] first = results.get(0).get();
+            for (Future<TagSet[]> result : results) {
+                TagSet[] other = result.get();
+                for (int i = 0; i < first.length; i++) {
+                    assertSame(first[i], other[i]);
+                }
+            }
+            for (int i = 0; i < first.length; i++) {
+                assertEquals(tags.get(i).size() + 1, first[i].size());
+                assertEquals("shared", first[i].get("test:intern"));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Create a task that interns a slice of a List of tags
+     *
+     * @param tags the tags
+     * @param marker value of an extra tag added to each set
+     * @param offset the first index
+     * @param step the distance between indices
+     * @return a Callable returning the interned TagSets, null for indices not in the slice
+     */
+    private static Callable<TagSet[]> internTask(final List<SortedMap<String, String>> tags, final String marker, final int offset, final int step) {
+        return () -> internAll(tags, marker, offset, step);
+    }
+
+    /**
+     * Intern a slice of a List of tags with an extra tag added
+     *
+     * @param tags the tags
+     * @param marker value of an extra tag added to each set
+     * @param offset the first index
+     * @param step the distance between indices
+     * @return the interned TagSets, null for indices not in the slice
+     */
+    private static TagSet[] internAll(List<SortedMap<String, String>> tags, String marker, int offset, int step) {
+        TagSet[] result = new TagSet[tags.size()];
+        for (int i = offset; i < result.length; i += step) {
+            TreeMap<String, String> copy = new TreeMap<>(tags.get(i));
+            copy.put("test:intern", marker);
+            result[i] = TagSet.of(copy);
+        }
+        return result;
+    }
+
+    /**
+     * Copy tags to a flat key value array
+     *
+     * @param tags the tags
+     * @return an array of alternating keys and values
+     */
+    private static String[] toArray(SortedMap<String, String> tags) {
+        String[] result = new String[tags.size() * 2];
+        int i = 0;
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            result[i++] = tag.getKey();
+            result[i++] = tag.getValue();
+        }
+        return result;
+    }
+
+    /**
+     * Get the currently used heap after garbage collection
+     *
+     * @param runtime the Runtime
+     * @return the used heap in bytes
+     */
+    private static long usedHeap(Runtime runtime) {
+        for (int i = 0; i < 3; i++) {
+            System.gc(); // NOSONAR
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
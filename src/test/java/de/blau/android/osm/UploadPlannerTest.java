@@ -0,0 +1,122 @@
+package de.blau.android.osm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.xmlpull.v1.XmlPullParserException;
+
+import androidx.test.filters.LargeTest;
+
+@RunWith(RobolectricTestRunner.class)
+@LargeTest
+public class UploadPlannerTest {
+
+    /**
+     * Check that changes are ordered so that elements only depend on elements before them
+     */
+    @Test
+    public void order() {
+        OsmElementFactory factory = new OsmElementFactory();
+        Node createdNode = factory.createNodeWithNewId(0, 0);
+        Node modifiedNode = OsmElementFactory.createNode(1, 1, 0, OsmElement.STATE_MODIFIED, 0, 0);
+        Node deletedNode = OsmElementFactory.createNode(2, 1, 0, OsmElement.STATE_DELETED, 0, 0);
+        Node unchangedNode = OsmElementFactory.createNode(3, 1, 0, OsmElement.STATE_UNCHANGED, 0, 0);
+        Way createdWay = factory.createWayWithNewId();
+        createdWay.addNode(createdNode);
+        createdWay.addNode(modifiedNode);
+        Way deletedWay = OsmElementFactory.createWay(1, 1, 0, OsmElement.STATE_DELETED);
+        deletedWay.addNode(deletedNode);
+        deletedWay.addNode(unchangedNode);
+        Relation createdChild = factory.createRelationWithNewId();
+        createdChild.addMember(new RelationMember("", createdWay));
+        Relation createdParent = factory.createRelationWithNewId();
+        createdParent.addMember(new RelationMember("", createdChild));
+        Relation modifiedChild = OsmElementFactory.createRelation(1, 1, 0, OsmElement.STATE_MODIFIED);
+        Relation modifiedParent = OsmElementFactory.createRelation(2, 1, 0, OsmElement.STATE_MODIFIED);
+        modifiedParent.addMember(new RelationMember("", modifiedChild));
+        Relation deletedChild = OsmElementFactory.createRelation(3, 1, 0, OsmElement.STATE_DELETED);
+        deletedChild.addMember(new RelationMember("", deletedWay));
+        Relation deletedParent = OsmElementFactory.createRelation(4, 1, 0, OsmElement.STATE_DELETED);
+        deletedParent.addMember(new RelationMember("", deletedChild));
+
+        List<OsmElement> elements = Arrays.asList(deletedNode, createdParent, deletedChild, modifiedParent, unchangedNode, deletedWay, createdWay,
+                modifiedNode, modifiedChild, deletedParent, createdChild, createdNode);
+        List<OsmElement> expected = Arrays.asList(createdNode, createdWay, createdChild, createdParent, modifiedNode, modifiedChild, modifiedParent,
+                deletedParent, deletedChild, deletedWay, deletedNode);
+        assertEquals(expected, UploadPlanner.order(elements));
+
+        // one block per action
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            OsmXml.writeOsmChange(UploadPlanner.order(elements), out, 1L, "test");
+        } catch (IllegalArgumentException | IllegalStateException | IOException | XmlPullParserException e) {
+            fail(e.getMessage());
+        }
+        String osc = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        assertEquals(1, count(osc, "<create>"));
+        assertEquals(1, count(osc, "<modify>"));
+        assertEquals(1, count(osc, "<delete>"));
+        assertTrue(osc.indexOf("<create>") < osc.indexOf("<modify>") && osc.indexOf("<modify>") < osc.indexOf("<delete>"));
+    }
+
+    /**
+     * Split changes in to batches and retain the ones that haven't been uploaded
+     */
+    @Test
+    public void batches() {
+        Storage api = new Storage();
+        List<OsmElement> elements = new ArrayList<>();
+        for (int i = 1; i <= 10; i++) {
+            Node n = OsmElementFactory.createNode(i, 1, 0, OsmElement.STATE_MODIFIED, 0, 0);
+            elements.add(n);
+            api.insertElementUnsafe(n);
+        }
+        UploadPlanner planner = new UploadPlanner(elements);
+        assertEquals(10, planner.remaining());
+        List<OsmElement> batch = planner.nextBatch(4);
+        assertEquals(elements.subList(0, 4), batch);
+        assertEquals(6, planner.remaining());
+        assertEquals(elements.subList(4, 8), planner.nextBatch(4));
+        assertEquals(elements.subList(8, 10), planner.nextBatch(4));
+        assertEquals(0, planner.remaining());
+        assertTrue(planner.nextBatch(4).isEmpty());
+
+        // first batch uploaded, one element of the second removed
+        for (OsmElement e : elements.subList(0, 4)) {
+            e.setState(OsmElement.STATE_UNCHANGED);
+            api.removeElement(e);
+        }
+        api.removeElement(elements.get(5));
+        assertEquals(5, planner.retainPending(api));
+        assertEquals(5, planner.remaining());
+        List<OsmElement> pending = planner.nextBatch(10);
+        assertEquals(elements.get(4), pending.get(0));
+        assertEquals(elements.get(6), pending.get(1));
+    }
+
+    /**
+     * Count the occurrences of a String
+     *
+     * @param s the String to search in
+     * @param value the value to count
+     * @return the number of occurrences
+     */
+    private static int count(String s, String value) {
+        int result = 0;
+        for (int i = s.indexOf(value); i >= 0; i = s.indexOf(value, i + 1)) {
+            result++;
+        }
+        return result;
+    }
+}
@@ -2,8 +2,12 @@ package de.blau.android.osm;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -12,6 +16,8 @@ import java.io.InputStream;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.xml.parsers.ParserConfigurationException;
 
@@ -156,4 +162,160 @@ public class XmlTest {
             fail(e.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Check that the pull parser reports errors in the same way as OsmParser
+     */
+    @Test
+    public void pullParserErrors() {
+        try {
+            new OsmPullParser().start(getClass().getResourceAsStream("/internal_api_error.osm"));
+            fail("Expected exception");
+        } catch (SAXException sax) {
+            assertEquals("de.blau.android.exception.OsmParseException: Internal API error: Mismatch in tags key and value size", sax.getMessage());
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+        try {
+            new OsmPullParser().start(getClass().getResourceAsStream("/unknown_elements.osm"));
+            fail("Expected exception");
+        } catch (SAXException sax) {
+            assertEquals(
+                    "de.blau.android.exception.OsmParseException: Unknown element code\nUnknown element hay\nparseWayNode node 296055272 not in storage\nparseWayNode node 296055272 not in storage\nUnknown element bag",
+                    sax.getMessage());
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Parse OSM files with both OsmParser and OsmPullParser and check that the resulting Storage contents are the same
+     */
+    @Test
+    public void pullParser() {
+        String[] files = { "/test1.osm", "/test2.osm", "/test3.osm", "/london.osm", "/dc.osm", "/rings.osm", "/osctest1.osm", "/overpass.osm",
+                "/closedways.osm", "/motorway_link_us.osm", "/fixtures/download1.xml", "/fixtures/download2.xml", "/fixtures/download3.xml",
+                "/fixtures/multifetch1.xml", "/fixtures/elementfetch1.xml", "/fixtures/overpass.xml" };
+        for (String file : files) {
+            try (InputStream saxInput = getClass().getResourceAsStream(file); InputStream pullInput = getClass().getResourceAsStream(file)) {
+                OsmParser parser = new OsmParser();
+                parser.start(saxInput);
+                OsmPullParser pullParser = new OsmPullParser();
+                pullParser.start(pullInput);
+                assertSameContents(file, parser.getStorage(), pullParser.getStorage());
+            } catch (SAXException | IOException | ParserConfigurationException e) {
+                fail(file + " " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Compare the contents of two Storage instances
+     * 
+     * @param file the name of the input for messages
+     * @param expected the expected contents
+     * @param actual the actual contents
+     */
+    private static void assertSameContents(String file, Storage expected, Storage actual) {
+        assertEquals(file, expected.getBoundingBoxes(), actual.getBoundingBoxes());
+        assertEquals(file, expected.getNodeCount(), actual.getNodeCount());
+        assertEquals(file, expected.getWayCount(), actual.getWayCount());
+        assertEquals(file, expected.getRelationCount(), actual.getRelationCount());
+        for (OsmElement e : expected.getElements()) {
+            OsmElement a = actual.getOsmElement(e.getName(), e.getOsmId());
+            String msg = file + " " + e.getDescription();
+            assertNotNull(msg, a);
+            assertEquals(msg, e.getOsmVersion(), a.getOsmVersion());
+            assertEquals(msg, e.getTimestamp(), a.getTimestamp());
+            assertEquals(msg, e.getState(), a.getState());
+            assertEquals(msg, e.getTags(), a.getTags());
+            assertEquals(msg, parentIds(e), parentIds(a));
+            if (e instanceof Node) {
+                assertEquals(msg, ((Node) e).getLat(), ((Node) a).getLat());
+                assertEquals(msg, ((Node) e).getLon(), ((Node) a).getLon());
+            } else if (e instanceof Way) {
+                List<Node> expectedNodes = ((Way) e).getNodes();
+                List<Node> actualNodes = ((Way) a).getNodes();
+                assertEquals(msg, expectedNodes.size(), actualNodes.size());
+                for (int i = 0; i < expectedNodes.size(); i++) {
+                    assertEquals(msg, expectedNodes.get(i).getOsmId(), actualNodes.get(i).getOsmId());
+                    assertSame(msg, actual.getNode(actualNodes.get(i).getOsmId()), actualNodes.get(i));
+                }
+            } else if (e instanceof Relation) {
+                List<RelationMember> expectedMembers = ((Relation) e).getMembers();
+                List<RelationMember> actualMembers = ((Relation) a).getMembers();
+                assertEquals(msg, expectedMembers.size(), actualMembers.size());
+                for (int i = 0; i < expectedMembers.size(); i++) {
+                    RelationMember expectedMember = expectedMembers.get(i);
+                    RelationMember actualMember = actualMembers.get(i);
+                    assertEquals(msg, expectedMember.getType(), actualMember.getType());
+                    assertEquals(msg, expectedMember.getRef(), actualMember.getRef());
+                    assertEquals(msg, expectedMember.getRole(), actualMember.getRole());
+                    assertEquals(msg, expectedMember.getElement() == null, actualMember.getElement() == null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the ids of the parent relations of an element
+     * 
+     * @param e the OsmElement
+     * @return a List of ids
+     */
+    private static List<Long> parentIds(OsmElement e) {
+        List<Long> result = new ArrayList<>();
+        List<Relation> parents = e.getParentRelations();
+        if (parents != null) {
+            for (Relation r : parents) {
+                result.add(r.getOsmId());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Compare the throughput of OsmParser and OsmPullParser
+     */
+    @Test
+    public void pullParserBenchmark() {
+        try (InputStream input = getClass().getResourceAsStream("/motorway_link_ch.osm")) {
+            byte[] data = readAll(input);
+            final int runs = 5;
+            long sax = Long.MAX_VALUE;
+            long pull = Long.MAX_VALUE;
+            for (int i = 0; i < runs; i++) {
+                long start = System.nanoTime();
+                OsmParser parser = new OsmParser();
+                parser.start(new ByteArrayInputStream(data));
+                sax = Math.min(sax, System.nanoTime() - start);
+                start = System.nanoTime();
+                OsmPullParser pullParser = new OsmPullParser();
+                pullParser.start(new ByteArrayInputStream(data));
+                pull = Math.min(pull, System.nanoTime() - start);
+                assertEquals(parser.getStorage().getNodeCount(), pullParser.getStorage().getNodeCount());
+            }
+            System.out.println("Parsing " + data.length + " bytes OsmParser " + (sax / 1000000) + " ms " + (data.length * 1000L / Math.max(1, sax / 1000))
+                    + " kB/s, OsmPullParser " + (pull / 1000000) + " ms " + (data.length * 1000L / Math.max(1, pull / 1000)) + " kB/s");
+        } catch (SAXException | IOException | ParserConfigurationException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Read an InputStream completely
+     * 
+     * @param input the InputStream
+     * @return the contents
+     * @throws IOException if reading fails
+     */
+    private static byte[] readAll(InputStream input) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int len;
+        while ((len = input.read(buffer)) != -1) {
+            out.write(buffer, 0, len);
+        }
+        return out.toByteArray();
+    }
+}
@@ -2,8 +2,10 @@ package de.blau.android.presets;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.robolectric.Shadows.shadowOf;
@@ -17,6 +19,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -38,11 +41,15 @@ import androidx.test.core.app.ApplicationProvider;
 import androidx.test.filters.LargeTest;
 import de.blau.android.App;
 import de.blau.android.JavaResources;
+import de.blau.android.contract.Files;
+import de.blau.android.osm.OsmElement;
 import de.blau.android.osm.OsmElement.ElementType;
+import de.blau.android.osm.PbfTest;
 import de.blau.android.osm.Tags;
 import de.blau.android.prefs.AdvancedPrefDatabase;
 import de.blau.android.prefs.PresetLoader;
 import de.blau.android.util.SearchIndexUtils;
+import de.blau.android.util.collections.MultiHashMap;
 
 /**
  * NOTE These tests assumes the default preset is at position 0
@@ -452,4 +459,130 @@ public class PresetTest {
         }
         assertTrue(found);
     }
+
+    /**
+     * Check that a preset read from the binary cache is equivalent to the parsed one and compare load times
+     */
+    @Test
+    public void cache() {
+        final Context ctx = ApplicationProvider.getApplicationContext();
+        try (AdvancedPrefDatabase db = new AdvancedPrefDatabase(ctx)) {
+            File directory = db.getPresetDirectory(AdvancedPrefDatabase.ID_DEFAULT);
+            File cache = new File(directory, Files.FILE_NAME_PRESET_CACHE);
+            cache.delete(); // NOSONAR
+            long start = System.currentTimeMillis();
+            Preset parsed = new Preset(ctx, directory, null, true);
+            long parseTime = System.currentTimeMillis() - start;
+            assertTrue(cache.exists());
+            start = System.currentTimeMillis();
+            Preset cached = new Preset(ctx, directory, null, true);
+            long cacheTime = System.currentTimeMillis() - start;
+            System.out.println("Parsing preset " + parseTime + " ms, reading cache " + cacheTime + " ms");
+
+            assertEquals(parsed.getVersion(), cached.getVersion());
+            assertEquals(parsed.getShortDescription(), cached.getShortDescription());
+            assertEquals(parsed.getObjectKeys(), cached.getObjectKeys());
+            assertEquals(parsed.getRootGroup().getElements().size(), cached.getRootGroup().getElements().size());
+            assertSame(parsed, parsed.getRootGroup().getPreset());
+            assertSame(cached, cached.getRootGroup().getPreset());
+            MultiHashMap<String, PresetItem> parsedIndex = Preset.getSearchIndex(new Preset[] { parsed });
+            MultiHashMap<String, PresetItem> cachedIndex = Preset.getSearchIndex(new Preset[] { cached });
+            assertEquals(parsedIndex.getKeys(), cachedIndex.getKeys());
+            assertEquals(parsedIndex.getValues().size(), cachedIndex.getValues().size());
+            assertEquals(Preset.getTranslatedSearchIndex(new Preset[] { parsed }).getKeys(),
+                    Preset.getTranslatedSearchIndex(new Preset[] { cached }).getKeys());
+
+            Map<String, String> tags = new HashMap<>();
+            tags.put("amenity", "restaurant");
+            PresetItem restaurant = Preset.findBestMatch(new Preset[] { cached }, tags, null, null);
+            assertEquals("Restaurant", restaurant.getName());
+            assertSame(cached, restaurant.getPreset());
+            assertTrue(cached.getItemByTag("amenity\trestaurant").contains(restaurant));
+            assertEquals(Preset.findBestMatch(new Preset[] { parsed }, tags, null, null).getPath(parsed.getRootGroup()),
+                    restaurant.getPath(cached.getRootGroup()));
+        } catch (ParserConfigurationException | SAXException | IOException | NoSuchAlgorithmException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Check that the cache is not used after the locale has changed, even if there are no translations
+     */
+    @Test
+    public void cacheLocale() {
+        final Context ctx = ApplicationProvider.getApplicationContext();
+        Locale defaultLocale = Locale.getDefault();
+        try (AdvancedPrefDatabase db = new AdvancedPrefDatabase(ctx)) {
+            File directory = db.getPresetDirectory(AdvancedPrefDatabase.ID_DEFAULT);
+            File cache = new File(directory, Files.FILE_NAME_PRESET_CACHE);
+            cache.delete(); // NOSONAR
+            Locale.setDefault(new Locale("xx"));
+            new Preset(ctx, directory, null, true);
+            assertTrue(cache.exists());
+
+            // same locale, cache is read and not written again
+            assertTrue(cache.setLastModified(0));
+            new Preset(ctx, directory, null, true);
+            assertEquals(0, cache.lastModified());
+
+            // different locale without translations, preset is parsed and the cache replaced
+            Locale.setDefault(new Locale("yy"));
+            new Preset(ctx, directory, null, true);
+            assertNotEquals(0, cache.lastModified());
+        } catch (ParserConfigurationException | SAXException | IOException | NoSuchAlgorithmException e) {
+            fail(e.getMessage());
+        } finally {
+            Locale.setDefault(defaultLocale);
+        }
+    }
+
+    /**
+     * Check that cached matching gives the same results as uncached and time both over the tags of a PBF extract
+     */
+    @Test
+    public void matchCache() {
+        List<OsmElement> elements = new ArrayList<>();
+        for (OsmElement e : PbfTest.read().getElements()) {
+            if (e.hasTags()) {
+                elements.add(e);
+            }
+        }
+        PresetMatchCache cache = Preset.getMatchCache();
+        cache.clear();
+
+        long start = System.currentTimeMillis();
+        List<PresetItem> expected = new ArrayList<>(elements.size());
+        for (OsmElement e : elements) {
+            expected.add(Preset.findBestMatchUncached(presets, e.getTags(), null, e.getType(), true, null));
+        }
+        long uncachedTime = System.currentTimeMillis() - start;
+
+        for (int run = 0; run < 2; run++) {
+            start = System.currentTimeMillis();
+            for (int i = 0; i < elements.size(); i++) {
+                OsmElement e = elements.get(i);
+                PresetItem match = Preset.findBestMatch(presets, e.getTags(), null, e.getType(), true, null);
+                if (expected.get(i) != null) {
+                    // there are no guarantees for draws, so only compare the score relevant properties
+                    assertNotNull(match);
+                    assertEquals(expected.get(i).getFixedTagCount(), match.getFixedTagCount());
+                } else {
+                    assertNull(match);
+                }
+            }
+            System.out.println("Run " + run + " " + elements.size() + " elements, uncached " + uncachedTime + " ms, cached " + (System.currentTimeMillis() - start)
+                    + " ms, hits " + cache.getHits() + " misses " + cache.getMisses() + " hit rate " + cache.getHitRate() + " entries " + cache.size());
+        }
+        assertTrue(cache.getHits() > cache.getMisses());
+
+        // results need to be recalculated when the presets change
+        Map<String, String> tags = new HashMap<>();
+        tags.put("amenity", "restaurant");
+        PresetItem restaurant = Preset.findBestMatch(presets, tags, null, null, false, null);
+        assertEquals("Restaurant", restaurant.getName());
+        assertEquals(restaurant, Preset.findBestMatch(presets, tags, null, null, false, null));
+        presets[0].deleteItem(restaurant);
+        PresetItem match = Preset.findBestMatch(presets, tags, null, null, false, null);
+        assertTrue(match == null || !"Restaurant".equals(match.getName()));
+    }
 }
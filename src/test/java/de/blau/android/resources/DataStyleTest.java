@@ -4,11 +4,14 @@ import static de.blau.android.osm.DelegatorUtil.addWayToStorage;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
 import java.util.TreeMap;
 
 import org.junit.Before;
@@ -16,13 +19,17 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 
+import android.util.Log;
 import androidx.test.core.app.ApplicationProvider;
 import androidx.test.filters.LargeTest;
 import de.blau.android.App;
 import de.blau.android.JavaResources;
 import de.blau.android.contract.Paths;
 import de.blau.android.osm.Node;
+import de.blau.android.osm.OsmElement;
+import de.blau.android.osm.PbfTest;
 import de.blau.android.osm.StorageDelegator;
+import de.blau.android.osm.StyleableFeature;
 import de.blau.android.osm.Tags;
 import de.blau.android.osm.Way;
 import de.blau.android.resources.DataStyle.FeatureStyle;
@@ -31,6 +38,8 @@ import de.blau.android.resources.DataStyle.FeatureStyle;
 @LargeTest
 public class DataStyleTest {
 
+    private static final String DEBUG_TAG = "DataStyleTest";
+
     /**
      * Pre-test setup
      */
@@ -103,4 +112,73 @@ public class DataStyleTest {
         style = DataStyle.matchStyle(tree);
         assertTrue(style.getIconPath().endsWith("tree_all.png"));
     }
+
+    /**
+     * Check that the compiled styles return the same results as walking the style tree for all elements and styles
+     */
+    @Test
+    public void compiledMatch() {
+        DataStyle.getStylesFromFiles(ApplicationProvider.getApplicationContext());
+        List<OsmElement> elements = PbfTest.read().getElements();
+        for (String name : DataStyle.getStyleList(ApplicationProvider.getApplicationContext())) {
+            DataStyle.switchTo(name);
+            DataStyle current = DataStyle.getCurrent();
+            FeatureStyle[] expected = new FeatureStyle[elements.size()];
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < expected.length; i++) {
+                OsmElement e = elements.get(i);
+                if (e instanceof Way) {
+                    expected[i] = matchTree(current.getWayStyles(), e.getTags(), ((Way) e).isClosed());
+                } else if (e instanceof Node) {
+                    expected[i] = matchTree(current.getNodeStyles(), e.getTags(), false);
+                } else {
+                    expected[i] = matchTree(current.getRelationStyles(), e.getTags(), false);
+                }
+            }
+            long tree = System.currentTimeMillis() - start;
+            start = System.currentTimeMillis();
+            for (int i = 0; i < expected.length; i++) {
+                assertSame(expected[i], matchUncached(elements.get(i)));
+            }
+            long compiled = System.currentTimeMillis() - start;
+            start = System.currentTimeMillis();
+            for (int i = 0; i < expected.length; i++) {
+                assertSame(expected[i], matchUncached(elements.get(i)));
+            }
+            long memoised = System.currentTimeMillis() - start;
+            Log.d(DEBUG_TAG, name + " " + elements.size() + " elements, tree walk " + tree + " ms, compiled " + compiled + " ms, memoised " + memoised + " ms");
+        }
+    }
+
+    /**
+     * Match a style without using the style cached in the element
+     * 
+     * @param e the OsmElement
+     * @return the matching style
+     */
+    private static FeatureStyle matchUncached(OsmElement e) {
+        if (e instanceof StyleableFeature) {
+            ((StyleableFeature) e).setStyle(null);
+        }
+        return DataStyle.matchStyle(e);
+    }
+
+    /**
+     * Reference implementation: depth first walk descending in to the first matching style
+     * 
+     * @param style the current style
+     * @param tags the element tags
+     * @param closed true if the element is a closed way
+     * @return the best matching style
+     */
+    private static FeatureStyle matchTree(FeatureStyle style, SortedMap<String, String> tags, boolean closed) {
+        if (style.cascadedStyles != null) {
+            for (FeatureStyle s : style.cascadedStyles) {
+                if (s.matches(tags, closed)) {
+                    return matchTree(s, tags, closed);
+                }
+            }
+        }
+        return style;
+    }
 }
@@ -0,0 +1,265 @@
+package de.blau.android.services.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+
+import android.database.sqlite.SQLiteDatabase;
+import androidx.annotation.NonNull;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.filters.LargeTest;
+import de.blau.android.resources.TileLayerDatabase;
+import de.blau.android.resources.TileLayerSource;
+import de.blau.android.resources.TileLayerSource.Category;
+import de.blau.android.resources.TileLayerSource.Provider;
+import de.blau.android.resources.TileLayerSource.TileType;
+import de.blau.android.views.util.MapTileProviderCallback;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(shadows = { ShadowSQLiteStatement.class, ShadowSQLiteProgram.class, ShadowSQLiteCloseable.class })
+@LargeTest
+public class MapTileDownloaderTest {
+
+    private static final String SOURCE = "REVALIDATE";
+
+    MapTileFilesystemProvider provider;
+    MockWebServer             tileServer;
+    volatile byte[]           tileData;
+    volatile String           etag;
+    volatile boolean          chunked;
+    volatile long             delay;
+
+    /**
+     * Pre-test setup
+     */
+    @Before
+    public void setup() {
+        ShadowLog.setupLogging();
+        provider = new MapTileFilesystemProvider(ApplicationProvider.getApplicationContext(), new File("."), 1000000);
+        provider.flushCache(null);
+        tileData = MapTileProviderDataBaseTest.getTestTile();
+        etag = "\"v1\"";
+        tileServer = new MockWebServer();
+        tileServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                MockResponse response = new MockResponse().setHeader("ETag", etag).setHeader("Cache-Control", "no-cache");
+                if (etag.equals(request.getHeader("If-None-Match"))) {
+                    return response.setResponseCode(HttpURLConnection.HTTP_NOT_MODIFIED);
+                }
+                try (Buffer data = new Buffer()) {
+                    data.write(tileData);
+                    response.setResponseCode(HttpURLConnection.HTTP_OK).setBodyDelay(delay, TimeUnit.MILLISECONDS);
+                    return chunked ? response.setChunkedBody(data, 1000) : response.setBody(data);
+                }
+            }
+        });
+        try (TileLayerDatabase db = new TileLayerDatabase(ApplicationProvider.getApplicationContext());
+                SQLiteDatabase writableDatabase = db.getWritableDatabase()) {
+            TileLayerDatabase.deleteLayerWithId(writableDatabase, SOURCE);
+            TileLayerSource.addOrUpdateCustomLayer(ApplicationProvider.getApplicationContext(), writableDatabase, SOURCE, null, -1, -1, "Revalidation test",
+                    new Provider(), Category.other, null, TileType.BITMAP, 0, 19, TileLayerSource.DEFAULT_TILE_SIZE, false,
+                    tileServer.url("/").toString() + "{zoom}/{x}/{y}");
+            TileLayerSource.getListsLocked(ApplicationProvider.getApplicationContext(), writableDatabase, true);
+        }
+    }
+
+    /**
+     * Post-test teardown
+     */
+    @After
+    public void teardown() {
+        provider.destroy();
+        try {
+            tileServer.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Load a tile, then revalidate it with a conditional request, first unchanged and then changed
+     */
+    @Test
+    public void revalidate() {
+        MapTile tile = new MapTile(SOURCE, 16, 34322, 22950);
+        MapTileDownloader downloader = provider.getTileDownloader();
+        final byte[] original = tileData;
+        assertArrayEquals(original, load(provider, tile));
+        RecordedRequest request = takeRequest();
+        assertNull(request.getHeader("If-None-Match"));
+        assertEquals(original.length, downloader.getBytesDownloaded());
+
+        // served from the cache, revalidated in the background
+        assertArrayEquals(original, load(provider, tile));
+        request = takeRequest();
+        assertEquals("\"v1\"", request.getHeader("If-None-Match"));
+        waitFor(() -> downloader.getNotModifiedCount() == 1);
+        assertEquals(original.length, downloader.getBytesSaved());
+        assertEquals(original.length, downloader.getBytesDownloaded());
+
+        // tile changes on the server
+        final byte[] changed = Arrays.copyOf(original, original.length + 100);
+        tileData = changed;
+        etag = "\"v2\"";
+        chunked = true;
+        assertArrayEquals(original, load(provider, tile));
+        request = takeRequest();
+        assertEquals("\"v1\"", request.getHeader("If-None-Match"));
+        waitFor(() -> {
+            try {
+                TileValidators validators = provider.getValidators(tile);
+                return validators != null && "\"v2\"".equals(validators.getEtag());
+            } catch (IOException e) {
+                return false;
+            }
+        });
+        assertEquals(original.length + changed.length, downloader.getBytesDownloaded());
+        assertArrayEquals(changed, load(provider, tile));
+        assertEquals("\"v2\"", takeRequest().getHeader("If-None-Match"));
+        waitFor(() -> downloader.getNotModifiedCount() == 2);
+        assertEquals(original.length + changed.length, downloader.getBytesSaved());
+        assertEquals(4, downloader.getRequestCount());
+        provider.flushWrites();
+        assertEquals(changed.length, provider.getCurrentCacheByteSize());
+        System.out.println("Requests " + downloader.getRequestCount() + " not modified " + downloader.getNotModifiedCount() + " bytes downloaded "
+                + downloader.getBytesDownloaded() + " bytes saved " + downloader.getBytesSaved());
+    }
+
+    /**
+     * Request the same tile twice while the first request is still running
+     */
+    @Test
+    public void coalesce() {
+        delay = 500;
+        MapTile tile = new MapTile(SOURCE, 16, 34323, 22950);
+        MapTileDownloader downloader = provider.getTileDownloader();
+        final CountDownLatch signal = new CountDownLatch(2);
+        final byte[][] results = new byte[2][];
+        for (int i = 0; i < 2; i++) {
+            final int index = i;
+            downloader.loadMapTileAsync(new MapTile(tile), new MapTileProviderCallback() {
+
+                @Override
+                public void mapTileLoaded(String rendererID, int zoomLevel, int tileX, int tileY, byte[] aImage) throws IOException {
+                    results[index] = aImage;
+                    signal.countDown();
+                }
+
+                @Override
+                public void mapTileFailed(String rendererID, int zoomLevel, int tileX, int tileY, int reason, String message) throws IOException {
+                    signal.countDown();
+                }
+            });
+        }
+        try {
+            assertTrue(signal.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            fail(e.getMessage());
+        }
+        assertArrayEquals(tileData, results[0]);
+        assertArrayEquals(tileData, results[1]);
+        assertEquals(1, tileServer.getRequestCount());
+        assertEquals(1, downloader.getRequestCount());
+        assertEquals(1, downloader.getCoalescedCount());
+    }
+
+    /**
+     * Load a tile via a provider and wait for the result
+     *
+     * @param tileProvider the provider
+     * @param tile the tile
+     * @return the tile data
+     */
+    @NonNull
+    private byte[] load(@NonNull MapAsyncTileProvider tileProvider, @NonNull MapTile tile) {
+        final CountDownLatch signal = new CountDownLatch(1);
+        final byte[][] result = new byte[1][];
+        tileProvider.loadMapTileAsync(new MapTile(tile), new MapTileProviderCallback() {
+
+            @Override
+            public void mapTileLoaded(String rendererID, int zoomLevel, int tileX, int tileY, byte[] aImage) throws IOException {
+                result[0] = aImage;
+                signal.countDown();
+            }
+
+            @Override
+            public void mapTileFailed(String rendererID, int zoomLevel, int tileX, int tileY, int reason, String message) throws IOException {
+                signal.countDown();
+            }
+        });
+        try {
+            assertTrue(signal.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            fail(e.getMessage());
+        }
+        assertNotNull(result[0]);
+        return result[0];
+    }
+
+    /**
+     * Get the next request to the tile server
+     *
+     * @return the RecordedRequest
+     */
+    @NonNull
+    private RecordedRequest takeRequest() {
+        try {
+            RecordedRequest request = tileServer.takeRequest(5, TimeUnit.SECONDS);
+            assertNotNull(request);
+            return request;
+        } catch (InterruptedException e) {
+            fail(e.getMessage());
+            return null;
+        }
+    }
+
+    interface Condition {
+        /**
+         * @return true if the condition is met
+         */
+        boolean met();
+    }
+
+    /**
+     * Wait for a condition to become true
+     *
+     * @param condition the condition
+     */
+    private void waitFor(@NonNull Condition condition) {
+        long end = System.currentTimeMillis() + 5000;
+        while (!condition.met()) {
+            if (System.currentTimeMillis() > end) {
+                fail("timeout waiting for condition");
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                fail(e.getMessage());
+            }
+        }
+    }
+}
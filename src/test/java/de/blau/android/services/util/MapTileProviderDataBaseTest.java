@@ -3,6 +3,8 @@ package de.blau.android.services.util;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -10,6 +12,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 
 import org.junit.After;
 import org.junit.Before;
@@ -173,6 +176,121 @@ public class MapTileProviderDataBaseTest {
         }
     }
 
+    /**
+     * Store, retrieve and refresh validators, replace a changed tile
+     */
+    @Test
+    public void validatorsTest() {
+        try {
+            assertNull(db.getValidators(tile));
+            final long now = System.currentTimeMillis();
+            assertEquals(tileBytes.length, db.addTile(tile, tileBytes, new TileValidators("\"1\"", "Wed, 21 Oct 2015 07:28:00 GMT", now + 1000)));
+            TileValidators validators = db.getValidators(tile);
+            assertNotNull(validators);
+            assertEquals("\"1\"", validators.getEtag());
+            assertEquals("Wed, 21 Oct 2015 07:28:00 GMT", validators.getLastModified());
+            assertFalse(db.isExpired(tile, now));
+            assertTrue(db.isExpired(tile, now + 1000));
+
+            assertTrue(db.refreshTile(tile, validators.update(new TileValidators("\"2\"", null, now + 2000))));
+            validators = db.getValidators(tile);
+            assertEquals("\"2\"", validators.getEtag());
+            assertEquals("Wed, 21 Oct 2015 07:28:00 GMT", validators.getLastModified());
+            assertFalse(db.isExpired(tile, now + 1000));
+
+            byte[] changed = Arrays.copyOf(tileBytes, tileBytes.length + 10);
+            assertEquals(10, db.addTile(tile, changed, null));
+            assertArrayEquals(changed, db.getTile(tile));
+            assertEquals(changed.length, db.getCurrentFSCacheByteSize());
+            // no validators, never expires
+            assertFalse(db.isExpired(tile, Long.MAX_VALUE));
+            assertFalse(db.getValidators(tile).canRevalidate());
+            assertFalse(db.refreshTile(new MapTile("test", 10, 511, 341), validators));
+        } catch (IOException ioex) {
+            fail(ioex.getMessage());
+        }
+    }
+
+    /**
+     * Retrieve a tile together with its expiry time
+     */
+    @Test
+    public void cachedTileTest() {
+        try {
+            assertNull(db.getCachedTile(tile));
+            final long now = System.currentTimeMillis();
+            db.addTile(tile, tileBytes, new TileValidators("\"1\"", null, now + 1000));
+            MapTileProviderDataBase.CachedTile cached = db.getCachedTile(tile);
+            assertNotNull(cached);
+            assertArrayEquals(tileBytes, cached.data);
+            assertFalse(cached.isExpired(now));
+            assertTrue(cached.isExpired(now + 1000));
+            db.addTile(tile, tileBytes, null);
+            assertFalse(db.getCachedTile(tile).isExpired(Long.MAX_VALUE));
+            MapTile invalid = new MapTile("test", 10, 511, 341);
+            db.addTile(invalid, null);
+            try {
+                db.getCachedTile(invalid);
+                fail("Expected InvalidTileException");
+            } catch (InvalidTileException itex) {
+                // expected
+            }
+        } catch (IOException ioex) {
+            fail(ioex.getMessage());
+        }
+    }
+
+    /**
+     * Recently used tiles should be evicted last
+     */
+    @Test
+    public void touchTest() {
+        MapTile tile2 = new MapTile("test", 10, 511, 341);
+        MapTile tile3 = new MapTile("test", 10, 511, 342);
+        try {
+            db.addTile(tile, tileBytes);
+            Thread.sleep(5);
+            db.addTile(tile2, tileBytes);
+            Thread.sleep(5);
+            db.addTile(tile3, tileBytes);
+            Thread.sleep(5);
+            db.touchTile(tile);
+            assertEquals(tileBytes.length, db.deleteOldest(1));
+            assertTrue(db.hasTile(tile));
+            assertFalse(db.hasTile(tile2));
+            assertEquals(tileBytes.length, db.deleteOldest(1));
+            assertTrue(db.hasTile(tile));
+            assertFalse(db.hasTile(tile3));
+        } catch (IOException | InterruptedException ex) {
+            fail(ex.getMessage());
+        }
+    }
+
+    /**
+     * Evict more tiles than fit in one chunk, in a batch of writes
+     */
+    @Test
+    public void deleteOldestChunked() {
+        final int count = 600;
+        db.runInTransaction(() -> {
+            try {
+                for (int i = 0; i < count; i++) {
+                    db.addTile(new MapTile("test", 16, i, 0), tileBytes);
+                }
+                db.addTile(new MapTile("test", 16, 0, 1), null); // invalid tiles are ignored
+            } catch (IOException ioex) {
+                fail(ioex.getMessage());
+            }
+        });
+        assertEquals(count * (long) tileBytes.length, db.getCurrentFSCacheByteSize());
+        assertEquals(300 * (long) tileBytes.length, db.deleteOldest(300 * tileBytes.length - 1));
+        assertFalse(db.hasTile(new MapTile("test", 16, 299, 0)));
+        assertTrue(db.hasTile(new MapTile("test", 16, 300, 0)));
+        assertEquals(300 * (long) tileBytes.length, db.deleteOldest(Integer.MAX_VALUE));
+        assertEquals(0, db.getCurrentFSCacheByteSize());
+        assertEquals(0, db.deleteOldest(1));
+    }
+
     /**
      * Check if the database (doesn't) exist
      */
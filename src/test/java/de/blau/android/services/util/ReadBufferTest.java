@@ -0,0 +1,154 @@
+package de.blau.android.services.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import androidx.annotation.NonNull;
+import androidx.test.filters.LargeTest;
+import de.blau.android.views.util.MapTileProvider;
+
+@RunWith(RobolectricTestRunner.class)
+@LargeTest
+public class ReadBufferTest {
+
+    /**
+     * Read with correct, too small, too large and missing size hints
+     */
+    @Test
+    public void read() {
+        byte[] data = randomData(100000);
+        ReadBuffer buffer = new ReadBuffer();
+        try {
+            for (long hint : new long[] { data.length, 1000, data.length * 2L, -1, 0 }) {
+                assertArrayEquals(data, buffer.read(new TrickleInputStream(data), hint));
+            }
+            assertEquals(0, buffer.read(new ByteArrayInputStream(new byte[0]), -1).length);
+            assertEquals(0, buffer.read(new ByteArrayInputStream(new byte[0]), 10).length);
+            // larger than the retained size
+            byte[] large = randomData(1024 * 1024);
+            assertArrayEquals(large, buffer.read(new ByteArrayInputStream(large), -1));
+            assertArrayEquals(data, buffer.read(new ByteArrayInputStream(data), -1));
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Decompress gzipped data with the size from the trailer
+     */
+    @Test
+    public void unGZip() {
+        byte[] data = randomData(50000);
+        byte[] zipped = gzip(data);
+        assertEquals(data.length, ReadBuffer.gzipSize(zipped));
+        assertArrayEquals(data, MapTileProvider.unGZip(zipped));
+        assertArrayEquals(new byte[0], MapTileProvider.unGZip(gzip(new byte[0])));
+        // not gzipped
+        assertSame(data, MapTileProvider.unGZip(data));
+        // wrong trailer
+        zipped[zipped.length - 1] = (byte) 0x7F;
+        assertArrayEquals(data, MapTileProvider.unGZip(zipped));
+    }
+
+    /**
+     * Compare with copying via a ByteArrayOutputStream
+     */
+    @Test
+    public void timing() {
+        byte[] data = randomData(30000); // typical raster tile
+        final int iterations = 20000;
+        try {
+            ReadBuffer buffer = new ReadBuffer();
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                InputStream is = new ByteArrayInputStream(data);
+                byte[] temp = new byte[4096];
+                int bytesRead;
+                while ((bytesRead = is.read(temp)) != -1) {
+                    bos.write(temp, 0, bytesRead);
+                }
+                assertEquals(data.length, bos.toByteArray().length);
+            }
+            long copy = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                assertEquals(data.length, buffer.read(new ByteArrayInputStream(data), data.length).length);
+            }
+            long presized = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                assertEquals(data.length, buffer.read(new ByteArrayInputStream(data), -1).length);
+            }
+            long scratch = System.nanoTime() - start;
+            System.out.println("ByteArrayOutputStream " + copy / iterations + " ns presized " + presized / iterations + " ns scratch buffer "
+                    + scratch / iterations + " ns per read");
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Generate some random data
+     *
+     * @param size the size
+     * @return an array of random bytes
+     */
+    @NonNull
+    private static byte[] randomData(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Compress data
+     *
+     * @param data the data
+     * @return the gzipped data
+     */
+    @NonNull
+    private static byte[] gzip(@NonNull byte[] data) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (GZIPOutputStream gos = new GZIPOutputStream(bos)) {
+            gos.write(data);
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Stream that returns at most 777 bytes per read, like a pipe
+     */
+    private static class TrickleInputStream extends FilterInputStream {
+
+        /**
+         * Construct a new stream
+         *
+         * @param data the contents
+         */
+        TrickleInputStream(@NonNull byte[] data) {
+            super(new ByteArrayInputStream(data));
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(len, 777));
+        }
+    }
+}
@@ -1,8 +1,6 @@
 package de.blau.android.services.util;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 
 import org.robolectric.annotation.Implementation;
 import org.robolectric.annotation.Implements;
@@ -42,13 +40,10 @@ public class ShadowSQLiteStatement extends ShadowSQLiteProgram {
                 data = getMBTile(tile);
             }
 
-            try (InputStream is = new ByteArrayInputStream(data);) {
+            try {
                 ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
                 AutoCloseOutputStream os = new AutoCloseOutputStream(pipe[1]);
-                int len;
-                while ((len = is.read()) >= 0) {
-                    os.write(len);
-                }
+                os.write(data);
                 os.flush();
                 os.close();
                 return pipe[0];
@@ -0,0 +1,132 @@
+package de.blau.android.services.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.filters.LargeTest;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(shadows = { ShadowSQLiteStatement.class, ShadowSQLiteProgram.class, ShadowSQLiteCloseable.class })
+@LargeTest
+public class TileCacheWriterTest {
+
+    MapTileProviderDataBase db;
+    byte[]                  tileBytes;
+
+    /**
+     * Pre-test setup
+     */
+    @Before
+    public void setup() {
+        db = new MapTileProviderDataBase(ApplicationProvider.getApplicationContext());
+        tileBytes = MapTileProviderDataBaseTest.getTestTile();
+    }
+
+    /**
+     * Post-test teardown
+     */
+    @After
+    public void teardown() {
+        db.close();
+        MapTileProviderDataBase.delete(ApplicationProvider.getApplicationContext());
+    }
+
+    /**
+     * Queue writes, read them back before and after they have been committed
+     */
+    @Test
+    public void batchedWrites() {
+        final int count = 500;
+        final int[] maintenanceRuns = new int[1];
+        TileCacheWriter writer = new TileCacheWriter(db, () -> maintenanceRuns[0]++);
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            writer.save(new MapTile("test", 16, i, 0), tileBytes, null);
+        }
+        MapTile invalid = new MapTile("test", 16, 0, 1);
+        writer.markInvalid(invalid);
+        // replaces the first write
+        MapTile first = new MapTile("test", 16, 0, 0);
+        byte[] changed = Arrays.copyOf(tileBytes, tileBytes.length + 10);
+        writer.save(first, changed, new TileValidators("\"1\"", null, TileValidators.NEVER));
+        TileCacheWriter.Write pending = writer.peek(first);
+        if (pending != null) { // may already have been written
+            assertArrayEquals(changed, pending.data);
+        }
+        writer.flush();
+        long batched = System.nanoTime() - start;
+
+        assertNull(writer.peek(first));
+        assertEquals(0, writer.getPendingBytes());
+        assertEquals(count * tileBytes.length + 10, writer.takeSizeChange());
+        assertEquals(count * tileBytes.length + 10, db.getCurrentFSCacheByteSize());
+        assertTrue(writer.getBatchCount() < count / 10);
+        assertEquals(writer.getBatchCount(), maintenanceRuns[0]);
+        assertTrue(db.isInvalid(invalid));
+        try {
+            assertArrayEquals(changed, db.getTile(first));
+            TileValidators validators = db.getValidators(first);
+            assertNotNull(validators);
+            assertEquals("\"1\"", validators.getEtag());
+            // refresh and touch
+            writer.refresh(first, new TileValidators("\"2\"", null, TileValidators.NEVER));
+            writer.touch(first);
+            writer.flush();
+            assertEquals("\"2\"", db.getValidators(first).getEtag());
+        } catch (IOException ioex) {
+            fail(ioex.getMessage());
+        }
+
+        // same number of tiles written individually
+        start = System.nanoTime();
+        try {
+            for (int i = 0; i < count; i++) {
+                db.addTile(new MapTile("test", 17, i, 0), tileBytes);
+            }
+        } catch (IOException ioex) {
+            fail(ioex.getMessage());
+        }
+        long single = System.nanoTime() - start;
+        System.out.println(count + " tiles batched " + batched / 1000000 + " ms in " + writer.getBatchCount() + " transactions, individually "
+                + single / 1000000 + " ms");
+        writer.shutdown();
+    }
+
+    /**
+     * Check that the provider keeps the cache below the maximum size
+     */
+    @Test
+    public void eviction() {
+        final int maxSize = 50 * tileBytes.length;
+        MapTileFilesystemProvider provider = new MapTileFilesystemProvider(ApplicationProvider.getApplicationContext(), new File("."), maxSize);
+        try {
+            provider.flushCache(null);
+            for (int i = 0; i < 200; i++) {
+                provider.saveTile(new MapTile("test", 16, i, 0), tileBytes);
+            }
+            provider.flushWrites();
+            assertTrue(provider.getCurrentCacheByteSize() <= maxSize);
+            assertTrue(provider.getCurrentCacheByteSize() > 0);
+        } catch (IOException ioex) {
+            fail(ioex.getMessage());
+        } finally {
+            provider.destroy();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package de.blau.android.services.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import androidx.annotation.NonNull;
+import androidx.test.filters.LargeTest;
+import de.blau.android.views.util.MapTileProviderCallback;
+
+@RunWith(RobolectricTestRunner.class)
+@LargeTest
+public class TilePrioritiesTest {
+
+    private static final String SOURCE = "test";
+
+    /**
+     * Check the ordering of tiles relative to a viewport
+     */
+    @Test
+    public void priorities() {
+        TilePriorities priorities = new TilePriorities();
+        assertEquals(TilePriorities.UNKNOWN, priorities.get(new MapTile(SOURCE, 16, 100, 100)), 0);
+        assertTrue(priorities.set(SOURCE, 16, 100, 100, 104, 102));
+        assertFalse(priorities.set(SOURCE, 16, 100, 100, 104, 102));
+
+        double centre = priorities.get(new MapTile(SOURCE, 16, 102, 101));
+        double corner = priorities.get(new MapTile(SOURCE, 16, 100, 100));
+        double parent = priorities.get(new MapTile(SOURCE, 15, 51, 50));
+        double adjacent = priorities.get(new MapTile(SOURCE, 16, 105, 101));
+        assertTrue(centre < corner);
+        assertTrue(corner < TilePriorities.OUTSIDE_PENALTY);
+        assertTrue(centre < parent && parent < TilePriorities.OUTSIDE_PENALTY);
+        assertTrue(adjacent > TilePriorities.OUTSIDE_PENALTY);
+        assertTrue(adjacent < TilePriorities.STALE);
+        assertEquals(TilePriorities.STALE, priorities.get(new MapTile(SOURCE, 16, 107, 101)), 0);
+        assertEquals(TilePriorities.STALE, priorities.get(new MapTile(SOURCE, 16, 102, 90)), 0);
+        // a tile at a low zoom covering the viewport is never stale
+        assertTrue(priorities.get(new MapTile(SOURCE, 10, 1, 1)) < TilePriorities.OUTSIDE_PENALTY);
+
+        // wrapping around the antimeridian
+        final int n = 1 << 16;
+        priorities.set(SOURCE, 16, n - 2, 100, n + 1, 102);
+        assertTrue(priorities.get(new MapTile(SOURCE, 16, 0, 101)) < TilePriorities.OUTSIDE_PENALTY);
+        assertTrue(priorities.get(new MapTile(SOURCE, 16, n - 1, 101)) < TilePriorities.OUTSIDE_PENALTY);
+        assertEquals(TilePriorities.STALE, priorities.get(new MapTile(SOURCE, 16, n / 2, 101)), 0);
+    }
+
+    /**
+     * Queued requests run nearest to the centre first, requests that are far from a new viewport are cancelled
+     */
+    @Test
+    public void scheduling() {
+        final List<MapTile> loaded = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch blocked = new CountDownLatch(1);
+        TestProvider provider = new TestProvider(loaded, blocked);
+        final List<Integer> failures = Collections.synchronizedList(new ArrayList<>());
+        MapTileProviderCallback callback = new MapTileProviderCallback() {
+
+            @Override
+            public void mapTileLoaded(String rendererID, int zoomLevel, int tileX, int tileY, byte[] aImage) throws IOException {
+                // nothing
+            }
+
+            @Override
+            public void mapTileFailed(String rendererID, int zoomLevel, int tileX, int tileY, int reason, String message) throws IOException {
+                failures.add(reason);
+            }
+        };
+        provider.setViewport(SOURCE, 16, 0, 0, 9, 9);
+        // the first request blocks the only thread
+        provider.loadMapTileAsync(new MapTile(SOURCE, 16, 0, 0), callback);
+        for (int x = 1; x < 10; x++) {
+            provider.loadMapTileAsync(new MapTile(SOURCE, 16, x, 5), callback);
+        }
+        // move the viewport to the right, the tiles on the left are no longer needed
+        provider.setViewport(SOURCE, 16, 6, 0, 15, 9);
+        assertEquals(3, failures.size());
+        for (int reason : failures) {
+            assertEquals(MapAsyncTileProvider.CANCELLED, reason);
+        }
+        assertEquals(3, provider.getCancelledCount());
+        blocked.countDown();
+        provider.mThreadPool.shutdown();
+        try {
+            assertTrue(provider.mThreadPool.awaitTermination(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            fail(e.getMessage());
+        }
+        // 0/0 was already running, 1 to 3 were cancelled, then the visible tiles from the centre outwards and then the
+        // ones just outside
+        int[] expected = { 0, 9, 8, 7, 6, 5, 4 };
+        assertEquals(expected.length, loaded.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], loaded.get(i).x);
+        }
+    }
+
+    private static class TestProvider extends MapAsyncTileProvider {
+        private final List<MapTile>  loaded;
+        private final CountDownLatch blocked;
+
+        /**
+         * Construct a provider with a single thread
+         *
+         * @param loaded list of tiles in the order they were loaded
+         * @param blocked the first tile waits for this
+         */
+        TestProvider(@NonNull List<MapTile> loaded, @NonNull CountDownLatch blocked) {
+            this.loaded = loaded;
+            this.blocked = blocked;
+            mThreadPool = newThreadPool(1);
+        }
+
+        @Override
+        protected Runnable getTileLoader(@NonNull MapTile aTile, @NonNull MapTileProviderCallback aCallback) {
+            return new TileLoader(aTile, aCallback) {
+                @Override
+                public void run() {
+                    try {
+                        if (loaded.isEmpty()) {
+                            blocked.await();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    loaded.add(mTile);
+                    finished();
+                }
+            };
+        }
+    }
+}
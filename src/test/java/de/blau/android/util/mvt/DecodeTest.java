@@ -1,11 +1,14 @@
 package de.blau.android.util.mvt;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -72,6 +75,103 @@ public class DecodeTest {
         }
     }
 
+    /**
+     * Check that flat decoding results in the same features as decoding to GeoJSON
+     */
+    @Test
+    public void flatGeometryTest() {
+        try {
+            for (String tile : new String[] { "/openinframap_tile.pbf", "/tilemaker_tile.pbf" }) {
+                byte[] data = readTile(tile);
+                List<VectorTileDecoder.Feature> geoJson = new VectorTileDecoder().decode(data).asList();
+                VectorTileDecoder flatDecoder = new VectorTileDecoder();
+                flatDecoder.setFlatGeometry(true);
+                List<VectorTileDecoder.Feature> flat = flatDecoder.decode(data).asList();
+                assertEquals(geoJson.size(), flat.size());
+                for (int i = 0; i < flat.size(); i++) {
+                    VectorTileDecoder.Feature expected = geoJson.get(i);
+                    VectorTileDecoder.Feature actual = flat.get(i);
+                    assertEquals(expected.getLayerName(), actual.getLayerName());
+                    assertEquals(expected.getId(), actual.getId());
+                    assertEquals(expected.getGeometry().type(), actual.getGeometryType());
+                    // compare the flat representation before forcing creation of the GeoJSON geometry
+                    assertEquals(expected.getPartCount(), actual.getPartCount());
+                    for (int part = 0; part < actual.getPartCount(); part++) {
+                        int start = actual.getPartStart(part);
+                        int end = actual.getPartEnd(part);
+                        assertEquals(expected.getPartEnd(part) - expected.getPartStart(part), end - start);
+                        assertEquals(expected.isPolygonStart(part), actual.isPolygonStart(part));
+                        for (int j = 0; j < end - start; j++) {
+                            int point = expected.getPartStart(part) + j;
+                            assertEquals(expected.getCoordinates()[2 * point], actual.getCoordinates()[2 * (start + j)], 0);
+                            assertEquals(expected.getCoordinates()[2 * point + 1], actual.getCoordinates()[2 * (start + j) + 1], 0);
+                        }
+                    }
+                    for (Map.Entry<String, Object> attribute : expected.getAttributes().entrySet()) {
+                        assertEquals(attribute.getValue(), actual.getAttribute(attribute.getKey()));
+                    }
+                    assertEquals(expected.getGeometry(), actual.getGeometry());
+                    assertEquals(expected.getAttributes(), actual.getAttributes());
+                }
+            }
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Compare throughput and allocation of flat decoding and decoding to GeoJSON
+     */
+    @Test
+    public void flatGeometryBenchmark() {
+        try {
+            byte[] data = readTile("/tilemaker_tile.pbf");
+            VectorTileDecoder geoJsonDecoder = new VectorTileDecoder();
+            VectorTileDecoder flatDecoder = new VectorTileDecoder();
+            flatDecoder.setFlatGeometry(true);
+            final int warmup = 50;
+            final int runs = 200;
+            for (int i = 0; i < warmup; i++) {
+                geoJsonDecoder.decode(data).asMap();
+                flatDecoder.decode(data).asMap();
+            }
+            long[] geoJson = benchmark(geoJsonDecoder, data, runs);
+            long[] flat = benchmark(flatDecoder, data, runs);
+            System.out.println("GeoJSON decoding " + (geoJson[0] / runs / 1000) + " us/tile " + (geoJson[1] / runs) + " bytes/tile");
+            System.out.println("Flat decoding " + (flat[0] / runs / 1000) + " us/tile " + (flat[1] / runs) + " bytes/tile");
+            if (flat[1] >= 0 && geoJson[1] >= 0) {
+                assertTrue(flat[1] < geoJson[1]);
+            }
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Decode a tile repeatedly
+     * 
+     * @param decoder the decoder to use
+     * @param data the tile
+     * @param runs the number of times the tile should be decoded
+     * @return the elapsed time in ns and the allocated bytes, -1 if not supported by the JVM
+     * @throws IOException if decoding fails
+     */
+    private static long[] benchmark(@NonNull VectorTileDecoder decoder, @NonNull byte[] data, int runs) throws IOException {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean allocationBean = threadBean instanceof com.sun.management.ThreadMXBean
+                ? (com.sun.management.ThreadMXBean) threadBean
+                : null;
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = allocationBean != null ? allocationBean.getThreadAllocatedBytes(threadId) : 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            decoder.decode(data).asMap();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocationBean != null ? allocationBean.getThreadAllocatedBytes(threadId) - allocatedBefore : -1;
+        return new long[] { elapsed, allocated };
+    }
+
     /**
      * Read a sample tile in to a byte array
      * 
@@ -1,8 +1,13 @@
 package de.blau.android.util.mvt.style;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
@@ -19,8 +24,39 @@ public class CollisionDetectionTest {
      */
     @Test
     public void collisionTest() {
-        SimpleCollisionDetector detector = new SimpleCollisionDetector();
+        collisionTest(new SimpleCollisionDetector());
+    }
+
+    /**
+     * Add a couple of objects and then check what collides with the grid based detector
+     */
+    @Test
+    public void gridCollisionTest() {
+        collisionTest(new GridCollisionDetector());
+        GridCollisionDetector detector = new GridCollisionDetector(16);
+        // touching counts as collision
+        assertFalse(detector.collides(new Rect(0, 0, 10, 10)));
+        assertTrue(detector.collides(new Rect(10, 0, 20, 10)));
+        // negative coordinates and boxes spanning many cells
+        assertFalse(detector.collides(new Rect(-1000, -1000, -990, -990)));
+        assertFalse(detector.collides(new Rect(-100000, 5000, 100000, 5010)));
+        assertTrue(detector.collides(new Rect(0, 5005, 1, 5006)));
+        // diagonal line with a box just beside it
+        assertFalse(detector.collides(new float[] { 100, 100 }, new float[] { 200, 200 }, 5));
+        assertFalse(detector.collides(new Rect(180, 110, 190, 120)));
+        assertTrue(detector.collides(new Rect(150, 148, 152, 152)));
+        assertEquals(5, detector.size());
+        detector.reset();
+        assertEquals(0, detector.size());
+        assertFalse(detector.collides(new Rect(150, 148, 152, 152)));
+    }
 
+    /**
+     * Run the basic collision checks
+     * 
+     * @param detector the CollisionDetector to test
+     */
+    private void collisionTest(CollisionDetector detector) {
         assertFalse(detector.collides(new Rect(100, 100, 200, 200)));
         assertFalse(detector.collides(new float[] { 220, 100 }, new float[] { 270, 200 }, 10));
 
@@ -34,4 +70,94 @@ public class CollisionDetectionTest {
         assertFalse(detector.collides(new Rect(120, 120, 180, 180)));
         assertFalse(detector.collides(new Rect(250, 150, 280, 180)));
     }
+
+    /**
+     * Compare the grid based detector with a brute force check for lots of random rectangles
+     */
+    @Test
+    public void gridConformanceTest() {
+        Random random = new Random(4711);
+        GridCollisionDetector detector = new GridCollisionDetector();
+        for (int round = 0; round < 3; round++) {
+            List<Rect> placed = new ArrayList<>();
+            for (int i = 0; i < 2000; i++) {
+                Rect rect = randomRect(random, 2048);
+                boolean expected = false;
+                for (Rect r : placed) {
+                    if (rect.left <= r.right && r.left <= rect.right && rect.top <= r.bottom && r.top <= rect.bottom) {
+                        expected = true;
+                        break;
+                    }
+                }
+                assertEquals(rect.toString(), expected, detector.collides(rect));
+                if (!expected) {
+                    placed.add(rect);
+                }
+            }
+            assertEquals(placed.size(), detector.size());
+            detector.reset();
+        }
+    }
+
+    /**
+     * Compare the time used by the simple and the grid based detector for increasing numbers of labels
+     */
+    @Test
+    public void collisionBenchmark() {
+        for (int count : new int[] { 200, 1000, 2000 }) {
+            List<Rect> rects = new ArrayList<>();
+            Random random = new Random(count);
+            for (int i = 0; i < count; i++) {
+                rects.add(randomRect(random, 4096));
+            }
+            CollisionDetector simple = new SimpleCollisionDetector(count);
+            CollisionDetector grid = new GridCollisionDetector();
+            int simplePlaced = run(simple, rects, 2); // warm up
+            int gridPlaced = run(grid, rects, 2);
+            long start = System.nanoTime();
+            run(simple, rects, 5);
+            long simpleTime = (System.nanoTime() - start) / 5;
+            start = System.nanoTime();
+            run(grid, rects, 5);
+            long gridTime = (System.nanoTime() - start) / 5;
+            assertEquals(simplePlaced, gridPlaced);
+            System.out.println(count + " boxes simple " + simpleTime / 1000 + " us (" + simplePlaced + " placed) grid " + gridTime / 1000 + " us ("
+                    + gridPlaced + " placed)");
+        }
+    }
+
+    /**
+     * Add a list of Rects to a detector
+     * 
+     * @param detector the CollisionDetector
+     * @param rects the Rects
+     * @param repeat how often to repeat
+     * @return the number of Rects that didn't collide in the last run
+     */
+    private int run(CollisionDetector detector, List<Rect> rects, int repeat) {
+        int placed = 0;
+        for (int i = 0; i < repeat; i++) {
+            detector.reset();
+            placed = 0;
+            for (Rect rect : rects) {
+                if (!detector.collides(rect)) {
+                    placed++;
+                }
+            }
+        }
+        return placed;
+    }
+
+    /**
+     * Create a label sized random Rect
+     * 
+     * @param random the source of randomness
+     * @param size the size of the area
+     * @return a Rect
+     */
+    private Rect randomRect(Random random, int size) {
+        int left = random.nextInt(size) - 100;
+        int top = random.nextInt(size) - 100;
+        return new Rect(left, top, left + 10 + random.nextInt(150), top + 5 + random.nextInt(30));
+    }
 }
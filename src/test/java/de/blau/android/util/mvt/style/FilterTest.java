@@ -1,9 +1,13 @@
 package de.blau.android.util.mvt.style;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.junit.Before;
@@ -12,8 +16,12 @@ import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 
 import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+import com.mapbox.geojson.LineString;
+import com.mapbox.geojson.MultiLineString;
 import com.mapbox.geojson.Point;
 
+import androidx.annotation.NonNull;
 import androidx.test.core.app.ApplicationProvider;
 import androidx.test.filters.LargeTest;
 import de.blau.android.resources.DataStyle;
@@ -297,4 +305,137 @@ public class FilterTest {
         array.add(array3);
         assertTrue(symbol.evaluateFilter(array, feature));
     }
+
+    /**
+     * Check that compiled filters give the same results as interpreting the JSON expression
+     */
+    @Test
+    public void compiledConformanceTest() {
+        List<VectorTileDecoder.Feature> features = conformanceFeatures();
+        String[] operators = { "==", "!=", "<", "<=", ">", ">=" };
+        String[] keys = { "s", "i", "l", "f", "d", "missing", "$id", "$type" };
+        String[] constants = { "\"m\"", "\"string\"", "111", "110", "112", "1.5", "111.0", "10000000000", "\"LineString\"", "\"Point\"", "42", "true" };
+        List<String> expressions = new ArrayList<>();
+        for (String key : keys) {
+            for (String constant : constants) {
+                for (String op : operators) {
+                    expressions.add("[\"" + op + "\",\"" + key + "\"," + constant + "]");
+                }
+            }
+            expressions.add("[\"in\",\"" + key + "\",\"string\",111,\"Point\"]");
+            expressions.add("[\"in\",\"" + key + "\",\"x\",1.5,42]");
+            expressions.add("[\"in\",\"" + key + "\"]");
+            expressions.add("[\"!in\",\"" + key + "\",\"string\",111,\"Point\"]");
+            expressions.add("[\"!in\",\"" + key + "\",\"x\",1.5,42]");
+            expressions.add("[\"!in\",\"" + key + "\"]");
+        }
+
+        Symbol symbol = new Symbol("test");
+        // the interpreter throws on constants that can't be converted to the type of the value, only combine the others
+        List<String> valid = new ArrayList<>();
+        for (String e : expressions) {
+            if (interpretable((JsonArray) JsonParser.parseString(e), symbol, features)) {
+                valid.add(e);
+            }
+        }
+        int simple = valid.size();
+        for (int i = 0; i < simple; i += 7) {
+            String a = valid.get(i);
+            String b = valid.get((i * 31 + 5) % simple);
+            expressions.add("[\"all\"," + a + "," + b + "]");
+            expressions.add("[\"any\"," + a + "," + b + "]");
+            expressions.add("[\"all\",[\"any\"," + a + "],[\"!in\",\"s\",\"x\"]," + b + "]");
+        }
+        expressions.add("[\"all\"]");
+        expressions.add("[\"any\"]");
+        expressions.add("[\"unknown\",\"s\",\"string\"]");
+        expressions.add("[\"any\",[\"unknown\"],[\"==\",\"s\",\"string\"]]");
+
+        int evaluations = 0;
+        for (String e : expressions) {
+            JsonArray expression = (JsonArray) JsonParser.parseString(e);
+            CompiledFilter compiled = CompiledFilter.compile(expression);
+            for (VectorTileDecoder.Feature feature : features) {
+                boolean result = compiled.evaluate(feature);
+                try {
+                    assertEquals(e + " " + feature.getAttributes() + " " + feature.getId(), symbol.evaluateFilter(expression, feature), result);
+                    evaluations++;
+                } catch (NumberFormatException ex) {
+                    // the compiled filter skips constants that can't be converted instead of failing
+                }
+            }
+        }
+        System.out.println("Compared " + expressions.size() + " expressions, " + evaluations + " evaluations");
+    }
+
+    /**
+     * Check if the interpreter can evaluate an expression for all features
+     * 
+     * @param expression the expression
+     * @param layer the Layer to use for interpreting
+     * @param features the Features
+     * @return true if no exception was thrown
+     */
+    private boolean interpretable(@NonNull JsonArray expression, @NonNull Layer layer, @NonNull List<VectorTileDecoder.Feature> features) {
+        try {
+            for (VectorTileDecoder.Feature feature : features) {
+                layer.evaluateFilter(expression, feature);
+            }
+            return true;
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Check that the layer uses the compiled filter
+     */
+    @Test
+    public void layerFilterTest() {
+        List<VectorTileDecoder.Feature> features = conformanceFeatures();
+        Symbol symbol = new Symbol("test");
+        for (VectorTileDecoder.Feature feature : features) {
+            assertTrue(symbol.evaluateFilter(feature));
+        }
+        JsonArray expression = (JsonArray) JsonParser.parseString("[\"all\",[\"==\",\"s\",\"string\"],[\">=\",\"i\",111]]");
+        symbol.setFilter(expression);
+        int accepted = 0;
+        for (VectorTileDecoder.Feature feature : features) {
+            boolean result = symbol.evaluateFilter(feature);
+            assertEquals(symbol.evaluateFilter(expression, feature), result);
+            if (result) {
+                accepted++;
+            }
+        }
+        assertTrue(accepted > 0 && accepted < features.size());
+        symbol.setFilter(null);
+        assertTrue(symbol.evaluateFilter(features.get(0)));
+    }
+
+    /**
+     * Build features with attributes of all supported types and different geometries
+     * 
+     * @return a List of Features
+     */
+    private List<VectorTileDecoder.Feature> conformanceFeatures() {
+        List<VectorTileDecoder.Feature> features = new ArrayList<>();
+        Object[][] values = { { "string", 111, 111L, 111f, 111d }, { "m", 110, 10000000000L, 1.5f, 1.5d }, { "Point", 112, 42L, 112.5f, -1d } };
+        Point point = Point.fromLngLat(0, 0);
+        LineString line = LineString.fromLngLats(Arrays.asList(point, Point.fromLngLat(1, 1)));
+        MultiLineString multiLine = MultiLineString.fromLineStrings(Arrays.asList(line, line));
+        long id = 42;
+        for (Object[] v : values) {
+            Map<String, Object> attributes = new HashMap<>();
+            attributes.put("s", v[0]);
+            attributes.put("i", v[1]);
+            attributes.put("l", v[2]);
+            attributes.put("f", v[3]);
+            attributes.put("d", v[4]);
+            features.add(new VectorTileDecoder.Feature("test", 256, point, attributes, id));
+            features.add(new VectorTileDecoder.Feature("test", 256, multiLine, attributes, id + 1));
+            features.add(new VectorTileDecoder.Feature("test", 256, line, new HashMap<>(), -1));
+            id += 68;
+        }
+        return features;
+    }
 }
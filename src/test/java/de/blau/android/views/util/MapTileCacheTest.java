@@ -0,0 +1,223 @@
+package de.blau.android.views.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import android.graphics.Bitmap;
+import androidx.annotation.NonNull;
+import androidx.test.filters.LargeTest;
+import de.blau.android.exception.StorageException;
+import de.blau.android.services.util.MapTile;
+
+@RunWith(RobolectricTestRunner.class)
+@LargeTest
+public class MapTileCacheTest {
+
+    private static final int TILE_BYTES = 256 * 256 * 4;
+
+    /**
+     * Check size accounting, eviction and recycling of bitmaps
+     */
+    @Test
+    public void bitmaps() {
+        final int segments = 4;
+        MapTileCache<Bitmap> cache = new MapTileCache<>(40L * TILE_BYTES, segments);
+        List<Bitmap> bitmaps = new ArrayList<>();
+        try {
+            for (int i = 0; i < 100; i++) {
+                Bitmap bitmap = Bitmap.createBitmap(256, 256, Bitmap.Config.ARGB_8888);
+                bitmaps.add(bitmap);
+                cache.putTile(new MapTile("test", 16, i, 0), bitmap, i); // different owner every time
+            }
+            Bitmap notRecycleable = Bitmap.createBitmap(256, 256, Bitmap.Config.ARGB_8888);
+            cache.putTile(new MapTile("test", 16, 0, 1), notRecycleable, false, 1000);
+            assertTrue(cache.containsTile(new MapTile("test", 16, 0, 1)));
+        } catch (StorageException e) {
+            fail(e.getMessage());
+        }
+        String info = cache.getCacheUsageInfo();
+        System.out.println(info);
+        int entries = 0;
+        for (int i = 0; i < 100; i++) {
+            Bitmap cached = cache.getMapTile(new MapTile("test", 16, i, 0));
+            if (cached != null) {
+                entries++;
+                assertFalse(cached.isRecycled());
+            } else {
+                assertTrue(bitmaps.get(i).isRecycled());
+            }
+        }
+        assertTrue(entries > 0 && entries <= 40);
+        assertTrue(info.startsWith("Size " + ((entries + 1) * (long) TILE_BYTES) + " of maximum " + 40L * TILE_BYTES));
+
+        cache.onLowMemory();
+        assertTrue(cache.getCacheUsageInfo().contains("of maximum " + 20L * TILE_BYTES));
+        cache.clear();
+        assertTrue(cache.getCacheUsageInfo().startsWith("Size 0 "));
+        for (Bitmap bitmap : bitmaps) {
+            assertTrue(bitmap.isRecycled());
+        }
+    }
+
+    /**
+     * Evicting a tile added by the same owner fails, the segment is then expanded
+     */
+    @Test
+    public void thrashing() {
+        LRUMapTileCache<Bitmap> segment = new LRUMapTileCache<>(4L * TILE_BYTES);
+        try {
+            for (int i = 0; i < 6; i++) {
+                segment.put(Integer.toString(i), Bitmap.createBitmap(256, 256, Bitmap.Config.ARGB_8888), true, 1);
+            }
+            assertEquals(6, segment.size());
+            assertTrue(segment.getMaxCacheSize() > 4L * TILE_BYTES);
+            assertEquals(6L * TILE_BYTES, segment.cacheSizeBytes());
+        } catch (StorageException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Large tiles added by one owner to a small segmented cache, the size limit applies to the whole cache and not per
+     * segment
+     */
+    @Test
+    public void largeTiles() {
+        final long largeTileBytes = 512 * 512 * 4L;
+        MapTileCache<Bitmap> cache = new MapTileCache<>(12 * largeTileBytes, MapTileCache.DEFAULT_SEGMENTS);
+        try {
+            for (int i = 0; i < 10; i++) {
+                cache.putTile(new MapTile("test", 16, i, 0), Bitmap.createBitmap(512, 512, Bitmap.Config.ARGB_8888), 1);
+            }
+        } catch (StorageException e) {
+            fail(e.getMessage());
+        }
+        for (int i = 0; i < 10; i++) {
+            assertNotNull(cache.getMapTile(new MapTile("test", 16, i, 0)));
+        }
+        assertTrue(cache.getCacheUsageInfo().startsWith("Size " + 10 * largeTileBytes + " of maximum " + 12 * largeTileBytes));
+    }
+
+    /**
+     * Replace a tile with new contents keeping its owner
+     */
+    @Test
+    public void replace() {
+        MapTileCache<Bitmap> cache = new MapTileCache<>(40L * TILE_BYTES, 4);
+        MapTile tile = new MapTile("test", 16, 0, 0);
+        Bitmap stale = Bitmap.createBitmap(256, 256, Bitmap.Config.ARGB_8888);
+        Bitmap updated = Bitmap.createBitmap(256, 256, Bitmap.Config.ARGB_8888);
+        try {
+            cache.putTile(tile, stale, 1);
+            Long owner = cache.removeTile(tile);
+            assertEquals(Long.valueOf(1), owner);
+            assertNull(cache.removeTile(tile));
+            assertFalse(stale.isRecycled()); // may still be drawn
+            cache.putTile(tile, updated, owner);
+            assertEquals(updated, cache.getMapTile(tile));
+            assertTrue(cache.getCacheUsageInfo().startsWith("Size " + TILE_BYTES + " "));
+            assertEquals(owner, cache.removeTile(tile));
+        } catch (StorageException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * LRU order is maintained on get
+     */
+    @Test
+    public void lru() {
+        LRUMapTileCache<String> segment = new LRUMapTileCache<>(11);
+        try {
+            for (int i = 0; i < 10; i++) {
+                segment.put(Integer.toString(i), "v" + i, true, 0);
+            }
+            assertNotNull(segment.get("0"));
+            segment.put("10", "v10", true, 0);
+            assertNotNull(segment.get("0"));
+            assertNull(segment.get("1"));
+            assertEquals(10, segment.size());
+        } catch (StorageException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Concurrent puts and gets from several threads, compare a single segment with the default number of segments
+     */
+    @Test
+    public void stress() {
+        long single = stress(new MapTileCache<>(1000, 1));
+        long segmented = stress(new MapTileCache<>(1000));
+        System.out.println("single lock " + single / 1000000 + " ms segmented " + segmented / 1000000 + " ms");
+    }
+
+    /**
+     * Hammer a cache with a render thread and several loader threads
+     *
+     * @param cache the cache
+     * @return the elapsed time in ns
+     */
+    private long stress(@NonNull final MapTileCache<String> cache) {
+        final int threads = 8;
+        final int operations = 200000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            new Thread(() -> {
+                Random random = new Random(seed);
+                try {
+                    start.await();
+                    for (int i = 0; i < operations; i++) {
+                        MapTile tile = new MapTile("test", 16, random.nextInt(4000), 0);
+                        if (seed == 0 || random.nextInt(4) != 0) {
+                            // render thread only reads
+                            String value = cache.getMapTile(tile);
+                            if (value != null && !value.equals(Integer.toString(tile.x))) {
+                                throw new IllegalStateException("wrong value " + value + " for " + tile.x);
+                            }
+                        } else {
+                            cache.putTile(tile, Integer.toString(tile.x), seed);
+                        }
+                    }
+                } catch (Throwable e) { // NOSONAR
+                    error.set(e);
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        long startTime = System.nanoTime();
+        start.countDown();
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            fail(e.getMessage());
+        }
+        long elapsed = System.nanoTime() - startTime;
+        if (error.get() != null) {
+            fail(error.get().toString());
+        }
+        String info = cache.getCacheUsageInfo();
+        System.out.println(info);
+        assertTrue(cache.getLockCount() >= (long) threads * operations);
+        assertTrue(cache.getContendedCount() <= cache.getLockCount());
+        return elapsed;
+    }
+}